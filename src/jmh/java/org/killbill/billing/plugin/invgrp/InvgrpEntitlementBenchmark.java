@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.entitlement.api.boilerplate.BaseEntitlementWithAddOnsSpecifierImp;
+import org.killbill.billing.entitlement.api.boilerplate.EntitlementSpecifierImp;
+import org.killbill.billing.entitlement.plugin.api.EntitlementContext;
+import org.killbill.billing.entitlement.plugin.api.EntitlementPluginApiException;
+import org.killbill.billing.entitlement.plugin.api.OnSuccessEntitlementResult;
+import org.killbill.billing.entitlement.plugin.api.OperationType;
+import org.killbill.billing.entitlement.plugin.api.boilerplate.plugin.EntitlementContextImp;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Throughput of {@link InvgrpEntitlementPluginApi#onSuccessCall} (subscription creation with a PM_ID property) against
+ * the in-memory Kill Bill APIs. Each invocation creates a new subscription in the in-memory APIs, so that a new mapping
+ * is recorded every time (synchronously, or queued for the background workers).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InvgrpEntitlementBenchmark {
+
+    private static final int NB_ACCOUNTS = 100;
+
+    // Simulated latency of each Kill Bill API call
+    @Param({"0", "100", "1000"})
+    public long latencyMicros;
+
+    // Workers writing the mappings in the background (0 to write them synchronously)
+    @Param({"0", "2"})
+    public int mappingWorkers;
+
+    private InvgrpInMemoryKillbillAPI killbillAPI;
+    private InvgrpPaymentMethodQueue pendingPaymentMethods;
+    private InvgrpEntitlementPluginApi entitlementPluginApi;
+    private UUID tenantId;
+    private UUID[] accountIds;
+    private List<PluginProperty>[] accountProperties;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        killbillAPI = new InvgrpInMemoryKillbillAPI();
+        pendingPaymentMethods = new InvgrpPaymentMethodQueue(new InvgrpDao(InvgrpTestDataSource.create()),
+                                                             killbillAPI,
+                                                             InvgrpInMemoryKillbillAPI.clock(),
+                                                             new InvgrpCache<>("benchmark", 10000, 1, TimeUnit.HOURS),
+                                                             new InvgrpPaymentMethodValidator(killbillAPI,
+                                                                                              new InvgrpCache<>("validPaymentMethods", 10000, 1, TimeUnit.HOURS),
+                                                                                              new InvgrpCache<>("unknownPaymentMethods", 10000, 30, TimeUnit.SECONDS)),
+                                                             mappingWorkers,
+                                                             10000,
+                                                             10);
+        pendingPaymentMethods.start();
+        entitlementPluginApi = new InvgrpEntitlementPluginApi(pendingPaymentMethods, new InvgrpMetrics(null, 0));
+        tenantId = UUID.randomUUID();
+
+        accountIds = new UUID[NB_ACCOUNTS];
+        accountProperties = new List[NB_ACCOUNTS];
+        for (int i = 0; i < NB_ACCOUNTS; i++) {
+            accountIds[i] = UUID.randomUUID();
+            final UUID pmId = killbillAPI.addPaymentMethod(accountIds[i]);
+            accountProperties[i] = ImmutableList.of(new PluginProperty(InvgrpEntitlementPluginApi.PM_ID, pmId.toString(), false));
+        }
+
+        killbillAPI.setLatency(latencyMicros, TimeUnit.MICROSECONDS);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        pendingPaymentMethods.stop();
+    }
+
+    @Benchmark
+    public OnSuccessEntitlementResult onSuccessCall() throws EntitlementPluginApiException {
+        final int account = ThreadLocalRandom.current().nextInt(NB_ACCOUNTS);
+        final String externalKey = killbillAPI.addSubscription(accountIds[account]).getExternalKey();
+        final EntitlementContext context = new EntitlementContextImp.Builder<>()
+                .withTenantId(tenantId)
+                .withAccountId(accountIds[account])
+                .withOperationType(OperationType.CREATE_SUBSCRIPTION)
+                .withBaseEntitlementWithAddOnsSpecifiers(ImmutableList.of(new BaseEntitlementWithAddOnsSpecifierImp.Builder<>()
+                                                                                  .withEntitlementSpecifier(ImmutableList.of(new EntitlementSpecifierImp.Builder<>().withExternalKey(externalKey).build()))
+                                                                                  .build()))
+                .build();
+        return entitlementPluginApi.onSuccessCall(context, accountProperties[account]);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.invoice.api.boilerplate.InvoiceImp;
+import org.killbill.billing.invoice.api.boilerplate.InvoiceItemImp;
+import org.killbill.billing.invoice.plugin.api.InvoiceContext;
+import org.killbill.billing.invoice.plugin.api.InvoiceGroupingResult;
+import org.killbill.billing.invoice.plugin.api.boilerplate.plugin.InvoiceContextImp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link InvgrpInvoicePluginApi#getInvoiceGrouping} on synthetic invoices (run with {@code -prof gc} for the allocation rate).
+ * <p>
+ * Linked items (adjustments, repairs) point to a random item listed before them, which is itself either a subscription
+ * item or another linked item, and the items are then shuffled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InvgrpGroupingBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int nbItems;
+
+    // Ratio of items without subscription, linked to another item
+    @Param({"0.0", "0.2", "0.5"})
+    public double linkedItemsRatio;
+
+    // 1 for many subscriptions (one item each), 100 for few subscriptions (many items each)
+    @Param({"1", "100"})
+    public int itemsPerSubscription;
+
+    private InvgrpInvoicePluginApi invoicePluginApi;
+    private InvoiceContext context;
+    private Invoice invoice;
+
+    @Setup
+    public void setUp() {
+        final InvgrpConfigurationHandler configurationHandler = new InvgrpConfigurationHandler("benchmark", InvgrpActivator.PLUGIN_NAME, null);
+        configurationHandler.setDefaultConfigurable(new InvgrpTenantConfiguration(new Properties()));
+        // No memo, to measure the grouping itself
+        invoicePluginApi = new InvgrpInvoicePluginApi(configurationHandler, null, null, null, new InvgrpMetrics(null, 0));
+
+        invoice = invoice(nbItems, linkedItemsRatio, itemsPerSubscription, new Random(42));
+        // No tenant, to use the default (global) configuration
+        context = new InvoiceContextImp.Builder<>().withAccountId(invoice.getAccountId())
+                                                   .withInvoice(invoice)
+                                                   .build();
+    }
+
+    @Benchmark
+    public InvoiceGroupingResult getInvoiceGrouping() {
+        return invoicePluginApi.getInvoiceGrouping(invoice, false, Collections.emptyList(), context);
+    }
+
+    private static Invoice invoice(final int nbItems, final double linkedItemsRatio, final int itemsPerSubscription, final Random random) {
+        final int nbSubscriptionItems = Math.max(1, (int) (nbItems * (1 - linkedItemsRatio)));
+        final UUID[] subscriptionIds = new UUID[Math.max(1, nbSubscriptionItems / itemsPerSubscription)];
+        for (int i = 0; i < subscriptionIds.length; i++) {
+            subscriptionIds[i] = new UUID(random.nextLong(), random.nextLong());
+        }
+
+        final List<InvoiceItem> items = new ArrayList<InvoiceItem>(nbItems);
+        for (int i = 0; i < nbSubscriptionItems; i++) {
+            items.add(new InvoiceItemImp.Builder<>().withId(new UUID(random.nextLong(), random.nextLong()))
+                                                    .withInvoiceItemType(InvoiceItemType.RECURRING)
+                                                    .withSubscriptionId(subscriptionIds[i % subscriptionIds.length])
+                                                    .withAmount(BigDecimal.TEN)
+                                                    .withCurrency(Currency.USD)
+                                                    .build());
+        }
+        for (int i = nbSubscriptionItems; i < nbItems; i++) {
+            final InvoiceItem target = items.get(random.nextInt(items.size()));
+            items.add(new InvoiceItemImp.Builder<>().withId(new UUID(random.nextLong(), random.nextLong()))
+                                                    .withInvoiceItemType(InvoiceItemType.ITEM_ADJ)
+                                                    .withLinkedItemId(target.getId())
+                                                    .withAmount(BigDecimal.ONE.negate())
+                                                    .withCurrency(Currency.USD)
+                                                    .build());
+        }
+        Collections.shuffle(items, random);
+
+        return new InvoiceImp.Builder<>().withId(new UUID(random.nextLong(), random.nextLong()))
+                                         .withAccountId(new UUID(random.nextLong(), random.nextLong()))
+                                         .withInvoiceItems(items)
+                                         .build();
+    }
+}
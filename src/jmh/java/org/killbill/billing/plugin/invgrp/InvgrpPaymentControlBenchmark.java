@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.control.plugin.api.PaymentControlApiException;
+import org.killbill.billing.control.plugin.api.PaymentControlContext;
+import org.killbill.billing.control.plugin.api.PriorPaymentControlResult;
+import org.killbill.billing.control.plugin.api.boilerplate.plugin.PaymentControlContextImp;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.invoice.api.boilerplate.InvoiceImp;
+import org.killbill.billing.invoice.api.boilerplate.InvoiceItemImp;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Throughput of {@link InvgrpPaymentControlPluginApi#priorCall} against the in-memory Kill Bill APIs (and an in-memory
+ * H2 database for the plugin tables). Run with different thread counts (e.g. {@code -t 1}, {@code -t 8}) to check for
+ * contention in the payment method cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InvgrpPaymentControlBenchmark {
+
+    private static final int NB_ACCOUNTS = 100;
+    private static final int NB_SUBSCRIPTIONS_PER_ACCOUNT = 20;
+
+    // Simulated latency of each Kill Bill API call
+    @Param({"0", "100", "1000"})
+    public long latencyMicros;
+
+    // Whether the invoices were indexed at invoice generation time (otherwise, each payment has to load its invoice)
+    @Param({"true", "false"})
+    public boolean indexedInvoices;
+
+    private InvgrpPaymentControlPluginApi paymentControlPluginApi;
+    private PaymentControlContext context;
+    private List<PluginProperty>[] invoiceProperties;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        final InvgrpInMemoryKillbillAPI killbillAPI = new InvgrpInMemoryKillbillAPI();
+        final InvgrpDao dao = new InvgrpDao(InvgrpTestDataSource.create());
+        final InvgrpPaymentMethodStore store = new InvgrpPaymentMethodStore(dao,
+                                                                            killbillAPI,
+                                                                            InvgrpInMemoryKillbillAPI.clock(),
+                                                                            new InvgrpCache<>("benchmark", 10000, 1, TimeUnit.HOURS),
+                                                                            false,
+                                                                            null);
+        final InvgrpPaymentMethodRouter router = new InvgrpPaymentMethodRouter(dao, InvgrpInMemoryKillbillAPI.clock(), store, 60, 3, 10);
+        paymentControlPluginApi = new InvgrpPaymentControlPluginApi(killbillAPI, store, router, new InvgrpMetrics(null, 0));
+        context = new PaymentControlContextImp.Builder<>().withTenantId(UUID.randomUUID())
+                                                          .withPaymentExternalKey("benchmark")
+                                                          .withTransactionType(TransactionType.PURCHASE)
+                                                          .withAmount(BigDecimal.TEN)
+                                                          .withCurrency(Currency.USD)
+                                                          .build();
+
+        invoiceProperties = new List[NB_ACCOUNTS * NB_SUBSCRIPTIONS_PER_ACCOUNT];
+        int i = 0;
+        for (int a = 0; a < NB_ACCOUNTS; a++) {
+            final UUID accountId = UUID.randomUUID();
+            for (int s = 0; s < NB_SUBSCRIPTIONS_PER_ACCOUNT; s++) {
+                final UUID subscriptionId = killbillAPI.addSubscription(accountId).getId();
+                store.addPaymentMethod(accountId, subscriptionId, killbillAPI.addPaymentMethod(accountId), context);
+
+                final Invoice invoice = invoice(accountId, subscriptionId);
+                killbillAPI.addInvoice(invoice);
+                if (indexedInvoices) {
+                    store.addInvoicePaymentMethod(invoice, context);
+                }
+                invoiceProperties[i++] = ImmutableList.of(new PluginProperty("IPCD_INVOICE_ID", invoice.getId().toString(), false));
+            }
+        }
+
+        killbillAPI.setLatency(latencyMicros, TimeUnit.MICROSECONDS);
+    }
+
+    @Benchmark
+    public PriorPaymentControlResult priorCall() throws PaymentControlApiException {
+        final List<PluginProperty> properties = invoiceProperties[ThreadLocalRandom.current().nextInt(invoiceProperties.length)];
+        return paymentControlPluginApi.priorCall(context, properties);
+    }
+
+    private static Invoice invoice(final UUID accountId, final UUID subscriptionId) {
+        return new InvoiceImp.Builder<>().withId(UUID.randomUUID())
+                                         .withAccountId(accountId)
+                                         .withInvoiceItems(ImmutableList.of(new InvoiceItemImp.Builder<>().withId(UUID.randomUUID())
+                                                                                                          .withInvoiceItemType(InvoiceItemType.RECURRING)
+                                                                                                          .withSubscriptionId(subscriptionId)
+                                                                                                          .withAmount(BigDecimal.TEN)
+                                                                                                          .withCurrency(Currency.USD)
+                                                                                                          .build()))
+                                         .build();
+    }
+}
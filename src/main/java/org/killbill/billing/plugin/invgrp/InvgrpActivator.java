@@ -16,8 +16,11 @@
 
 package org.killbill.billing.plugin.invgrp;
 
+import java.util.ArrayList;
 import java.util.Hashtable;
-import java.util.Properties;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.Servlet;
 import javax.servlet.http.HttpServlet;
@@ -25,6 +28,7 @@ import javax.servlet.http.HttpServlet;
 import org.killbill.billing.control.plugin.api.PaymentControlPluginApi;
 import org.killbill.billing.entitlement.plugin.api.EntitlementPluginApi;
 import org.killbill.billing.invoice.plugin.api.InvoicePluginApi;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
 import org.killbill.billing.osgi.api.Healthcheck;
 import org.killbill.billing.osgi.api.OSGIPluginProperties;
 import org.killbill.billing.osgi.libs.killbill.KillbillActivatorBase;
@@ -44,9 +48,14 @@ public class InvgrpActivator extends KillbillActivatorBase {
     //
     public static final String PLUGIN_NAME = "invgrp-plugin";
 
+    private InvgrpGlobalConfiguration configuration;
     private InvgrpConfigurationHandler invgrpConfigurationHandler;
     private OSGIKillbillEventDispatcher.OSGIKillbillEventHandler killbillEventHandler;
-    private MetricsGeneratorExample metricsGenerator;
+    private InvgrpPaymentMethodQueue pendingPaymentMethods;
+    private InvgrpReconciler reconciler;
+    private InvgrpHealthcheck healthcheck;
+    private InvgrpPartitionedExecutor listenerExecutor;
+    private InvgrpCoalescer<InvgrpListener.EventKey, ExtBusEvent> listenerCoalescer;
 
     @Override
     public void start(final BundleContext context) throws Exception {
@@ -54,35 +63,134 @@ public class InvgrpActivator extends KillbillActivatorBase {
 
         final String region = PluginEnvironmentConfig.getRegion(configProperties.getProperties());
 
+        // Plugin-wide settings, validated up front (an invalid value fails the start)
+        configuration = new InvgrpGlobalConfiguration(configProperties.getProperties());
+
         // Register an event listener for plugin configuration (optional)
         invgrpConfigurationHandler = new InvgrpConfigurationHandler(region, PLUGIN_NAME, killbillAPI);
-        final Properties globalConfiguration = invgrpConfigurationHandler.createConfigurable(configProperties.getProperties());
+        final InvgrpTenantConfiguration globalConfiguration = invgrpConfigurationHandler.createConfigurable(configProperties.getProperties());
         invgrpConfigurationHandler.setDefaultConfigurable(globalConfiguration);
 
-        // Register an event listener (optional)
-        killbillEventHandler = new InvgrpListener(killbillAPI);
+        // Latency, throughput and error metrics of the plugin API entry points
+        final InvgrpMetrics metrics = new InvgrpMetrics(metricRegistry, configuration.getMetricsMaxTenants());
+
+        // Cache of the subscription -> payment method mappings, shared with the listener (for invalidation, per account)
+        final InvgrpCache<InvgrpTenantKey, InvgrpPaymentMethodMapping> paymentMethodCache = new InvgrpCache<>("paymentMethods",
+                                                                                                             configuration.getPaymentMethodCacheMaxSize(),
+                                                                                                             configuration.getPaymentMethodCacheTtlSec(),
+                                                                                                             TimeUnit.SECONDS,
+                                                                                                             InvgrpPaymentMethodMapping::getAccountKey);
+        paymentMethodCache.registerMetrics(metricRegistry);
+
+        // Payment methods already validated (or found missing) at subscription creation, per tenant
+        final int validationCacheMaxSize = configuration.getValidationCacheMaxSize();
+        final InvgrpCache<InvgrpTenantKey, UUID> validPaymentMethods = new InvgrpCache<>("validPaymentMethods",
+                                                                                         validationCacheMaxSize,
+                                                                                         configuration.getValidationCacheTtlSec(),
+                                                                                         TimeUnit.SECONDS);
+        validPaymentMethods.registerMetrics(metricRegistry);
+        final InvgrpCache<InvgrpTenantKey, Boolean> unknownPaymentMethods = new InvgrpCache<>("unknownPaymentMethods",
+                                                                                              validationCacheMaxSize,
+                                                                                              configuration.getValidationCacheNegativeTtlSec(),
+                                                                                              TimeUnit.SECONDS);
+        unknownPaymentMethods.registerMetrics(metricRegistry);
+        final InvgrpPaymentMethodValidator paymentMethodValidator = new InvgrpPaymentMethodValidator(killbillAPI, validPaymentMethods, unknownPaymentMethods);
+
+        // Subscription -> payment method mappings (plugin table, with a read-through fallback to the PM_ID custom fields)
+        final InvgrpDao dao = new InvgrpDao(dataSource.getDataSource());
+        // Mappings created at subscription creation are written in the background
+        pendingPaymentMethods = new InvgrpPaymentMethodQueue(dao,
+                                                             killbillAPI,
+                                                             clock,
+                                                             paymentMethodCache,
+                                                             paymentMethodValidator,
+                                                             configuration.getMappingQueueWorkers(),
+                                                             configuration.getMappingQueueCapacity(),
+                                                             configuration.getMappingQueueMaxAttempts());
+        pendingPaymentMethods.start();
+        final InvgrpPaymentMethodStore paymentMethodStore = new InvgrpPaymentMethodStore(dao,
+                                                                                         killbillAPI,
+                                                                                         clock,
+                                                                                         paymentMethodCache,
+                                                                                         configuration.isCustomFieldFallback(),
+                                                                                         pendingPaymentMethods);
+
+        // Periodic check of the mappings, against the subscriptions and payment methods of the accounts
+        reconciler = new InvgrpReconciler(dao,
+                                          killbillAPI,
+                                          clock,
+                                          paymentMethodStore,
+                                          configuration.getReconcilerIntervalMin(),
+                                          configuration.getReconcilerThreads(),
+                                          configuration.getReconcilerPageSize(),
+                                          configuration.getReconcilerAccountsPerSec());
+        reconciler.registerMetrics(metricRegistry);
+        reconciler.start();
+
+        // Register an event listener (optional), processing the events off the bus dispatcher thread
+        listenerExecutor = new InvgrpPartitionedExecutor("listener",
+                                                         configuration.getListenerPartitions(),
+                                                         configuration.getListenerCapacity());
+        listenerExecutor.registerMetrics(metricRegistry);
+        listenerCoalescer = new InvgrpCoalescer<>("listener", configuration.getListenerCoalescingWindowMillis());
+        listenerCoalescer.registerMetrics(metricRegistry);
+        killbillEventHandler = new InvgrpListener(killbillAPI, paymentMethodCache, configuration.isCustomFieldFallback(), paymentMethodValidator, listenerExecutor, listenerCoalescer, reconciler, metrics);
 
-        final InvoicePluginApi invoicePluginApi = new InvgrpInvoicePluginApi();
+        // For the diagnostics
+        final List<InvgrpCache<?, ?>> caches = new ArrayList<InvgrpCache<?, ?>>(List.of(paymentMethodCache, validPaymentMethods, unknownPaymentMethods));
+
+        // Grouping results of the dry runs, reused by the following real runs
+        InvgrpGroupingMemo groupingMemo = null;
+        if (configuration.getGroupingMemoTtlSec() > 0) {
+            final InvgrpCache<InvgrpTenantKey, int[][]> groupingCache = new InvgrpCache<>("groupings",
+                                                                                        configuration.getGroupingMemoMaxSize(),
+                                                                                        configuration.getGroupingMemoTtlSec(),
+                                                                                        TimeUnit.SECONDS);
+            groupingCache.registerMetrics(metricRegistry);
+            caches.add(groupingCache);
+            groupingMemo = new InvgrpGroupingMemo(groupingCache, configuration.getGroupingMemoMaxInvoiceItems());
+        }
+
+        final InvoicePluginApi invoicePluginApi = new InvgrpInvoicePluginApi(invgrpConfigurationHandler, killbillAPI, paymentMethodStore, groupingMemo, metrics);
         registerInvoicePluginApi(context, invoicePluginApi);
 
-        final PaymentControlPluginApi paymentControlPluginApi = new InvgrpPaymentControlPluginApi(killbillAPI);
+        // Fallback payment methods of the subscriptions, and payment methods failing everywhere
+        final InvgrpPaymentMethodRouter paymentMethodRouter = new InvgrpPaymentMethodRouter(dao,
+                                                                                            clock,
+                                                                                            paymentMethodStore,
+                                                                                            configuration.getPaymentMethodFailureHalfLifeMin(),
+                                                                                            configuration.getPaymentMethodFailureBadScore(),
+                                                                                            configuration.getPaymentMethodFailureRefreshSec());
+        paymentMethodRouter.registerMetrics(metricRegistry);
+
+        final PaymentControlPluginApi paymentControlPluginApi = new InvgrpPaymentControlPluginApi(killbillAPI, paymentMethodStore, paymentMethodRouter, metrics);
         registerPaymentControlPluginApi(context, paymentControlPluginApi);
 
-        final EntitlementPluginApi entitlementPluginApi = new InvgrpEntitlementPluginApi(killbillAPI, clock);
+        final EntitlementPluginApi entitlementPluginApi = new InvgrpEntitlementPluginApi(pendingPaymentMethods, metrics);
         registerEntitlementPluginApi(context, entitlementPluginApi);
 
         // This is not required for the logic of the plugin but useful to run the integration test
         final PaymentPluginApi paymentPluginApi = new InvgrpPaymentPluginApi();
         registerPaymentPluginApi(context, paymentPluginApi);
 
-        // Expose metrics (optional)
-        metricsGenerator = new MetricsGeneratorExample(metricRegistry);
-        metricsGenerator.start();
-
-        // Expose a healthcheck (optional), so other plugins can check on the plugin status
-        final Healthcheck healthcheck = new InvgrpHealthcheck();
+        // Expose a healthcheck (optional), so other plugins can check on the plugin status: sampled in the background
+        healthcheck = new InvgrpHealthcheck(dao, clock, paymentMethodCache, listenerExecutor, pendingPaymentMethods, configuration);
+        healthcheck.start();
         registerHealthcheck(context, healthcheck);
 
+        // Plugin internals, over the servlet
+        final InvgrpDiagnostics diagnostics = new InvgrpDiagnostics(configuration,
+                                                                    invgrpConfigurationHandler,
+                                                                    metrics,
+                                                                    caches,
+                                                                    listenerExecutor,
+                                                                    listenerCoalescer,
+                                                                    pendingPaymentMethods,
+                                                                    reconciler);
+
+        // Bulk import / export of the mappings, over the servlet
+        final InvgrpMappingTransfer mappingTransfer = new InvgrpMappingTransfer(dao, killbillAPI, clock, paymentMethodCache, paymentMethodValidator);
+
         // Register a servlet (optional)
         final PluginApp pluginApp = new PluginAppBuilder(PLUGIN_NAME,
                                                          killbillAPI,
@@ -90,8 +198,12 @@ public class InvgrpActivator extends KillbillActivatorBase {
                                                          super.clock,
                                                          configProperties).withRouteClass(InvgrpServlet.class)
                                                                           .withRouteClass(InvgrpHealthcheckServlet.class)
+                                                                          .withRouteClass(InvgrpDiagnosticsServlet.class)
                                                                           .withService(healthcheck)
+                                                                          .withService(diagnostics)
+                                                                          .withService(mappingTransfer)
                                                                           .build();
+        pluginApp.parser(InvgrpServlet.NDJSON_PARSER);
         final HttpServlet httpServlet = PluginApp.createServlet(pluginApp);
         registerServlet(context, httpServlet);
 
@@ -102,7 +214,22 @@ public class InvgrpActivator extends KillbillActivatorBase {
     @Override
     public void stop(final BundleContext context) throws Exception {
         // Do additional work on shutdown (optional)
-        metricsGenerator.stop();
+        if (healthcheck != null) {
+            healthcheck.stop();
+        }
+        if (listenerCoalescer != null) {
+            listenerCoalescer.stop();
+        }
+        if (listenerExecutor != null) {
+            // Events already received are processed before the plugin goes away
+            listenerExecutor.stop(configuration.getListenerDrainTimeoutSec(), TimeUnit.SECONDS);
+        }
+        if (reconciler != null) {
+            reconciler.stop();
+        }
+        if (pendingPaymentMethods != null) {
+            pendingPaymentMethods.stop();
+        }
         super.stop(context);
     }
 
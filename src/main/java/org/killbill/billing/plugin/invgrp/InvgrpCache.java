@@ -0,0 +1,296 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
+import org.killbill.billing.osgi.libs.killbill.OSGIServiceNotAvailable;
+import org.killbill.commons.metrics.api.Gauge;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded in-memory cache with a time-to-live.
+ * <p>
+ * Entries are spread over independently locked LRU segments, so concurrent plugin calls rarely contend on the same lock.
+ * Values must not be null: callers wanting to remember a missing value should cache an explicit marker.
+ * <p>
+ * Entries can also be grouped (e.g. the subscriptions of an account), so that a group is invalidated without scanning
+ * the whole cache (see {@link #invalidateGroup}).
+ */
+public class InvgrpCache<K, V> {
+
+    private static final Logger logger = LoggerFactory.getLogger(InvgrpCache.class);
+
+    private static final int NB_SEGMENTS = 16;
+
+    private final String name;
+    private final long ttlNanos;
+    private final LongSupplier ticker;
+    private final Segment<K, V>[] segments;
+    @Nullable
+    private final Function<? super V, ?> groupOf;
+    // Group -> keys, maintained under the segment locks (the sets are only accessed within compute calls)
+    private final Map<Object, Set<K>> groups = new ConcurrentHashMap<Object, Set<K>>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public InvgrpCache(final String name, final int maxSize, final long ttl, final TimeUnit ttlUnit) {
+        this(name, maxSize, ttl, ttlUnit, null, System::nanoTime);
+    }
+
+    /**
+     * @param groupOf the group of a value (null for none), see {@link #invalidateGroup}
+     */
+    public InvgrpCache(final String name, final int maxSize, final long ttl, final TimeUnit ttlUnit, @Nullable final Function<? super V, ?> groupOf) {
+        this(name, maxSize, ttl, ttlUnit, groupOf, System::nanoTime);
+    }
+
+    InvgrpCache(final String name, final int maxSize, final long ttl, final TimeUnit ttlUnit, final LongSupplier ticker) {
+        this(name, maxSize, ttl, ttlUnit, null, ticker);
+    }
+
+    @SuppressWarnings("unchecked")
+    InvgrpCache(final String name, final int maxSize, final long ttl, final TimeUnit ttlUnit, @Nullable final Function<? super V, ?> groupOf, final LongSupplier ticker) {
+        this.name = name;
+        this.ttlNanos = ttlUnit.toNanos(ttl);
+        this.ticker = ticker;
+        this.groupOf = groupOf;
+        this.segments = new Segment[NB_SEGMENTS];
+        final int segmentSize = Math.max(1, (maxSize + NB_SEGMENTS - 1) / NB_SEGMENTS);
+        for (int i = 0; i < NB_SEGMENTS; i++) {
+            segments[i] = new Segment<K, V>(segmentSize, evictions, this::unindex);
+        }
+    }
+
+    public V get(final K key) {
+        final Segment<K, V> segment = segmentFor(key);
+        final V value;
+        synchronized (segment) {
+            final CacheEntry<V> entry = segment.get(key);
+            if (entry == null) {
+                value = null;
+            } else if (ticker.getAsLong() - entry.createdNanos >= ttlNanos) {
+                unindex(key, segment.remove(key));
+                evictions.increment();
+                value = null;
+            } else {
+                value = entry.value;
+            }
+        }
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    public void put(final K key, final V value) {
+        final Segment<K, V> segment = segmentFor(key);
+        final CacheEntry<V> entry = new CacheEntry<V>(value, groupOf != null ? groupOf.apply(value) : null, ticker.getAsLong());
+        synchronized (segment) {
+            unindex(key, segment.put(key, entry));
+            index(key, entry);
+        }
+    }
+
+    public void invalidate(final K key) {
+        final Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            unindex(key, segment.remove(key));
+        }
+    }
+
+    /**
+     * Invalidate the entries whose value is in the group, without scanning the cache.
+     *
+     * @throws IllegalStateException if the cache has no groups
+     */
+    public void invalidateGroup(final Object group) {
+        if (groupOf == null) {
+            throw new IllegalStateException("Cache " + name + " has no groups");
+        }
+        final Set<K> keys = groups.remove(group);
+        if (keys == null) {
+            return;
+        }
+        for (final K key : keys) {
+            final Segment<K, V> segment = segmentFor(key);
+            synchronized (segment) {
+                final CacheEntry<V> entry = segment.get(key);
+                // Unless it was replaced in the meantime, with a value of another group
+                if (entry != null && group.equals(entry.group)) {
+                    unindex(key, segment.remove(key));
+                }
+            }
+        }
+    }
+
+    public void invalidateIf(final Predicate<V> predicate) {
+        for (final Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                final Iterator<Map.Entry<K, CacheEntry<V>>> it = segment.entrySet().iterator();
+                while (it.hasNext()) {
+                    final Map.Entry<K, CacheEntry<V>> entry = it.next();
+                    if (predicate.test(entry.getValue().value)) {
+                        it.remove();
+                        unindex(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        for (final Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.forEach(this::unindex);
+                segment.clear();
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        int size = 0;
+        for (final Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the ratio of lookups served from the cache since startup, 0 before the first lookup
+     */
+    public double getHitRate() {
+        final long nbHits = hits.sum();
+        final long nbLookups = nbHits + misses.sum();
+        return nbLookups == 0 ? 0.0 : (double) nbHits / nbLookups;
+    }
+
+    public void registerMetrics(final OSGIMetricRegistry metricRegistry) {
+        final String prefix = "invgrp.cache." + name;
+        try {
+            final MetricRegistry registry = metricRegistry.getMetricRegistry();
+            registry.gauge(prefix + ".size", (Gauge<Integer>) this::size);
+            registry.gauge(prefix + ".hits", (Gauge<Long>) this::getHitCount);
+            registry.gauge(prefix + ".misses", (Gauge<Long>) this::getMissCount);
+            registry.gauge(prefix + ".evictions", (Gauge<Long>) this::getEvictionCount);
+            registry.gauge(prefix + ".hitRate", (Gauge<Double>) this::getHitRate);
+        } catch (final OSGIServiceNotAvailable ignored) {
+            logger.warn("No MetricRegistry available, metrics for cache {} won't be exposed", name);
+        }
+    }
+
+    private void index(final K key, final CacheEntry<V> entry) {
+        if (entry.group == null) {
+            return;
+        }
+        groups.compute(entry.group, (group, keys) -> {
+            final Set<K> groupKeys = keys != null ? keys : new HashSet<K>();
+            groupKeys.add(key);
+            return groupKeys;
+        });
+    }
+
+    private void unindex(final K key, @Nullable final CacheEntry<V> entry) {
+        if (entry == null || entry.group == null) {
+            return;
+        }
+        groups.computeIfPresent(entry.group, (group, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    private Segment<K, V> segmentFor(final K key) {
+        final int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (NB_SEGMENTS - 1)];
+    }
+
+    private static final class CacheEntry<V> {
+
+        private final V value;
+        private final Object group;
+        private final long createdNanos;
+
+        private CacheEntry(final V value, @Nullable final Object group, final long createdNanos) {
+            this.value = value;
+            this.group = group;
+            this.createdNanos = createdNanos;
+        }
+    }
+
+    private static final class Segment<K, V> extends LinkedHashMap<K, CacheEntry<V>> {
+
+        private final int maxSize;
+        private final LongAdder evictions;
+        private final BiConsumer<K, CacheEntry<V>> onEviction;
+
+        private Segment(final int maxSize, final LongAdder evictions, final BiConsumer<K, CacheEntry<V>> onEviction) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+            this.evictions = evictions;
+            this.onEviction = onEviction;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<K, CacheEntry<V>> eldest) {
+            if (size() > maxSize) {
+                evictions.increment();
+                onEviction.accept(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
+import org.killbill.billing.osgi.libs.killbill.OSGIServiceNotAvailable;
+import org.killbill.commons.metrics.api.Gauge;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collapses the values submitted for the same key within a time window: the handler runs once, at the end of the
+ * window, with the latest value. The window starts with the first value submitted for the key.
+ * <p>
+ * At the end of the window, the value is offered to the handler from the coalescer thread, which never waits: if the
+ * handler can't take it right away (e.g. full queue), it stays pending and is offered again shortly after. Callers can
+ * also hand the pending values of some keys over right away (see {@link #flush}), e.g. so that they aren't overtaken.
+ * <p>
+ * With a window of 0, the handler runs right away on the submitting thread.
+ */
+public class InvgrpCoalescer<K, V> {
+
+    /**
+     * Where the values go at the end of their window.
+     */
+    public interface Handler<V> {
+
+        /**
+         * Called from the coalescer thread: must not block.
+         *
+         * @return false if the value can't be taken right now (it is offered again later)
+         */
+        boolean offer(V value);
+
+        /**
+         * Called from the threads handing the values over ({@link #submit} without window, {@link #flush} and
+         * {@link #stop}): may block.
+         */
+        void handle(V value);
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(InvgrpCoalescer.class);
+
+    private static final long MAX_RETRY_DELAY_MILLIS = 100;
+
+    private final String name;
+    private final long windowMillis;
+    private final long retryDelayMillis;
+    private final Map<K, Pending<V>> pending = new ConcurrentHashMap<K, Pending<V>>();
+    private final ScheduledExecutorService scheduler;
+    // Makes sure a value offered by the coalescer thread isn't overtaken by a flush of the same key
+    private final Object handOffLock = new Object();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder deferred = new LongAdder();
+
+    public InvgrpCoalescer(final String name, final long windowMillis) {
+        this.name = name;
+        this.windowMillis = windowMillis;
+        this.retryDelayMillis = Math.max(1, Math.min(windowMillis, MAX_RETRY_DELAY_MILLIS));
+        this.scheduler = windowMillis > 0 ? Executors.newSingleThreadScheduledExecutor(r -> newThread(r, "invgrp-" + name + "-coalescer")) : null;
+    }
+
+    /**
+     * @throws RejectedExecutionException if the coalescer is stopped
+     */
+    public void submit(final K key, final V value, final Handler<V> handler) {
+        submitted.increment();
+        if (scheduler == null) {
+            handler.handle(value);
+            return;
+        }
+        final Pending<V> entry = new Pending<V>(value, handler, sequence.incrementAndGet());
+        if (pending.put(key, entry) != null) {
+            // Replaces a value waiting for the end of its window
+            coalesced.increment();
+            return;
+        }
+        try {
+            scheduler.schedule(() -> offer(key), windowMillis, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException e) {
+            pending.remove(key, entry);
+            throw e;
+        }
+    }
+
+    /**
+     * Hand the pending values of the keys over right away, on the calling thread, in submission order. Values the
+     * coalescer thread is offering concurrently are handed over before this returns.
+     */
+    public void flush(final Collection<K> keys) {
+        if (scheduler == null) {
+            return;
+        }
+        final List<Pending<V>> values = new ArrayList<Pending<V>>();
+        synchronized (handOffLock) {
+            for (final K key : keys) {
+                final Pending<V> entry = pending.remove(key);
+                if (entry != null) {
+                    values.add(entry);
+                }
+            }
+        }
+        // Outside of the lock: the handler may block, the coalescer thread mustn't
+        values.sort(Comparator.comparingLong(entry -> entry.sequence));
+        for (final Pending<V> entry : values) {
+            handle(entry);
+        }
+    }
+
+    /**
+     * Stop accepting values, and run the handlers of the pending ones right away (on the calling thread).
+     */
+    public void stop() throws InterruptedException {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        if (!scheduler.awaitTermination(10, TimeUnit.SECONDS)) {
+            logger.warn("Coalescer {} didn't stop in time", name);
+        }
+        flush(List.copyOf(pending.keySet()));
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    /**
+     * @return the number of values which didn't require a handler call
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return the number of times a value couldn't be taken by the handler at the end of its window
+     */
+    public long getDeferredCount() {
+        return deferred.sum();
+    }
+
+    public void registerMetrics(final OSGIMetricRegistry metricRegistry) {
+        final String prefix = "invgrp.coalescer." + name;
+        try {
+            final MetricRegistry registry = metricRegistry.getMetricRegistry();
+            registry.gauge(prefix + ".pending", (Gauge<Integer>) this::getPendingCount);
+            registry.gauge(prefix + ".submitted", (Gauge<Long>) this::getSubmittedCount);
+            registry.gauge(prefix + ".coalesced", (Gauge<Long>) this::getCoalescedCount);
+            registry.gauge(prefix + ".deferred", (Gauge<Long>) this::getDeferredCount);
+        } catch (final OSGIServiceNotAvailable ignored) {
+            logger.warn("No MetricRegistry available, metrics for coalescer {} won't be exposed", name);
+        }
+    }
+
+    // End of the window, on the coalescer thread
+    private void offer(final K key) {
+        synchronized (handOffLock) {
+            final Pending<V> latest = pending.remove(key);
+            if (latest == null) {
+                return;
+            }
+            try {
+                if (latest.handler.offer(latest.value)) {
+                    return;
+                }
+            } catch (final RuntimeException e) {
+                logger.warn("Coalescer {} failed to handle {}", name, latest.value, e);
+                return;
+            }
+            deferred.increment();
+            // Unless a newer value was submitted in the meantime (with its own window)
+            if (pending.putIfAbsent(key, latest) != null) {
+                coalesced.increment();
+                return;
+            }
+            try {
+                scheduler.schedule(() -> offer(key), retryDelayMillis, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException e) {
+                // Stopping: handed over by stop()
+            }
+        }
+    }
+
+    private void handle(final Pending<V> entry) {
+        try {
+            entry.handler.handle(entry.value);
+        } catch (final RuntimeException e) {
+            logger.warn("Coalescer {} failed to handle {}", name, entry.value, e);
+        }
+    }
+
+    private static final class Pending<V> {
+
+        private final V value;
+        private final Handler<V> handler;
+        private final long sequence;
+
+        private Pending(final V value, final Handler<V> handler, final long sequence) {
+            this.value = value;
+            this.handler = handler;
+            this.sequence = sequence;
+        }
+    }
+
+    private static Thread newThread(final Runnable runnable, final String name) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -16,7 +16,10 @@
 
 package org.killbill.billing.plugin.invgrp;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.UUID;
 
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.plugin.api.notification.PluginTenantConfigurableConfigurationHandler;
@@ -24,7 +27,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * When per-tenant config changes are made, the plugin automatically gets notified (and prints a log trace)
+ * When per-tenant config changes are made, the plugin automatically gets notified and recompiles the tenant configuration
+ * (e.g. the grouping rules, see {@link InvgrpGroupingStrategy})
  * <pre>
  * {@code
  * curl -v \
@@ -34,18 +38,21 @@ import org.slf4j.LoggerFactory;
  *      -H "X-Killbill-ApiKey: bob" \
  *      -H "X-Killbill-ApiSecret: lazar" \
  *      -H "X-Killbill-CreatedBy: demo" \
- *      -d 'key1=foo1
- * key2=foo2' \
+ *      -d 'org.killbill.billing.plugin.invgrp.grouping.rules=BUNDLE,BILLING_PERIOD' \
  *      "http://127.0.0.1:8080/1.0/kb/tenants/uploadPluginConfig/invgrp-plugin"
  * }
  * </pre>
  */
-public class InvgrpConfigurationHandler extends PluginTenantConfigurableConfigurationHandler<Properties> {
+public class InvgrpConfigurationHandler extends PluginTenantConfigurableConfigurationHandler<InvgrpTenantConfiguration> {
 
     private static final Logger logger = LoggerFactory.getLogger(InvgrpConfigurationHandler.class);
 
     private final String region;
 
+    // Tenant -> configuration, replaced as a whole on changes (copy-on-write): lookups are a single volatile read
+    private volatile Map<UUID, InvgrpTenantConfiguration> tenantConfigurations = Map.of();
+    private volatile InvgrpTenantConfiguration defaultConfiguration;
+
     public InvgrpConfigurationHandler(final String region,
                                           final String pluginName,
                                           final OSGIKillbillAPI osgiKillbillAPI) {
@@ -54,8 +61,56 @@ public class InvgrpConfigurationHandler extends PluginTenantConfigurableConfigur
     }
 
     @Override
-    protected Properties createConfigurable(final Properties properties) {
+    public void setDefaultConfigurable(final InvgrpTenantConfiguration defaultConfigurable) {
+        super.setDefaultConfigurable(defaultConfigurable);
+        this.defaultConfiguration = defaultConfigurable;
+    }
+
+    @Override
+    public InvgrpTenantConfiguration getConfigurable(final UUID kbTenantId) {
+        if (kbTenantId == null) {
+            return defaultConfiguration;
+        }
+        final InvgrpTenantConfiguration configuration = tenantConfigurations.get(kbTenantId);
+        return configuration != null ? configuration : load(kbTenantId);
+    }
+
+    // First call for that tenant
+    private synchronized InvgrpTenantConfiguration load(final UUID kbTenantId) {
+        if (!tenantConfigurations.containsKey(kbTenantId)) {
+            configure(kbTenantId);
+        }
+        return tenantConfigurations.get(kbTenantId);
+    }
+
+    // Called on TENANT_CONFIG_CHANGE / TENANT_CONFIG_DELETION events
+    @Override
+    protected synchronized void configure(final UUID kbTenantId) {
+        final Properties properties = getTenantConfigurationAsProperties(kbTenantId);
+        InvgrpTenantConfiguration configuration = defaultConfiguration;
+        if (properties != null) {
+            logger.info("New properties for tenant {} in region {}: {}", kbTenantId, region, properties);
+            try {
+                configuration = new InvgrpTenantConfiguration(properties);
+            } catch (final IllegalArgumentException e) {
+                configuration = tenantConfigurations.getOrDefault(kbTenantId, defaultConfiguration);
+                logger.error("Invalid configuration for tenant {} in region {}, keeping {}", kbTenantId, region, configuration, e);
+            }
+        }
+
+        final Map<UUID, InvgrpTenantConfiguration> updated = new HashMap<UUID, InvgrpTenantConfiguration>(tenantConfigurations);
+        updated.put(kbTenantId, configuration);
+        tenantConfigurations = Map.copyOf(updated);
+    }
+
+    @Override
+    protected InvgrpTenantConfiguration createConfigurable(final Properties properties) {
         logger.info("New properties for region {}: {}", region, properties);
-        return properties;
+        try {
+            return new InvgrpTenantConfiguration(properties);
+        } catch (final IllegalArgumentException e) {
+            logger.error("Invalid configuration for region {}, reverting to defaults", region, e);
+            return new InvgrpTenantConfiguration(new Properties());
+        }
     }
 }
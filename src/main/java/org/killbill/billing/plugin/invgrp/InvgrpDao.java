@@ -0,0 +1,793 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+
+import org.joda.time.DateTime;
+import org.jooq.Field;
+import org.jooq.InsertValuesStep6;
+import org.jooq.Query;
+import org.jooq.Record;
+import org.jooq.Table;
+import org.jooq.exception.DataAccessException;
+import org.jooq.exception.SQLStateClass;
+import org.jooq.impl.DSL;
+import org.killbill.billing.plugin.dao.PluginDao;
+
+/**
+ * Plugin tables (see ddl.sql). We don't generate the jOOQ classes for such a small schema, tables and fields are declared below.
+ */
+public class InvgrpDao extends PluginDao {
+
+    static final Table<Record> SUBSCRIPTION_PAYMENT_METHODS = DSL.table(DSL.name("invgrp_subscription_payment_methods"));
+    static final Table<Record> INVOICE_PAYMENT_METHODS = DSL.table(DSL.name("invgrp_invoice_payment_methods"));
+    static final Table<Record> PENDING_PAYMENT_METHODS = DSL.table(DSL.name("invgrp_pending_payment_methods"));
+    static final Table<Record> RECONCILER_CHECKPOINTS = DSL.table(DSL.name("invgrp_reconciler_checkpoints"));
+    static final Table<Record> SUBSCRIPTION_FALLBACK_PAYMENT_METHODS = DSL.table(DSL.name("invgrp_subscription_fallback_payment_methods"));
+    static final Table<Record> PAYMENT_METHOD_FAILURES = DSL.table(DSL.name("invgrp_payment_method_failures"));
+
+    static final Field<Long> RECORD_ID = DSL.field(DSL.name("record_id"), Long.class);
+    static final Field<String> KB_INVOICE_ID = DSL.field(DSL.name("kb_invoice_id"), String.class);
+    static final Field<String> KB_ACCOUNT_ID = DSL.field(DSL.name("kb_account_id"), String.class);
+    static final Field<String> KB_SUBSCRIPTION_ID = DSL.field(DSL.name("kb_subscription_id"), String.class);
+    static final Field<String> KB_PAYMENT_METHOD_ID = DSL.field(DSL.name("kb_payment_method_id"), String.class);
+    static final Field<String> FALLBACK_PAYMENT_METHOD_IDS = DSL.field(DSL.name("fallback_payment_method_ids"), String.class);
+    static final Field<String> SUBSCRIPTION_EXTERNAL_KEY = DSL.field(DSL.name("subscription_external_key"), String.class);
+    static final Field<Integer> ATTEMPTS = DSL.field(DSL.name("attempts"), Integer.class);
+    static final Field<LocalDateTime> NEXT_ATTEMPT_DATE = DSL.field(DSL.name("next_attempt_date"), LocalDateTime.class);
+    static final Field<Long> ACCOUNT_OFFSET = DSL.field(DSL.name("account_offset"), Long.class);
+    static final Field<Long> NB_ACCOUNTS = DSL.field(DSL.name("nb_accounts"), Long.class);
+    static final Field<Long> NB_MISSING = DSL.field(DSL.name("nb_missing"), Long.class);
+    static final Field<Long> NB_DANGLING = DSL.field(DSL.name("nb_dangling"), Long.class);
+    static final Field<Long> NB_ERRORS = DSL.field(DSL.name("nb_errors"), Long.class);
+    static final Field<LocalDateTime> PASS_STARTED_DATE = DSL.field(DSL.name("pass_started_date"), LocalDateTime.class);
+    static final Field<LocalDateTime> PASS_COMPLETED_DATE = DSL.field(DSL.name("pass_completed_date"), LocalDateTime.class);
+    static final Field<LocalDateTime> LEASE_DATE = DSL.field(DSL.name("lease_date"), LocalDateTime.class);
+    static final Field<Integer> PRIORITY = DSL.field(DSL.name("priority"), Integer.class);
+    static final Field<Double> FAILURE_SCORE = DSL.field(DSL.name("failure_score"), Double.class);
+    static final Field<Long> NB_FAILURES = DSL.field(DSL.name("nb_failures"), Long.class);
+    static final Field<LocalDateTime> LAST_FAILURE_DATE = DSL.field(DSL.name("last_failure_date"), LocalDateTime.class);
+    static final Field<LocalDateTime> BAD_UNTIL_DATE = DSL.field(DSL.name("bad_until_date"), LocalDateTime.class);
+    static final Field<LocalDateTime> CREATED_DATE = DSL.field(DSL.name("created_date"), LocalDateTime.class);
+    static final Field<LocalDateTime> UPDATED_DATE = DSL.field(DSL.name("updated_date"), LocalDateTime.class);
+    static final Field<String> KB_TENANT_ID = DSL.field(DSL.name("kb_tenant_id"), String.class);
+
+    public InvgrpDao(final DataSource dataSource) throws SQLException {
+        super(dataSource);
+    }
+
+    /**
+     * Invoices of the subscription indexed without payment method (e.g. generated before the mapping was written) are
+     * updated with the new mapping.
+     *
+     * @return true if the mapping was created, false if the subscription was already mapped
+     */
+    public boolean addPaymentMethodMapping(final UUID kbAccountId,
+                                           final UUID kbSubscriptionId,
+                                           final UUID kbPaymentMethodId,
+                                           final DateTime utcNow,
+                                           final UUID kbTenantId) throws SQLException {
+        final LocalDateTime now = toLocalDateTime(utcNow);
+        final boolean created = insertIfAbsent(conn -> DSL.using(conn, dialect, settings)
+                                                          .insertInto(SUBSCRIPTION_PAYMENT_METHODS,
+                                                                      KB_ACCOUNT_ID,
+                                                                      KB_SUBSCRIPTION_ID,
+                                                                      KB_PAYMENT_METHOD_ID,
+                                                                      CREATED_DATE,
+                                                                      UPDATED_DATE,
+                                                                      KB_TENANT_ID)
+                                                          .values(kbAccountId.toString(),
+                                                                  kbSubscriptionId.toString(),
+                                                                  kbPaymentMethodId.toString(),
+                                                                  now,
+                                                                  now,
+                                                                  kbTenantId.toString())
+                                                          .execute());
+        if (created) {
+            updateUnmappedInvoicePaymentMethods(List.of(kbSubscriptionId), kbPaymentMethodId, kbTenantId);
+        }
+        return created;
+    }
+
+    /**
+     * Bulk version of {@link #addPaymentMethodMapping}: one query for the existing mappings, and one multi-row insert.
+     *
+     * @return the subscriptions which were mapped (the other ones were already mapped)
+     */
+    public List<UUID> addPaymentMethodMappings(final UUID kbAccountId,
+                                               final Collection<UUID> kbSubscriptionIds,
+                                               final UUID kbPaymentMethodId,
+                                               final DateTime utcNow,
+                                               final UUID kbTenantId) throws SQLException {
+        final Set<String> existing = new HashSet<String>(execute(dataSource.getConnection(),
+                                                                 conn -> DSL.using(conn, dialect, settings)
+                                                                            .select(KB_SUBSCRIPTION_ID)
+                                                                            .from(SUBSCRIPTION_PAYMENT_METHODS)
+                                                                            .where(KB_SUBSCRIPTION_ID.in(kbSubscriptionIds.stream().map(UUID::toString).collect(Collectors.toList())))
+                                                                            .and(KB_TENANT_ID.equal(kbTenantId.toString()))
+                                                                            .fetch(KB_SUBSCRIPTION_ID)));
+        final List<UUID> missing = kbSubscriptionIds.stream()
+                                                    .filter(id -> !existing.contains(id.toString()))
+                                                    .collect(Collectors.toList());
+        if (missing.isEmpty()) {
+            return missing;
+        }
+
+        final LocalDateTime now = toLocalDateTime(utcNow);
+        try {
+            execute(dataSource.getConnection(),
+                    conn -> {
+                        final InsertValuesStep6<Record, String, String, String, LocalDateTime, LocalDateTime, String> insert = DSL.using(conn, dialect, settings)
+                                                                                                                                 .insertInto(SUBSCRIPTION_PAYMENT_METHODS,
+                                                                                                                                             KB_ACCOUNT_ID,
+                                                                                                                                             KB_SUBSCRIPTION_ID,
+                                                                                                                                             KB_PAYMENT_METHOD_ID,
+                                                                                                                                             CREATED_DATE,
+                                                                                                                                             UPDATED_DATE,
+                                                                                                                                             KB_TENANT_ID);
+                        for (final UUID kbSubscriptionId : missing) {
+                            insert.values(kbAccountId.toString(), kbSubscriptionId.toString(), kbPaymentMethodId.toString(), now, now, kbTenantId.toString());
+                        }
+                        return insert.execute();
+                    });
+            updateUnmappedInvoicePaymentMethods(missing, kbPaymentMethodId, kbTenantId);
+            return missing;
+        } catch (final DataAccessException e) {
+            if (e.sqlStateClass() != SQLStateClass.C23_INTEGRITY_CONSTRAINT_VIOLATION) {
+                throw e;
+            }
+            // Concurrent write for some of the subscriptions (e.g. retry): one at a time
+            final List<UUID> created = new ArrayList<UUID>(missing.size());
+            for (final UUID kbSubscriptionId : missing) {
+                if (addPaymentMethodMapping(kbAccountId, kbSubscriptionId, kbPaymentMethodId, utcNow, kbTenantId)) {
+                    created.add(kbSubscriptionId);
+                }
+            }
+            return created;
+        }
+    }
+
+    public InvgrpPaymentMethodMapping getPaymentMethodMapping(final UUID kbSubscriptionId, final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       conn -> DSL.using(conn, dialect, settings)
+                                  .select(KB_ACCOUNT_ID, KB_SUBSCRIPTION_ID, KB_PAYMENT_METHOD_ID)
+                                  .from(SUBSCRIPTION_PAYMENT_METHODS)
+                                  .where(KB_SUBSCRIPTION_ID.equal(kbSubscriptionId.toString()))
+                                  .and(KB_TENANT_ID.equal(kbTenantId.toString()))
+                                  .fetchOne(r -> toMapping(r, kbTenantId)));
+    }
+
+    public List<InvgrpPaymentMethodMapping> getPaymentMethodMappingsForAccount(final UUID kbAccountId, final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       conn -> DSL.using(conn, dialect, settings)
+                                  .select(KB_ACCOUNT_ID, KB_SUBSCRIPTION_ID, KB_PAYMENT_METHOD_ID)
+                                  .from(SUBSCRIPTION_PAYMENT_METHODS)
+                                  .where(KB_ACCOUNT_ID.equal(kbAccountId.toString()))
+                                  .and(KB_TENANT_ID.equal(kbTenantId.toString()))
+                                  .fetch(r -> toMapping(r, kbTenantId)));
+    }
+
+    /**
+     * Keyset pagination over the mappings of a tenant, in record id order: each page is one range scan of the
+     * (kb_tenant_id, record_id) index, however far into the table it starts.
+     *
+     * @return the record id of the last mapping of the page (to start the next page from), or null if there was none
+     */
+    public Long getPaymentMethodMappings(final UUID kbTenantId, final long afterRecordId, final int limit, final Consumer<InvgrpPaymentMethodMapping> consumer) throws SQLException {
+        final List<? extends Record> records = execute(dataSource.getConnection(),
+                                                       conn -> DSL.using(conn, dialect, settings)
+                                                                  .select(RECORD_ID, KB_ACCOUNT_ID, KB_SUBSCRIPTION_ID, KB_PAYMENT_METHOD_ID)
+                                                                  .from(SUBSCRIPTION_PAYMENT_METHODS)
+                                                                  .where(RECORD_ID.greaterThan(afterRecordId))
+                                                                  .and(KB_TENANT_ID.equal(kbTenantId.toString()))
+                                                                  .orderBy(RECORD_ID)
+                                                                  .limit(limit)
+                                                                  .fetch());
+        for (final Record record : records) {
+            consumer.accept(toMapping(record, kbTenantId));
+        }
+        return records.isEmpty() ? null : records.get(records.size() - 1).get(RECORD_ID);
+    }
+
+    /**
+     * @return true if the invoice was indexed, false if it already was
+     */
+    public boolean addInvoicePaymentMethod(final UUID kbInvoiceId,
+                                           final UUID kbAccountId,
+                                           @Nullable final UUID kbSubscriptionId,
+                                           @Nullable final UUID kbPaymentMethodId,
+                                           final DateTime utcNow,
+                                           final UUID kbTenantId) throws SQLException {
+        return insertIfAbsent(conn -> DSL.using(conn, dialect, settings)
+                                         .insertInto(INVOICE_PAYMENT_METHODS,
+                                                     KB_INVOICE_ID,
+                                                     KB_ACCOUNT_ID,
+                                                     KB_SUBSCRIPTION_ID,
+                                                     KB_PAYMENT_METHOD_ID,
+                                                     CREATED_DATE,
+                                                     KB_TENANT_ID)
+                                         .values(kbInvoiceId.toString(),
+                                                 kbAccountId.toString(),
+                                                 fromUUID(kbSubscriptionId),
+                                                 fromUUID(kbPaymentMethodId),
+                                                 toLocalDateTime(utcNow),
+                                                 kbTenantId.toString())
+                                         .execute());
+    }
+
+    /**
+     * @return the mapping recorded for the invoice (with a null payment method if none was configured), or null if the invoice wasn't indexed
+     */
+    public InvgrpPaymentMethodMapping getInvoicePaymentMethod(final UUID kbInvoiceId, final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       conn -> DSL.using(conn, dialect, settings)
+                                  .select(KB_ACCOUNT_ID, KB_SUBSCRIPTION_ID, KB_PAYMENT_METHOD_ID)
+                                  .from(INVOICE_PAYMENT_METHODS)
+                                  .where(KB_INVOICE_ID.equal(kbInvoiceId.toString()))
+                                  .and(KB_TENANT_ID.equal(kbTenantId.toString()))
+                                  .fetchOne(r -> toMapping(r, kbTenantId)));
+    }
+
+    //
+    // Index entries written before the mapping of their subscription (with a null payment method) follow the new mapping
+    //
+    private void updateUnmappedInvoicePaymentMethods(final Collection<UUID> kbSubscriptionIds, final UUID kbPaymentMethodId, final UUID kbTenantId) throws SQLException {
+        execute(dataSource.getConnection(),
+                conn -> DSL.using(conn, dialect, settings)
+                           .update(INVOICE_PAYMENT_METHODS)
+                           .set(KB_PAYMENT_METHOD_ID, kbPaymentMethodId.toString())
+                           .where(KB_SUBSCRIPTION_ID.in(kbSubscriptionIds.stream().map(UUID::toString).collect(Collectors.toList())))
+                           .and(KB_TENANT_ID.equal(kbTenantId.toString()))
+                           .and(KB_PAYMENT_METHOD_ID.isNull())
+                           .execute());
+    }
+
+    /**
+     * Switch the payment method of an indexed invoice (e.g. to a fallback), if it is still the expected one.
+     *
+     * @return true if the invoice was updated, false if it wasn't indexed or its payment method had changed in the meantime
+     */
+    public boolean updateInvoicePaymentMethod(final UUID kbInvoiceId,
+                                              @Nullable final UUID expectedPaymentMethodId,
+                                              final UUID kbPaymentMethodId,
+                                              final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       conn -> DSL.using(conn, dialect, settings)
+                                  .update(INVOICE_PAYMENT_METHODS)
+                                  .set(KB_PAYMENT_METHOD_ID, kbPaymentMethodId.toString())
+                                  .where(KB_INVOICE_ID.equal(kbInvoiceId.toString()))
+                                  .and(KB_TENANT_ID.equal(kbTenantId.toString()))
+                                  .and(expectedPaymentMethodId != null ? KB_PAYMENT_METHOD_ID.equal(expectedPaymentMethodId.toString()) : KB_PAYMENT_METHOD_ID.isNull())
+                                  .execute()) > 0;
+    }
+
+    /**
+     * Record the fallback payment methods of a subscription, in order (one multi-row insert).
+     *
+     * @return true if the fallbacks were recorded, false if the subscription already had some
+     */
+    public boolean addFallbackPaymentMethods(final UUID kbAccountId,
+                                             final UUID kbSubscriptionId,
+                                             final List<UUID> kbPaymentMethodIds,
+                                             final DateTime utcNow,
+                                             final UUID kbTenantId) throws SQLException {
+        final LocalDateTime now = toLocalDateTime(utcNow);
+        return insertIfAbsent(conn -> {
+            final InsertValuesStep6<Record, String, String, String, Integer, LocalDateTime, String> insert = DSL.using(conn, dialect, settings)
+                                                                                                                .insertInto(SUBSCRIPTION_FALLBACK_PAYMENT_METHODS,
+                                                                                                                            KB_ACCOUNT_ID,
+                                                                                                                            KB_SUBSCRIPTION_ID,
+                                                                                                                            KB_PAYMENT_METHOD_ID,
+                                                                                                                            PRIORITY,
+                                                                                                                            CREATED_DATE,
+                                                                                                                            KB_TENANT_ID);
+            for (int i = 0; i < kbPaymentMethodIds.size(); i++) {
+                insert.values(kbAccountId.toString(), kbSubscriptionId.toString(), kbPaymentMethodIds.get(i).toString(), i + 1, now, kbTenantId.toString());
+            }
+            return insert.execute();
+        });
+    }
+
+    /**
+     * Bulk version of {@link #addFallbackPaymentMethods(UUID, UUID, List, DateTime, UUID)}, for the subscriptions mapped to
+     * kbMappedPaymentMethodId (the fallbacks were requested with that payment method): one query for the mappings, one for
+     * the existing fallbacks, and one multi-row insert.
+     *
+     * @return the subscriptions whose fallbacks were recorded (the other ones are mapped to another payment method, not
+     * mapped, or already had fallbacks)
+     */
+    public List<UUID> addFallbackPaymentMethods(final UUID kbAccountId,
+                                                final Collection<UUID> kbSubscriptionIds,
+                                                final UUID kbMappedPaymentMethodId,
+                                                final List<UUID> kbPaymentMethodIds,
+                                                final DateTime utcNow,
+                                                final UUID kbTenantId) throws SQLException {
+        if (kbSubscriptionIds.isEmpty() || kbPaymentMethodIds.isEmpty()) {
+            return List.of();
+        }
+        final List<UUID> mapped = execute(dataSource.getConnection(),
+                                          conn -> DSL.using(conn, dialect, settings)
+                                                     .select(KB_SUBSCRIPTION_ID)
+                                                     .from(SUBSCRIPTION_PAYMENT_METHODS)
+                                                     .where(KB_SUBSCRIPTION_ID.in(kbSubscriptionIds.stream().map(UUID::toString).collect(Collectors.toList())))
+                                                     .and(KB_PAYMENT_METHOD_ID.equal(kbMappedPaymentMethodId.toString()))
+                                                     .and(KB_TENANT_ID.equal(kbTenantId.toString()))
+                                                     .fetch(record -> UUID.fromString(record.get(KB_SUBSCRIPTION_ID))));
+        final Set<UUID> existing = getFallbackPaymentMethodIds(mapped, kbTenantId).keySet();
+        final List<UUID> missing = mapped.stream()
+                                         .filter(id -> !existing.contains(id))
+                                         .collect(Collectors.toList());
+        if (missing.isEmpty()) {
+            return missing;
+        }
+
+        final LocalDateTime now = toLocalDateTime(utcNow);
+        try {
+            execute(dataSource.getConnection(),
+                    conn -> {
+                        final InsertValuesStep6<Record, String, String, String, Integer, LocalDateTime, String> insert = DSL.using(conn, dialect, settings)
+                                                                                                                            .insertInto(SUBSCRIPTION_FALLBACK_PAYMENT_METHODS,
+                                                                                                                                        KB_ACCOUNT_ID,
+                                                                                                                                        KB_SUBSCRIPTION_ID,
+                                                                                                                                        KB_PAYMENT_METHOD_ID,
+                                                                                                                                        PRIORITY,
+                                                                                                                                        CREATED_DATE,
+                                                                                                                                        KB_TENANT_ID);
+                        for (final UUID kbSubscriptionId : missing) {
+                            for (int i = 0; i < kbPaymentMethodIds.size(); i++) {
+                                insert.values(kbAccountId.toString(), kbSubscriptionId.toString(), kbPaymentMethodIds.get(i).toString(), i + 1, now, kbTenantId.toString());
+                            }
+                        }
+                        return insert.execute();
+                    });
+            return missing;
+        } catch (final DataAccessException e) {
+            if (e.sqlStateClass() != SQLStateClass.C23_INTEGRITY_CONSTRAINT_VIOLATION) {
+                throw e;
+            }
+            // Concurrent write for some of the subscriptions (e.g. import): one at a time
+            final List<UUID> created = new ArrayList<UUID>(missing.size());
+            for (final UUID kbSubscriptionId : missing) {
+                if (addFallbackPaymentMethods(kbAccountId, kbSubscriptionId, kbPaymentMethodIds, utcNow, kbTenantId)) {
+                    created.add(kbSubscriptionId);
+                }
+            }
+            return created;
+        }
+    }
+
+    /**
+     * @return the fallback payment methods of the subscription, in order
+     */
+    public List<UUID> getFallbackPaymentMethodIds(final UUID kbSubscriptionId, final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       conn -> DSL.using(conn, dialect, settings)
+                                  .select(KB_PAYMENT_METHOD_ID)
+                                  .from(SUBSCRIPTION_FALLBACK_PAYMENT_METHODS)
+                                  .where(KB_SUBSCRIPTION_ID.equal(kbSubscriptionId.toString()))
+                                  .and(KB_TENANT_ID.equal(kbTenantId.toString()))
+                                  .orderBy(PRIORITY)
+                                  .fetch(record -> UUID.fromString(record.get(KB_PAYMENT_METHOD_ID))));
+    }
+
+    /**
+     * Bulk version of {@link #getFallbackPaymentMethodIds(UUID, UUID)}.
+     *
+     * @return the fallback payment methods keyed by subscription id, in order, for the subscriptions with fallbacks only
+     */
+    public Map<UUID, List<UUID>> getFallbackPaymentMethodIds(final Collection<UUID> kbSubscriptionIds, final UUID kbTenantId) throws SQLException {
+        final Map<UUID, List<UUID>> fallbacks = new HashMap<UUID, List<UUID>>();
+        if (kbSubscriptionIds.isEmpty()) {
+            return fallbacks;
+        }
+        final List<? extends Record> records = execute(dataSource.getConnection(),
+                                                       conn -> DSL.using(conn, dialect, settings)
+                                                                  .select(KB_SUBSCRIPTION_ID, KB_PAYMENT_METHOD_ID)
+                                                                  .from(SUBSCRIPTION_FALLBACK_PAYMENT_METHODS)
+                                                                  .where(KB_SUBSCRIPTION_ID.in(kbSubscriptionIds.stream().map(UUID::toString).collect(Collectors.toList())))
+                                                                  .and(KB_TENANT_ID.equal(kbTenantId.toString()))
+                                                                  .orderBy(KB_SUBSCRIPTION_ID, PRIORITY)
+                                                                  .fetch());
+        for (final Record record : records) {
+            fallbacks.computeIfAbsent(UUID.fromString(record.get(KB_SUBSCRIPTION_ID)), k -> new ArrayList<UUID>())
+                     .add(UUID.fromString(record.get(KB_PAYMENT_METHOD_ID)));
+        }
+        return fallbacks;
+    }
+
+    public InvgrpPaymentMethodFailure getPaymentMethodFailure(final UUID kbPaymentMethodId, final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       conn -> DSL.using(conn, dialect, settings)
+                                  .select(KB_TENANT_ID, KB_PAYMENT_METHOD_ID, FAILURE_SCORE, NB_FAILURES, LAST_FAILURE_DATE, BAD_UNTIL_DATE)
+                                  .from(PAYMENT_METHOD_FAILURES)
+                                  .where(KB_PAYMENT_METHOD_ID.equal(kbPaymentMethodId.toString()))
+                                  .and(KB_TENANT_ID.equal(kbTenantId.toString()))
+                                  .fetchOne(InvgrpDao::toPaymentMethodFailure));
+    }
+
+    /**
+     * @return the payment methods considered bad as of utcNow, across tenants
+     */
+    public List<InvgrpPaymentMethodFailure> getBadPaymentMethods(final DateTime utcNow) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       conn -> DSL.using(conn, dialect, settings)
+                                  .select(KB_TENANT_ID, KB_PAYMENT_METHOD_ID, FAILURE_SCORE, NB_FAILURES, LAST_FAILURE_DATE, BAD_UNTIL_DATE)
+                                  .from(PAYMENT_METHOD_FAILURES)
+                                  .where(BAD_UNTIL_DATE.greaterThan(toLocalDateTime(utcNow)))
+                                  .fetch(InvgrpDao::toPaymentMethodFailure));
+    }
+
+    /**
+     * Record the failures of a payment method: created if expectedNbFailures is 0, updated if the row is still at
+     * expectedNbFailures otherwise (concurrent failures on other nodes are retried by the caller).
+     *
+     * @return true if the failure was recorded, false on a concurrent update
+     */
+    public boolean savePaymentMethodFailure(final InvgrpPaymentMethodFailure failure, final long expectedNbFailures) throws SQLException {
+        if (expectedNbFailures == 0) {
+            return insertIfAbsent(conn -> DSL.using(conn, dialect, settings)
+                                             .insertInto(PAYMENT_METHOD_FAILURES,
+                                                         KB_PAYMENT_METHOD_ID,
+                                                         FAILURE_SCORE,
+                                                         NB_FAILURES,
+                                                         LAST_FAILURE_DATE,
+                                                         BAD_UNTIL_DATE,
+                                                         KB_TENANT_ID)
+                                             .values(failure.getPaymentMethodId().toString(),
+                                                     failure.getScore(),
+                                                     failure.getNbFailures(),
+                                                     failure.getLastFailureDate(),
+                                                     failure.getBadUntilDate(),
+                                                     failure.getTenantId().toString())
+                                             .execute());
+        }
+        return execute(dataSource.getConnection(),
+                       conn -> DSL.using(conn, dialect, settings)
+                                  .update(PAYMENT_METHOD_FAILURES)
+                                  .set(FAILURE_SCORE, failure.getScore())
+                                  .set(NB_FAILURES, failure.getNbFailures())
+                                  .set(LAST_FAILURE_DATE, failure.getLastFailureDate())
+                                  .set(BAD_UNTIL_DATE, failure.getBadUntilDate())
+                                  .where(KB_PAYMENT_METHOD_ID.equal(failure.getPaymentMethodId().toString()))
+                                  .and(KB_TENANT_ID.equal(failure.getTenantId().toString()))
+                                  .and(NB_FAILURES.equal(expectedNbFailures))
+                                  .execute()) > 0;
+    }
+
+    /**
+     * Queue a mapping to be written, not to be picked up by the pollers before nextAttemptDate.
+     */
+    public InvgrpPendingPaymentMethod addPendingPaymentMethod(final UUID kbAccountId,
+                                                              final String subscriptionExternalKey,
+                                                              final UUID kbPaymentMethodId,
+                                                              final DateTime nextAttemptDate,
+                                                              final DateTime utcNow,
+                                                              final UUID kbTenantId) throws SQLException {
+        return addPendingPaymentMethods(kbAccountId, List.of(subscriptionExternalKey), kbPaymentMethodId, List.of(), nextAttemptDate, utcNow, kbTenantId).get(0);
+    }
+
+    /**
+     * Queue the mappings of several subscriptions to the same payment method, and fallback payment methods (one batched
+     * insert).
+     */
+    public List<InvgrpPendingPaymentMethod> addPendingPaymentMethods(final UUID kbAccountId,
+                                                                     final List<String> subscriptionExternalKeys,
+                                                                     final UUID kbPaymentMethodId,
+                                                                     final List<UUID> kbFallbackPaymentMethodIds,
+                                                                     final DateTime nextAttemptDate,
+                                                                     final DateTime utcNow,
+                                                                     final UUID kbTenantId) throws SQLException {
+        final LocalDateTime nextAttempt = toAttemptDate(nextAttemptDate);
+        return execute(dataSource.getConnection(),
+                       conn -> {
+                           // jOOQ can't return the generated record ids without generated table classes, so go through JDBC
+                           final Query insert = DSL.using(conn, dialect, settings)
+                                                   .insertInto(PENDING_PAYMENT_METHODS,
+                                                               KB_ACCOUNT_ID,
+                                                               SUBSCRIPTION_EXTERNAL_KEY,
+                                                               KB_PAYMENT_METHOD_ID,
+                                                               FALLBACK_PAYMENT_METHOD_IDS,
+                                                               ATTEMPTS,
+                                                               NEXT_ATTEMPT_DATE,
+                                                               CREATED_DATE,
+                                                               KB_TENANT_ID)
+                                                   .values(kbAccountId.toString(),
+                                                           null,
+                                                           kbPaymentMethodId.toString(),
+                                                           fromUUIDs(kbFallbackPaymentMethodIds),
+                                                           0,
+                                                           nextAttempt,
+                                                           toLocalDateTime(utcNow),
+                                                           kbTenantId.toString());
+                           final List<Object> bindValues = insert.getBindValues();
+                           try (final PreparedStatement statement = conn.prepareStatement(insert.getSQL(), Statement.RETURN_GENERATED_KEYS)) {
+                               for (final String subscriptionExternalKey : subscriptionExternalKeys) {
+                                   for (int i = 0; i < bindValues.size(); i++) {
+                                       // The second value is the external key
+                                       statement.setObject(i + 1, i == 1 ? subscriptionExternalKey : bindValues.get(i));
+                                   }
+                                   statement.addBatch();
+                               }
+                               statement.executeBatch();
+
+                               final List<InvgrpPendingPaymentMethod> pending = new ArrayList<InvgrpPendingPaymentMethod>(subscriptionExternalKeys.size());
+                               try (final ResultSet generatedKeys = statement.getGeneratedKeys()) {
+                                   for (final String subscriptionExternalKey : subscriptionExternalKeys) {
+                                       generatedKeys.next();
+                                       pending.add(new InvgrpPendingPaymentMethod(generatedKeys.getLong(1), kbTenantId, kbAccountId, subscriptionExternalKey, kbPaymentMethodId, kbFallbackPaymentMethodIds, 0, nextAttempt));
+                                   }
+                               }
+                               return pending;
+                           }
+                       });
+    }
+
+    /**
+     * @return the queued mappings due at utcNow (oldest first), across all tenants
+     */
+    public List<InvgrpPendingPaymentMethod> getDuePendingPaymentMethods(final DateTime utcNow, final int limit) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       conn -> DSL.using(conn, dialect, settings)
+                                  .select(RECORD_ID, KB_TENANT_ID, KB_ACCOUNT_ID, SUBSCRIPTION_EXTERNAL_KEY, KB_PAYMENT_METHOD_ID, FALLBACK_PAYMENT_METHOD_IDS, ATTEMPTS, NEXT_ATTEMPT_DATE)
+                                  .from(PENDING_PAYMENT_METHODS)
+                                  .where(NEXT_ATTEMPT_DATE.lessOrEqual(toLocalDateTime(utcNow)))
+                                  .orderBy(NEXT_ATTEMPT_DATE)
+                                  .limit(limit)
+                                  .fetch(InvgrpDao::toPendingPaymentMethod));
+    }
+
+    /**
+     * @return the number of queued mappings which were due before the given date, across all tenants
+     */
+    public int countOverduePendingPaymentMethods(final DateTime dueBefore) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       conn -> DSL.using(conn, dialect, settings)
+                                  .selectCount()
+                                  .from(PENDING_PAYMENT_METHODS)
+                                  .where(NEXT_ATTEMPT_DATE.lessThan(toLocalDateTime(dueBefore)))
+                                  .fetchOne(0, Integer.class));
+    }
+
+    public List<InvgrpPendingPaymentMethod> getPendingPaymentMethodsForAccount(final UUID kbAccountId, final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       conn -> DSL.using(conn, dialect, settings)
+                                  .select(RECORD_ID, KB_TENANT_ID, KB_ACCOUNT_ID, SUBSCRIPTION_EXTERNAL_KEY, KB_PAYMENT_METHOD_ID, FALLBACK_PAYMENT_METHOD_IDS, ATTEMPTS, NEXT_ATTEMPT_DATE)
+                                  .from(PENDING_PAYMENT_METHODS)
+                                  .where(KB_ACCOUNT_ID.equal(kbAccountId.toString()))
+                                  .and(KB_TENANT_ID.equal(kbTenantId.toString()))
+                                  .orderBy(RECORD_ID)
+                                  .fetch(InvgrpDao::toPendingPaymentMethod));
+    }
+
+    /**
+     * Claim (before processing) or re-schedule (after a failure) a queued mapping. This is optimistic, based on the next
+     * attempt date read, so that only one poller gets it.
+     *
+     * @return the updated mapping, or null if it was updated (or deleted) in the meantime
+     */
+    public InvgrpPendingPaymentMethod reschedulePendingPaymentMethod(final InvgrpPendingPaymentMethod pending, final int attempts, final DateTime nextAttemptDate) throws SQLException {
+        final LocalDateTime nextAttempt = toAttemptDate(nextAttemptDate);
+        final int updated = execute(dataSource.getConnection(),
+                                    conn -> DSL.using(conn, dialect, settings)
+                                               .update(PENDING_PAYMENT_METHODS)
+                                               .set(ATTEMPTS, attempts)
+                                               .set(NEXT_ATTEMPT_DATE, nextAttempt)
+                                               .where(RECORD_ID.equal(pending.getRecordId()))
+                                               .and(NEXT_ATTEMPT_DATE.equal(pending.getNextAttemptDate()))
+                                               .execute());
+        if (updated == 0) {
+            return null;
+        }
+        return new InvgrpPendingPaymentMethod(pending.getRecordId(),
+                                              pending.getTenantId(),
+                                              pending.getAccountId(),
+                                              pending.getSubscriptionExternalKey(),
+                                              pending.getPaymentMethodId(),
+                                              pending.getFallbackPaymentMethodIds(),
+                                              attempts,
+                                              nextAttempt);
+    }
+
+    public void deletePendingPaymentMethods(final Collection<Long> recordIds) throws SQLException {
+        execute(dataSource.getConnection(),
+                conn -> DSL.using(conn, dialect, settings)
+                           .deleteFrom(PENDING_PAYMENT_METHODS)
+                           .where(RECORD_ID.in(recordIds))
+                           .execute());
+    }
+
+    /**
+     * @return the tenants with at least one mapping (full scan: only used to seed the reconciler checkpoints)
+     */
+    public List<UUID> getMappedTenants() throws SQLException {
+        return execute(dataSource.getConnection(),
+                       conn -> DSL.using(conn, dialect, settings)
+                                  .selectDistinct(KB_TENANT_ID)
+                                  .from(SUBSCRIPTION_PAYMENT_METHODS)
+                                  .fetch(record -> UUID.fromString(record.get(KB_TENANT_ID))));
+    }
+
+    public InvgrpReconcilerCheckpoint getReconcilerCheckpoint(final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       conn -> DSL.using(conn, dialect, settings)
+                                  .select(KB_TENANT_ID, ACCOUNT_OFFSET, NB_ACCOUNTS, NB_MISSING, NB_DANGLING, NB_ERRORS, PASS_STARTED_DATE, PASS_COMPLETED_DATE)
+                                  .from(RECONCILER_CHECKPOINTS)
+                                  .where(KB_TENANT_ID.equal(kbTenantId.toString()))
+                                  .fetchOne(InvgrpDao::toReconcilerCheckpoint));
+    }
+
+    public List<InvgrpReconcilerCheckpoint> getReconcilerCheckpoints() throws SQLException {
+        return execute(dataSource.getConnection(),
+                       conn -> DSL.using(conn, dialect, settings)
+                                  .select(KB_TENANT_ID, ACCOUNT_OFFSET, NB_ACCOUNTS, NB_MISSING, NB_DANGLING, NB_ERRORS, PASS_STARTED_DATE, PASS_COMPLETED_DATE)
+                                  .from(RECONCILER_CHECKPOINTS)
+                                  .orderBy(RECORD_ID)
+                                  .fetch(InvgrpDao::toReconcilerCheckpoint));
+    }
+
+    /**
+     * Register a tenant to reconcile, if not already there
+     *
+     * @return true if the tenant was added
+     */
+    public boolean addReconcilerCheckpoint(final UUID kbTenantId, final DateTime utcNow) throws SQLException {
+        return insertIfAbsent(conn -> DSL.using(conn, dialect, settings)
+                                         .insertInto(RECONCILER_CHECKPOINTS, KB_TENANT_ID, UPDATED_DATE)
+                                         .values(kbTenantId.toString(), toLocalDateTime(utcNow))
+                                         .execute());
+    }
+
+    /**
+     * Claim the reconciliation of a registered tenant (see {@link #addReconcilerCheckpoint}) until leaseDate, if its pass is
+     * in progress (e.g. interrupted by a restart) or its last pass completed before dueDate, and if no other node holds the
+     * lease.
+     *
+     * @return the checkpoint to resume from, or null if there is nothing to do (or another node is on it)
+     */
+    public InvgrpReconcilerCheckpoint claimReconcilerCheckpoint(final UUID kbTenantId,
+                                                                final DateTime utcNow,
+                                                                final DateTime dueDate,
+                                                                final DateTime leaseDate) throws SQLException {
+        final int updated = execute(dataSource.getConnection(),
+                                    conn -> DSL.using(conn, dialect, settings)
+                                               .update(RECONCILER_CHECKPOINTS)
+                                               .set(LEASE_DATE, toLocalDateTime(leaseDate))
+                                               .where(KB_TENANT_ID.equal(kbTenantId.toString()))
+                                               .and(LEASE_DATE.isNull().or(LEASE_DATE.lessOrEqual(toLocalDateTime(utcNow))))
+                                               .and(PASS_COMPLETED_DATE.isNull().or(PASS_COMPLETED_DATE.lessOrEqual(toLocalDateTime(dueDate))))
+                                               .execute());
+        return updated == 0 ? null : getReconcilerCheckpoint(kbTenantId);
+    }
+
+    /**
+     * Record the progress of the reconciliation of a tenant, and extend (or release, with a null leaseDate) the lease.
+     */
+    public void saveReconcilerCheckpoint(final InvgrpReconcilerCheckpoint checkpoint, final DateTime utcNow, @Nullable final DateTime leaseDate) throws SQLException {
+        execute(dataSource.getConnection(),
+                conn -> DSL.using(conn, dialect, settings)
+                           .update(RECONCILER_CHECKPOINTS)
+                           .set(ACCOUNT_OFFSET, checkpoint.getAccountOffset())
+                           .set(NB_ACCOUNTS, checkpoint.getNbAccounts())
+                           .set(NB_MISSING, checkpoint.getNbMissing())
+                           .set(NB_DANGLING, checkpoint.getNbDangling())
+                           .set(NB_ERRORS, checkpoint.getNbErrors())
+                           .set(PASS_STARTED_DATE, checkpoint.getPassStartedDate())
+                           .set(PASS_COMPLETED_DATE, checkpoint.getPassCompletedDate())
+                           .set(LEASE_DATE, leaseDate != null ? toLocalDateTime(leaseDate) : null)
+                           .set(UPDATED_DATE, toLocalDateTime(utcNow))
+                           .where(KB_TENANT_ID.equal(checkpoint.getTenantId().toString()))
+                           .execute());
+    }
+
+    //
+    // Portable version of INSERT IGNORE: a unique key violation means the row is already there, and is kept as is (callers
+    // updating existing rows do so explicitly)
+    //
+    private boolean insertIfAbsent(final WithConnectionCallback<Integer> insert) throws SQLException {
+        try {
+            return execute(dataSource.getConnection(), insert) > 0;
+        } catch (final DataAccessException e) {
+            if (e.sqlStateClass() == SQLStateClass.C23_INTEGRITY_CONSTRAINT_VIOLATION) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private static InvgrpPaymentMethodMapping toMapping(final Record record, final UUID kbTenantId) {
+        return new InvgrpPaymentMethodMapping(kbTenantId,
+                                              UUID.fromString(record.get(KB_ACCOUNT_ID)),
+                                              toUUID(record.get(KB_SUBSCRIPTION_ID)),
+                                              toUUID(record.get(KB_PAYMENT_METHOD_ID)));
+    }
+
+    // The next attempt date is compared to the value read, so it mustn't be truncated by the database (MySQL datetime is to the second)
+    private static LocalDateTime toAttemptDate(final DateTime date) {
+        return toLocalDateTime(date).truncatedTo(ChronoUnit.SECONDS);
+    }
+
+    private static InvgrpReconcilerCheckpoint toReconcilerCheckpoint(final Record record) {
+        return new InvgrpReconcilerCheckpoint(UUID.fromString(record.get(KB_TENANT_ID)),
+                                              record.get(ACCOUNT_OFFSET),
+                                              record.get(NB_ACCOUNTS),
+                                              record.get(NB_MISSING),
+                                              record.get(NB_DANGLING),
+                                              record.get(NB_ERRORS),
+                                              record.get(PASS_STARTED_DATE),
+                                              record.get(PASS_COMPLETED_DATE));
+    }
+
+    private static InvgrpPaymentMethodFailure toPaymentMethodFailure(final Record record) {
+        return new InvgrpPaymentMethodFailure(UUID.fromString(record.get(KB_TENANT_ID)),
+                                              UUID.fromString(record.get(KB_PAYMENT_METHOD_ID)),
+                                              record.get(FAILURE_SCORE),
+                                              record.get(NB_FAILURES),
+                                              record.get(LAST_FAILURE_DATE),
+                                              record.get(BAD_UNTIL_DATE));
+    }
+
+    private static InvgrpPendingPaymentMethod toPendingPaymentMethod(final Record record) {
+        return new InvgrpPendingPaymentMethod(record.get(RECORD_ID),
+                                              UUID.fromString(record.get(KB_TENANT_ID)),
+                                              UUID.fromString(record.get(KB_ACCOUNT_ID)),
+                                              record.get(SUBSCRIPTION_EXTERNAL_KEY),
+                                              UUID.fromString(record.get(KB_PAYMENT_METHOD_ID)),
+                                              toUUIDs(record.get(FALLBACK_PAYMENT_METHOD_IDS)),
+                                              record.get(ATTEMPTS),
+                                              record.get(NEXT_ATTEMPT_DATE));
+    }
+
+    private static String fromUUID(@Nullable final UUID id) {
+        return id != null ? id.toString() : null;
+    }
+
+    private static UUID toUUID(@Nullable final String id) {
+        return id != null ? UUID.fromString(id) : null;
+    }
+
+    // Comma separated, null when empty
+    private static String fromUUIDs(final List<UUID> ids) {
+        return ids.isEmpty() ? null : ids.stream().map(UUID::toString).collect(Collectors.joining(","));
+    }
+
+    private static List<UUID> toUUIDs(@Nullable final String ids) {
+        if (ids == null || ids.isEmpty()) {
+            return List.of();
+        }
+        return Arrays.stream(ids.split(",")).map(UUID::fromString).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+/**
+ * Snapshot of the plugin internals for a tenant: effective configuration, caches, queues, calls in progress and recent
+ * latencies of the plugin APIs, and last reconciliation. Only in-memory counters are read (no database or Kill Bill
+ * call), so that it can be polled every few seconds.
+ * <p>
+ * Caches and queues are shared by all tenants, their figures are plugin-wide.
+ */
+public class InvgrpDiagnostics {
+
+    private final InvgrpGlobalConfiguration configuration;
+    private final InvgrpConfigurationHandler configurationHandler;
+    private final InvgrpMetrics metrics;
+    private final List<InvgrpCache<?, ?>> caches;
+    private final InvgrpPartitionedExecutor listenerExecutor;
+    private final InvgrpCoalescer<?, ?> listenerCoalescer;
+    private final InvgrpPaymentMethodQueue pendingPaymentMethods;
+    private final InvgrpReconciler reconciler;
+
+    public InvgrpDiagnostics(final InvgrpGlobalConfiguration configuration,
+                             final InvgrpConfigurationHandler configurationHandler,
+                             final InvgrpMetrics metrics,
+                             final List<InvgrpCache<?, ?>> caches,
+                             final InvgrpPartitionedExecutor listenerExecutor,
+                             final InvgrpCoalescer<?, ?> listenerCoalescer,
+                             final InvgrpPaymentMethodQueue pendingPaymentMethods,
+                             @Nullable final InvgrpReconciler reconciler) {
+        this.configuration = configuration;
+        this.configurationHandler = configurationHandler;
+        this.metrics = metrics;
+        this.caches = caches;
+        this.listenerExecutor = listenerExecutor;
+        this.listenerCoalescer = listenerCoalescer;
+        this.pendingPaymentMethods = pendingPaymentMethods;
+        this.reconciler = reconciler;
+    }
+
+    /**
+     * @return the snapshot, as nested maps and lists (ready to be serialized as JSON)
+     */
+    public Map<String, Object> getDiagnostics(final UUID tenantId) {
+        final Map<String, Object> diagnostics = new LinkedHashMap<String, Object>();
+        diagnostics.put("tenantId", tenantId.toString());
+        diagnostics.put("configuration", getConfiguration(tenantId));
+        diagnostics.put("caches", getCaches());
+        diagnostics.put("queues", getQueues());
+        diagnostics.put("calls", metrics.getCallStats(tenantId));
+        diagnostics.put("reconciler", getReconciler(tenantId));
+        return diagnostics;
+    }
+
+    private Map<String, Object> getConfiguration(final UUID tenantId) {
+        final InvgrpTenantConfiguration tenantConfiguration = configurationHandler.getConfigurable(tenantId);
+        final InvgrpGroupingStrategy strategy = tenantConfiguration.getGroupingStrategy();
+        final Map<String, Object> tenant = new LinkedHashMap<String, Object>();
+        tenant.put("groupingEnabled", tenantConfiguration.isGroupingEnabled());
+        tenant.put("groupingRules", strategy.getRules());
+        tenant.put("groupingCustomField", strategy.getCustomFieldName());
+        tenant.put("groupingMaxItems", strategy.getMaxItems());
+        tenant.put("groupingMaxAmount", strategy.getMaxAmount());
+
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        // Bean, serialized through its getters
+        result.put("global", configuration);
+        result.put("tenant", tenant);
+        return result;
+    }
+
+    private List<Map<String, Object>> getCaches() {
+        final List<Map<String, Object>> result = new ArrayList<Map<String, Object>>(caches.size());
+        for (final InvgrpCache<?, ?> cache : caches) {
+            final Map<String, Object> stats = new LinkedHashMap<String, Object>();
+            stats.put("name", cache.getName());
+            stats.put("size", cache.size());
+            stats.put("hits", cache.getHitCount());
+            stats.put("misses", cache.getMissCount());
+            stats.put("evictions", cache.getEvictionCount());
+            stats.put("hitRate", cache.getHitRate());
+            result.add(stats);
+        }
+        return result;
+    }
+
+    private Map<String, Object> getQueues() {
+        final Map<String, Object> listener = new LinkedHashMap<String, Object>();
+        listener.put("queueDepth", listenerExecutor.getQueueDepth());
+        listener.put("submitted", listenerExecutor.getSubmittedCount());
+        listener.put("blocked", listenerExecutor.getBlockedCount());
+
+        final Map<String, Object> coalescer = new LinkedHashMap<String, Object>();
+        coalescer.put("pending", listenerCoalescer.getPendingCount());
+        coalescer.put("submitted", listenerCoalescer.getSubmittedCount());
+        coalescer.put("coalesced", listenerCoalescer.getCoalescedCount());
+        coalescer.put("deferred", listenerCoalescer.getDeferredCount());
+
+        final Map<String, Object> mappingQueue = new LinkedHashMap<String, Object>();
+        mappingQueue.put("queueDepth", pendingPaymentMethods.getQueueDepth());
+
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("listener", listener);
+        result.put("listenerCoalescer", coalescer);
+        result.put("mappingQueue", mappingQueue);
+        return result;
+    }
+
+    private Map<String, Object> getReconciler(final UUID tenantId) {
+        final InvgrpReconciler.Report report = reconciler != null ? reconciler.getReport(tenantId) : null;
+        if (report == null) {
+            return null;
+        }
+        final InvgrpReconcilerCheckpoint checkpoint = report.getCheckpoint();
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("passStartedDate", String.valueOf(checkpoint.getPassStartedDate()));
+        result.put("passCompletedDate", String.valueOf(checkpoint.getPassCompletedDate()));
+        result.put("nbAccounts", checkpoint.getNbAccounts());
+        result.put("nbMissing", checkpoint.getNbMissing());
+        result.put("nbDangling", checkpoint.getNbDangling());
+        result.put("nbErrors", checkpoint.getNbErrors());
+        result.put("findings", report.getFindings());
+        return result;
+    }
+}
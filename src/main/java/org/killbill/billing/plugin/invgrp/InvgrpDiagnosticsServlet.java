@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.Optional;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jooby.Result;
+import org.jooby.Results;
+import org.jooby.Status;
+import org.jooby.mvc.GET;
+import org.jooby.mvc.Local;
+import org.jooby.mvc.Path;
+import org.killbill.billing.tenant.api.Tenant;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Inject;
+
+@Singleton
+@Path("/diagnostics")
+public class InvgrpDiagnosticsServlet {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final InvgrpDiagnostics diagnostics;
+
+    @Inject
+    public InvgrpDiagnosticsServlet(final InvgrpDiagnostics diagnostics) {
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * Plugin internals, as seen by the tenant of the X-Killbill-ApiKey and X-Killbill-ApiSecret headers
+     */
+    @GET
+    public Result diagnostics(@Local @Named("killbill_tenant") final Optional<Tenant> tenant) throws JsonProcessingException {
+        if (tenant == null || !tenant.isPresent()) {
+            return Results.with(Status.UNAUTHORIZED);
+        }
+        return Results.ok(objectMapper.writeValueAsString(diagnostics.getDiagnostics(tenant.get().getId()))).type("application/json");
+    }
+}
@@ -16,15 +16,16 @@
 
 package org.killbill.billing.plugin.invgrp;
 
-import java.util.Collections;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.stream.StreamSupport;
 
-import org.killbill.billing.ObjectType;
 import org.killbill.billing.entitlement.api.BaseEntitlementWithAddOnsSpecifier;
 import org.killbill.billing.entitlement.api.EntitlementSpecifier;
-import org.killbill.billing.entitlement.api.Subscription;
 import org.killbill.billing.entitlement.api.SubscriptionApiException;
 import org.killbill.billing.entitlement.plugin.api.EntitlementContext;
 import org.killbill.billing.entitlement.plugin.api.EntitlementPluginApi;
@@ -33,14 +34,8 @@ import org.killbill.billing.entitlement.plugin.api.OnFailureEntitlementResult;
 import org.killbill.billing.entitlement.plugin.api.OnSuccessEntitlementResult;
 import org.killbill.billing.entitlement.plugin.api.OperationType;
 import org.killbill.billing.entitlement.plugin.api.PriorEntitlementResult;
-import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
-import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
 import org.killbill.billing.payment.api.PaymentApiException;
 import org.killbill.billing.payment.api.PluginProperty;
-import org.killbill.billing.plugin.api.core.PluginCustomField;
-import org.killbill.billing.util.api.CustomFieldApiException;
-import org.killbill.billing.util.callcontext.CallContext;
-import org.killbill.billing.util.customfield.CustomField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,38 +44,42 @@ import static org.killbill.billing.entitlement.plugin.api.OperationType.CREATE_S
 public class InvgrpEntitlementPluginApi implements EntitlementPluginApi {
 
     public static final String PM_ID = "PM_ID";
-    private static final String USER = "admin";
-    private static final String PWD = "password";
+    // Optional, comma separated payment method ids, tried in order when payments with PM_ID fail (see InvgrpPaymentMethodRouter)
+    public static final String PM_FALLBACK_IDS = "PM_FALLBACK_IDS";
 
     public static final Logger logger = LoggerFactory.getLogger(InvgrpEntitlementPluginApi.class);
 
-    private final OSGIKillbillAPI killbillAPI;
-    private final OSGIKillbillClock clock;
+    private final InvgrpPaymentMethodQueue pendingPaymentMethods;
+    private final InvgrpMetrics metrics;
 
-    public InvgrpEntitlementPluginApi(final OSGIKillbillAPI killbillAPI, final OSGIKillbillClock clock) {
-        this.killbillAPI = killbillAPI;
-        this.clock = clock;
+    public InvgrpEntitlementPluginApi(final InvgrpPaymentMethodQueue pendingPaymentMethods, final InvgrpMetrics metrics) {
+        this.pendingPaymentMethods = pendingPaymentMethods;
+        this.metrics = metrics;
     }
 
     @Override
     public PriorEntitlementResult priorCall(final EntitlementContext context, final Iterable<PluginProperty> properties) {
-        return null;
+        return metrics.record("entitlement", "priorCall", context.getTenantId(), context.getOperationType(), () -> null);
     }
 
     @Override
     public OnSuccessEntitlementResult onSuccessCall(final EntitlementContext context, final Iterable<PluginProperty> properties) throws EntitlementPluginApiException {
+        return metrics.record("entitlement", "onSuccessCall", context.getTenantId(), context.getOperationType(), () -> doOnSuccessCall(context, properties));
+    }
+
+    private OnSuccessEntitlementResult doOnSuccessCall(final EntitlementContext context, final Iterable<PluginProperty> properties) throws EntitlementPluginApiException {
         if (context.getOperationType() == OperationType.CREATE_SUBSCRIPTION ||
             context.getOperationType() == OperationType.CREATE_SUBSCRIPTIONS_WITH_AO ||
             context.getOperationType() == OperationType.CREATE_SHOPPING_CART_SUBSCRIPTIONS) {
 
             //
-            // Creates the custom field to map the subscription for the provided payment method
+            // Creates the mapping between the subscription and the provided payment method
             //
             logger.info("OnSuccess call for CREATE_SUBSCRIPTION");
 
-            final UUID subId = getSubscriptionId(context);
-            if (subId == null) {
-                logger.warn("Failed to find subscription from context");
+            final Set<String> externalKeys = getSubscriptionExternalKeys(context);
+            if (externalKeys.isEmpty()) {
+                logger.warn("Failed to find subscriptions from context");
                 return null;
             }
 
@@ -90,72 +89,73 @@ public class InvgrpEntitlementPluginApi implements EntitlementPluginApi {
                 return null;
             }
 
-            validatePaymentMethod(pmId, context);
-
-            addCustomField(subId, pmId, context);
+            final List<UUID> fallbackPmIds = getFallbackPaymentMethodIds(properties, pmId);
+
+            // The payment methods are validated right away, the subscription lookups and mapping writes happen in the background (unless the queue is disabled)
+            try {
+                pendingPaymentMethods.add(context.getAccountId(), externalKeys, pmId, fallbackPmIds, context);
+            } catch (final SubscriptionApiException e) {
+                logger.warn("Failed to get some of the subscriptions for keys {}", externalKeys, e);
+            } catch (final PaymentApiException e) {
+                throw new EntitlementPluginApiException("Failed to find payment method", e);
+            } catch (final SQLException e) {
+                throw new EntitlementPluginApiException("Failed to add payment method mapping", e);
+            }
         }
         return null;
     }
 
-    private void validatePaymentMethod(final UUID pmId, final EntitlementContext context) throws EntitlementPluginApiException {
-
-        try {
-            killbillAPI.getPaymentApi().getPaymentMethodById(pmId, false, false, Collections.emptyList(), context);
-        } catch (final PaymentApiException e) {
-            throw new EntitlementPluginApiException("Failed to find payment method",  e);
-        }
-    }
-
     @Override
     public OnFailureEntitlementResult onFailureCall(final EntitlementContext context, final Iterable<PluginProperty> properties) throws EntitlementPluginApiException {
-        return null;
+        return metrics.record("entitlement", "onFailureCall", context.getTenantId(), context.getOperationType(), () -> null);
     }
 
-    private void addCustomField(final UUID subscriptionId, final UUID paymentMethodId, final CallContext context) throws EntitlementPluginApiException {
-
-        final CustomField field = new PluginCustomField(subscriptionId, ObjectType.SUBSCRIPTION, PM_ID, paymentMethodId.toString(), clock.getClock().getUTCNow());
-        final List<CustomField> existings = killbillAPI.getCustomFieldUserApi().getCustomFieldsForObject(subscriptionId, ObjectType.SUBSCRIPTION, context);
-        final CustomField found = existings.stream()
-                                           .filter(f -> f.getFieldName().equals(PM_ID))
-                                           .findFirst()
-                                           .orElse(null);
-        if (found != null) {
-            logger.warn("Custom field for subscription {} already exists, skip...", subscriptionId);
-            return;
+    // All the subscriptions created (every bundle of a shopping cart, with their add-ons)
+    private Set<String> getSubscriptionExternalKeys(final EntitlementContext context) {
+        final Set<String> externalKeys = new LinkedHashSet<String>();
+        for (final BaseEntitlementWithAddOnsSpecifier bundleSpec : context.getBaseEntitlementWithAddOnsSpecifiers()) {
+            for (final EntitlementSpecifier spec : bundleSpec.getEntitlementSpecifier()) {
+                if (spec.getExternalKey() == null) {
+                    logger.warn("No external key for subscription of plan {}, skip...", spec.getPlanPhaseSpecifier() != null ? spec.getPlanPhaseSpecifier().getPlanName() : null);
+                } else {
+                    externalKeys.add(spec.getExternalKey());
+                }
+            }
         }
+        return externalKeys;
+    }
 
-        try {
-            killbillAPI.getSecurityApi().login(USER, PWD);
-            killbillAPI.getCustomFieldUserApi().addCustomFields(Collections.singletonList(field), context);
-        } catch (final CustomFieldApiException e) {
-            throw new EntitlementPluginApiException("Failed to add custom field", e);
-        } finally {
-            killbillAPI.getSecurityApi().logout();
-        }
+    private UUID getPaymentMethodId(final Iterable<PluginProperty> properties) {
+        final PluginProperty prop = getProperty(properties, PM_ID);
+        return prop != null ? UUID.fromString((String) prop.getValue()) : null;
     }
 
-    private UUID getSubscriptionId(final EntitlementContext context) {
-
-        if (context.getBaseEntitlementWithAddOnsSpecifiers().iterator().hasNext()) {
-            final BaseEntitlementWithAddOnsSpecifier bundleSpec = context.getBaseEntitlementWithAddOnsSpecifiers().iterator().next();
-            if (bundleSpec.getEntitlementSpecifier().iterator().hasNext()) {
-                final EntitlementSpecifier spec = bundleSpec.getEntitlementSpecifier().iterator().next();
-                try {
-                    final Subscription sub = killbillAPI.getSubscriptionApi().getSubscriptionForExternalKey(spec.getExternalKey(), false, context);
-                    return sub.getId();
-                } catch (final SubscriptionApiException e) {
-                    logger.warn("Failed to get subscription for key {}", spec.getExternalKey(), e);
+    private List<UUID> getFallbackPaymentMethodIds(final Iterable<PluginProperty> properties, final UUID pmId) throws EntitlementPluginApiException {
+        final PluginProperty prop = getProperty(properties, PM_FALLBACK_IDS);
+        if (prop == null || prop.getValue() == null) {
+            return List.of();
+        }
+        final Set<UUID> fallbackPmIds = new LinkedHashSet<UUID>();
+        try {
+            for (final String id : ((String) prop.getValue()).split(",")) {
+                if (!id.isBlank()) {
+                    fallbackPmIds.add(UUID.fromString(id.trim()));
                 }
             }
+        } catch (final ClassCastException | IllegalArgumentException e) {
+            throw new EntitlementPluginApiException("Invalid " + PM_FALLBACK_IDS + " property: " + prop.getValue(), e);
         }
-        return null;
+        fallbackPmIds.remove(pmId);
+        if (fallbackPmIds.size() > InvgrpMappingTransfer.MAX_FALLBACK_PAYMENT_METHODS) {
+            throw new EntitlementPluginApiException("At most " + InvgrpMappingTransfer.MAX_FALLBACK_PAYMENT_METHODS + " payment methods allowed in " + PM_FALLBACK_IDS);
+        }
+        return new ArrayList<UUID>(fallbackPmIds);
     }
 
-    private UUID getPaymentMethodId(final Iterable<PluginProperty> properties) {
-        final PluginProperty prop = StreamSupport.stream(properties.spliterator(), false)
-                                                 .filter(p -> p.getKey().equals(PM_ID))
-                                                 .findFirst()
-                                                 .orElse(null);
-        return prop != null ? UUID.fromString((String) prop.getValue()) : null;
+    private static PluginProperty getProperty(final Iterable<PluginProperty> properties, final String key) {
+        return StreamSupport.stream(properties.spliterator(), false)
+                            .filter(p -> p.getKey().equals(key))
+                            .findFirst()
+                            .orElse(null);
     }
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.Properties;
+
+/**
+ * Plugin-wide settings (Kill Bill system properties), parsed and validated once at startup: cache sizes, time-to-lives,
+ * thread pool sizes, queue capacities and timeouts. Per-tenant settings live in {@link InvgrpTenantConfiguration}.
+ */
+public final class InvgrpGlobalConfiguration {
+
+    static final String PAYMENT_METHOD_CACHE_MAX_SIZE_PROPERTY = "org.killbill.billing.plugin.invgrp.paymentMethodCache.maxSize";
+    static final String PAYMENT_METHOD_CACHE_TTL_SEC_PROPERTY = "org.killbill.billing.plugin.invgrp.paymentMethodCache.ttlSec";
+    static final String PAYMENT_METHOD_VALIDATION_CACHE_MAX_SIZE_PROPERTY = "org.killbill.billing.plugin.invgrp.paymentMethodValidationCache.maxSize";
+    static final String PAYMENT_METHOD_VALIDATION_CACHE_TTL_SEC_PROPERTY = "org.killbill.billing.plugin.invgrp.paymentMethodValidationCache.ttlSec";
+    static final String PAYMENT_METHOD_VALIDATION_CACHE_NEGATIVE_TTL_SEC_PROPERTY = "org.killbill.billing.plugin.invgrp.paymentMethodValidationCache.negativeTtlSec";
+    static final String GROUPING_MEMO_MAX_SIZE_PROPERTY = "org.killbill.billing.plugin.invgrp.groupingMemo.maxSize";
+    static final String GROUPING_MEMO_TTL_SEC_PROPERTY = "org.killbill.billing.plugin.invgrp.groupingMemo.ttlSec";
+    static final String GROUPING_MEMO_MAX_INVOICE_ITEMS_PROPERTY = "org.killbill.billing.plugin.invgrp.groupingMemo.maxInvoiceItems";
+    static final String LISTENER_PARTITIONS_PROPERTY = "org.killbill.billing.plugin.invgrp.listener.partitions";
+    static final String LISTENER_CAPACITY_PROPERTY = "org.killbill.billing.plugin.invgrp.listener.capacity";
+    static final String LISTENER_COALESCING_WINDOW_MILLIS_PROPERTY = "org.killbill.billing.plugin.invgrp.listener.coalescingWindowMillis";
+    static final String LISTENER_DRAIN_TIMEOUT_SEC_PROPERTY = "org.killbill.billing.plugin.invgrp.listener.drainTimeoutSec";
+
+    private final int metricsMaxTenants;
+    private final int paymentMethodCacheMaxSize;
+    private final int paymentMethodCacheTtlSec;
+    private final int validationCacheMaxSize;
+    private final int validationCacheTtlSec;
+    private final int validationCacheNegativeTtlSec;
+    private final int groupingMemoMaxSize;
+    private final int groupingMemoTtlSec;
+    private final int groupingMemoMaxInvoiceItems;
+    private final boolean customFieldFallback;
+    private final int mappingQueueWorkers;
+    private final int mappingQueueCapacity;
+    private final int mappingQueueMaxAttempts;
+    private final int listenerPartitions;
+    private final int listenerCapacity;
+    private final int listenerCoalescingWindowMillis;
+    private final int listenerDrainTimeoutSec;
+    private final int reconcilerIntervalMin;
+    private final int reconcilerThreads;
+    private final int reconcilerPageSize;
+    private final int reconcilerAccountsPerSec;
+    private final int healthcheckSampleIntervalSec;
+    private final int healthcheckMaxStoreLatencyMillis;
+    private final int healthcheckMaxQueueUsagePercent;
+    private final int healthcheckMaxOverdueMappings;
+    private final int healthcheckMaxKillbillFailurePercent;
+    private final int healthcheckMinCacheHitPercent;
+    private final int paymentMethodFailureHalfLifeMin;
+    private final int paymentMethodFailureBadScore;
+    private final int paymentMethodFailureRefreshSec;
+
+    /**
+     * @throws IllegalArgumentException if a property is invalid
+     */
+    public InvgrpGlobalConfiguration(final Properties properties) {
+        this.metricsMaxTenants = getInt(properties, InvgrpMetrics.MAX_TENANTS_PROPERTY, 100, 0);
+        this.paymentMethodCacheMaxSize = getInt(properties, PAYMENT_METHOD_CACHE_MAX_SIZE_PROPERTY, 10000, 1);
+        this.paymentMethodCacheTtlSec = getInt(properties, PAYMENT_METHOD_CACHE_TTL_SEC_PROPERTY, 300, 0);
+        this.validationCacheMaxSize = getInt(properties, PAYMENT_METHOD_VALIDATION_CACHE_MAX_SIZE_PROPERTY, 10000, 1);
+        this.validationCacheTtlSec = getInt(properties, PAYMENT_METHOD_VALIDATION_CACHE_TTL_SEC_PROPERTY, 300, 0);
+        this.validationCacheNegativeTtlSec = getInt(properties, PAYMENT_METHOD_VALIDATION_CACHE_NEGATIVE_TTL_SEC_PROPERTY, 30, 0);
+        this.groupingMemoMaxSize = getInt(properties, GROUPING_MEMO_MAX_SIZE_PROPERTY, 1000, 1);
+        this.groupingMemoTtlSec = getInt(properties, GROUPING_MEMO_TTL_SEC_PROPERTY, 60, 0);
+        this.groupingMemoMaxInvoiceItems = getInt(properties, GROUPING_MEMO_MAX_INVOICE_ITEMS_PROPERTY, 1000, 0);
+        this.customFieldFallback = getBoolean(properties, InvgrpPaymentMethodStore.CUSTOM_FIELD_FALLBACK_PROPERTY, true);
+        this.mappingQueueWorkers = getInt(properties, InvgrpPaymentMethodQueue.WORKERS_PROPERTY, 2, 0);
+        this.mappingQueueCapacity = getInt(properties, InvgrpPaymentMethodQueue.CAPACITY_PROPERTY, 1000, 1);
+        this.mappingQueueMaxAttempts = getInt(properties, InvgrpPaymentMethodQueue.MAX_ATTEMPTS_PROPERTY, 10, 1);
+        this.listenerPartitions = getInt(properties, LISTENER_PARTITIONS_PROPERTY, 4, 0);
+        this.listenerCapacity = getInt(properties, LISTENER_CAPACITY_PROPERTY, 1000, 1);
+        this.listenerCoalescingWindowMillis = getInt(properties, LISTENER_COALESCING_WINDOW_MILLIS_PROPERTY, 1000, 0);
+        this.listenerDrainTimeoutSec = getInt(properties, LISTENER_DRAIN_TIMEOUT_SEC_PROPERTY, 30, 0);
+        this.reconcilerIntervalMin = getInt(properties, InvgrpReconciler.INTERVAL_MIN_PROPERTY, 1440, 0);
+        this.reconcilerThreads = getInt(properties, InvgrpReconciler.THREADS_PROPERTY, 2, 1);
+        this.reconcilerPageSize = getInt(properties, InvgrpReconciler.PAGE_SIZE_PROPERTY, 100, 1);
+        this.reconcilerAccountsPerSec = getInt(properties, InvgrpReconciler.ACCOUNTS_PER_SEC_PROPERTY, 10, 0);
+        this.healthcheckSampleIntervalSec = getInt(properties, InvgrpHealthcheck.SAMPLE_INTERVAL_SEC_PROPERTY, 10, 1);
+        this.healthcheckMaxStoreLatencyMillis = getInt(properties, InvgrpHealthcheck.MAX_STORE_LATENCY_MILLIS_PROPERTY, 500, 1);
+        this.healthcheckMaxQueueUsagePercent = getInt(properties, InvgrpHealthcheck.MAX_QUEUE_USAGE_PERCENT_PROPERTY, 90, 1);
+        this.healthcheckMaxOverdueMappings = getInt(properties, InvgrpHealthcheck.MAX_OVERDUE_MAPPINGS_PROPERTY, 1000, 0);
+        this.healthcheckMaxKillbillFailurePercent = getInt(properties, InvgrpHealthcheck.MAX_KILLBILL_FAILURE_PERCENT_PROPERTY, 50, 0);
+        this.healthcheckMinCacheHitPercent = getInt(properties, InvgrpHealthcheck.MIN_CACHE_HIT_PERCENT_PROPERTY, 0, 0);
+        this.paymentMethodFailureHalfLifeMin = getInt(properties, InvgrpPaymentMethodRouter.HALF_LIFE_MIN_PROPERTY, 60, 1);
+        this.paymentMethodFailureBadScore = getInt(properties, InvgrpPaymentMethodRouter.BAD_SCORE_PROPERTY, 3, 0);
+        this.paymentMethodFailureRefreshSec = getInt(properties, InvgrpPaymentMethodRouter.REFRESH_SEC_PROPERTY, 10, 1);
+    }
+
+    public int getMetricsMaxTenants() {
+        return metricsMaxTenants;
+    }
+
+    public int getPaymentMethodCacheMaxSize() {
+        return paymentMethodCacheMaxSize;
+    }
+
+    public int getPaymentMethodCacheTtlSec() {
+        return paymentMethodCacheTtlSec;
+    }
+
+    public int getValidationCacheMaxSize() {
+        return validationCacheMaxSize;
+    }
+
+    public int getValidationCacheTtlSec() {
+        return validationCacheTtlSec;
+    }
+
+    public int getValidationCacheNegativeTtlSec() {
+        return validationCacheNegativeTtlSec;
+    }
+
+    public int getGroupingMemoMaxSize() {
+        return groupingMemoMaxSize;
+    }
+
+    /**
+     * @return 0 to disable the memo
+     */
+    public int getGroupingMemoTtlSec() {
+        return groupingMemoTtlSec;
+    }
+
+    public int getGroupingMemoMaxInvoiceItems() {
+        return groupingMemoMaxInvoiceItems;
+    }
+
+    public boolean isCustomFieldFallback() {
+        return customFieldFallback;
+    }
+
+    public int getMappingQueueWorkers() {
+        return mappingQueueWorkers;
+    }
+
+    public int getMappingQueueCapacity() {
+        return mappingQueueCapacity;
+    }
+
+    public int getMappingQueueMaxAttempts() {
+        return mappingQueueMaxAttempts;
+    }
+
+    public int getListenerPartitions() {
+        return listenerPartitions;
+    }
+
+    public int getListenerCapacity() {
+        return listenerCapacity;
+    }
+
+    public int getListenerCoalescingWindowMillis() {
+        return listenerCoalescingWindowMillis;
+    }
+
+    public int getListenerDrainTimeoutSec() {
+        return listenerDrainTimeoutSec;
+    }
+
+    /**
+     * @return 0 to disable the reconciler
+     */
+    public int getReconcilerIntervalMin() {
+        return reconcilerIntervalMin;
+    }
+
+    public int getReconcilerThreads() {
+        return reconcilerThreads;
+    }
+
+    public int getReconcilerPageSize() {
+        return reconcilerPageSize;
+    }
+
+    /**
+     * @return 0 for no limit
+     */
+    public int getReconcilerAccountsPerSec() {
+        return reconcilerAccountsPerSec;
+    }
+
+    public int getHealthcheckSampleIntervalSec() {
+        return healthcheckSampleIntervalSec;
+    }
+
+    public int getHealthcheckMaxStoreLatencyMillis() {
+        return healthcheckMaxStoreLatencyMillis;
+    }
+
+    public int getHealthcheckMaxQueueUsagePercent() {
+        return healthcheckMaxQueueUsagePercent;
+    }
+
+    public int getHealthcheckMaxOverdueMappings() {
+        return healthcheckMaxOverdueMappings;
+    }
+
+    public int getHealthcheckMaxKillbillFailurePercent() {
+        return healthcheckMaxKillbillFailurePercent;
+    }
+
+    /**
+     * @return 0 to only report the cache hit rate
+     */
+    public int getHealthcheckMinCacheHitPercent() {
+        return healthcheckMinCacheHitPercent;
+    }
+
+    public int getPaymentMethodFailureHalfLifeMin() {
+        return paymentMethodFailureHalfLifeMin;
+    }
+
+    /**
+     * @return 0 to never consider a payment method bad
+     */
+    public int getPaymentMethodFailureBadScore() {
+        return paymentMethodFailureBadScore;
+    }
+
+    public int getPaymentMethodFailureRefreshSec() {
+        return paymentMethodFailureRefreshSec;
+    }
+
+    static int getInt(final Properties properties, final String name, final int defaultValue, final int minValue) {
+        final String value = properties.getProperty(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        final int result;
+        try {
+            result = Integer.parseInt(value.trim());
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Invalid value %s for property %s: not an integer", value, name), e);
+        }
+        if (result < minValue) {
+            throw new IllegalArgumentException(String.format("Invalid value %s for property %s: should be at least %s", value, name, minValue));
+        }
+        return result;
+    }
+
+    static boolean getBoolean(final Properties properties, final String name, final boolean defaultValue) {
+        final String value = properties.getProperty(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        // Unlike Boolean.parseBoolean, typos aren't silently read as false
+        switch (value.trim().toLowerCase()) {
+            case "true":
+                return true;
+            case "false":
+                return false;
+            default:
+                throw new IllegalArgumentException(String.format("Invalid value %s for property %s: should be true or false", value, name));
+        }
+    }
+}
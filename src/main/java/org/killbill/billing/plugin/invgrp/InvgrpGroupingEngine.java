@@ -0,0 +1,341 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.math.BigDecimal;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.UUID;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.plugin.api.InvoiceGroup;
+
+/**
+ * Splits the items of an invoice into groups, in linear time.
+ * <p>
+ * Items attached to a subscription are grouped by the key computed for them (by default, the subscription). Items without
+ * a subscription (adjustments, repairs, credits) follow their linked item, transitively, so that they always end up on the
+ * same invoice as the item they apply to.
+ * <p>
+ * Groups can optionally be bounded by number of items and total amount (per currency): a group exceeding a limit is split
+ * into chunks, never separating linked items from their target item. The chunks only depend on the content of the items,
+ * not on their order in the invoice, so that dry runs and reruns produce the same split.
+ */
+public class InvgrpGroupingEngine {
+
+    // Content-based order of the subscription items, independent of the ids generated for each (dry) run
+    private static final Comparator<InvoiceItem> CLUSTER_ORDER = Comparator.comparing(InvoiceItem::getSubscriptionId)
+                                                                           .thenComparing(InvoiceItem::getStartDate, Comparator.nullsFirst(Comparator.naturalOrder()))
+                                                                           .thenComparing(InvoiceItem::getEndDate, Comparator.nullsFirst(Comparator.naturalOrder()))
+                                                                           .thenComparing(InvoiceItem::getInvoiceItemType)
+                                                                           .thenComparing(InvoiceItem::getAmount, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    private static final int UNRESOLVED = -1;
+    private static final int IN_PROGRESS = -2;
+
+    public List<List<UUID>> group(final Invoice invoice) {
+        return group(invoice, InvoiceItem::getSubscriptionId);
+    }
+
+    public List<List<UUID>> group(final Invoice invoice, final Function<InvoiceItem, Object> groupKey) {
+        return group(invoice, groupKey, 0, null);
+    }
+
+    /**
+     * @param maxItems  maximum number of items per group, 0 for no limit
+     * @param maxAmount maximum total amount per group and currency, null for no limit
+     */
+    public List<List<UUID>> group(final Invoice invoice, final Function<InvoiceItem, Object> groupKey, final int maxItems, @Nullable final BigDecimal maxAmount) {
+        final List<InvoiceItem> items = invoice.getInvoiceItems();
+        final int nbItems = items.size();
+
+        // Index the items once, so that linked items are resolved without re-scanning the invoice (no index is needed when
+        // all the items are subscription items)
+        boolean hasLinkedItems = false;
+        for (int i = 0; i < nbItems && !hasLinkedItems; i++) {
+            hasLinkedItems = items.get(i).getSubscriptionId() == null;
+        }
+        InvgrpUUIDIntMap itemIndex = null;
+        int[] path = null;
+        if (hasLinkedItems) {
+            itemIndex = new InvgrpUUIDIntMap(nbItems);
+            for (int i = 0; i < nbItems; i++) {
+                itemIndex.put(items.get(i).getId(), i);
+            }
+            path = new int[nbItems];
+        }
+
+        final int[] roots = new int[nbItems];
+        Arrays.fill(roots, UNRESOLVED);
+
+        // Assign each item to its group (the key is only computed once per subscription item, the group of a root item is
+        // recorded as soon as one of its linked items is visited)
+        final GroupIndex groupIndex = new GroupIndex();
+        final int[] itemGroups = new int[nbItems];
+        Arrays.fill(itemGroups, UNRESOLVED);
+        for (int i = 0; i < nbItems; i++) {
+            final int root = resolveRoot(items, itemIndex, roots, path, i);
+            int group = itemGroups[root];
+            if (group == UNRESOLVED) {
+                group = groupIndex.groupOf(groupKey.apply(items.get(root)));
+                itemGroups[root] = group;
+            }
+            itemGroups[i] = group;
+        }
+
+        // Counting sort of the items by group: group g is [offsets[g]..offsets[g + 1]), in invoice order
+        final int nbGroups = groupIndex.size();
+        final int[] offsets = new int[nbGroups + 1];
+        for (int i = 0; i < nbItems; i++) {
+            offsets[itemGroups[i] + 1]++;
+        }
+        for (int g = 0; g < nbGroups; g++) {
+            offsets[g + 1] += offsets[g];
+        }
+        final int[] next = Arrays.copyOf(offsets, nbGroups);
+
+        if (maxItems <= 0 && maxAmount == null) {
+            // All the groups are views over one array of ids
+            final UUID[] ids = new UUID[nbItems];
+            for (int i = 0; i < nbItems; i++) {
+                ids[next[itemGroups[i]]++] = items.get(i).getId();
+            }
+            final List<List<UUID>> groups = new ArrayList<List<UUID>>(nbGroups);
+            for (int g = 0; g < nbGroups; g++) {
+                groups.add(new IdSlice(ids, offsets[g], offsets[g + 1]));
+            }
+            return groups;
+        }
+
+        final int[] order = new int[nbItems];
+        for (int i = 0; i < nbItems; i++) {
+            order[next[itemGroups[i]]++] = i;
+        }
+        final List<List<UUID>> groups = new ArrayList<List<UUID>>(nbGroups);
+        for (int g = 0; g < nbGroups; g++) {
+            chunk(items, roots, order, offsets[g], offsets[g + 1], maxItems, maxAmount, groups);
+        }
+        return groups;
+    }
+
+    //
+    // Greedy packing of the clusters (a subscription item and the items linked to it) of one group. Clusters are visited
+    // in a content-based order, and a cluster exceeding the limits on its own ends up alone in its chunk.
+    //
+    private static void chunk(final List<InvoiceItem> items,
+                              final int[] roots,
+                              final int[] order,
+                              final int from,
+                              final int to,
+                              final int maxItems,
+                              @Nullable final BigDecimal maxAmount,
+                              final List<List<UUID>> chunks) {
+        final List<Integer> group = new ArrayList<Integer>(to - from);
+        for (int k = from; k < to; k++) {
+            group.add(order[k]);
+        }
+        if (withinLimits(items, group, maxItems, maxAmount)) {
+            chunks.add(toIds(items, group));
+            return;
+        }
+
+        final Map<Integer, List<Integer>> clusters = new HashMap<Integer, List<Integer>>();
+        for (final int i : group) {
+            clusters.computeIfAbsent(roots[i], root -> new ArrayList<Integer>()).add(i);
+        }
+        final List<Integer> sortedRoots = new ArrayList<Integer>(clusters.keySet());
+        sortedRoots.sort((r1, r2) -> CLUSTER_ORDER.compare(items.get(r1), items.get(r2)));
+
+        List<Integer> chunk = new ArrayList<Integer>();
+        final Map<Currency, BigDecimal> chunkAmounts = new HashMap<Currency, BigDecimal>();
+        for (final Integer root : sortedRoots) {
+            final List<Integer> cluster = clusters.get(root);
+            final Map<Currency, BigDecimal> clusterAmounts = amounts(items, cluster);
+            if (!chunk.isEmpty() && !fits(chunk.size(), chunkAmounts, cluster.size(), clusterAmounts, maxItems, maxAmount)) {
+                chunks.add(toIds(items, chunk));
+                chunk = new ArrayList<Integer>();
+                chunkAmounts.clear();
+            }
+            chunk.addAll(cluster);
+            clusterAmounts.forEach((currency, amount) -> chunkAmounts.merge(currency, amount, BigDecimal::add));
+        }
+        chunks.add(toIds(items, chunk));
+    }
+
+    private static boolean withinLimits(final List<InvoiceItem> items, final List<Integer> group, final int maxItems, @Nullable final BigDecimal maxAmount) {
+        return fits(0, Collections.emptyMap(), group.size(), maxAmount != null ? amounts(items, group) : Collections.emptyMap(), maxItems, maxAmount);
+    }
+
+    private static boolean fits(final int chunkSize,
+                                final Map<Currency, BigDecimal> chunkAmounts,
+                                final int clusterSize,
+                                final Map<Currency, BigDecimal> clusterAmounts,
+                                final int maxItems,
+                                @Nullable final BigDecimal maxAmount) {
+        if (maxItems > 0 && chunkSize + clusterSize > maxItems) {
+            return false;
+        }
+        if (maxAmount != null) {
+            for (final Map.Entry<Currency, BigDecimal> entry : clusterAmounts.entrySet()) {
+                if (chunkAmounts.getOrDefault(entry.getKey(), BigDecimal.ZERO).add(entry.getValue()).compareTo(maxAmount) > 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static Map<Currency, BigDecimal> amounts(final List<InvoiceItem> items, final List<Integer> indexes) {
+        final Map<Currency, BigDecimal> amounts = new HashMap<Currency, BigDecimal>();
+        for (final int i : indexes) {
+            final InvoiceItem item = items.get(i);
+            if (item.getAmount() != null) {
+                amounts.merge(item.getCurrency(), item.getAmount(), BigDecimal::add);
+            }
+        }
+        return amounts;
+    }
+
+    // Chunks keep the invoice order of their items
+    private static List<UUID> toIds(final List<InvoiceItem> items, final List<Integer> indexes) {
+        Collections.sort(indexes);
+        final List<UUID> ids = new ArrayList<UUID>(indexes.size());
+        for (final int i : indexes) {
+            ids.add(items.get(i).getId());
+        }
+        return ids;
+    }
+
+    //
+    // Follow the linkedItemId chain until we reach an item attached to a subscription. Every item visited along the way
+    // is resolved to that same root, so each item is walked at most once per invoice.
+    //
+    private static int resolveRoot(final List<InvoiceItem> items, final InvgrpUUIDIntMap itemIndex, final int[] roots, final int[] path, final int start) {
+        int depth = 0;
+        int cur = start;
+        while (roots[cur] == UNRESOLVED) {
+            final InvoiceItem item = items.get(cur);
+            if (item.getSubscriptionId() != null) {
+                roots[cur] = cur;
+                break;
+            }
+            if (item.getLinkedItemId() == null) {
+                throw new IllegalStateException("Unexpected item not related to subscription ii=" + item);
+            }
+            final int target = itemIndex.get(item.getLinkedItemId());
+            if (target == InvgrpUUIDIntMap.NO_VALUE) {
+                throw new IllegalStateException("Unable to find linked item " + item.getLinkedItemId() + " on invoice for ii=" + item);
+            }
+            roots[cur] = IN_PROGRESS;
+            path[depth++] = cur;
+            cur = target;
+        }
+        if (roots[cur] == IN_PROGRESS) {
+            throw new IllegalStateException("Cycle detected in linked items starting from ii=" + items.get(start));
+        }
+
+        final int root = roots[cur];
+        for (int i = 0; i < depth; i++) {
+            roots[path[i]] = root;
+        }
+        return root;
+    }
+
+    //
+    // Group numbers, in order of first appearance. UUID keys (the subscription or bundle of single-rule strategies) go
+    // through the primitive map, composite and other keys through a regular hash map.
+    //
+    private static final class GroupIndex {
+
+        // Grown as needed: the number of groups can be anything from 1 to the number of items
+        private final InvgrpUUIDIntMap uuidGroups = new InvgrpUUIDIntMap(16);
+        private Map<Object, Integer> otherGroups;
+        private int nullGroup = UNRESOLVED;
+        private int size;
+
+        private int groupOf(@Nullable final Object groupId) {
+            if (groupId == null) {
+                if (nullGroup == UNRESOLVED) {
+                    nullGroup = size++;
+                }
+                return nullGroup;
+            }
+            if (groupId instanceof UUID) {
+                final int group = uuidGroups.putIfAbsent((UUID) groupId, size);
+                if (group == size) {
+                    size++;
+                }
+                return group;
+            }
+            if (otherGroups == null) {
+                otherGroups = new HashMap<Object, Integer>();
+            }
+            final Integer existing = otherGroups.putIfAbsent(groupId, size);
+            return existing != null ? existing : size++;
+        }
+
+        private int size() {
+            return size;
+        }
+    }
+
+    //
+    // Read-only view over a range of a shared array of ids. Also usable as is for the invoice plugin result, to avoid one
+    // more wrapper per group.
+    //
+    static final class IdSlice extends AbstractList<UUID> implements RandomAccess, InvoiceGroup {
+
+        private final UUID[] ids;
+        private final int from;
+        private final int to;
+
+        private IdSlice(final UUID[] ids, final int from, final int to) {
+            this.ids = ids;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public UUID get(final int index) {
+            Objects.checkIndex(index, to - from);
+            return ids[from + index];
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        @Override
+        public List<UUID> getInvoiceItemIds() {
+            return this;
+        }
+    }
+}
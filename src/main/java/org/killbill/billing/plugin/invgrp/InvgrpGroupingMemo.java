@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+
+/**
+ * Short-lived memo of the grouping results, so that the real invoice generation reuses the grouping computed for the
+ * preceding dry run (and retried generations the grouping of the failed attempt).
+ * <p>
+ * Kill Bill generates new item ids for each (dry) run, so results are keyed by a fingerprint of the content of the items
+ * (subscription, bundle, plan, type, dates, amount, currency, and the content of the linked items up to the root of the
+ * chain when they are part of the invoice, the id of the first one which isn't otherwise) and of the grouping strategy. The groups are remembered as positions of the items in content
+ * order, and mapped back to the item ids of each run. Items with the same content are interchangeable, and taken in invoice
+ * order.
+ * <p>
+ * Only strategies depending on the items alone are memoized (see {@link InvgrpGroupingStrategy#isContentOnly()}): the
+ * payment method mappings and custom fields can change between two runs.
+ */
+public class InvgrpGroupingMemo {
+
+    private final InvgrpCache<InvgrpTenantKey, int[][]> cache;
+    private final int maxInvoiceItems;
+
+    /**
+     * @param maxInvoiceItems invoices with more items are never memoized, to bound the memory used by each entry
+     */
+    public InvgrpGroupingMemo(final InvgrpCache<InvgrpTenantKey, int[][]> cache, final int maxInvoiceItems) {
+        this.cache = cache;
+        this.maxInvoiceItems = maxInvoiceItems;
+    }
+
+    public List<List<UUID>> group(final Invoice invoice, final InvgrpGroupingStrategy strategy, final UUID tenantId, final Supplier<List<List<UUID>>> grouping) {
+        final List<InvoiceItem> items = invoice.getInvoiceItems();
+        if (items.size() > maxInvoiceItems || !strategy.isContentOnly()) {
+            return grouping.get();
+        }
+
+        final String[] contents = contents(items);
+        final Integer[] order = order(contents);
+        final InvgrpTenantKey key = new InvgrpTenantKey(tenantId, fingerprint(contents, order, strategy));
+        final int[][] cached = cache.get(key);
+        if (cached != null) {
+            final List<List<UUID>> groups = new ArrayList<List<UUID>>(cached.length);
+            for (final int[] positions : cached) {
+                final UUID[] ids = new UUID[positions.length];
+                for (int i = 0; i < positions.length; i++) {
+                    ids[i] = items.get(order[positions[i]]).getId();
+                }
+                groups.add(Arrays.asList(ids));
+            }
+            return groups;
+        }
+
+        final List<List<UUID>> groups = grouping.get();
+        final Map<UUID, Integer> positionById = new HashMap<UUID, Integer>();
+        for (int position = 0; position < order.length; position++) {
+            positionById.put(items.get(order[position]).getId(), position);
+        }
+        final int[][] positions = new int[groups.size()][];
+        for (int g = 0; g < positions.length; g++) {
+            positions[g] = groups.get(g).stream().mapToInt(positionById::get).toArray();
+        }
+        cache.put(key, positions);
+        return groups;
+    }
+
+    //
+    // Content of each item, including the content of its linked items (the links themselves are ids generated for the
+    // run). The whole chain is included, since the group of an item is the group of the root of its chain
+    //
+    private static String[] contents(final List<InvoiceItem> items) {
+        final Map<UUID, InvoiceItem> itemsById = new HashMap<UUID, InvoiceItem>();
+        items.forEach(item -> itemsById.put(item.getId(), item));
+        final String[] contents = new String[items.size()];
+        for (int i = 0; i < contents.length; i++) {
+            final InvoiceItem item = items.get(i);
+            final StringBuilder content = new StringBuilder();
+            appendContent(content, item);
+            InvoiceItem current = item;
+            // Bounded, in case of a cycle (rejected by the grouping)
+            for (int depth = 0; current.getLinkedItemId() != null && depth < contents.length; depth++) {
+                final InvoiceItem linkedItem = itemsById.get(current.getLinkedItemId());
+                if (linkedItem == null) {
+                    // Item of a previous invoice: its id is stable
+                    content.append("\u0002").append(current.getLinkedItemId());
+                    break;
+                }
+                appendContent(content.append("\u0001"), linkedItem);
+                current = linkedItem;
+            }
+            contents[i] = content.toString();
+        }
+        return contents;
+    }
+
+    private static void appendContent(final StringBuilder content, final InvoiceItem item) {
+        content.append(item.getSubscriptionId()).append('\u0000')
+               .append(item.getBundleId()).append('\u0000')
+               .append(item.getPlanName()).append('\u0000')
+               .append(item.getInvoiceItemType()).append('\u0000')
+               .append(item.getStartDate()).append('\u0000')
+               .append(item.getEndDate()).append('\u0000')
+               .append(toString(item.getAmount())).append('\u0000')
+               .append(item.getCurrency());
+    }
+
+    // Same value whatever the scale (e.g. 10.00 and 10)
+    private static String toString(final BigDecimal amount) {
+        return amount == null ? null : amount.stripTrailingZeros().toPlainString();
+    }
+
+    //
+    // Item indexes in content order (stable sort: items with the same content stay in invoice order)
+    //
+    private static Integer[] order(final String[] contents) {
+        final Integer[] order = new Integer[contents.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> contents[i]));
+        return order;
+    }
+
+    //
+    // 128 bits of a SHA-256 digest: collisions are not a practical concern, and entries stay small whatever the invoice size
+    //
+    private static UUID fingerprint(final String[] contents, final Integer[] order, final InvgrpGroupingStrategy strategy) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(strategy.toString().getBytes(StandardCharsets.UTF_8));
+        for (final Integer i : order) {
+            digest.update((byte) '\n');
+            digest.update(contents[i].getBytes(StandardCharsets.UTF_8));
+        }
+        final ByteBuffer hash = ByteBuffer.wrap(digest.digest());
+        return new UUID(hash.getLong(), hash.getLong());
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import org.killbill.billing.invoice.api.InvoiceItem;
+
+/**
+ * Criteria available to split an invoice. Each rule extracts one component of the group key
+ * from the subscription item an invoice item resolves to.
+ */
+public enum InvgrpGroupingRule {
+
+    SUBSCRIPTION {
+        @Override
+        Object groupKey(final InvoiceItem item, final InvgrpGroupingStrategy.Session session) {
+            return item.getSubscriptionId();
+        }
+    },
+    BUNDLE {
+        @Override
+        Object groupKey(final InvoiceItem item, final InvgrpGroupingStrategy.Session session) {
+            return item.getBundleId();
+        }
+    },
+    PRODUCT_CATEGORY {
+        @Override
+        Object groupKey(final InvoiceItem item, final InvgrpGroupingStrategy.Session session) {
+            return session.getProductCategory(item);
+        }
+    },
+    BILLING_PERIOD {
+        @Override
+        Object groupKey(final InvoiceItem item, final InvgrpGroupingStrategy.Session session) {
+            return session.getBillingPeriod(item);
+        }
+    },
+    PLAN {
+        @Override
+        Object groupKey(final InvoiceItem item, final InvgrpGroupingStrategy.Session session) {
+            return item.getPlanName();
+        }
+    },
+    CUSTOM_FIELD {
+        @Override
+        Object groupKey(final InvoiceItem item, final InvgrpGroupingStrategy.Session session) {
+            return session.getCustomFieldValue(item);
+        }
+    },
+    // Subscriptions without mapping share the same (default) payment method
+    PAYMENT_METHOD {
+        @Override
+        Object groupKey(final InvoiceItem item, final InvgrpGroupingStrategy.Session session) {
+            return session.getPaymentMethodId(item);
+        }
+    };
+
+    abstract Object groupKey(InvoiceItem item, InvgrpGroupingStrategy.Session session);
+}
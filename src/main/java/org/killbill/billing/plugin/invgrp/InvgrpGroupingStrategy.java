@@ -0,0 +1,280 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.function.Function;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.catalog.api.BillingPeriod;
+import org.killbill.billing.catalog.api.CatalogApiException;
+import org.killbill.billing.catalog.api.ProductCategory;
+import org.killbill.billing.catalog.api.StaticCatalog;
+import org.killbill.billing.catalog.api.VersionedCatalog;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.customfield.CustomField;
+
+/**
+ * Immutable grouping strategy, compiled from the (per-tenant) plugin configuration:
+ * <pre>
+ * org.killbill.billing.plugin.invgrp.grouping.rules=BUNDLE,BILLING_PERIOD
+ * org.killbill.billing.plugin.invgrp.grouping.customField=INVOICE_GROUP
+ * org.killbill.billing.plugin.invgrp.grouping.maxItems=500
+ * org.killbill.billing.plugin.invgrp.grouping.maxAmount=100000
+ * </pre>
+ * Items whose subscriptions share the same value for all the configured rules end up on the same invoice, unless the
+ * resulting invoice would exceed the (optional) item count or amount limits.
+ */
+public class InvgrpGroupingStrategy {
+
+    public static final String GROUPING_RULES_PROPERTY = "org.killbill.billing.plugin.invgrp.grouping.rules";
+    public static final String GROUPING_CUSTOM_FIELD_PROPERTY = "org.killbill.billing.plugin.invgrp.grouping.customField";
+    public static final String GROUPING_MAX_ITEMS_PROPERTY = "org.killbill.billing.plugin.invgrp.grouping.maxItems";
+    public static final String GROUPING_MAX_AMOUNT_PROPERTY = "org.killbill.billing.plugin.invgrp.grouping.maxAmount";
+
+    // Default behavior: each subscription ends up on its own invoice
+    public static final InvgrpGroupingStrategy DEFAULT = new InvgrpGroupingStrategy(new InvgrpGroupingRule[]{InvgrpGroupingRule.SUBSCRIPTION}, null, 0, null);
+
+    private final InvgrpGroupingRule[] rules;
+    private final String customFieldName;
+    private final int maxItems;
+    private final BigDecimal maxAmount;
+
+    private InvgrpGroupingStrategy(final InvgrpGroupingRule[] rules, final String customFieldName, final int maxItems, final BigDecimal maxAmount) {
+        this.rules = rules;
+        this.customFieldName = customFieldName;
+        this.maxItems = maxItems;
+        this.maxAmount = maxAmount;
+    }
+
+    public static InvgrpGroupingStrategy compile(final Properties properties) {
+        final int maxItems = InvgrpGlobalConfiguration.getInt(properties, GROUPING_MAX_ITEMS_PROPERTY, 0, 0);
+        final BigDecimal maxAmount = getMaxAmount(properties);
+
+        final List<InvgrpGroupingRule> rules = new ArrayList<InvgrpGroupingRule>();
+        final String rulesValue = properties.getProperty(GROUPING_RULES_PROPERTY);
+        if (rulesValue != null) {
+            for (final String rule : rulesValue.split(",")) {
+                if (!rule.isBlank()) {
+                    rules.add(InvgrpGroupingRule.valueOf(rule.trim().toUpperCase()));
+                }
+            }
+        }
+        if (rules.isEmpty()) {
+            if (maxItems == 0 && maxAmount == null) {
+                return DEFAULT;
+            }
+            rules.add(InvgrpGroupingRule.SUBSCRIPTION);
+        }
+
+        final String customFieldName = properties.getProperty(GROUPING_CUSTOM_FIELD_PROPERTY);
+        if (rules.contains(InvgrpGroupingRule.CUSTOM_FIELD) && (customFieldName == null || customFieldName.isBlank())) {
+            throw new IllegalArgumentException(String.format("Grouping rule %s requires property %s", InvgrpGroupingRule.CUSTOM_FIELD, GROUPING_CUSTOM_FIELD_PROPERTY));
+        }
+        return new InvgrpGroupingStrategy(rules.toArray(new InvgrpGroupingRule[0]), customFieldName, maxItems, maxAmount);
+    }
+
+    private static BigDecimal getMaxAmount(final Properties properties) {
+        final String value = properties.getProperty(GROUPING_MAX_AMOUNT_PROPERTY);
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        final BigDecimal maxAmount;
+        try {
+            maxAmount = new BigDecimal(value.trim());
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Invalid value %s for property %s: not a number", value, GROUPING_MAX_AMOUNT_PROPERTY), e);
+        }
+        if (maxAmount.signum() <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid value %s for property %s: should be positive", value, GROUPING_MAX_AMOUNT_PROPERTY));
+        }
+        return maxAmount;
+    }
+
+    public List<InvgrpGroupingRule> getRules() {
+        return List.of(rules);
+    }
+
+    /**
+     * @return true if the groups only depend on the invoice items (and the catalog), false if they also depend on data
+     * which can change at any time (payment method mappings, custom fields)
+     */
+    public boolean isContentOnly() {
+        for (final InvgrpGroupingRule rule : rules) {
+            if (rule == InvgrpGroupingRule.CUSTOM_FIELD || rule == InvgrpGroupingRule.PAYMENT_METHOD) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the subscription custom field of the CUSTOM_FIELD rule, or null
+     */
+    public String getCustomFieldName() {
+        return customFieldName;
+    }
+
+    /**
+     * @return the maximum number of items per invoice, 0 for no limit
+     */
+    public int getMaxItems() {
+        return maxItems;
+    }
+
+    /**
+     * @return the maximum amount per invoice (in the invoice currency), null for no limit
+     */
+    public BigDecimal getMaxAmount() {
+        return maxAmount;
+    }
+
+    /**
+     * @return the function computing the group key of a (subscription) item, for the duration of one invoice
+     */
+    public Function<InvoiceItem, Object> newSession(final Invoice invoice,
+                                                    final OSGIKillbillAPI killbillAPI,
+                                                    final InvgrpPaymentMethodStore paymentMethodStore,
+                                                    final TenantContext context) {
+        return new Session(invoice, killbillAPI, paymentMethodStore, context);
+    }
+
+    @Override
+    public String toString() {
+        return "InvgrpGroupingStrategy{rules=" + Arrays.toString(rules) + ", customFieldName='" + customFieldName + "', maxItems=" + maxItems + ", maxAmount=" + maxAmount + "}";
+    }
+
+    //
+    // Catalog, custom field and payment method lookups are only done when a rule requires them, and at most once per invoice
+    //
+    class Session implements Function<InvoiceItem, Object> {
+
+        private final Invoice invoice;
+        private final OSGIKillbillAPI killbillAPI;
+        private final InvgrpPaymentMethodStore paymentMethodStore;
+        private final TenantContext context;
+
+        private VersionedCatalog catalog;
+        // (catalog version effective date, product or plan name) -> value
+        private Map<List<Object>, ProductCategory> productCategories;
+        private Map<List<Object>, BillingPeriod> billingPeriods;
+        private Map<UUID, String> customFieldValues;
+        private Map<UUID, UUID> paymentMethodIds;
+
+        private Session(final Invoice invoice, final OSGIKillbillAPI killbillAPI, final InvgrpPaymentMethodStore paymentMethodStore, final TenantContext context) {
+            this.invoice = invoice;
+            this.killbillAPI = killbillAPI;
+            this.paymentMethodStore = paymentMethodStore;
+            this.context = context;
+        }
+
+        @Override
+        public Object apply(final InvoiceItem item) {
+            if (rules.length == 1) {
+                return rules[0].groupKey(item, this);
+            }
+            final Object[] key = new Object[rules.length];
+            for (int i = 0; i < rules.length; i++) {
+                key[i] = rules[i].groupKey(item, this);
+            }
+            return Arrays.asList(key);
+        }
+
+        ProductCategory getProductCategory(final InvoiceItem item) {
+            if (productCategories == null) {
+                productCategories = new HashMap<List<Object>, ProductCategory>();
+            }
+            final String productName = item.getProductName();
+            try {
+                final StaticCatalog version = getCatalogVersion(item);
+                // Keyed by version too: a product can move to another category in a later version
+                final List<Object> key = Arrays.asList(version.getEffectiveDate(), productName);
+                ProductCategory category = productCategories.get(key);
+                if (category == null) {
+                    category = version.findProduct(productName).getCategory();
+                    productCategories.put(key, category);
+                }
+                return category;
+            } catch (final CatalogApiException e) {
+                throw new IllegalStateException("Failed to find product " + productName, e);
+            }
+        }
+
+        BillingPeriod getBillingPeriod(final InvoiceItem item) {
+            if (billingPeriods == null) {
+                billingPeriods = new HashMap<List<Object>, BillingPeriod>();
+            }
+            final String planName = item.getPlanName();
+            try {
+                final StaticCatalog version = getCatalogVersion(item);
+                final List<Object> key = Arrays.asList(version.getEffectiveDate(), planName);
+                BillingPeriod billingPeriod = billingPeriods.get(key);
+                if (billingPeriod == null) {
+                    billingPeriod = version.findPlan(planName).getRecurringBillingPeriod();
+                    billingPeriods.put(key, billingPeriod);
+                }
+                return billingPeriod;
+            } catch (final CatalogApiException e) {
+                throw new IllegalStateException("Failed to find plan " + planName, e);
+            }
+        }
+
+        String getCustomFieldValue(final InvoiceItem item) {
+            if (customFieldValues == null) {
+                // One call for all the subscriptions of the account
+                customFieldValues = new HashMap<UUID, String>();
+                final List<CustomField> fields = InvgrpMetrics.killbill(() -> killbillAPI.getCustomFieldUserApi().getCustomFieldsForAccountType(invoice.getAccountId(), ObjectType.SUBSCRIPTION, context));
+                for (final CustomField field : fields) {
+                    if (field.getFieldName().equals(customFieldName)) {
+                        customFieldValues.put(field.getObjectId(), field.getFieldValue());
+                    }
+                }
+            }
+            return customFieldValues.get(item.getSubscriptionId());
+        }
+
+        UUID getPaymentMethodId(final InvoiceItem item) {
+            if (paymentMethodIds == null) {
+                // One (cached) lookup for all the subscriptions of the invoice
+                try {
+                    paymentMethodIds = paymentMethodStore.getPaymentMethodIds(invoice.getAccountId(), InvgrpPaymentMethodStore.getSubscriptionIds(invoice), context);
+                } catch (final SQLException e) {
+                    throw new IllegalStateException("Failed to load payment methods for account " + invoice.getAccountId(), e);
+                }
+            }
+            return paymentMethodIds.get(item.getSubscriptionId());
+        }
+
+        private StaticCatalog getCatalogVersion(final InvoiceItem item) throws CatalogApiException {
+            if (catalog == null) {
+                catalog = InvgrpMetrics.killbill(() -> killbillAPI.getCatalogUserApi().getCatalog(null, context));
+            }
+            return item.getCatalogEffectiveDate() != null ? catalog.getVersion(item.getCatalogEffectiveDate().toDate()) : catalog.getCurrentVersion();
+        }
+    }
+}
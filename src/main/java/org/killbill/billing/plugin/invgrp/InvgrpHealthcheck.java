@@ -16,17 +16,213 @@
 
 package org.killbill.billing.plugin.invgrp;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
 import org.killbill.billing.osgi.api.Healthcheck;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
 import org.killbill.billing.tenant.api.Tenant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Health of the plugin (plugin-wide, whatever the tenant), sampled in the background every sampleIntervalSec seconds:
+ * <ul>
+ * <li>latency of a lookup in the mapping table</li>
+ * <li>usage of the listener and mapping queues, and number of queued mappings overdue (not picked up by the workers)</li>
+ * <li>failure rate of the Kill Bill API calls made by the plugin since the previous sample</li>
+ * <li>hit rate of the mapping cache since the previous sample, once there were enough lookups (only checked if
+ * minCacheHitPercent is set: the invoice runs hit a cold cache, and are no reason to take the node out)</li>
+ * </ul>
+ * Probes are served from the last sample, so they cost nothing. A sample older than 3 intervals (stuck sampler) is unhealthy.
+ */
 public class InvgrpHealthcheck implements Healthcheck {
 
+    public static final String SAMPLE_INTERVAL_SEC_PROPERTY = "org.killbill.billing.plugin.invgrp.healthcheck.sampleIntervalSec";
+    public static final String MAX_STORE_LATENCY_MILLIS_PROPERTY = "org.killbill.billing.plugin.invgrp.healthcheck.maxStoreLatencyMillis";
+    public static final String MAX_QUEUE_USAGE_PERCENT_PROPERTY = "org.killbill.billing.plugin.invgrp.healthcheck.maxQueueUsagePercent";
+    public static final String MAX_OVERDUE_MAPPINGS_PROPERTY = "org.killbill.billing.plugin.invgrp.healthcheck.maxOverdueMappings";
+    public static final String MAX_KILLBILL_FAILURE_PERCENT_PROPERTY = "org.killbill.billing.plugin.invgrp.healthcheck.maxKillbillFailurePercent";
+    public static final String MIN_CACHE_HIT_PERCENT_PROPERTY = "org.killbill.billing.plugin.invgrp.healthcheck.minCacheHitPercent";
+
+    private static final Logger logger = LoggerFactory.getLogger(InvgrpHealthcheck.class);
+
+    // Not mapped, the lookup only measures the round trip
+    private static final UUID PROBE_ID = new UUID(0, 0);
+    // Queued mappings are leased for a minute when handed to a worker
+    private static final long OVERDUE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    // Rates over fewer calls (or lookups) aren't significant
+    private static final long MIN_KILLBILL_CALLS = 10;
+    private static final long MIN_CACHE_LOOKUPS = 100;
+
+    private final InvgrpDao dao;
+    private final OSGIKillbillClock clock;
+    private final InvgrpCache<?, ?> paymentMethodCache;
+    private final InvgrpPartitionedExecutor listenerExecutor;
+    private final InvgrpPaymentMethodQueue pendingPaymentMethods;
+    private final int sampleIntervalSec;
+    private final int maxStoreLatencyMillis;
+    private final int maxQueueUsagePercent;
+    private final int maxOverdueMappings;
+    private final int maxKillbillFailurePercent;
+    private final int minCacheHitPercent;
+
+    private volatile HealthStatus healthStatus = HealthStatus.unHealthy("Invgrp not sampled yet");
+    private volatile long sampleNanos;
+    // Counters at the previous sample (only accessed by the sampler)
+    private long killbillCalls = InvgrpMetrics.getKillbillCallCount();
+    private long killbillFailures = InvgrpMetrics.getKillbillFailureCount();
+    private long cacheHits;
+    private long cacheMisses;
+
+    private ScheduledExecutorService sampler;
+
+    public InvgrpHealthcheck(final InvgrpDao dao,
+                             final OSGIKillbillClock clock,
+                             final InvgrpCache<?, ?> paymentMethodCache,
+                             final InvgrpPartitionedExecutor listenerExecutor,
+                             final InvgrpPaymentMethodQueue pendingPaymentMethods,
+                             final InvgrpGlobalConfiguration configuration) {
+        this.dao = dao;
+        this.clock = clock;
+        this.paymentMethodCache = paymentMethodCache;
+        this.listenerExecutor = listenerExecutor;
+        this.pendingPaymentMethods = pendingPaymentMethods;
+        this.sampleIntervalSec = configuration.getHealthcheckSampleIntervalSec();
+        this.maxStoreLatencyMillis = configuration.getHealthcheckMaxStoreLatencyMillis();
+        this.maxQueueUsagePercent = configuration.getHealthcheckMaxQueueUsagePercent();
+        this.maxOverdueMappings = configuration.getHealthcheckMaxOverdueMappings();
+        this.maxKillbillFailurePercent = configuration.getHealthcheckMaxKillbillFailurePercent();
+        this.minCacheHitPercent = configuration.getHealthcheckMinCacheHitPercent();
+        this.cacheHits = paymentMethodCache.getHitCount();
+        this.cacheMisses = paymentMethodCache.getMissCount();
+    }
+
+    public synchronized void start() {
+        if (sampler != null) {
+            return;
+        }
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "invgrp-healthcheck");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleWithFixedDelay(this::sample, 0, sampleIntervalSec, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+            sampler = null;
+        }
+    }
+
     @Override
     public HealthStatus getHealthStatus(@Nullable final Tenant tenant, @Nullable final Map properties) {
-        return HealthStatus.healthy("Invgrp OK");
+        if (sampleNanos != 0 && System.nanoTime() - sampleNanos > TimeUnit.SECONDS.toNanos(3L * sampleIntervalSec)) {
+            return HealthStatus.unHealthy("Invgrp health sampler stalled");
+        }
+        return healthStatus;
+    }
+
+    // Visible for testing
+    synchronized void sample() {
+        final List<String> issues = new ArrayList<String>();
+        final Map<String, Object> details = new LinkedHashMap<String, Object>();
+        try {
+            sampleStore(issues, details);
+            sampleQueues(issues, details);
+            sampleKillbill(issues, details);
+            sampleCache(issues, details);
+        } catch (final RuntimeException e) {
+            logger.warn("Failed to sample the plugin health", e);
+            issues.add("sampling failed: " + e.getMessage());
+        }
+        details.put("sampledAt", clock.getClock().getUTCNow().toString());
+        details.put("message", issues.isEmpty() ? "Invgrp OK" : String.join(", ", issues));
+        if (!issues.isEmpty() && healthStatus.isHealthy()) {
+            logger.warn("Plugin unhealthy: {}", issues);
+        }
+        healthStatus = new HealthStatus(issues.isEmpty(), details);
+        sampleNanos = System.nanoTime();
+    }
+
+    private void sampleStore(final List<String> issues, final Map<String, Object> details) {
+        final long startNanos = System.nanoTime();
+        try {
+            dao.getPaymentMethodMapping(PROBE_ID, PROBE_ID);
+        } catch (final Exception e) {
+            issues.add("mapping store unavailable: " + e.getMessage());
+            return;
+        }
+        final long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        details.put("storeLatencyMillis", latencyMillis);
+        if (latencyMillis > maxStoreLatencyMillis) {
+            issues.add("mapping store latency " + latencyMillis + " ms");
+        }
+    }
+
+    private void sampleQueues(final List<String> issues, final Map<String, Object> details) {
+        checkQueueUsage("listener", listenerExecutor.getQueueDepth(), listenerExecutor.getCapacity(), issues, details);
+        checkQueueUsage("mappingQueue", pendingPaymentMethods.getQueueDepth(), pendingPaymentMethods.getCapacity(), issues, details);
+
+        final int overdueMappings;
+        try {
+            overdueMappings = dao.countOverduePendingPaymentMethods(clock.getClock().getUTCNow().minus(OVERDUE_MILLIS));
+        } catch (final Exception e) {
+            issues.add("mapping queue unavailable: " + e.getMessage());
+            return;
+        }
+        details.put("overdueMappings", overdueMappings);
+        if (overdueMappings > maxOverdueMappings) {
+            issues.add(overdueMappings + " overdue mappings");
+        }
+    }
+
+    private void checkQueueUsage(final String name, final int depth, final int capacity, final List<String> issues, final Map<String, Object> details) {
+        details.put(name + "Depth", depth);
+        // Without capacity, events (or mappings) are processed by the caller
+        if (capacity > 0 && depth * 100L > (long) capacity * maxQueueUsagePercent) {
+            issues.add(name + " backlog " + depth + "/" + capacity);
+        }
+    }
+
+    private void sampleKillbill(final List<String> issues, final Map<String, Object> details) {
+        final long calls = InvgrpMetrics.getKillbillCallCount();
+        final long failures = InvgrpMetrics.getKillbillFailureCount();
+        final long windowCalls = calls - killbillCalls;
+        final long windowFailures = failures - killbillFailures;
+        killbillCalls = calls;
+        killbillFailures = failures;
+        details.put("killbillCalls", windowCalls);
+        details.put("killbillFailures", windowFailures);
+        if (windowCalls >= MIN_KILLBILL_CALLS && windowFailures * 100 > windowCalls * maxKillbillFailurePercent) {
+            issues.add(windowFailures + "/" + windowCalls + " Kill Bill API calls failed");
+        }
+    }
+
+    private void sampleCache(final List<String> issues, final Map<String, Object> details) {
+        final long hits = paymentMethodCache.getHitCount();
+        final long misses = paymentMethodCache.getMissCount();
+        final long windowHits = hits - cacheHits;
+        final long windowLookups = windowHits + misses - cacheMisses;
+        cacheHits = hits;
+        cacheMisses = misses;
+        if (windowLookups == 0) {
+            return;
+        }
+        final long hitPercent = windowHits * 100 / windowLookups;
+        details.put("cacheHitPercent", hitPercent);
+        if (windowLookups >= MIN_CACHE_LOOKUPS && hitPercent < minCacheHitPercent) {
+            issues.add("mapping cache hit rate " + hitPercent + "%");
+        }
     }
 }
@@ -16,15 +16,16 @@
 
 package org.killbill.billing.plugin.invgrp;
 
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
 
+import javax.annotation.Nullable;
+
 import org.killbill.billing.invoice.api.Invoice;
-import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.invoice.plugin.api.AdditionalItemsResult;
 import org.killbill.billing.invoice.plugin.api.InvoiceContext;
 import org.killbill.billing.invoice.plugin.api.InvoiceGroup;
@@ -33,42 +34,63 @@ import org.killbill.billing.invoice.plugin.api.InvoicePluginApi;
 import org.killbill.billing.invoice.plugin.api.OnFailureInvoiceResult;
 import org.killbill.billing.invoice.plugin.api.OnSuccessInvoiceResult;
 import org.killbill.billing.invoice.plugin.api.PriorInvoiceResult;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.payment.api.PluginProperty;
 import org.killbill.billing.plugin.api.invoice.PluginAdditionalItemsResult;
 import org.killbill.billing.plugin.api.invoice.PluginOnFailureInvoiceResult;
 import org.killbill.billing.plugin.api.invoice.PluginOnSuccessInvoiceResult;
 import org.killbill.billing.plugin.api.invoice.PluginPriorInvoiceResult;
 import org.killbill.billing.util.callcontext.CallContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class InvgrpInvoicePluginApi implements InvoicePluginApi {
 
-    public InvgrpInvoicePluginApi() {
+    private static final Logger logger = LoggerFactory.getLogger(InvgrpInvoicePluginApi.class);
+
+    private final InvgrpConfigurationHandler configurationHandler;
+    private final OSGIKillbillAPI killbillAPI;
+    private final InvgrpPaymentMethodStore paymentMethodStore;
+    private final InvgrpMetrics metrics;
+    private final InvgrpGroupingEngine groupingEngine;
+    private final InvgrpGroupingMemo groupingMemo;
+
+    public InvgrpInvoicePluginApi(final InvgrpConfigurationHandler configurationHandler,
+                                  final OSGIKillbillAPI killbillAPI,
+                                  final InvgrpPaymentMethodStore paymentMethodStore,
+                                  @Nullable final InvgrpGroupingMemo groupingMemo,
+                                  final InvgrpMetrics metrics) {
+        this.configurationHandler = configurationHandler;
+        this.killbillAPI = killbillAPI;
+        this.paymentMethodStore = paymentMethodStore;
+        this.groupingMemo = groupingMemo;
+        this.metrics = metrics;
+        this.groupingEngine = new InvgrpGroupingEngine();
     }
 
     @Override
     public PriorInvoiceResult priorCall(final InvoiceContext context, final Iterable<PluginProperty> properties) {
-        return new PluginPriorInvoiceResult();
+        return metrics.record("invoice", "priorCall", context.getTenantId(), null, PluginPriorInvoiceResult::new);
     }
 
     @Override
     public AdditionalItemsResult getAdditionalInvoiceItems(final Invoice invoice, final boolean dryRun, final Iterable<PluginProperty> properties, final InvoiceContext context) {
-        return new PluginAdditionalItemsResult();
+        return metrics.record("invoice", "getAdditionalInvoiceItems", context.getTenantId(), null, PluginAdditionalItemsResult::new);
     }
 
     private static class InvgrpInvoiceGroupingResult implements InvoiceGroupingResult {
 
-        private List<InvoiceGroup> invoiceGroups;
-
-        public InvgrpInvoiceGroupingResult(final Map<UUID, List<UUID>> groups) {
-            this.invoiceGroups = initGroups(groups);
-        }
+        private final List<InvoiceGroup> invoiceGroups;
 
-        private List<InvoiceGroup> initGroups(final Map<UUID, List<UUID>> groups) {
-            final List<InvoiceGroup> tmp = new ArrayList<>();
-            groups.values()
-                  .stream()
-                  .forEach(v -> tmp.add(new PluginInvoiceGroup(v)));
-            return tmp;
+        public InvgrpInvoiceGroupingResult(final List<List<UUID>> groups) {
+            // The lists of item ids are never copied: the views built by the grouping engine are used as is, other lists
+            // (e.g. memoized ones) are wrapped
+            final InvoiceGroup[] invoiceGroups = new InvoiceGroup[groups.size()];
+            for (int g = 0; g < invoiceGroups.length; g++) {
+                final List<UUID> group = groups.get(g);
+                invoiceGroups[g] = group instanceof InvoiceGroup ? (InvoiceGroup) group : new PluginInvoiceGroup(group);
+            }
+            this.invoiceGroups = Arrays.asList(invoiceGroups);
         }
 
         @Override
@@ -98,41 +120,54 @@ public class InvgrpInvoicePluginApi implements InvoicePluginApi {
 
     @Override
     public InvoiceGroupingResult getInvoiceGrouping(final Invoice invoice, final boolean dryRun, final Iterable<PluginProperty> properties, final InvoiceContext context) {
+        return metrics.record("invoice", "getInvoiceGrouping", context.getTenantId(), null, () -> doGetInvoiceGrouping(invoice, context));
+    }
 
-        // Split the input invoice items so that each subscription ends up on its own invoice
-        final Map<UUID, List<UUID>> groups = new HashMap<UUID, List<UUID>>();
-        for (InvoiceItem ii : invoice.getInvoiceItems()) {
-            final UUID groupId = findGroup(invoice, ii);
-            if (groups.get(groupId) == null) {
-                groups.put(groupId, new ArrayList<>());
-            }
-            groups.get(groupId).add(ii.getId());
+    private InvoiceGroupingResult doGetInvoiceGrouping(final Invoice invoice, final InvoiceContext context) {
+        final InvgrpTenantConfiguration configuration = configurationHandler.getConfigurable(context.getTenantId());
+        if (!configuration.isGroupingEnabled()) {
+            // Single invoice, as without the plugin
+            final List<UUID> invoiceItemIds = new ArrayList<UUID>(invoice.getInvoiceItems().size());
+            invoice.getInvoiceItems().forEach(item -> invoiceItemIds.add(item.getId()));
+            return new InvgrpInvoiceGroupingResult(Collections.singletonList(invoiceItemIds));
         }
+
+        // Split the input invoice items according to the tenant grouping rules (by default, each subscription ends up on its own invoice)
+        final InvgrpGroupingStrategy strategy = configuration.getGroupingStrategy();
+        logger.debug("Grouping invoice {} using {}", invoice.getId(), strategy);
+        // The real run usually follows a dry run of the same invoice
+        final List<List<UUID>> groups = groupingMemo != null ?
+                                        groupingMemo.group(invoice, strategy, context.getTenantId(), () -> group(invoice, strategy, context)) :
+                                        group(invoice, strategy, context);
+        metrics.recordGrouping(context.getTenantId(), invoice.getInvoiceItems().size(), groups.size());
         return new InvgrpInvoiceGroupingResult(groups);
     }
 
-    private UUID findGroup(Invoice inv, InvoiceItem item) {
-        if (item.getSubscriptionId() != null) {
-            return item.getSubscriptionId();
-        } else if (item.getLinkedItemId() != null) {
-            final InvoiceItem target = inv.getInvoiceItems()
-                                          .stream()
-                                          .filter(ii -> ii.getId().equals(item.getLinkedItemId()))
-                                          .findAny()
-                                          .orElseThrow();
-            return target.getSubscriptionId();
-        } else {
-            throw new IllegalStateException("Unexpected item not related to subscription ii=" + item);
-        }
+    private List<List<UUID>> group(final Invoice invoice, final InvgrpGroupingStrategy strategy, final InvoiceContext context) {
+        return groupingEngine.group(invoice, strategy.newSession(invoice, killbillAPI, paymentMethodStore, context), strategy.getMaxItems(), strategy.getMaxAmount());
     }
 
     @Override
     public OnSuccessInvoiceResult onSuccessCall(final InvoiceContext context, final Iterable<PluginProperty> properties) {
+        return metrics.record("invoice", "onSuccessCall", context.getTenantId(), null, () -> doOnSuccessCall(context));
+    }
+
+    private OnSuccessInvoiceResult doOnSuccessCall(final InvoiceContext context) {
+        // Index the payment method of the invoice, for the payment control plugin
+        final Invoice invoice = context.getInvoice();
+        if (!context.isDryRun() && invoice != null) {
+            try {
+                paymentMethodStore.addInvoicePaymentMethod(invoice, context);
+            } catch (final SQLException e) {
+                // Not fatal, the payment control plugin will fall back to the invoice subscription
+                logger.warn("Failed to index payment method for invoice {}", invoice.getId(), e);
+            }
+        }
         return new PluginOnSuccessInvoiceResult();
     }
 
     @Override
     public OnFailureInvoiceResult onFailureCall(final InvoiceContext context, final Iterable<PluginProperty> properties) {
-        return new PluginOnFailureInvoiceResult();
+        return metrics.record("invoice", "onFailureCall", context.getTenantId(), null, PluginOnFailureInvoiceResult::new);
     }
 }
@@ -16,9 +16,16 @@
 
 package org.killbill.billing.plugin.invgrp;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+
 import org.killbill.billing.account.api.Account;
 import org.killbill.billing.account.api.AccountApiException;
 import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillEventDispatcher;
 import org.killbill.billing.plugin.api.PluginTenantContext;
@@ -30,19 +37,113 @@ public class InvgrpListener implements OSGIKillbillEventDispatcher.OSGIKillbillE
 
     private static final Logger logger = LoggerFactory.getLogger(InvgrpListener.class);
 
+    private static final List<ExtBusEventType> COALESCED_EVENT_TYPES = List.of(ExtBusEventType.ACCOUNT_CREATION,
+                                                                               ExtBusEventType.ACCOUNT_CHANGE,
+                                                                               ExtBusEventType.CUSTOM_FIELD_CREATION,
+                                                                               ExtBusEventType.CUSTOM_FIELD_DELETION);
+
     private final OSGIKillbillAPI osgiKillbillAPI;
+    private final InvgrpCache<InvgrpTenantKey, InvgrpPaymentMethodMapping> paymentMethodCache;
+    private final boolean customFieldFallback;
+    private final InvgrpPaymentMethodValidator paymentMethodValidator;
+    private final InvgrpPartitionedExecutor executor;
+    private final InvgrpCoalescer<EventKey, ExtBusEvent> coalescer;
+    private final InvgrpReconciler reconciler;
+    private final InvgrpMetrics metrics;
+    private final InvgrpCoalescer.Handler<ExtBusEvent> coalescedEventHandler = new InvgrpCoalescer.Handler<ExtBusEvent>() {
 
-    public InvgrpListener(final OSGIKillbillAPI killbillAPI) {
+        @Override
+        public boolean offer(final ExtBusEvent killbillEvent) {
+            // On the coalescer thread: retried later when the partition of the account is full
+            return executor.tryExecute(killbillEvent.getAccountId(), task(killbillEvent));
+        }
+
+        @Override
+        public void handle(final ExtBusEvent killbillEvent) {
+            dispatch(killbillEvent);
+        }
+    };
+
+    /**
+     * @param paymentMethodCache grouped by account (see {@link InvgrpPaymentMethodMapping#getAccountKey})
+     * @param customFieldFallback whether the PM_ID custom fields are used as mappings (the custom field events are ignored otherwise)
+     * @param executor  where events are processed, off the bus dispatcher thread (partitioned by account, to keep the
+     *                  events of an account in order)
+     * @param coalescer collapses the bursts of account and custom field events (e.g. bulk migrations), whose handling
+     *                  only depends on the latest state. Their pending events are handed over before the other events
+     *                  of the account, so that they aren't overtaken
+     * @param reconciler told about the tenants seen, including the ones without mappings
+     */
+    public InvgrpListener(final OSGIKillbillAPI killbillAPI,
+                          final InvgrpCache<InvgrpTenantKey, InvgrpPaymentMethodMapping> paymentMethodCache,
+                          final boolean customFieldFallback,
+                          final InvgrpPaymentMethodValidator paymentMethodValidator,
+                          final InvgrpPartitionedExecutor executor,
+                          final InvgrpCoalescer<EventKey, ExtBusEvent> coalescer,
+                          final InvgrpReconciler reconciler,
+                          final InvgrpMetrics metrics) {
         this.osgiKillbillAPI = killbillAPI;
+        this.paymentMethodCache = paymentMethodCache;
+        this.customFieldFallback = customFieldFallback;
+        this.paymentMethodValidator = paymentMethodValidator;
+        this.executor = executor;
+        this.coalescer = coalescer;
+        this.reconciler = reconciler;
+        this.metrics = metrics;
     }
 
     @Override
     public void handleKillbillEvent(final ExtBusEvent killbillEvent) {
+        try {
+            if (COALESCED_EVENT_TYPES.contains(killbillEvent.getEventType())) {
+                // Keyed by account (the object id of custom field events is the id of the custom field). The coalesced
+                // events of an account only invalidate state, so their relative order doesn't matter
+                coalescer.submit(new EventKey(killbillEvent.getTenantId(), killbillEvent.getAccountId(), killbillEvent.getEventType()), killbillEvent, coalescedEventHandler);
+            } else {
+                // Events of the account still waiting in the coalescer go first
+                coalescer.flush(eventKeys(killbillEvent));
+                dispatch(killbillEvent);
+            }
+        } catch (final RejectedExecutionException e) {
+            logger.warn("Dropping event {} for object id {} (plugin stopping)", killbillEvent.getEventType(), killbillEvent.getObjectId(), e);
+        }
+    }
+
+    private void dispatch(final ExtBusEvent killbillEvent) {
+        // Blocks when the partition of the account is full
+        executor.execute(killbillEvent.getAccountId(), task(killbillEvent));
+    }
+
+    private Runnable task(final ExtBusEvent killbillEvent) {
+        return () -> {
+            try {
+                metrics.record("listener", "handleKillbillEvent", killbillEvent.getTenantId(), killbillEvent.getEventType(), () -> {
+                    doHandleKillbillEvent(killbillEvent);
+                    return null;
+                });
+            } catch (final RuntimeException e) {
+                logger.warn("Failed to handle event {} for object id {}", killbillEvent.getEventType(), killbillEvent.getObjectId(), e);
+            }
+        };
+    }
+
+    private static List<EventKey> eventKeys(final ExtBusEvent killbillEvent) {
+        final List<EventKey> eventKeys = new ArrayList<EventKey>(COALESCED_EVENT_TYPES.size());
+        for (final ExtBusEventType eventType : COALESCED_EVENT_TYPES) {
+            eventKeys.add(new EventKey(killbillEvent.getTenantId(), killbillEvent.getAccountId(), eventType));
+        }
+        return eventKeys;
+    }
+
+    private void doHandleKillbillEvent(final ExtBusEvent killbillEvent) {
         logger.info("Received event {} for object id {} of type {}",
                     killbillEvent.getEventType(),
                     killbillEvent.getObjectId(),
                     killbillEvent.getObjectType());
 
+        // E.g. a tenant whose subscriptions are all created without PM_ID
+        reconciler.addTenant(killbillEvent.getTenantId());
+
         final TenantContext context = new PluginTenantContext(killbillEvent.getAccountId(), killbillEvent.getTenantId());
         switch (killbillEvent.getEventType()) {
             //
@@ -50,18 +151,71 @@ public class InvgrpListener implements OSGIKillbillEventDispatcher.OSGIKillbillE
             //
             case ACCOUNT_CREATION:
             case ACCOUNT_CHANGE:
+                // There are no payment method events, but changing the default payment method is an account change
+                paymentMethodValidator.invalidateAccount(killbillEvent.getAccountId());
                 try {
-                    final Account account = osgiKillbillAPI.getAccountUserApi().getAccountById(killbillEvent.getAccountId(), context);
+                    final Account account = InvgrpMetrics.killbill(() -> osgiKillbillAPI.getAccountUserApi().getAccountById(killbillEvent.getAccountId(), context));
                     logger.info("Account information: " + account);
                 } catch (final AccountApiException e) {
                     logger.warn("Unable to find account", e);
                 }
                 break;
 
+            //
+            // Keep the subscription -> payment method cache in sync
+            //
+            case SUBSCRIPTION_CREATION:
+            case SUBSCRIPTION_CHANGE:
+            case SUBSCRIPTION_CANCEL:
+            case SUBSCRIPTION_UNCANCEL:
+            case SUBSCRIPTION_EXPIRED:
+                paymentMethodCache.invalidate(new InvgrpTenantKey(killbillEvent.getTenantId(), killbillEvent.getObjectId()));
+                break;
+
+            // The object id is the id of the custom field, so we don't know which subscription it was attached to
+            case CUSTOM_FIELD_CREATION:
+            case CUSTOM_FIELD_DELETION:
+                if (customFieldFallback) {
+                    paymentMethodCache.invalidateGroup(new InvgrpTenantKey(killbillEvent.getTenantId(), killbillEvent.getAccountId()));
+                }
+                break;
+
             // Nothing
             default:
                 break;
 
         }
     }
+
+    static final class EventKey {
+
+        private final UUID tenantId;
+        private final UUID objectId;
+        private final ExtBusEventType eventType;
+
+        EventKey(final UUID tenantId, final UUID objectId, final ExtBusEventType eventType) {
+            this.tenantId = tenantId;
+            this.objectId = objectId;
+            this.eventType = eventType;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final EventKey that = (EventKey) o;
+            return Objects.equals(tenantId, that.tenantId) &&
+                   Objects.equals(objectId, that.objectId) &&
+                   eventType == that.eventType;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tenantId, objectId, eventType);
+        }
+    }
 }
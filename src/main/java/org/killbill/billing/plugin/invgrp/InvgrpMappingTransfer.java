@@ -0,0 +1,494 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.entitlement.api.Subscription;
+import org.killbill.billing.entitlement.api.SubscriptionApiException;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
+import org.killbill.billing.payment.api.PaymentApiException;
+import org.killbill.billing.plugin.api.PluginTenantContext;
+import org.killbill.billing.util.callcontext.TenantContext;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Bulk import and export of subscription -> payment method mappings, as NDJSON (one JSON object per line):
+ * <pre>
+ * {"accountId":"...","subscriptionId":"...","paymentMethodId":"...","fallbackPaymentMethodIds":["...","..."]}
+ * </pre>
+ * The fallback payment methods are optional (see {@link InvgrpPaymentMethodRouter}).
+ * <p>
+ * The import is parsed line by line as the body is pushed, and written in batches: the subscriptions of each account
+ * are fetched once per batch, payment methods are validated once per batch (subscriptions and payment methods must
+ * belong to the account of the row), and mappings are inserted with one query per account and payment method (plus two
+ * per account, payment method and list of fallbacks). The import only adds mappings: existing mappings and fallbacks are never
+ * overwritten, so a wrong mapping can't be fixed by importing it again, and fallbacks are only added to the subscriptions
+ * mapped to the payment method of their row. The export reads the mappings page by page, in record id order, with the fallbacks of each page.
+ * Memory use is bounded by the batch and page sizes, whatever the number of mappings.
+ */
+public class InvgrpMappingTransfer {
+
+    static final int IMPORT_BATCH_SIZE = 500;
+    static final int EXPORT_PAGE_SIZE = 1000;
+    static final int MAX_LINE_LENGTH = 4096;
+    static final int MAX_ERRORS = 100;
+    static final int MAX_FALLBACK_PAYMENT_METHODS = 10;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final InvgrpDao dao;
+    private final OSGIKillbillAPI killbillAPI;
+    private final OSGIKillbillClock clock;
+    private final InvgrpCache<InvgrpTenantKey, InvgrpPaymentMethodMapping> paymentMethodCache;
+    private final InvgrpPaymentMethodValidator paymentMethodValidator;
+
+    public InvgrpMappingTransfer(final InvgrpDao dao,
+                                 final OSGIKillbillAPI killbillAPI,
+                                 final OSGIKillbillClock clock,
+                                 final InvgrpCache<InvgrpTenantKey, InvgrpPaymentMethodMapping> paymentMethodCache,
+                                 final InvgrpPaymentMethodValidator paymentMethodValidator) {
+        this.dao = dao;
+        this.killbillAPI = killbillAPI;
+        this.clock = clock;
+        this.paymentMethodCache = paymentMethodCache;
+        this.paymentMethodValidator = paymentMethodValidator;
+    }
+
+    /**
+     * Source of an NDJSON document, pushing its bytes (e.g. a request body spooled by the HTTP layer).
+     */
+    public interface NdjsonSource {
+
+        void writeTo(OutputStream out) throws Exception;
+    }
+
+    public ImportResult importMappings(final NdjsonSource source, final UUID tenantId) throws Exception {
+        final Import anImport = new Import(tenantId);
+        try (final LineOutputStream lines = new LineOutputStream(anImport)) {
+            source.writeTo(lines);
+        }
+        return anImport.result;
+    }
+
+    /**
+     * @return the NDJSON export of the mappings of the tenant, read from the database as the stream is consumed
+     */
+    public InputStream exportMappings(final UUID tenantId) {
+        return new ExportInputStream(tenantId);
+    }
+
+    public static class ImportResult {
+
+        private long nbRows;
+        private long nbCreated;
+        private long nbExisting;
+        private long nbFallbacksCreated;
+        private long nbRejected;
+        private final List<String> errors = new ArrayList<String>();
+
+        public long getNbRows() {
+            return nbRows;
+        }
+
+        public long getNbCreated() {
+            return nbCreated;
+        }
+
+        public long getNbExisting() {
+            return nbExisting;
+        }
+
+        /**
+         * @return the number of subscriptions whose fallback payment methods were recorded
+         */
+        public long getNbFallbacksCreated() {
+            return nbFallbacksCreated;
+        }
+
+        public long getNbRejected() {
+            return nbRejected;
+        }
+
+        /**
+         * @return the first rejected rows, with the reason
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        private void reject(final long lineNumber, final String reason) {
+            nbRejected++;
+            if (errors.size() < MAX_ERRORS) {
+                errors.add("line " + lineNumber + ": " + reason);
+            }
+        }
+    }
+
+    private static final class Row {
+
+        private final long lineNumber;
+        private final UUID accountId;
+        private final UUID subscriptionId;
+        private final UUID paymentMethodId;
+        private final List<UUID> fallbackPaymentMethodIds;
+
+        private Row(final long lineNumber, final UUID accountId, final UUID subscriptionId, final UUID paymentMethodId, final List<UUID> fallbackPaymentMethodIds) {
+            this.lineNumber = lineNumber;
+            this.accountId = accountId;
+            this.subscriptionId = subscriptionId;
+            this.paymentMethodId = paymentMethodId;
+            this.fallbackPaymentMethodIds = fallbackPaymentMethodIds;
+        }
+    }
+
+    private final class Import {
+
+        private final UUID tenantId;
+        private final TenantContext context;
+        private final ImportResult result = new ImportResult();
+        private final List<Row> batch = new ArrayList<Row>(IMPORT_BATCH_SIZE);
+        private long lineNumber;
+
+        private Import(final UUID tenantId) {
+            this.tenantId = tenantId;
+            this.context = new PluginTenantContext(null, tenantId);
+        }
+
+        private void line(final String line) throws SQLException {
+            lineNumber++;
+            if (line.isBlank()) {
+                return;
+            }
+            result.nbRows++;
+            try {
+                final JsonNode node = objectMapper.readTree(line);
+                batch.add(new Row(lineNumber, uuid(node, "accountId"), uuid(node, "subscriptionId"), uuid(node, "paymentMethodId"), uuids(node, "fallbackPaymentMethodIds")));
+            } catch (final IOException | IllegalArgumentException e) {
+                result.reject(lineNumber, e.getMessage());
+            }
+            if (batch.size() == IMPORT_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        private void lineTooLong() {
+            lineNumber++;
+            result.nbRows++;
+            result.reject(lineNumber, "longer than " + MAX_LINE_LENGTH + " bytes");
+        }
+
+        private void flush() throws SQLException {
+            // One lookup per account, one validation per payment method, then one insert per account and payment method
+            final Map<UUID, Set<UUID>> accountSubscriptions = new HashMap<UUID, Set<UUID>>();
+            final Map<UUID, UUID> paymentMethodAccounts = new HashMap<UUID, UUID>();
+            final Map<List<UUID>, Set<UUID>> mappings = new LinkedHashMap<List<UUID>, Set<UUID>>();
+            // Account, payment method and fallbacks -> subscriptions
+            final Map<List<Object>, Set<UUID>> fallbacks = new LinkedHashMap<List<Object>, Set<UUID>>();
+            for (final Row row : batch) {
+                final String subscriptionError = validateSubscription(row, accountSubscriptions);
+                if (subscriptionError != null) {
+                    result.reject(row.lineNumber, subscriptionError);
+                    continue;
+                }
+                final String error = validate(row, row.paymentMethodId, paymentMethodAccounts);
+                if (error != null) {
+                    result.reject(row.lineNumber, error);
+                    continue;
+                }
+                final String fallbackError = row.fallbackPaymentMethodIds.stream()
+                                                                         .map(paymentMethodId -> validate(row, paymentMethodId, paymentMethodAccounts))
+                                                                         .filter(Objects::nonNull)
+                                                                         .findFirst()
+                                                                         .orElse(null);
+                if (fallbackError != null) {
+                    result.reject(row.lineNumber, fallbackError);
+                    continue;
+                }
+                if (!mappings.computeIfAbsent(List.of(row.accountId, row.paymentMethodId), k -> new LinkedHashSet<UUID>()).add(row.subscriptionId)) {
+                    result.nbExisting++;
+                }
+                if (!row.fallbackPaymentMethodIds.isEmpty()) {
+                    fallbacks.computeIfAbsent(List.of(row.accountId, row.paymentMethodId, row.fallbackPaymentMethodIds), k -> new LinkedHashSet<UUID>())
+                             .add(row.subscriptionId);
+                }
+            }
+            batch.clear();
+
+            for (final Map.Entry<List<UUID>, Set<UUID>> entry : mappings.entrySet()) {
+                final UUID accountId = entry.getKey().get(0);
+                final List<UUID> created = dao.addPaymentMethodMappings(accountId, entry.getValue(), entry.getKey().get(1), clock.getClock().getUTCNow(), tenantId);
+                result.nbCreated += created.size();
+                result.nbExisting += entry.getValue().size() - created.size();
+                // Subscriptions cached without mapping
+                for (final UUID subscriptionId : created) {
+                    paymentMethodCache.invalidate(new InvgrpTenantKey(tenantId, subscriptionId));
+                }
+            }
+            for (final Map.Entry<List<Object>, Set<UUID>> entry : fallbacks.entrySet()) {
+                @SuppressWarnings("unchecked")
+                final List<UUID> fallbackPaymentMethodIds = (List<UUID>) entry.getKey().get(2);
+                final List<UUID> created = dao.addFallbackPaymentMethods((UUID) entry.getKey().get(0),
+                                                                         entry.getValue(),
+                                                                         (UUID) entry.getKey().get(1),
+                                                                         fallbackPaymentMethodIds,
+                                                                         clock.getClock().getUTCNow(),
+                                                                         tenantId);
+                result.nbFallbacksCreated += created.size();
+                // Cached with the mapping
+                for (final UUID subscriptionId : created) {
+                    paymentMethodCache.invalidate(new InvgrpTenantKey(tenantId, subscriptionId));
+                }
+            }
+        }
+
+        // One Kill Bill call per account and batch
+        private String validateSubscription(final Row row, final Map<UUID, Set<UUID>> accountSubscriptions) {
+            Set<UUID> subscriptionIds = accountSubscriptions.get(row.accountId);
+            if (subscriptionIds == null) {
+                final TenantContext accountContext = new PluginTenantContext(row.accountId, tenantId);
+                try {
+                    subscriptionIds = InvgrpMetrics.killbill(() -> killbillAPI.getSubscriptionApi().getSubscriptionBundlesForAccountId(row.accountId, accountContext))
+                                                   .stream()
+                                                   .flatMap(bundle -> bundle.getSubscriptions().stream())
+                                                   .map(Subscription::getId)
+                                                   .collect(Collectors.toSet());
+                } catch (final SubscriptionApiException e) {
+                    // Unknown account: all its rows are rejected
+                    subscriptionIds = Set.of();
+                }
+                accountSubscriptions.put(row.accountId, subscriptionIds);
+            }
+            if (!subscriptionIds.contains(row.subscriptionId)) {
+                return "subscription " + row.subscriptionId + " doesn't belong to account " + row.accountId;
+            }
+            return null;
+        }
+
+        // One validation per payment method and batch
+        private String validate(final Row row, final UUID paymentMethodId, final Map<UUID, UUID> paymentMethodAccounts) {
+            if (!paymentMethodAccounts.containsKey(paymentMethodId)) {
+                UUID accountId = null;
+                try {
+                    accountId = paymentMethodValidator.getAccountId(paymentMethodId, context);
+                } catch (final PaymentApiException e) {
+                    // Rejected below
+                }
+                paymentMethodAccounts.put(paymentMethodId, accountId);
+            }
+            final UUID paymentMethodAccountId = paymentMethodAccounts.get(paymentMethodId);
+            if (paymentMethodAccountId == null) {
+                return "unknown payment method " + paymentMethodId;
+            } else if (!paymentMethodAccountId.equals(row.accountId)) {
+                return "payment method " + paymentMethodId + " doesn't belong to account " + row.accountId;
+            }
+            return null;
+        }
+    }
+
+    private static UUID uuid(final JsonNode node, final String fieldName) {
+        final JsonNode value = node.get(fieldName);
+        if (value == null || !value.isTextual()) {
+            throw new IllegalArgumentException("missing " + fieldName);
+        }
+        return UUID.fromString(value.asText());
+    }
+
+    private static List<UUID> uuids(final JsonNode node, final String fieldName) {
+        final JsonNode values = node.get(fieldName);
+        if (values == null || values.isNull()) {
+            return List.of();
+        }
+        if (!values.isArray() || values.size() > MAX_FALLBACK_PAYMENT_METHODS) {
+            throw new IllegalArgumentException(fieldName + " must be an array of at most " + MAX_FALLBACK_PAYMENT_METHODS + " ids");
+        }
+        final Set<UUID> ids = new LinkedHashSet<UUID>();
+        for (final JsonNode value : values) {
+            if (!value.isTextual()) {
+                throw new IllegalArgumentException("invalid " + fieldName);
+            }
+            ids.add(UUID.fromString(value.asText()));
+        }
+        return new ArrayList<UUID>(ids);
+    }
+
+    //
+    // Splits the pushed bytes into lines: only the current line is buffered
+    //
+    private static final class LineOutputStream extends OutputStream {
+
+        private final Import anImport;
+        private final byte[] line = new byte[MAX_LINE_LENGTH];
+        private int length;
+        private boolean tooLong;
+
+        private LineOutputStream(final Import anImport) {
+            this.anImport = anImport;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (b == '\n') {
+                endOfLine();
+            } else if (length < MAX_LINE_LENGTH) {
+                line[length++] = (byte) b;
+            } else {
+                tooLong = true;
+            }
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int len) throws IOException {
+            for (int i = offset; i < offset + len; i++) {
+                write(bytes[i]);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            endOfLine();
+            try {
+                if (!anImport.batch.isEmpty()) {
+                    anImport.flush();
+                }
+            } catch (final SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        private void endOfLine() throws IOException {
+            try {
+                if (tooLong) {
+                    anImport.lineTooLong();
+                } else if (length > 0) {
+                    anImport.line(new String(line, 0, length, StandardCharsets.UTF_8));
+                } else {
+                    anImport.lineNumber++;
+                }
+            } catch (final SQLException e) {
+                throw new IOException(e);
+            }
+            length = 0;
+            tooLong = false;
+        }
+    }
+
+    private final class ExportInputStream extends InputStream {
+
+        private final UUID tenantId;
+        private final ByteArrayOutputStream page = new ByteArrayOutputStream();
+        private byte[] buffer = new byte[0];
+        private int position;
+        private long lastRecordId;
+        private boolean done;
+
+        private ExportInputStream(final UUID tenantId) {
+            this.tenantId = tenantId;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            final int n = Math.min(len, buffer.length - position);
+            System.arraycopy(buffer, position, bytes, offset, n);
+            position += n;
+            return n;
+        }
+
+        private boolean fill() throws IOException {
+            while (position == buffer.length) {
+                if (done) {
+                    return false;
+                }
+                page.reset();
+                final List<InvgrpPaymentMethodMapping> mappings = new ArrayList<InvgrpPaymentMethodMapping>(EXPORT_PAGE_SIZE);
+                final Long last;
+                final Map<UUID, List<UUID>> fallbacks;
+                try {
+                    last = dao.getPaymentMethodMappings(tenantId, lastRecordId, EXPORT_PAGE_SIZE, mappings::add);
+                    fallbacks = dao.getFallbackPaymentMethodIds(mappings.stream().map(InvgrpPaymentMethodMapping::getSubscriptionId).collect(Collectors.toList()), tenantId);
+                } catch (final SQLException e) {
+                    throw new IOException(e);
+                }
+                for (final InvgrpPaymentMethodMapping mapping : mappings) {
+                    writeLine(mapping, fallbacks.get(mapping.getSubscriptionId()));
+                }
+                if (last == null) {
+                    done = true;
+                } else {
+                    lastRecordId = last;
+                }
+                buffer = page.toByteArray();
+                position = 0;
+            }
+            return true;
+        }
+
+        private void writeLine(final InvgrpPaymentMethodMapping mapping, @Nullable final List<UUID> fallbackPaymentMethodIds) {
+            final ObjectNode node = objectMapper.createObjectNode();
+            node.put("accountId", mapping.getAccountId().toString());
+            node.put("subscriptionId", mapping.getSubscriptionId().toString());
+            node.put("paymentMethodId", mapping.getPaymentMethodId().toString());
+            if (fallbackPaymentMethodIds != null) {
+                final ArrayNode fallbacks = node.putArray("fallbackPaymentMethodIds");
+                fallbackPaymentMethodIds.forEach(id -> fallbacks.add(id.toString()));
+            }
+            try {
+                objectMapper.writeValue(page, node);
+            } catch (final IOException e) {
+                // In-memory stream
+                throw new IllegalStateException(e);
+            }
+            page.write('\n');
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
+import org.killbill.billing.osgi.libs.killbill.OSGIServiceNotAvailable;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metrics of the plugin API entry points (invoice, payment control and entitlement plugin APIs, bus listener).
+ * <p>
+ * Each call of an entry point records, under {@code invgrp.<api>.<method>[.<operation>].<tenant>}:
+ * <ul>
+ * <li>{@code .calls}: a timer (call count and latency)</li>
+ * <li>{@code .errors}: a counter of the calls which threw</li>
+ * <li>{@code .killbillTime} and {@code .pluginTime}: histograms (in microseconds) of the time spent in Kill Bill API
+ * calls (see {@link #killbill(Body)}) and in the plugin itself (including the plugin tables)</li>
+ * </ul>
+ * The operation is an enum (transaction type, entitlement operation type, event type), so its cardinality is bounded.
+ * Only the first {@code maxTenants} tenants seen get their own metrics, the other ones are reported as {@code other}.
+ * <p>
+ * The calls in progress and the latencies of the last calls of each entry point (per tenant, all operations together) are
+ * also kept in memory for the diagnostics, whether or not a registry is available (see {@link #getCallStats}).
+ */
+public class InvgrpMetrics {
+
+    public static final String MAX_TENANTS_PROPERTY = "org.killbill.billing.plugin.invgrp.metrics.maxTenants";
+
+    static final String NO_TENANT = "none";
+    static final String OTHER_TENANTS = "other";
+    static final int RECENT_CALLS = 1024;
+
+    private static final Logger logger = LoggerFactory.getLogger(InvgrpMetrics.class);
+
+    // Entry point call in progress on the current thread, to attribute the time spent in Kill Bill API calls
+    private static final ThreadLocal<Call> currentCall = new ThreadLocal<Call>();
+    private static final LongAdder killbillCalls = new LongAdder();
+    private static final LongAdder killbillFailures = new LongAdder();
+
+    private final OSGIMetricRegistry metricRegistry;
+    private final int maxTenants;
+    private final Set<UUID> tenants = ConcurrentHashMap.newKeySet();
+    // Keyed by tenant tag, then by api.method
+    private final Map<String, Map<String, EntryPoint>> entryPoints = new ConcurrentHashMap<String, Map<String, EntryPoint>>();
+
+    /**
+     * @param metricRegistry registry to report to, null to disable the metrics (e.g. in tests)
+     * @param maxTenants     maximum number of tenants with their own metrics
+     */
+    public InvgrpMetrics(@Nullable final OSGIMetricRegistry metricRegistry, final int maxTenants) {
+        this.metricRegistry = metricRegistry;
+        this.maxTenants = maxTenants;
+    }
+
+    /**
+     * Run a plugin API entry point and record its metrics.
+     */
+    public <T, E extends Exception> T record(final String api,
+                                             final String method,
+                                             @Nullable final UUID tenantId,
+                                             @Nullable final Enum<?> operation,
+                                             final Body<T, E> body) throws E {
+        final String tenant = getTenantTag(tenantId);
+        final EntryPoint entryPoint = entryPoints.computeIfAbsent(tenant, t -> new ConcurrentHashMap<String, EntryPoint>())
+                                                 .computeIfAbsent(api + '.' + method, m -> new EntryPoint());
+        entryPoint.inFlight.incrementAndGet();
+        final Call call = new Call(currentCall.get());
+        currentCall.set(call);
+        final long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            final T result = body.call();
+            failed = false;
+            return result;
+        } finally {
+            final long elapsedNanos = System.nanoTime() - startNanos;
+            currentCall.set(call.parent);
+            entryPoint.inFlight.decrementAndGet();
+            entryPoint.add(elapsedNanos, failed);
+            report(api, method, tenant, operation, elapsedNanos, call.killbillNanos, failed);
+        }
+    }
+
+    /**
+     * @return the calls in progress and the latencies of the last calls of each entry point (keyed by api.method), for the
+     * tenant (or for the other tenants, if it doesn't have its own metrics)
+     */
+    public Map<String, CallStats> getCallStats(@Nullable final UUID tenantId) {
+        final String tenant = tenantId == null ? NO_TENANT : tenants.contains(tenantId) ? tenantId.toString() : OTHER_TENANTS;
+        final Map<String, CallStats> callStats = new TreeMap<String, CallStats>();
+        entryPoints.getOrDefault(tenant, Map.of()).forEach((name, entryPoint) -> callStats.put(name, entryPoint.getStats()));
+        return callStats;
+    }
+
+    /**
+     * Record the shape of a grouped invoice.
+     */
+    public void recordGrouping(@Nullable final UUID tenantId, final int nbItems, final int nbGroups) {
+        final MetricRegistry registry = getRegistry();
+        if (registry == null) {
+            return;
+        }
+        final String tenant = getTenantTag(tenantId);
+        registry.histogram("invgrp.invoice.items." + tenant).update(nbItems);
+        registry.histogram("invgrp.invoice.groups." + tenant).update(nbGroups);
+    }
+
+    /**
+     * Run a Kill Bill API call, accounting for its time in the entry point call in progress (if any).
+     */
+    public static <T, E extends Exception> T killbill(final Body<T, E> body) throws E {
+        killbillCalls.increment();
+        final Call call = currentCall.get();
+        final long startNanos = call != null ? System.nanoTime() : 0;
+        try {
+            return body.call();
+        } catch (final RuntimeException e) {
+            // Checked exceptions are answers of the API (e.g. unknown payment method), runtime ones are failures
+            killbillFailures.increment();
+            throw e;
+        } finally {
+            if (call != null) {
+                call.killbillNanos += System.nanoTime() - startNanos;
+            }
+        }
+    }
+
+    /**
+     * @return the number of Kill Bill API calls made through {@link #killbill(Body)} since the start of the plugin
+     */
+    public static long getKillbillCallCount() {
+        return killbillCalls.sum();
+    }
+
+    /**
+     * @return the number of Kill Bill API calls which failed with a runtime exception (e.g. Kill Bill database unavailable)
+     */
+    public static long getKillbillFailureCount() {
+        return killbillFailures.sum();
+    }
+
+    String getTenantTag(@Nullable final UUID tenantId) {
+        if (tenantId == null) {
+            return NO_TENANT;
+        }
+        if (tenants.contains(tenantId)) {
+            return tenantId.toString();
+        }
+        synchronized (tenants) {
+            if (tenants.size() < maxTenants) {
+                tenants.add(tenantId);
+                return tenantId.toString();
+            }
+        }
+        return OTHER_TENANTS;
+    }
+
+    private void report(final String api,
+                        final String method,
+                        final String tenant,
+                        @Nullable final Enum<?> operation,
+                        final long elapsedNanos,
+                        final long killbillNanos,
+                        final boolean failed) {
+        final MetricRegistry registry = getRegistry();
+        if (registry == null) {
+            return;
+        }
+
+        final StringBuilder prefix = new StringBuilder("invgrp.").append(api).append('.').append(method);
+        if (operation != null) {
+            prefix.append('.').append(operation.name());
+        }
+        prefix.append('.').append(tenant);
+
+        registry.timer(prefix + ".calls").update(elapsedNanos, TimeUnit.NANOSECONDS);
+        if (failed) {
+            registry.counter(prefix + ".errors").inc(1);
+        }
+        registry.histogram(prefix + ".killbillTime").update(TimeUnit.NANOSECONDS.toMicros(killbillNanos));
+        registry.histogram(prefix + ".pluginTime").update(TimeUnit.NANOSECONDS.toMicros(elapsedNanos - killbillNanos));
+    }
+
+    private MetricRegistry getRegistry() {
+        if (metricRegistry == null) {
+            return null;
+        }
+        try {
+            return metricRegistry.getMetricRegistry();
+        } catch (final OSGIServiceNotAvailable e) {
+            logger.debug("No MetricRegistry available", e);
+            return null;
+        }
+    }
+
+    /**
+     * Calls in progress, and latencies (in microseconds) of the last {@value #RECENT_CALLS} calls of an entry point.
+     */
+    public static final class CallStats {
+
+        private final int inFlight;
+        private final long calls;
+        private final long errors;
+        private final int nbSamples;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        private CallStats(final int inFlight, final long calls, final long errors, final long[] samples) {
+            this.inFlight = inFlight;
+            this.calls = calls;
+            this.errors = errors;
+            this.nbSamples = samples.length;
+            Arrays.sort(samples);
+            this.p50 = percentile(samples, 50);
+            this.p90 = percentile(samples, 90);
+            this.p99 = percentile(samples, 99);
+            this.max = samples.length == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(samples[samples.length - 1]);
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        /**
+         * @return the number of calls since the start of the plugin
+         */
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return the number of calls the percentiles are computed on
+         */
+        public int getNbSamples() {
+            return nbSamples;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        // Nearest rank, on sorted samples
+        private static long percentile(final long[] sortedSamples, final int percentile) {
+            if (sortedSamples.length == 0) {
+                return 0;
+            }
+            final int rank = (int) Math.ceil(percentile / 100.0 * sortedSamples.length);
+            return TimeUnit.NANOSECONDS.toMicros(sortedSamples[Math.max(rank, 1) - 1]);
+        }
+    }
+
+    public interface Body<T, E extends Exception> {
+
+        T call() throws E;
+    }
+
+    //
+    // Ring buffer of the last latencies: recording is one atomic increment and one store, the sort is left to the readers
+    //
+    private static final class EntryPoint {
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final LongAdder errors = new LongAdder();
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLongArray latencies = new AtomicLongArray(RECENT_CALLS);
+
+        private void add(final long elapsedNanos, final boolean failed) {
+            latencies.lazySet((int) (calls.getAndIncrement() % RECENT_CALLS), elapsedNanos);
+            if (failed) {
+                errors.increment();
+            }
+        }
+
+        private CallStats getStats() {
+            final long nbCalls = calls.get();
+            final long[] samples = new long[(int) Math.min(nbCalls, RECENT_CALLS)];
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = latencies.get(i);
+            }
+            return new CallStats(inFlight.get(), nbCalls, errors.sum(), samples);
+        }
+    }
+
+    private static final class Call {
+
+        private final Call parent;
+        // Only updated by the thread running the call
+        private long killbillNanos;
+
+        private Call(final Call parent) {
+            this.parent = parent;
+        }
+    }
+}
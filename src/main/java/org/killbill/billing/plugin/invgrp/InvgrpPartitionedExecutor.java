@@ -0,0 +1,187 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
+import org.killbill.billing.osgi.libs.killbill.OSGIServiceNotAvailable;
+import org.killbill.commons.metrics.api.Gauge;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks on a fixed number of single-threaded partitions: tasks with the same key (e.g. account id) run in order,
+ * tasks with different keys run in parallel.
+ * <p>
+ * Each partition has a bounded queue. When it is full, the submitting thread waits for room (backpressure), rather than
+ * dropping the task or running it out of order; threads which mustn't wait use {@link #tryExecute} instead. With 0
+ * partitions, tasks run on the submitting thread.
+ */
+public class InvgrpPartitionedExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(InvgrpPartitionedExecutor.class);
+
+    private final String name;
+    private final int capacity;
+    private final ThreadPoolExecutor[] partitions;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+
+    public InvgrpPartitionedExecutor(final String name, final int nbPartitions, final int capacity) {
+        this.name = name;
+        this.capacity = capacity;
+        this.partitions = new ThreadPoolExecutor[Math.max(0, nbPartitions)];
+        for (int i = 0; i < partitions.length; i++) {
+            final String threadName = "invgrp-" + name + "-" + i;
+            partitions[i] = new ThreadPoolExecutor(1,
+                                                   1,
+                                                   0L,
+                                                   TimeUnit.MILLISECONDS,
+                                                   new ArrayBlockingQueue<Runnable>(capacity),
+                                                   r -> newThread(r, threadName),
+                                                   this::waitForRoom);
+            // Tasks can be queued directly (see tryExecute)
+            partitions[i].prestartAllCoreThreads();
+        }
+    }
+
+    /**
+     * @throws RejectedExecutionException if the executor is stopped
+     */
+    public void execute(@Nullable final UUID key, final Runnable task) {
+        submitted.increment();
+        if (partitions.length == 0) {
+            task.run();
+            return;
+        }
+        partition(key).execute(task);
+    }
+
+    /**
+     * Like {@link #execute}, without waiting for room.
+     *
+     * @return false if the partition is full (the task isn't queued)
+     * @throws RejectedExecutionException if the executor is stopped
+     */
+    public boolean tryExecute(@Nullable final UUID key, final Runnable task) {
+        if (partitions.length == 0) {
+            submitted.increment();
+            task.run();
+            return true;
+        }
+        final ThreadPoolExecutor partition = partition(key);
+        if (partition.isShutdown()) {
+            throw new RejectedExecutionException("Executor " + name + " is stopped");
+        }
+        if (!partition.getQueue().offer(task)) {
+            return false;
+        }
+        submitted.increment();
+        return true;
+    }
+
+    /**
+     * Stop accepting tasks, and wait for the queued ones to complete.
+     *
+     * @return false if some tasks couldn't complete in time (they are dropped)
+     */
+    public boolean stop(final long timeout, final TimeUnit unit) throws InterruptedException {
+        for (final ThreadPoolExecutor partition : partitions) {
+            partition.shutdown();
+        }
+        final long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        boolean drained = true;
+        for (final ThreadPoolExecutor partition : partitions) {
+            if (!partition.awaitTermination(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                final int dropped = partition.shutdownNow().size();
+                logger.warn("Executor {} didn't drain in time, dropping {} task(s)", name, dropped);
+                drained = false;
+            }
+        }
+        return drained;
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (final ThreadPoolExecutor partition : partitions) {
+            depth += partition.getQueue().size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return the maximum number of waiting tasks, over all partitions
+     */
+    public int getCapacity() {
+        return capacity * partitions.length;
+    }
+
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    public long getBlockedCount() {
+        return blocked.sum();
+    }
+
+    public void registerMetrics(final OSGIMetricRegistry metricRegistry) {
+        final String prefix = "invgrp.executor." + name;
+        try {
+            final MetricRegistry registry = metricRegistry.getMetricRegistry();
+            registry.gauge(prefix + ".queueDepth", (Gauge<Integer>) this::getQueueDepth);
+            registry.gauge(prefix + ".capacity", (Gauge<Integer>) this::getCapacity);
+            registry.gauge(prefix + ".submitted", (Gauge<Long>) this::getSubmittedCount);
+            registry.gauge(prefix + ".blocked", (Gauge<Long>) this::getBlockedCount);
+        } catch (final OSGIServiceNotAvailable ignored) {
+            logger.warn("No MetricRegistry available, metrics for executor {} won't be exposed", name);
+        }
+    }
+
+    private ThreadPoolExecutor partition(@Nullable final UUID key) {
+        return partitions[key == null ? 0 : Math.floorMod(key.hashCode(), partitions.length)];
+    }
+
+    // Partition full: block the submitting thread until there is room
+    private void waitForRoom(final Runnable task, final ThreadPoolExecutor partition) {
+        if (partition.isShutdown()) {
+            throw new RejectedExecutionException("Executor " + name + " is stopped");
+        }
+        blocked.increment();
+        try {
+            partition.getQueue().put(task);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for room in executor " + name, e);
+        }
+    }
+
+    private static Thread newThread(final Runnable runnable, final String name) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
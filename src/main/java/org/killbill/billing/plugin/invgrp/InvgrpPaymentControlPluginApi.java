@@ -16,12 +16,10 @@
 
 package org.killbill.billing.plugin.invgrp;
 
-import java.util.Collections;
-import java.util.List;
+import java.sql.SQLException;
 import java.util.UUID;
 import java.util.stream.StreamSupport;
 
-import org.killbill.billing.ObjectType;
 import org.killbill.billing.control.plugin.api.OnFailurePaymentControlResult;
 import org.killbill.billing.control.plugin.api.OnSuccessPaymentControlResult;
 import org.killbill.billing.control.plugin.api.PaymentControlApiException;
@@ -30,14 +28,12 @@ import org.killbill.billing.control.plugin.api.PaymentControlPluginApi;
 import org.killbill.billing.control.plugin.api.PriorPaymentControlResult;
 import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.InvoiceApiException;
-import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.payment.api.PluginProperty;
 import org.killbill.billing.plugin.api.control.PluginOnFailurePaymentControlResult;
 import org.killbill.billing.plugin.api.control.PluginOnSuccessPaymentControlResult;
 import org.killbill.billing.plugin.api.control.PluginPriorPaymentControlResult;
 import org.killbill.billing.util.callcontext.TenantContext;
-import org.killbill.billing.util.customfield.CustomField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,77 +44,128 @@ public class InvgrpPaymentControlPluginApi implements PaymentControlPluginApi {
     private static final Logger logger = LoggerFactory.getLogger(InvgrpPaymentControlPluginApi.class);
 
     private final OSGIKillbillAPI killbillAPI;
-
-    public InvgrpPaymentControlPluginApi(final OSGIKillbillAPI killbillAPI) {
+    private final InvgrpPaymentMethodStore paymentMethodStore;
+    private final InvgrpPaymentMethodRouter paymentMethodRouter;
+    private final InvgrpMetrics metrics;
+
+    public InvgrpPaymentControlPluginApi(final OSGIKillbillAPI killbillAPI,
+                                         final InvgrpPaymentMethodStore paymentMethodStore,
+                                         final InvgrpPaymentMethodRouter paymentMethodRouter,
+                                         final InvgrpMetrics metrics) {
         this.killbillAPI = killbillAPI;
+        this.paymentMethodStore = paymentMethodStore;
+        this.paymentMethodRouter = paymentMethodRouter;
+        this.metrics = metrics;
     }
 
     @Override
     public PriorPaymentControlResult priorCall(final PaymentControlContext context, final Iterable<PluginProperty> properties) throws PaymentControlApiException {
+        return metrics.record("paymentControl", "priorCall", context.getTenantId(), context.getTransactionType(), () -> doPriorCall(context, properties));
+    }
+
+    private PriorPaymentControlResult doPriorCall(final PaymentControlContext context, final Iterable<PluginProperty> properties) throws PaymentControlApiException {
         //
         // Adjust the PM to match the per-subscription setting
         //
-        final Invoice invoice = getInvoice(properties, context);
-        if (invoice == null) {
+        final UUID invoiceId = getInvoiceId(properties);
+        if (invoiceId == null) {
             logger.warn("No invoice for payment {}", context.getPaymentId());
             return new PluginPriorPaymentControlResult(false);
         }
 
-        final UUID pmId = getPaymentMethodId(invoice, context);
-        if (pmId == null) {
-            logger.info("No payment method configured for invoice {}, skip", invoice.getId());
+        final InvgrpPaymentMethodMapping mapping = getInvoiceMapping(invoiceId, false, context);
+        if (mapping == null || mapping.getPaymentMethodId() == null) {
+            logger.info("No payment method configured for invoice {}, skip", invoiceId);
             return new PluginPriorPaymentControlResult(false);
         }
 
+        // Skip the payment method if it has been failing everywhere lately
+        final UUID pmId;
+        try {
+            pmId = paymentMethodRouter.route(invoiceId, mapping, context);
+        } catch (final SQLException e) {
+            throw new PaymentControlApiException("Failed to route payment", e);
+        }
+
         logger.info("Adjusting payment method for payment external key = {}: invoice={}, pmId={}",
-                    context.getPaymentExternalKey(), invoice.getId(), pmId);
+                    context.getPaymentExternalKey(), invoiceId, pmId);
 
         return new PluginPriorPaymentControlResult(false, null, null, pmId, null, null);
     }
 
     @Override
     public OnSuccessPaymentControlResult onSuccessCall(final PaymentControlContext context, final Iterable<PluginProperty> properties) throws PaymentControlApiException {
-        return new PluginOnSuccessPaymentControlResult();
+        return metrics.record("paymentControl", "onSuccessCall", context.getTenantId(), context.getTransactionType(), PluginOnSuccessPaymentControlResult::new);
     }
 
     @Override
     public OnFailurePaymentControlResult onFailureCall(final PaymentControlContext context, final Iterable<PluginProperty> properties) throws PaymentControlApiException {
-        return new PluginOnFailurePaymentControlResult();
+        return metrics.record("paymentControl", "onFailureCall", context.getTenantId(), context.getTransactionType(), () -> doOnFailureCall(context, properties));
     }
 
-    private UUID getPaymentMethodId(final Invoice invoice, final TenantContext context) throws PaymentControlApiException {
-        // We expect at most one subscription per invoice
-        final UUID subscriptionId = invoice.getInvoiceItems()
-                                           .stream()
-                                           .filter(ii -> ii.getSubscriptionId() != null)
-                                           .map(InvoiceItem::getSubscriptionId)
-                                           .findFirst()
-                                           .orElse(null);
-        if (subscriptionId != null) {
-            final List<CustomField> fields = killbillAPI.getCustomFieldUserApi().getCustomFieldsForObject(subscriptionId, ObjectType.SUBSCRIPTION, context);
-            final String paymentMethodId = fields.stream()
-                                                 .filter(f -> f.getFieldName().equals(InvgrpEntitlementPluginApi.PM_ID))
-                                                 .map(CustomField::getFieldValue)
-                                                 .findFirst()
-                                                 .orElse(null);
-            return paymentMethodId != null ? UUID.fromString(paymentMethodId) : null;
+    private OnFailurePaymentControlResult doOnFailureCall(final PaymentControlContext context, final Iterable<PluginProperty> properties) throws PaymentControlApiException {
+        //
+        // Record the failure, and move the invoice to the next payment method of the subscription chain for the retries
+        // (the retry schedule itself is left to Kill Bill)
+        //
+        final UUID invoiceId = getInvoiceId(properties);
+        if (invoiceId == null || context.getPaymentMethodId() == null) {
+            return new PluginOnFailurePaymentControlResult();
         }
-        return null;
+
+        try {
+            final InvgrpPaymentMethodMapping mapping = getInvoiceMapping(invoiceId, true, context);
+            if (mapping != null) {
+                paymentMethodRouter.onFailure(invoiceId, mapping, context.getPaymentMethodId(), context);
+            }
+        } catch (final SQLException | PaymentControlApiException e) {
+            // The retry goes to the same payment method, no reason to fail the call
+            logger.warn("Failed to record payment failure for invoice {}", invoiceId, e);
+        }
+        return new PluginOnFailurePaymentControlResult();
     }
 
+    /**
+     * @param index whether to index the invoice if it wasn't (so that its payment method can be switched)
+     */
+    private InvgrpPaymentMethodMapping getInvoiceMapping(final UUID invoiceId, final boolean index, final TenantContext context) throws PaymentControlApiException {
+        try {
+            // Invoices generated by the plugin are indexed at grouping time
+            final InvgrpPaymentMethodMapping indexed = paymentMethodStore.getInvoicePaymentMethod(invoiceId, context);
+            if (indexed != null) {
+                return indexed;
+            }
+
+            // Otherwise (e.g. invoices generated before the index was introduced), look at the invoice subscription
+            final Invoice invoice = getInvoice(invoiceId, context);
+            if (index) {
+                paymentMethodStore.addInvoicePaymentMethod(invoice, context);
+                return paymentMethodStore.getInvoicePaymentMethod(invoiceId, context);
+            }
+            final UUID subscriptionId = InvgrpPaymentMethodStore.getSubscriptionId(invoice);
+            if (subscriptionId == null) {
+                return null;
+            }
+            return new InvgrpPaymentMethodMapping(context.getTenantId(),
+                                                  invoice.getAccountId(),
+                                                  subscriptionId,
+                                                  paymentMethodStore.getPaymentMethodId(invoice.getAccountId(), subscriptionId, context));
+        } catch (final SQLException e) {
+            throw new PaymentControlApiException("Failed to retrieve payment method mapping", e);
+        }
+    }
 
-    private Invoice getInvoice(final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentControlApiException {
+    private UUID getInvoiceId(final Iterable<PluginProperty> properties) {
         final PluginProperty prop = StreamSupport.stream(properties.spliterator(), false)
                                                  .filter(p -> p.getKey().equals(PROP_IPCD_INVOICE_ID))
                                                  .findFirst()
                                                  .orElse(null);
-        if (prop == null) {
-            return null;
-        }
+        return prop != null ? UUID.fromString((String) prop.getValue()) : null;
+    }
 
-        final UUID invoiceId = UUID.fromString((String) prop.getValue());
+    private Invoice getInvoice(final UUID invoiceId, final TenantContext context) throws PaymentControlApiException {
         try {
-            return killbillAPI.getInvoiceUserApi().getInvoice(invoiceId, context);
+            return InvgrpMetrics.killbill(() -> killbillAPI.getInvoiceUserApi().getInvoice(invoiceId, context));
         } catch (final InvoiceApiException e) {
             throw new PaymentControlApiException("Failed to find invoice", e);
         }
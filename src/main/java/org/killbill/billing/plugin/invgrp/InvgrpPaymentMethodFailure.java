@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+/**
+ * Failures of a payment method, across all the subscriptions and invoices using it (see {@link InvgrpPaymentMethodRouter}):
+ * the score is incremented on each failure and halves every half-life, the payment method being considered bad until
+ * badUntilDate. Dates are UTC.
+ */
+public final class InvgrpPaymentMethodFailure {
+
+    private final UUID tenantId;
+    private final UUID paymentMethodId;
+    private final double score;
+    private final long nbFailures;
+    private final LocalDateTime lastFailureDate;
+    private final LocalDateTime badUntilDate;
+
+    public InvgrpPaymentMethodFailure(final UUID tenantId,
+                                      final UUID paymentMethodId,
+                                      final double score,
+                                      final long nbFailures,
+                                      final LocalDateTime lastFailureDate,
+                                      @Nullable final LocalDateTime badUntilDate) {
+        this.tenantId = tenantId;
+        this.paymentMethodId = paymentMethodId;
+        this.score = score;
+        this.nbFailures = nbFailures;
+        this.lastFailureDate = lastFailureDate;
+        this.badUntilDate = badUntilDate;
+    }
+
+    public UUID getTenantId() {
+        return tenantId;
+    }
+
+    public UUID getPaymentMethodId() {
+        return paymentMethodId;
+    }
+
+    /**
+     * @return the score as of the last failure
+     */
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * @return the score decayed to utcNowMillis
+     */
+    public double getScore(final long utcNowMillis, final long halfLifeMillis) {
+        final long elapsedMillis = Math.max(0, utcNowMillis - lastFailureDate.toInstant(ZoneOffset.UTC).toEpochMilli());
+        return score * Math.pow(0.5, (double) elapsedMillis / halfLifeMillis);
+    }
+
+    /**
+     * @return the total number of failures recorded (also used as a version, for the optimistic updates)
+     */
+    public long getNbFailures() {
+        return nbFailures;
+    }
+
+    public LocalDateTime getLastFailureDate() {
+        return lastFailureDate;
+    }
+
+    public LocalDateTime getBadUntilDate() {
+        return badUntilDate;
+    }
+
+    @Override
+    public String toString() {
+        return "InvgrpPaymentMethodFailure{tenantId=" + tenantId + ", paymentMethodId=" + paymentMethodId + ", score=" + score +
+               ", nbFailures=" + nbFailures + ", lastFailureDate=" + lastFailureDate + ", badUntilDate=" + badUntilDate + "}";
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.List;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+/**
+ * Payment method configured for a subscription (the payment method is null when none was configured), and its fallback
+ * payment methods when loaded by {@link InvgrpPaymentMethodStore}.
+ * <p>
+ * Also used for the invoice index, where the subscription is null for invoices without any subscription item.
+ */
+public final class InvgrpPaymentMethodMapping {
+
+    private final UUID tenantId;
+    private final UUID accountId;
+    private final UUID subscriptionId;
+    private final UUID paymentMethodId;
+    private final List<UUID> fallbackPaymentMethodIds;
+
+    public InvgrpPaymentMethodMapping(final UUID tenantId, final UUID accountId, @Nullable final UUID subscriptionId, @Nullable final UUID paymentMethodId) {
+        this(tenantId, accountId, subscriptionId, paymentMethodId, List.of());
+    }
+
+    public InvgrpPaymentMethodMapping(final UUID tenantId,
+                                      final UUID accountId,
+                                      @Nullable final UUID subscriptionId,
+                                      @Nullable final UUID paymentMethodId,
+                                      final List<UUID> fallbackPaymentMethodIds) {
+        this.tenantId = tenantId;
+        this.accountId = accountId;
+        this.subscriptionId = subscriptionId;
+        this.paymentMethodId = paymentMethodId;
+        this.fallbackPaymentMethodIds = fallbackPaymentMethodIds;
+    }
+
+    public UUID getTenantId() {
+        return tenantId;
+    }
+
+    public UUID getAccountId() {
+        return accountId;
+    }
+
+    /**
+     * @return the group of the mapping in the mapping cache (see {@link InvgrpCache#invalidateGroup})
+     */
+    public InvgrpTenantKey getAccountKey() {
+        return new InvgrpTenantKey(tenantId, accountId);
+    }
+
+    @Nullable
+    public UUID getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    @Nullable
+    public UUID getPaymentMethodId() {
+        return paymentMethodId;
+    }
+
+    /**
+     * @return the fallback payment methods of the subscription, in order (empty if none, or not loaded)
+     */
+    public List<UUID> getFallbackPaymentMethodIds() {
+        return fallbackPaymentMethodIds;
+    }
+
+    @Override
+    public String toString() {
+        return "InvgrpPaymentMethodMapping{accountId=" + accountId + ", subscriptionId=" + subscriptionId + ", paymentMethodId=" + paymentMethodId +
+               ", fallbackPaymentMethodIds=" + fallbackPaymentMethodIds + "}";
+    }
+}
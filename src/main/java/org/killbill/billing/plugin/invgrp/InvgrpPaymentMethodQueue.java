@@ -0,0 +1,375 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.entitlement.api.Subscription;
+import org.killbill.billing.entitlement.api.SubscriptionApiException;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
+import org.killbill.billing.payment.api.PaymentApiException;
+import org.killbill.billing.plugin.api.PluginTenantContext;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable queue of the subscription -> payment method mappings to write, so that subscription creation doesn't wait for
+ * the subscription lookups (by external key) and the mapping insert. The payment method is still validated by the
+ * caller, so that an invalid PM_ID fails the subscription creation (this is cheap, see {@link InvgrpPaymentMethodValidator}).
+ * <p>
+ * Mappings are first inserted in the invgrp_pending_payment_methods table, due right away, then claimed (leased) and
+ * processed by a bounded pool of workers (and deleted once written). Failed mappings are retried with an exponential backoff, up to maxAttempts. A poller picks
+ * up the mappings which couldn't be handed to the workers (pool full), the ones to retry, and the ones left over by a
+ * previous run (e.g. after a crash): delivery is at-least-once, which is fine since writing a mapping is idempotent.
+ * <p>
+ * Readers call {@link #flush} before loading the mappings of an account, so that queued mappings are always visible.
+ * <p>
+ * With 0 workers, mappings are written synchronously (nothing is queued).
+ */
+public class InvgrpPaymentMethodQueue {
+
+    public static final String WORKERS_PROPERTY = "org.killbill.billing.plugin.invgrp.mappingQueue.workers";
+    public static final String CAPACITY_PROPERTY = "org.killbill.billing.plugin.invgrp.mappingQueue.capacity";
+    public static final String MAX_ATTEMPTS_PROPERTY = "org.killbill.billing.plugin.invgrp.mappingQueue.maxAttempts";
+
+    private static final Logger logger = LoggerFactory.getLogger(InvgrpPaymentMethodQueue.class);
+
+    // Time a mapping is reserved for the worker processing it, before the pollers can pick it up again
+    private static final long LEASE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long POLL_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final long MIN_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final InvgrpDao dao;
+    private final OSGIKillbillAPI killbillAPI;
+    private final OSGIKillbillClock clock;
+    private final InvgrpCache<InvgrpTenantKey, InvgrpPaymentMethodMapping> paymentMethodCache;
+    private final InvgrpPaymentMethodValidator paymentMethodValidator;
+    private final int nbWorkers;
+    private final int capacity;
+    private final int maxAttempts;
+
+    private volatile ThreadPoolExecutor workers;
+    private ScheduledExecutorService poller;
+
+    public InvgrpPaymentMethodQueue(final InvgrpDao dao,
+                                    final OSGIKillbillAPI killbillAPI,
+                                    final OSGIKillbillClock clock,
+                                    final InvgrpCache<InvgrpTenantKey, InvgrpPaymentMethodMapping> paymentMethodCache,
+                                    final InvgrpPaymentMethodValidator paymentMethodValidator,
+                                    final int nbWorkers,
+                                    final int capacity,
+                                    final int maxAttempts) {
+        this.dao = dao;
+        this.killbillAPI = killbillAPI;
+        this.clock = clock;
+        this.paymentMethodCache = paymentMethodCache;
+        this.paymentMethodValidator = paymentMethodValidator;
+        this.nbWorkers = nbWorkers;
+        this.capacity = capacity;
+        this.maxAttempts = maxAttempts;
+    }
+
+    public synchronized void start() {
+        if (nbWorkers <= 0 || workers != null) {
+            return;
+        }
+        workers = new ThreadPoolExecutor(nbWorkers,
+                                         nbWorkers,
+                                         0L,
+                                         TimeUnit.MILLISECONDS,
+                                         new ArrayBlockingQueue<Runnable>(capacity),
+                                         r -> newThread(r, "invgrp-mapping-worker"),
+                                         new ThreadPoolExecutor.AbortPolicy());
+        poller = Executors.newSingleThreadScheduledExecutor(r -> newThread(r, "invgrp-mapping-poller"));
+        poller.scheduleWithFixedDelay(this::poll, POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (workers == null) {
+            return;
+        }
+        // Mappings not processed yet stay in the table, for the next start
+        poller.shutdownNow();
+        workers.shutdownNow();
+        workers.awaitTermination(10, TimeUnit.SECONDS);
+        workers = null;
+        poller = null;
+    }
+
+    /**
+     * Queue the mapping between the subscription (not resolved yet) and the payment method, or write it right away without
+     * workers.
+     */
+    public void add(final UUID accountId, final String subscriptionExternalKey, final UUID paymentMethodId, final TenantContext context) throws SQLException, SubscriptionApiException, PaymentApiException {
+        add(accountId, List.of(subscriptionExternalKey), paymentMethodId, List.of(), context);
+    }
+
+    /**
+     * Queue the mappings between the subscriptions (e.g. of a shopping cart) and the payment method, or write them right
+     * away without workers. The payment method is validated right away, once, and the mappings are inserted in one batch.
+     * <p>
+     * Without workers, the subscriptions which can be found are mapped even if some can't (the first failure is rethrown).
+     */
+    public void add(final UUID accountId, final Collection<String> subscriptionExternalKeys, final UUID paymentMethodId, final TenantContext context) throws SQLException, SubscriptionApiException, PaymentApiException {
+        add(accountId, subscriptionExternalKeys, paymentMethodId, List.of(), context);
+    }
+
+    /**
+     * Same as {@link #add(UUID, Collection, UUID, TenantContext)}, also recording the fallback payment methods of the
+     * subscriptions (see {@link InvgrpPaymentMethodRouter}), validated with the payment method.
+     */
+    public void add(final UUID accountId,
+                    final Collection<String> subscriptionExternalKeys,
+                    final UUID paymentMethodId,
+                    final List<UUID> fallbackPaymentMethodIds,
+                    final TenantContext context) throws SQLException, SubscriptionApiException, PaymentApiException {
+        final ThreadPoolExecutor currentWorkers = workers;
+        if (currentWorkers == null) {
+            final Map<String, Exception> failures = write(accountId, subscriptionExternalKeys, paymentMethodId, fallbackPaymentMethodIds, context.getTenantId());
+            if (!failures.isEmpty()) {
+                final Exception failure = failures.values().iterator().next();
+                if (failure instanceof SubscriptionApiException) {
+                    throw (SubscriptionApiException) failure;
+                }
+                throw (RuntimeException) failure;
+            }
+            return;
+        }
+
+        validate(paymentMethodId, fallbackPaymentMethodIds, new PluginTenantContext(accountId, context.getTenantId()));
+
+        // Due right away: claimed by the worker below, or by the pollers if the pool is full
+        final DateTime now = clock.getClock().getUTCNow();
+        final List<InvgrpPendingPaymentMethod> pending = dao.addPendingPaymentMethods(accountId,
+                                                                                      List.copyOf(subscriptionExternalKeys),
+                                                                                      paymentMethodId,
+                                                                                      fallbackPaymentMethodIds,
+                                                                                      now,
+                                                                                      now,
+                                                                                      context.getTenantId());
+        try {
+            currentWorkers.execute(() -> {
+                try {
+                    process(claim(pending));
+                } catch (final SQLException | RuntimeException e) {
+                    // Picked up by the pollers
+                    logger.warn("Failed to claim {} mapping(s) for account {}", pending.size(), accountId, e);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            logger.debug("Mapping queue full, {} mapping(s) for account {} will be processed by the poller", pending.size(), accountId);
+        }
+    }
+
+    /**
+     * Write the queued mappings of an account right away (whether or not a worker is already on it).
+     */
+    public void flush(final UUID accountId, final TenantContext context) throws SQLException {
+        if (workers == null) {
+            return;
+        }
+        final List<InvgrpPendingPaymentMethod> pending = dao.getPendingPaymentMethodsForAccount(accountId, context.getTenantId());
+        if (!pending.isEmpty()) {
+            process(pending);
+        }
+    }
+
+    /**
+     * @return the number of mapping batches waiting for a worker in memory (the other ones wait in the table)
+     */
+    public int getQueueDepth() {
+        final ThreadPoolExecutor currentWorkers = workers;
+        return currentWorkers == null ? 0 : currentWorkers.getQueue().size();
+    }
+
+    /**
+     * @return the maximum number of mapping batches waiting for a worker in memory (0 without workers)
+     */
+    public int getCapacity() {
+        return nbWorkers > 0 ? capacity : 0;
+    }
+
+    // Visible for testing
+    void poll() {
+        try {
+            final List<InvgrpPendingPaymentMethod> due = dao.getDuePendingPaymentMethods(clock.getClock().getUTCNow(), capacity - workers.getQueue().size());
+            final List<InvgrpPendingPaymentMethod> claimed = claim(due);
+            if (!claimed.isEmpty()) {
+                workers.execute(() -> process(claimed));
+            }
+        } catch (final RejectedExecutionException e) {
+            logger.debug("Mapping queue full, will retry at the next poll");
+        } catch (final SQLException | RuntimeException e) {
+            logger.warn("Failed to poll the mapping queue", e);
+        }
+    }
+
+    // Lease the due mappings, so that they aren't processed twice (e.g. by a worker and a poller, or by two nodes)
+    private List<InvgrpPendingPaymentMethod> claim(final List<InvgrpPendingPaymentMethod> due) throws SQLException {
+        final List<InvgrpPendingPaymentMethod> claimed = new ArrayList<InvgrpPendingPaymentMethod>(due.size());
+        for (final InvgrpPendingPaymentMethod pending : due) {
+            final InvgrpPendingPaymentMethod claimedPending = dao.reschedulePendingPaymentMethod(pending, pending.getAttempts(), clock.getClock().getUTCNow().plus(LEASE_MILLIS));
+            // Otherwise, claimed by someone else
+            if (claimedPending != null) {
+                claimed.add(claimedPending);
+            }
+        }
+        return claimed;
+    }
+
+    private void process(final List<InvgrpPendingPaymentMethod> pending) {
+        // One write (payment method validation and batched insert) per account and payment method chain
+        final Map<List<Object>, List<InvgrpPendingPaymentMethod>> batches = new LinkedHashMap<List<Object>, List<InvgrpPendingPaymentMethod>>();
+        for (final InvgrpPendingPaymentMethod cur : pending) {
+            batches.computeIfAbsent(List.of(cur.getTenantId(), cur.getAccountId(), cur.getPaymentMethodId(), cur.getFallbackPaymentMethodIds()),
+                                    k -> new ArrayList<InvgrpPendingPaymentMethod>())
+                   .add(cur);
+        }
+        for (final List<InvgrpPendingPaymentMethod> batch : batches.values()) {
+            processBatch(batch);
+        }
+    }
+
+    private void processBatch(final List<InvgrpPendingPaymentMethod> batch) {
+        final InvgrpPendingPaymentMethod first = batch.get(0);
+        final Map<String, Exception> failures;
+        try {
+            failures = write(first.getAccountId(),
+                             batch.stream().map(InvgrpPendingPaymentMethod::getSubscriptionExternalKey).collect(Collectors.toList()),
+                             first.getPaymentMethodId(),
+                             first.getFallbackPaymentMethodIds(),
+                             first.getTenantId());
+        } catch (final SQLException | PaymentApiException | RuntimeException e) {
+            for (final InvgrpPendingPaymentMethod pending : batch) {
+                retryLater(pending, e);
+            }
+            return;
+        }
+
+        final List<Long> written = new ArrayList<Long>(batch.size());
+        for (final InvgrpPendingPaymentMethod pending : batch) {
+            final Exception failure = failures.get(pending.getSubscriptionExternalKey());
+            if (failure == null) {
+                written.add(pending.getRecordId());
+            } else {
+                retryLater(pending, failure);
+            }
+        }
+        if (written.isEmpty()) {
+            return;
+        }
+        try {
+            dao.deletePendingPaymentMethods(written);
+        } catch (final SQLException | RuntimeException e) {
+            // The lease will expire, and the pollers will write them again (no-op)
+            logger.warn("Failed to delete {} written mapping(s)", written.size(), e);
+        }
+    }
+
+    private void retryLater(final InvgrpPendingPaymentMethod pending, final Exception cause) {
+        final int attempts = pending.getAttempts() + 1;
+        try {
+            if (attempts >= maxAttempts) {
+                logger.error("Giving up on mapping {} after {} attempts", pending, attempts, cause);
+                dao.deletePendingPaymentMethods(List.of(pending.getRecordId()));
+                return;
+            }
+            final long backoffMillis = Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.min(attempts - 1, 20));
+            logger.warn("Failed to write mapping {}, retrying in {} ms", pending, backoffMillis, cause);
+            dao.reschedulePendingPaymentMethod(pending, attempts, clock.getClock().getUTCNow().plus(backoffMillis));
+        } catch (final SQLException | RuntimeException e) {
+            // The lease will expire, and the pollers will retry it
+            logger.warn("Failed to reschedule mapping {}", pending, e);
+        }
+    }
+
+    /**
+     * @return the subscriptions which couldn't be looked up (by external key), the other ones are mapped
+     */
+    private Map<String, Exception> write(final UUID accountId,
+                                         final Collection<String> subscriptionExternalKeys,
+                                         final UUID paymentMethodId,
+                                         final List<UUID> fallbackPaymentMethodIds,
+                                         final UUID tenantId) throws SQLException, PaymentApiException {
+        final TenantContext context = new PluginTenantContext(accountId, tenantId);
+        validate(paymentMethodId, fallbackPaymentMethodIds, context);
+
+        final Map<String, Exception> failures = new HashMap<String, Exception>();
+        final Set<UUID> subscriptionIds = new LinkedHashSet<UUID>();
+        for (final String subscriptionExternalKey : new LinkedHashSet<String>(subscriptionExternalKeys)) {
+            try {
+                final Subscription subscription = InvgrpMetrics.killbill(() -> killbillAPI.getSubscriptionApi().getSubscriptionForExternalKey(subscriptionExternalKey, false, context));
+                subscriptionIds.add(subscription.getId());
+            } catch (final SubscriptionApiException | RuntimeException e) {
+                failures.put(subscriptionExternalKey, e);
+            }
+        }
+        if (subscriptionIds.isEmpty()) {
+            return failures;
+        }
+
+        final List<UUID> created = dao.addPaymentMethodMappings(accountId, subscriptionIds, paymentMethodId, clock.getClock().getUTCNow(), tenantId);
+        if (created.size() < subscriptionIds.size()) {
+            logger.warn("Payment method mappings for {} subscription(s) already exist, skip...", subscriptionIds.size() - created.size());
+        }
+        if (!fallbackPaymentMethodIds.isEmpty()) {
+            // Only for the subscriptions mapped to the requested payment method (this request, or a previous attempt of it)
+            final List<UUID> withFallbacks = dao.addFallbackPaymentMethods(accountId, subscriptionIds, paymentMethodId, fallbackPaymentMethodIds, clock.getClock().getUTCNow(), tenantId);
+            if (withFallbacks.size() < subscriptionIds.size()) {
+                logger.warn("Fallback payment methods for {} subscription(s) already exist, or were requested for another payment method, skip...", subscriptionIds.size() - withFallbacks.size());
+            }
+        }
+        for (final UUID subscriptionId : subscriptionIds) {
+            // The absence of mapping (or of fallbacks) may have been cached in the meantime
+            paymentMethodCache.invalidate(new InvgrpTenantKey(tenantId, subscriptionId));
+        }
+        return failures;
+    }
+
+    private void validate(final UUID paymentMethodId, final List<UUID> fallbackPaymentMethodIds, final TenantContext context) throws PaymentApiException {
+        paymentMethodValidator.validate(paymentMethodId, context);
+        for (final UUID fallbackPaymentMethodId : fallbackPaymentMethodIds) {
+            paymentMethodValidator.validate(fallbackPaymentMethodId, context);
+        }
+    }
+
+    private static Thread newThread(final Runnable runnable, final String name) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
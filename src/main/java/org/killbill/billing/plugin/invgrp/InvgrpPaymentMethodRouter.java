@@ -0,0 +1,253 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
+import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
+import org.killbill.billing.osgi.libs.killbill.OSGIServiceNotAvailable;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.commons.metrics.api.Gauge;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Failure-aware choice of the payment method of an invoice, among the chain of its subscription: the mapped payment
+ * method first, then the fallback payment methods of the subscription (invgrp_subscription_fallback_payment_methods), in
+ * order. The chain is cached with the mapping of the subscription (see {@link InvgrpPaymentMethodStore#getPaymentMethodChain}).
+ * <p>
+ * Each failed payment increments the score of its payment method in the invgrp_payment_method_failures table, shared by
+ * all the subscriptions, invoices and nodes. The score halves every halfLifeMin minutes: a payment method whose score,
+ * rounded to the nearest failure, reaches badScore is considered bad until its score has decayed back to badScore / 2.
+ * The rounding makes badScore failures close together enough, although the first ones have slightly decayed. The bad payment
+ * methods are cached in memory, and refreshed from the table every refreshSec seconds, so routing a payment costs no query
+ * unless its payment method is bad.
+ * <p>
+ * On failure, the invoice is switched to the next payment method of the chain which isn't bad (wrapping around), so that
+ * the retry of the payment doesn't hit the same payment method again. When paying, an invoice whose payment method is bad
+ * is routed to the first payment method of the chain which isn't. When all the payment methods of the chain are bad, the
+ * payment method of the invoice is left as is.
+ */
+public class InvgrpPaymentMethodRouter {
+
+    public static final String HALF_LIFE_MIN_PROPERTY = "org.killbill.billing.plugin.invgrp.paymentMethodFailures.halfLifeMin";
+    public static final String BAD_SCORE_PROPERTY = "org.killbill.billing.plugin.invgrp.paymentMethodFailures.badScore";
+    public static final String REFRESH_SEC_PROPERTY = "org.killbill.billing.plugin.invgrp.paymentMethodFailures.refreshSec";
+
+    private static final Logger logger = LoggerFactory.getLogger(InvgrpPaymentMethodRouter.class);
+
+    // Concurrent failures of the same payment method, on other nodes
+    private static final int MAX_SAVE_ATTEMPTS = 5;
+
+    private final InvgrpDao dao;
+    private final OSGIKillbillClock clock;
+    private final InvgrpPaymentMethodStore paymentMethodStore;
+    private final long halfLifeMillis;
+    private final int badScore;
+    private final long refreshMillis;
+
+    // Bad until (epoch millis), for the payment methods considered bad
+    private final Map<InvgrpTenantKey, Long> badPaymentMethods = new ConcurrentHashMap<InvgrpTenantKey, Long>();
+    private final AtomicLong lastRefreshMillis = new AtomicLong();
+    private final LongAdder nbFailures = new LongAdder();
+    private final LongAdder nbReroutes = new LongAdder();
+
+    /**
+     * @param badScore 0 to never consider a payment method bad (the invoices are still switched to the next payment method on failure)
+     */
+    public InvgrpPaymentMethodRouter(final InvgrpDao dao,
+                                     final OSGIKillbillClock clock,
+                                     final InvgrpPaymentMethodStore paymentMethodStore,
+                                     final int halfLifeMin,
+                                     final int badScore,
+                                     final int refreshSec) {
+        this.dao = dao;
+        this.clock = clock;
+        this.paymentMethodStore = paymentMethodStore;
+        this.halfLifeMillis = TimeUnit.MINUTES.toMillis(halfLifeMin);
+        this.badScore = badScore;
+        this.refreshMillis = TimeUnit.SECONDS.toMillis(refreshSec);
+    }
+
+    public void registerMetrics(final OSGIMetricRegistry metricRegistry) {
+        try {
+            final MetricRegistry registry = metricRegistry.getMetricRegistry();
+            registry.gauge("invgrp.paymentMethodRouter.failures", (Gauge<Long>) nbFailures::sum);
+            registry.gauge("invgrp.paymentMethodRouter.reroutes", (Gauge<Long>) nbReroutes::sum);
+            registry.gauge("invgrp.paymentMethodRouter.bad", (Gauge<Integer>) badPaymentMethods::size);
+        } catch (final OSGIServiceNotAvailable ignored) {
+            logger.warn("No MetricRegistry available, metrics for the payment method router won't be exposed");
+        }
+    }
+
+    /**
+     * @param mapping the invoice mapping (see {@link InvgrpPaymentMethodStore#getInvoicePaymentMethod}), with a payment method
+     * @return the payment method of the invoice, or the first payment method of the chain which isn't bad if it is
+     */
+    public UUID route(final UUID invoiceId, final InvgrpPaymentMethodMapping mapping, final TenantContext context) throws SQLException {
+        final UUID paymentMethodId = mapping.getPaymentMethodId();
+        if (!isBad(context.getTenantId(), paymentMethodId)) {
+            return paymentMethodId;
+        }
+
+        for (final UUID candidate : getChain(mapping, context)) {
+            if (!isBad(context.getTenantId(), candidate)) {
+                nbReroutes.increment();
+                logger.info("Payment method {} of invoice {} is bad, routing to {}", paymentMethodId, invoiceId, candidate);
+                return candidate;
+            }
+        }
+        logger.info("Payment method {} of invoice {} is bad, but so are its fallbacks", paymentMethodId, invoiceId);
+        return paymentMethodId;
+    }
+
+    /**
+     * Record the failure of a payment of the invoice, and switch the invoice to the next payment method of the chain which
+     * isn't bad, if any.
+     *
+     * @param mapping the invoice mapping (see {@link InvgrpPaymentMethodStore#getInvoicePaymentMethod})
+     * @return the payment method the invoice was switched to, or null if it wasn't
+     */
+    public UUID onFailure(final UUID invoiceId, final InvgrpPaymentMethodMapping mapping, final UUID failedPaymentMethodId, final TenantContext context) throws SQLException {
+        recordFailure(context.getTenantId(), failedPaymentMethodId);
+
+        final List<UUID> chain = getChain(mapping, context);
+        // Not in the chain (e.g. payment method passed explicitly): start over from the first one
+        final int failedIndex = chain.indexOf(failedPaymentMethodId);
+        for (int i = 1; i <= chain.size(); i++) {
+            final UUID candidate = chain.get(Math.floorMod(failedIndex + i, chain.size()));
+            if (candidate.equals(failedPaymentMethodId) || isBad(context.getTenantId(), candidate)) {
+                continue;
+            }
+            if (candidate.equals(mapping.getPaymentMethodId())) {
+                // The failed payment was routed away from the payment method of the invoice, which is fine again
+                return null;
+            }
+            // Another node may have switched it already, after a concurrent failure
+            if (dao.updateInvoicePaymentMethod(invoiceId, mapping.getPaymentMethodId(), candidate, context.getTenantId())) {
+                nbReroutes.increment();
+                logger.info("Payment of invoice {} failed with payment method {}, switching to {}", invoiceId, failedPaymentMethodId, candidate);
+                return candidate;
+            }
+            return null;
+        }
+        return null;
+    }
+
+    public boolean isBad(final UUID tenantId, final UUID paymentMethodId) {
+        final long now = clock.getClock().getUTCNow().getMillis();
+        refreshIfNeeded(now);
+        final Long badUntil = badPaymentMethods.get(new InvgrpTenantKey(tenantId, paymentMethodId));
+        return badUntil != null && badUntil > now;
+    }
+
+    // Visible for testing
+    void recordFailure(final UUID tenantId, final UUID paymentMethodId) throws SQLException {
+        nbFailures.increment();
+        final DateTime now = clock.getClock().getUTCNow();
+        for (int attempt = 0; attempt < MAX_SAVE_ATTEMPTS; attempt++) {
+            final InvgrpPaymentMethodFailure current = dao.getPaymentMethodFailure(paymentMethodId, tenantId);
+            final double score = (current != null ? current.getScore(now.getMillis(), halfLifeMillis) : 0) + 1;
+            LocalDateTime badUntilDate = getBadUntilDate(score, now);
+            if (current != null && current.getBadUntilDate() != null && (badUntilDate == null || current.getBadUntilDate().isAfter(badUntilDate))) {
+                badUntilDate = current.getBadUntilDate();
+            }
+            final InvgrpPaymentMethodFailure failure = new InvgrpPaymentMethodFailure(tenantId,
+                                                                                      paymentMethodId,
+                                                                                      score,
+                                                                                      current != null ? current.getNbFailures() + 1 : 1,
+                                                                                      toLocalDateTime(now),
+                                                                                      badUntilDate);
+            if (dao.savePaymentMethodFailure(failure, current != null ? current.getNbFailures() : 0)) {
+                if (badUntilDate != null && badUntilDate.isAfter(toLocalDateTime(now))) {
+                    if (badPaymentMethods.put(new InvgrpTenantKey(tenantId, paymentMethodId), toMillis(badUntilDate)) == null) {
+                        logger.warn("Payment method {} is bad until {} (failure score {})", paymentMethodId, badUntilDate, score);
+                    }
+                }
+                return;
+            }
+        }
+        logger.warn("Unable to record the failure of payment method {}: too many concurrent failures", paymentMethodId);
+    }
+
+    //
+    // Time for the score to decay from score to badScore / 2: log2(2 * score / badScore) half-lives
+    //
+    private LocalDateTime getBadUntilDate(final double score, final DateTime now) {
+        if (badScore <= 0 || Math.round(score) < badScore) {
+            return null;
+        }
+        final double nbHalfLives = Math.log(2 * score / badScore) / Math.log(2);
+        return toLocalDateTime(now.plus((long) (nbHalfLives * halfLifeMillis)));
+    }
+
+    private List<UUID> getChain(final InvgrpPaymentMethodMapping mapping, final TenantContext context) throws SQLException {
+        final Set<UUID> chain = new LinkedHashSet<UUID>();
+        if (mapping.getSubscriptionId() != null) {
+            // Cached with the mapping of the subscription
+            chain.addAll(paymentMethodStore.getPaymentMethodChain(mapping.getAccountId(), mapping.getSubscriptionId(), context));
+        }
+        if (chain.isEmpty() && mapping.getPaymentMethodId() != null) {
+            chain.add(mapping.getPaymentMethodId());
+        }
+        return new ArrayList<UUID>(chain);
+    }
+
+    //
+    // Pick up the payment methods marked bad by the other nodes (at most one caller refreshes, the others use the current view)
+    //
+    private void refreshIfNeeded(final long now) {
+        final long lastRefresh = lastRefreshMillis.get();
+        if (now - lastRefresh < refreshMillis || !lastRefreshMillis.compareAndSet(lastRefresh, now)) {
+            return;
+        }
+        try {
+            final Map<InvgrpTenantKey, Long> refreshed = new ConcurrentHashMap<InvgrpTenantKey, Long>();
+            for (final InvgrpPaymentMethodFailure failure : dao.getBadPaymentMethods(new DateTime(now, DateTimeZone.UTC))) {
+                refreshed.put(new InvgrpTenantKey(failure.getTenantId(), failure.getPaymentMethodId()), toMillis(failure.getBadUntilDate()));
+            }
+            badPaymentMethods.keySet().retainAll(refreshed.keySet());
+            badPaymentMethods.putAll(refreshed);
+        } catch (final SQLException | RuntimeException e) {
+            logger.warn("Failed to refresh the bad payment methods", e);
+        }
+    }
+
+    private static LocalDateTime toLocalDateTime(final DateTime date) {
+        return LocalDateTime.ofEpochSecond(date.getMillis() / 1000, 0, ZoneOffset.UTC);
+    }
+
+    private static long toMillis(final LocalDateTime date) {
+        return date.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.customfield.CustomField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Subscription -> payment method mappings, stored in the plugin table.
+ * <p>
+ * Mappings created by previous versions of the plugin are stored as PM_ID custom fields on the subscriptions: when enabled,
+ * those are used as a fallback, and copied to the plugin table the first time they are read.
+ * <p>
+ * Mappings still in the {@link InvgrpPaymentMethodQueue} are written before the mappings of an account are loaded, so
+ * that they are visible as soon as the subscription is created.
+ * <p>
+ * The fallback payment methods of the mapped subscriptions (see {@link InvgrpPaymentMethodRouter}) are loaded and cached
+ * with their mappings.
+ * <p>
+ * The payment method of each invoice is also indexed when the invoice is generated, so that the payment control plugin
+ * can resolve it from the invoice id alone.
+ */
+public class InvgrpPaymentMethodStore {
+
+    public static final String CUSTOM_FIELD_FALLBACK_PROPERTY = "org.killbill.billing.plugin.invgrp.customFieldFallback";
+
+    private static final Logger logger = LoggerFactory.getLogger(InvgrpPaymentMethodStore.class);
+
+    private final InvgrpDao dao;
+    private final OSGIKillbillAPI killbillAPI;
+    private final OSGIKillbillClock clock;
+    private final InvgrpCache<InvgrpTenantKey, InvgrpPaymentMethodMapping> paymentMethodCache;
+    private final boolean customFieldFallback;
+    private final InvgrpPaymentMethodQueue pendingPaymentMethods;
+
+    public InvgrpPaymentMethodStore(final InvgrpDao dao,
+                                    final OSGIKillbillAPI killbillAPI,
+                                    final OSGIKillbillClock clock,
+                                    final InvgrpCache<InvgrpTenantKey, InvgrpPaymentMethodMapping> paymentMethodCache,
+                                    final boolean customFieldFallback,
+                                    @Nullable final InvgrpPaymentMethodQueue pendingPaymentMethods) {
+        this.dao = dao;
+        this.killbillAPI = killbillAPI;
+        this.clock = clock;
+        this.paymentMethodCache = paymentMethodCache;
+        this.customFieldFallback = customFieldFallback;
+        this.pendingPaymentMethods = pendingPaymentMethods;
+    }
+
+    /**
+     * @return true if the mapping was created, false if the subscription was already mapped
+     */
+    public boolean addPaymentMethod(final UUID accountId, final UUID subscriptionId, final UUID paymentMethodId, final TenantContext context) throws SQLException {
+        return dao.addPaymentMethodMapping(accountId, subscriptionId, paymentMethodId, clock.getClock().getUTCNow(), context.getTenantId());
+    }
+
+    /**
+     * Cached lookup of the payment method of a subscription.
+     */
+    public UUID getPaymentMethodId(final UUID accountId, final UUID subscriptionId, final TenantContext context) throws SQLException {
+        final InvgrpTenantKey key = new InvgrpTenantKey(context.getTenantId(), subscriptionId);
+        final InvgrpPaymentMethodMapping cached = paymentMethodCache.get(key);
+        if (cached != null) {
+            return cached.getPaymentMethodId();
+        }
+
+        //
+        // When paying all the (split) invoices of an account, we get one call per invoice: on the first miss, load the mappings
+        // for all the subscriptions of the account at once, so that the following calls are served from the cache. We also cache
+        // the absence of mapping, to avoid a lookup on each payment.
+        //
+        return loadAccount(accountId, List.of(subscriptionId), context).get(subscriptionId);
+    }
+
+    /**
+     * Cached lookup of the payment method chain of a subscription: its payment method, then its fallback payment methods.
+     *
+     * @return the chain, empty if the subscription isn't mapped
+     */
+    public List<UUID> getPaymentMethodChain(final UUID accountId, final UUID subscriptionId, final TenantContext context) throws SQLException {
+        final InvgrpTenantKey key = new InvgrpTenantKey(context.getTenantId(), subscriptionId);
+        InvgrpPaymentMethodMapping mapping = paymentMethodCache.get(key);
+        if (mapping == null) {
+            loadAccount(accountId, List.of(subscriptionId), context);
+            mapping = paymentMethodCache.get(key);
+        }
+        if (mapping == null || mapping.getPaymentMethodId() == null) {
+            return List.of();
+        }
+        final List<UUID> chain = new ArrayList<UUID>(1 + mapping.getFallbackPaymentMethodIds().size());
+        chain.add(mapping.getPaymentMethodId());
+        chain.addAll(mapping.getFallbackPaymentMethodIds());
+        return chain;
+    }
+
+    /**
+     * Cached bulk lookup of the payment methods of several subscriptions of an account: at most one account load, whatever
+     * the number of subscriptions.
+     *
+     * @return the payment method id keyed by subscription id, for the mapped subscriptions only
+     */
+    public Map<UUID, UUID> getPaymentMethodIds(final UUID accountId, final Collection<UUID> subscriptionIds, final TenantContext context) throws SQLException {
+        final Map<UUID, UUID> paymentMethodIds = new HashMap<UUID, UUID>();
+        for (final UUID subscriptionId : subscriptionIds) {
+            final InvgrpPaymentMethodMapping cached = paymentMethodCache.get(new InvgrpTenantKey(context.getTenantId(), subscriptionId));
+            if (cached == null) {
+                return loadAccount(accountId, subscriptionIds, context);
+            }
+            if (cached.getPaymentMethodId() != null) {
+                paymentMethodIds.put(subscriptionId, cached.getPaymentMethodId());
+            }
+        }
+        return paymentMethodIds;
+    }
+
+    private Map<UUID, UUID> loadAccount(final UUID accountId, final Collection<UUID> subscriptionIds, final TenantContext context) throws SQLException {
+        final Map<UUID, UUID> accountPaymentMethodIds = getPaymentMethodIdsForAccount(accountId, context);
+        final Map<UUID, List<UUID>> fallbackPaymentMethodIds = dao.getFallbackPaymentMethodIds(accountPaymentMethodIds.keySet(), context.getTenantId());
+        for (final Map.Entry<UUID, UUID> entry : accountPaymentMethodIds.entrySet()) {
+            paymentMethodCache.put(new InvgrpTenantKey(context.getTenantId(), entry.getKey()),
+                                   new InvgrpPaymentMethodMapping(context.getTenantId(),
+                                                                  accountId,
+                                                                  entry.getKey(),
+                                                                  entry.getValue(),
+                                                                  fallbackPaymentMethodIds.getOrDefault(entry.getKey(), List.of())));
+        }
+        final Map<UUID, UUID> paymentMethodIds = new HashMap<UUID, UUID>();
+        for (final UUID subscriptionId : subscriptionIds) {
+            final UUID paymentMethodId = accountPaymentMethodIds.get(subscriptionId);
+            if (paymentMethodId != null) {
+                paymentMethodIds.put(subscriptionId, paymentMethodId);
+            } else {
+                paymentMethodCache.put(new InvgrpTenantKey(context.getTenantId(), subscriptionId),
+                                       new InvgrpPaymentMethodMapping(context.getTenantId(), accountId, subscriptionId, null));
+            }
+        }
+        return paymentMethodIds;
+    }
+
+    /**
+     * Records the payment method to use for a (split) invoice, so that payments don't have to load the invoice again.
+     * Invoices of subscriptions not mapped yet are recorded without payment method, and updated when the mapping is written.
+     */
+    public void addInvoicePaymentMethod(final Invoice invoice, final TenantContext context) throws SQLException {
+        // One subscription per invoice by default, several when grouping by payment method (or bundle, etc.)
+        final Set<UUID> subscriptionIds = getSubscriptionIds(invoice);
+        final UUID subscriptionId = subscriptionIds.isEmpty() ? null : subscriptionIds.iterator().next();
+        UUID paymentMethodId = null;
+        if (subscriptionIds.size() == 1) {
+            paymentMethodId = getPaymentMethodId(invoice.getAccountId(), subscriptionId, context);
+        } else if (subscriptionIds.size() > 1) {
+            final Map<UUID, UUID> paymentMethodIds = getPaymentMethodIds(invoice.getAccountId(), subscriptionIds, context);
+            paymentMethodId = paymentMethodIds.get(subscriptionId);
+            final Set<UUID> distinctPaymentMethodIds = new HashSet<UUID>();
+            subscriptionIds.forEach(id -> distinctPaymentMethodIds.add(paymentMethodIds.get(id)));
+            if (distinctPaymentMethodIds.size() > 1) {
+                logger.warn("Subscriptions of invoice {} have different payment methods, using {}", invoice.getId(), paymentMethodId);
+            }
+        }
+        dao.addInvoicePaymentMethod(invoice.getId(), invoice.getAccountId(), subscriptionId, paymentMethodId, clock.getClock().getUTCNow(), context.getTenantId());
+    }
+
+    /**
+     * Invoices recorded without payment method get the payment method of their subscription, once it is mapped: it is
+     * written to the index, so that the invoice can be switched to another payment method (see
+     * {@link InvgrpPaymentMethodRouter#onFailure}).
+     *
+     * @return the mapping recorded for the invoice (see {@link #addInvoicePaymentMethod}), or null if the invoice wasn't indexed
+     */
+    public InvgrpPaymentMethodMapping getInvoicePaymentMethod(final UUID invoiceId, final TenantContext context) throws SQLException {
+        final InvgrpPaymentMethodMapping indexed = dao.getInvoicePaymentMethod(invoiceId, context.getTenantId());
+        if (indexed == null || indexed.getPaymentMethodId() != null || indexed.getSubscriptionId() == null) {
+            return indexed;
+        }
+
+        // Indexed before the mapping of its subscription was written (queued mapping, bulk import, legacy custom field):
+        // the mapping may exist by now (cached lookup)
+        final UUID paymentMethodId = getPaymentMethodId(indexed.getAccountId(), indexed.getSubscriptionId(), context);
+        if (paymentMethodId == null) {
+            return indexed;
+        }
+        if (dao.updateInvoicePaymentMethod(invoiceId, null, paymentMethodId, context.getTenantId())) {
+            return new InvgrpPaymentMethodMapping(context.getTenantId(), indexed.getAccountId(), indexed.getSubscriptionId(), paymentMethodId);
+        }
+        // Written concurrently (e.g. when the mapping was)
+        return dao.getInvoicePaymentMethod(invoiceId, context.getTenantId());
+    }
+
+    public static UUID getSubscriptionId(final Invoice invoice) {
+        return invoice.getInvoiceItems()
+                      .stream()
+                      .map(InvoiceItem::getSubscriptionId)
+                      .filter(Objects::nonNull)
+                      .findFirst()
+                      .orElse(null);
+    }
+
+    /**
+     * @return the distinct subscription ids of the invoice, in item order
+     */
+    public static Set<UUID> getSubscriptionIds(final Invoice invoice) {
+        final Set<UUID> subscriptionIds = new LinkedHashSet<UUID>();
+        for (final InvoiceItem item : invoice.getInvoiceItems()) {
+            if (item.getSubscriptionId() != null) {
+                subscriptionIds.add(item.getSubscriptionId());
+            }
+        }
+        return subscriptionIds;
+    }
+
+    /**
+     * Bulk load of all the mappings of an account (one query, plus one custom field listing when the fallback is enabled, and
+     * the processing of the queued mappings of the account if any).
+     *
+     * @return the payment method id keyed by subscription id, for the mapped subscriptions of the account
+     */
+    public Map<UUID, UUID> getPaymentMethodIdsForAccount(final UUID accountId, final TenantContext context) throws SQLException {
+        if (pendingPaymentMethods != null) {
+            pendingPaymentMethods.flush(accountId, context);
+        }
+
+        final List<InvgrpPaymentMethodMapping> mappings = dao.getPaymentMethodMappingsForAccount(accountId, context.getTenantId());
+        final Map<UUID, UUID> paymentMethodIds = new HashMap<UUID, UUID>();
+        for (final InvgrpPaymentMethodMapping mapping : mappings) {
+            paymentMethodIds.put(mapping.getSubscriptionId(), mapping.getPaymentMethodId());
+        }
+        if (!customFieldFallback) {
+            return paymentMethodIds;
+        }
+
+        final List<CustomField> fields = InvgrpMetrics.killbill(() -> killbillAPI.getCustomFieldUserApi().getCustomFieldsForAccountType(accountId, ObjectType.SUBSCRIPTION, context));
+        for (final CustomField field : fields) {
+            if (!field.getFieldName().equals(InvgrpEntitlementPluginApi.PM_ID) || paymentMethodIds.containsKey(field.getObjectId())) {
+                continue;
+            }
+            final UUID paymentMethodId;
+            try {
+                paymentMethodId = UUID.fromString(field.getFieldValue());
+            } catch (final IllegalArgumentException | NullPointerException e) {
+                // Set by hand: the subscription is reported as not mapped, rather than failing the whole account
+                logger.warn("Ignoring invalid PM_ID custom field '{}' for subscription {}", field.getFieldValue(), field.getObjectId());
+                continue;
+            }
+            paymentMethodIds.put(field.getObjectId(), paymentMethodId);
+            try {
+                addPaymentMethod(accountId, field.getObjectId(), paymentMethodId, context);
+            } catch (final SQLException e) {
+                logger.warn("Failed to migrate custom field mapping for subscription {}", field.getObjectId(), e);
+            }
+        }
+        return paymentMethodIds;
+    }
+}
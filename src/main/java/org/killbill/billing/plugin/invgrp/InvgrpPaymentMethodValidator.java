@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import org.killbill.billing.ErrorCode;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.payment.api.PaymentApiException;
+import org.killbill.billing.payment.api.PaymentMethod;
+import org.killbill.billing.util.callcontext.TenantContext;
+
+/**
+ * Validation of the payment methods attached to new subscriptions, cached per tenant and payment method id.
+ * <p>
+ * Existing payment methods are remembered (with their account, for invalidation) and unknown ones are remembered for a
+ * shorter time, so that creating many subscriptions with the same payment method (or retrying an invalid one) only hits
+ * the payment tables once. Kill Bill doesn't publish payment method events: entries expire after their time-to-live,
+ * and {@link InvgrpListener} drops the entries of an account when it changes (e.g. new default payment method). Failed
+ * payments don't invalidate anything: a decline doesn't mean the payment method was deleted, and the time-to-live
+ * already bounds how long a deleted one is considered valid.
+ */
+public class InvgrpPaymentMethodValidator {
+
+    private final OSGIKillbillAPI killbillAPI;
+    // Payment method -> account
+    private final InvgrpCache<InvgrpTenantKey, UUID> validPaymentMethods;
+    private final InvgrpCache<InvgrpTenantKey, Boolean> unknownPaymentMethods;
+
+    public InvgrpPaymentMethodValidator(final OSGIKillbillAPI killbillAPI,
+                                        final InvgrpCache<InvgrpTenantKey, UUID> validPaymentMethods,
+                                        final InvgrpCache<InvgrpTenantKey, Boolean> unknownPaymentMethods) {
+        this.killbillAPI = killbillAPI;
+        this.validPaymentMethods = validPaymentMethods;
+        this.unknownPaymentMethods = unknownPaymentMethods;
+    }
+
+    /**
+     * @throws PaymentApiException if the payment method doesn't exist (or can't be retrieved)
+     */
+    public void validate(final UUID paymentMethodId, final TenantContext context) throws PaymentApiException {
+        getAccountId(paymentMethodId, context);
+    }
+
+    /**
+     * @return the account of the payment method
+     * @throws PaymentApiException if the payment method doesn't exist (or can't be retrieved)
+     */
+    public UUID getAccountId(final UUID paymentMethodId, final TenantContext context) throws PaymentApiException {
+        final InvgrpTenantKey key = new InvgrpTenantKey(context.getTenantId(), paymentMethodId);
+        final UUID cachedAccountId = validPaymentMethods.get(key);
+        if (cachedAccountId != null) {
+            return cachedAccountId;
+        }
+        if (unknownPaymentMethods.get(key) != null) {
+            throw new PaymentApiException(ErrorCode.PAYMENT_NO_SUCH_PAYMENT_METHOD, paymentMethodId);
+        }
+
+        final PaymentMethod paymentMethod;
+        try {
+            paymentMethod = InvgrpMetrics.killbill(() -> killbillAPI.getPaymentApi().getPaymentMethodById(paymentMethodId, false, false, Collections.emptyList(), context));
+        } catch (final PaymentApiException e) {
+            // Don't remember transient errors
+            if (e.getCode() == ErrorCode.PAYMENT_NO_SUCH_PAYMENT_METHOD.getCode()) {
+                unknownPaymentMethods.put(key, Boolean.TRUE);
+            }
+            throw e;
+        }
+        validPaymentMethods.put(key, paymentMethod.getAccountId());
+        // Created since it was cached as unknown
+        unknownPaymentMethods.invalidate(key);
+        return paymentMethod.getAccountId();
+    }
+
+    /**
+     * Forget the payment methods of an account (unknown payment methods expire on their own, after a short time).
+     */
+    public void invalidateAccount(final UUID accountId) {
+        validPaymentMethods.invalidateIf(accountId::equals);
+    }
+}
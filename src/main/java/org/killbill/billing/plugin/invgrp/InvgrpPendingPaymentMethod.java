@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Subscription -> payment method mapping waiting to be written (see {@link InvgrpPaymentMethodQueue}). The subscription
+ * is only known by its external key until the mapping is processed.
+ */
+public final class InvgrpPendingPaymentMethod {
+
+    private final long recordId;
+    private final UUID tenantId;
+    private final UUID accountId;
+    private final String subscriptionExternalKey;
+    private final UUID paymentMethodId;
+    private final List<UUID> fallbackPaymentMethodIds;
+    private final int attempts;
+    private final LocalDateTime nextAttemptDate;
+
+    public InvgrpPendingPaymentMethod(final long recordId,
+                                      final UUID tenantId,
+                                      final UUID accountId,
+                                      final String subscriptionExternalKey,
+                                      final UUID paymentMethodId,
+                                      final List<UUID> fallbackPaymentMethodIds,
+                                      final int attempts,
+                                      final LocalDateTime nextAttemptDate) {
+        this.recordId = recordId;
+        this.tenantId = tenantId;
+        this.accountId = accountId;
+        this.subscriptionExternalKey = subscriptionExternalKey;
+        this.paymentMethodId = paymentMethodId;
+        this.fallbackPaymentMethodIds = fallbackPaymentMethodIds;
+        this.attempts = attempts;
+        this.nextAttemptDate = nextAttemptDate;
+    }
+
+    public long getRecordId() {
+        return recordId;
+    }
+
+    public UUID getTenantId() {
+        return tenantId;
+    }
+
+    public UUID getAccountId() {
+        return accountId;
+    }
+
+    public String getSubscriptionExternalKey() {
+        return subscriptionExternalKey;
+    }
+
+    public UUID getPaymentMethodId() {
+        return paymentMethodId;
+    }
+
+    /**
+     * @return the fallback payment methods to record with the mapping, in order (empty if none)
+     */
+    public List<UUID> getFallbackPaymentMethodIds() {
+        return fallbackPaymentMethodIds;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public LocalDateTime getNextAttemptDate() {
+        return nextAttemptDate;
+    }
+
+    @Override
+    public String toString() {
+        return "InvgrpPendingPaymentMethod{recordId=" + recordId + ", accountId=" + accountId + ", subscriptionExternalKey=" + subscriptionExternalKey +
+               ", paymentMethodId=" + paymentMethodId + ", fallbackPaymentMethodIds=" + fallbackPaymentMethodIds + ", attempts=" + attempts + "}";
+    }
+}
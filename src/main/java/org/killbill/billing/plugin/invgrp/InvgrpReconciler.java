@@ -0,0 +1,415 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.entitlement.api.Entitlement.EntitlementState;
+import org.killbill.billing.entitlement.api.Subscription;
+import org.killbill.billing.entitlement.api.SubscriptionBundle;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
+import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
+import org.killbill.billing.osgi.libs.killbill.OSGIServiceNotAvailable;
+import org.killbill.billing.payment.api.PaymentMethod;
+import org.killbill.billing.plugin.api.PluginTenantContext;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.entity.Pagination;
+import org.killbill.commons.metrics.api.Gauge;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background check of the subscription -> payment method mappings: active subscriptions without mapping (e.g. created
+ * without PM_ID), and mappings to a payment method which isn't an active payment method of the account anymore (e.g.
+ * deleted). Payments of such subscriptions silently fall back to the default payment method of the account.
+ * <p>
+ * Each tenant is checked every intervalMin minutes, one after the other: the accounts are walked page by
+ * page, the accounts of a page being checked by a bounded pool of threads, at most accountsPerSec accounts per second
+ * (each account costs one mapping load, one or two Kill Bill calls). The offset of the next page is saved in the
+ * invgrp_reconciler_checkpoints table after each page, so that a restart resumes the pass instead of starting over. A
+ * lease in the same table makes sure only one node reconciles a given tenant.
+ * <p>
+ * The tenants to check are the ones of that table: a row is added the first time a node sees an event of a tenant (see
+ * {@link #addTenant}), whether or not it has mappings, and once per node start for the tenants with mappings (so that
+ * existing installations don't wait for an event).
+ * <p>
+ * Nothing is fixed: the counts of each pass are kept in the checkpoint table and exposed as metrics, and the first
+ * findings of the last pass are logged and kept in memory (see {@link #getReport}).
+ */
+public class InvgrpReconciler {
+
+    public static final String INTERVAL_MIN_PROPERTY = "org.killbill.billing.plugin.invgrp.reconciler.intervalMin";
+    public static final String THREADS_PROPERTY = "org.killbill.billing.plugin.invgrp.reconciler.threads";
+    public static final String PAGE_SIZE_PROPERTY = "org.killbill.billing.plugin.invgrp.reconciler.pageSize";
+    public static final String ACCOUNTS_PER_SEC_PROPERTY = "org.killbill.billing.plugin.invgrp.reconciler.accountsPerSec";
+
+    static final int MAX_FINDINGS = 100;
+
+    private static final Logger logger = LoggerFactory.getLogger(InvgrpReconciler.class);
+
+    // Extended after each page: a node which goes away only blocks its tenants that long
+    private static final long LEASE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long POLL_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final InvgrpDao dao;
+    private final OSGIKillbillAPI killbillAPI;
+    private final OSGIKillbillClock clock;
+    private final InvgrpPaymentMethodStore paymentMethodStore;
+    private final int intervalMin;
+    private final int nbThreads;
+    private final int pageSize;
+    private final int accountsPerSec;
+
+    private final LongAdder nbAccounts = new LongAdder();
+    private final LongAdder nbMissing = new LongAdder();
+    private final LongAdder nbDangling = new LongAdder();
+    private final LongAdder nbErrors = new LongAdder();
+    private final Map<UUID, Report> reports = new ConcurrentHashMap<UUID, Report>();
+    private final Set<UUID> knownTenants = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean seeded;
+
+    private volatile ExecutorService workers;
+    private ScheduledExecutorService scheduler;
+
+    public InvgrpReconciler(final InvgrpDao dao,
+                            final OSGIKillbillAPI killbillAPI,
+                            final OSGIKillbillClock clock,
+                            final InvgrpPaymentMethodStore paymentMethodStore,
+                            final int intervalMin,
+                            final int nbThreads,
+                            final int pageSize,
+                            final int accountsPerSec) {
+        this.dao = dao;
+        this.killbillAPI = killbillAPI;
+        this.clock = clock;
+        this.paymentMethodStore = paymentMethodStore;
+        this.intervalMin = intervalMin;
+        this.nbThreads = nbThreads;
+        this.pageSize = pageSize;
+        this.accountsPerSec = accountsPerSec;
+    }
+
+    public synchronized void start() {
+        if (intervalMin <= 0 || workers != null) {
+            return;
+        }
+        workers = Executors.newFixedThreadPool(nbThreads, r -> newThread(r, "invgrp-reconciler-worker"));
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> newThread(r, "invgrp-reconciler"));
+        scheduler.scheduleWithFixedDelay(this::reconcile, POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (workers == null) {
+            return;
+        }
+        // The current page is checked again at the next start
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+        workers.awaitTermination(10, TimeUnit.SECONDS);
+        workers = null;
+        scheduler = null;
+    }
+
+    public void registerMetrics(final OSGIMetricRegistry metricRegistry) {
+        try {
+            final MetricRegistry registry = metricRegistry.getMetricRegistry();
+            registry.gauge("invgrp.reconciler.accounts", (Gauge<Long>) nbAccounts::sum);
+            registry.gauge("invgrp.reconciler.missing", (Gauge<Long>) nbMissing::sum);
+            registry.gauge("invgrp.reconciler.dangling", (Gauge<Long>) nbDangling::sum);
+            registry.gauge("invgrp.reconciler.errors", (Gauge<Long>) nbErrors::sum);
+        } catch (final OSGIServiceNotAvailable ignored) {
+            logger.warn("No MetricRegistry available, metrics for the reconciler won't be exposed");
+        }
+    }
+
+    /**
+     * @return the report of the last pass completed by this node for the tenant, or null
+     */
+    public Report getReport(final UUID tenantId) {
+        return reports.get(tenantId);
+    }
+
+    public Collection<Report> getReports() {
+        return reports.values();
+    }
+
+    /**
+     * Make sure the tenant gets reconciled: only the first call for a given tenant hits the database.
+     */
+    public void addTenant(final UUID tenantId) {
+        if (intervalMin <= 0 || tenantId == null || !knownTenants.add(tenantId)) {
+            return;
+        }
+        try {
+            dao.addReconcilerCheckpoint(tenantId, clock.getClock().getUTCNow());
+        } catch (final SQLException | RuntimeException e) {
+            // Retried at the next event of the tenant
+            knownTenants.remove(tenantId);
+            logger.warn("Failed to register tenant {} for the reconciliation", tenantId, e);
+        }
+    }
+
+    // Visible for testing
+    void reconcile() {
+        try {
+            if (!seeded) {
+                for (final UUID tenantId : dao.getMappedTenants()) {
+                    addTenant(tenantId);
+                }
+                seeded = true;
+            }
+            for (final InvgrpReconcilerCheckpoint checkpoint : dao.getReconcilerCheckpoints()) {
+                reconcile(checkpoint.getTenantId());
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final SQLException | RuntimeException e) {
+            logger.warn("Failed to reconcile the payment method mappings", e);
+        }
+    }
+
+    private void reconcile(final UUID tenantId) throws SQLException, InterruptedException {
+        DateTime now = clock.getClock().getUTCNow();
+        InvgrpReconcilerCheckpoint checkpoint = dao.claimReconcilerCheckpoint(tenantId, now, now.minusMinutes(intervalMin), now.plus(LEASE_MILLIS));
+        if (checkpoint == null) {
+            return;
+        }
+        if (checkpoint.getPassStartedDate() == null || checkpoint.getPassCompletedDate() != null) {
+            checkpoint = new InvgrpReconcilerCheckpoint(tenantId, 0, 0, 0, 0, 0, toLocalDateTime(now), null);
+            logger.info("Starting the reconciliation of the payment method mappings of tenant {}", tenantId);
+        } else {
+            logger.info("Resuming the reconciliation of the payment method mappings of tenant {} at account {}", tenantId, checkpoint.getAccountOffset());
+        }
+
+        final Pacer pacer = accountsPerSec > 0 ? new Pacer(accountsPerSec) : null;
+        final List<String> findings = new ArrayList<String>();
+        while (true) {
+            final List<UUID> accountIds = getAccountIds(tenantId, checkpoint.getAccountOffset());
+            final Tally tally = check(tenantId, accountIds, pacer, findings);
+
+            now = clock.getClock().getUTCNow();
+            final boolean completed = accountIds.size() < pageSize;
+            checkpoint = new InvgrpReconcilerCheckpoint(tenantId,
+                                                        completed ? 0 : checkpoint.getAccountOffset() + accountIds.size(),
+                                                        checkpoint.getNbAccounts() + tally.accounts.sum(),
+                                                        checkpoint.getNbMissing() + tally.missing.sum(),
+                                                        checkpoint.getNbDangling() + tally.dangling.sum(),
+                                                        checkpoint.getNbErrors() + tally.errors.sum(),
+                                                        checkpoint.getPassStartedDate(),
+                                                        completed ? toLocalDateTime(now) : null);
+            dao.saveReconcilerCheckpoint(checkpoint, now, completed ? null : now.plus(LEASE_MILLIS));
+            if (completed) {
+                break;
+            }
+        }
+
+        final Report report = new Report(checkpoint, findings);
+        reports.put(tenantId, report);
+        if (checkpoint.getNbMissing() > 0 || checkpoint.getNbDangling() > 0 || checkpoint.getNbErrors() > 0) {
+            logger.warn("Reconciled the payment method mappings of tenant {}: {}", tenantId, checkpoint);
+        } else {
+            logger.info("Reconciled the payment method mappings of tenant {}: {}", tenantId, checkpoint);
+        }
+    }
+
+    private List<UUID> getAccountIds(final UUID tenantId, final long offset) {
+        final TenantContext context = new PluginTenantContext(null, tenantId);
+        final List<UUID> accountIds = new ArrayList<UUID>(pageSize);
+        try (final Pagination<Account> accounts = InvgrpMetrics.killbill(() -> killbillAPI.getAccountUserApi().getAccounts(offset, (long) pageSize, context))) {
+            for (final Account account : accounts) {
+                accountIds.add(account.getId());
+            }
+        } catch (final IOException e) {
+            logger.debug("Failed to close the accounts page", e);
+        }
+        return accountIds;
+    }
+
+    private Tally check(final UUID tenantId, final List<UUID> accountIds, final Pacer pacer, final List<String> findings) throws InterruptedException {
+        final Tally tally = new Tally();
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>(accountIds.size());
+        for (final UUID accountId : accountIds) {
+            futures.add(workers.submit(() -> {
+                if (pacer != null) {
+                    pacer.acquire();
+                }
+                check(tenantId, accountId, tally, findings);
+                return null;
+            }));
+        }
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (final ExecutionException e) {
+                    logger.warn("Failed to reconcile the payment method mappings of account {}", accountIds.get(i), e.getCause());
+                    tally.errors.increment();
+                    nbErrors.increment();
+                }
+            }
+        } catch (final InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            throw e;
+        }
+        return tally;
+    }
+
+    private void check(final UUID tenantId, final UUID accountId, final Tally tally, final List<String> findings) throws Exception {
+        final TenantContext context = new PluginTenantContext(accountId, tenantId);
+        // Includes the queued mappings, and the PM_ID custom fields when the fallback is enabled
+        final Map<UUID, UUID> paymentMethodIds = paymentMethodStore.getPaymentMethodIdsForAccount(accountId, context);
+        final List<SubscriptionBundle> bundles = InvgrpMetrics.killbill(() -> killbillAPI.getSubscriptionApi().getSubscriptionBundlesForAccountId(accountId, context));
+
+        Set<UUID> activePaymentMethodIds = null;
+        for (final SubscriptionBundle bundle : bundles) {
+            for (final Subscription subscription : bundle.getSubscriptions()) {
+                if (subscription.getState() == EntitlementState.CANCELLED) {
+                    continue;
+                }
+                final UUID paymentMethodId = paymentMethodIds.get(subscription.getId());
+                if (paymentMethodId == null) {
+                    tally.missing.increment();
+                    nbMissing.increment();
+                    addFinding(findings, String.format("account %s, subscription %s: no payment method mapping", accountId, subscription.getId()));
+                    continue;
+                }
+                // Only looked up for accounts with mappings
+                if (activePaymentMethodIds == null) {
+                    activePaymentMethodIds = getActivePaymentMethodIds(accountId, context);
+                }
+                if (!activePaymentMethodIds.contains(paymentMethodId)) {
+                    tally.dangling.increment();
+                    nbDangling.increment();
+                    addFinding(findings, String.format("account %s, subscription %s: payment method %s isn't an active payment method of the account", accountId, subscription.getId(), paymentMethodId));
+                }
+            }
+        }
+        tally.accounts.increment();
+        nbAccounts.increment();
+    }
+
+    private Set<UUID> getActivePaymentMethodIds(final UUID accountId, final TenantContext context) throws Exception {
+        final List<PaymentMethod> paymentMethods = InvgrpMetrics.killbill(() -> killbillAPI.getPaymentApi().getAccountPaymentMethods(accountId, false, false, List.of(), context));
+        final Set<UUID> paymentMethodIds = new HashSet<UUID>();
+        for (final PaymentMethod paymentMethod : paymentMethods) {
+            if (paymentMethod.isActive()) {
+                paymentMethodIds.add(paymentMethod.getId());
+            }
+        }
+        return paymentMethodIds;
+    }
+
+    private static void addFinding(final List<String> findings, final String finding) {
+        synchronized (findings) {
+            if (findings.size() >= MAX_FINDINGS) {
+                return;
+            }
+            findings.add(finding);
+        }
+        logger.warn("Payment method mapping issue for {}", finding);
+    }
+
+    private static LocalDateTime toLocalDateTime(final DateTime date) {
+        return LocalDateTime.ofEpochSecond(date.getMillis() / 1000, 0, ZoneOffset.UTC);
+    }
+
+    private static Thread newThread(final Runnable runnable, final String name) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Counts of a completed pass, with its first findings (only the ones found by this node, if the pass was resumed).
+     */
+    public static final class Report {
+
+        private final InvgrpReconcilerCheckpoint checkpoint;
+        private final List<String> findings;
+
+        private Report(final InvgrpReconcilerCheckpoint checkpoint, final List<String> findings) {
+            this.checkpoint = checkpoint;
+            this.findings = List.copyOf(findings);
+        }
+
+        public InvgrpReconcilerCheckpoint getCheckpoint() {
+            return checkpoint;
+        }
+
+        public List<String> getFindings() {
+            return findings;
+        }
+    }
+
+    // Counts of a page
+    private static final class Tally {
+
+        private final LongAdder accounts = new LongAdder();
+        private final LongAdder missing = new LongAdder();
+        private final LongAdder dangling = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+    }
+
+    //
+    // Spaces the account checks of a tenant by 1/accountsPerSec: each caller reserves the next slot, and waits for it
+    //
+    private static final class Pacer {
+
+        private final long intervalNanos;
+        private long nextNanos = System.nanoTime();
+
+        private Pacer(final int permitsPerSec) {
+            this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / permitsPerSec;
+        }
+
+        private void acquire() throws InterruptedException {
+            final long waitNanos;
+            synchronized (this) {
+                final long now = System.nanoTime();
+                final long slot = Math.max(now, nextNanos);
+                nextNanos = slot + intervalNanos;
+                waitNanos = slot - now;
+            }
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+/**
+ * Progress of the {@link InvgrpReconciler} pass of a tenant: the offset of the next page of accounts to check, and the
+ * counts of the current (or last, once completed) pass. Dates are UTC.
+ */
+public final class InvgrpReconcilerCheckpoint {
+
+    private final UUID tenantId;
+    private final long accountOffset;
+    private final long nbAccounts;
+    private final long nbMissing;
+    private final long nbDangling;
+    private final long nbErrors;
+    private final LocalDateTime passStartedDate;
+    private final LocalDateTime passCompletedDate;
+
+    public InvgrpReconcilerCheckpoint(final UUID tenantId,
+                                      final long accountOffset,
+                                      final long nbAccounts,
+                                      final long nbMissing,
+                                      final long nbDangling,
+                                      final long nbErrors,
+                                      @Nullable final LocalDateTime passStartedDate,
+                                      @Nullable final LocalDateTime passCompletedDate) {
+        this.tenantId = tenantId;
+        this.accountOffset = accountOffset;
+        this.nbAccounts = nbAccounts;
+        this.nbMissing = nbMissing;
+        this.nbDangling = nbDangling;
+        this.nbErrors = nbErrors;
+        this.passStartedDate = passStartedDate;
+        this.passCompletedDate = passCompletedDate;
+    }
+
+    public UUID getTenantId() {
+        return tenantId;
+    }
+
+    public long getAccountOffset() {
+        return accountOffset;
+    }
+
+    public long getNbAccounts() {
+        return nbAccounts;
+    }
+
+    /**
+     * @return the number of active subscriptions without payment method mapping
+     */
+    public long getNbMissing() {
+        return nbMissing;
+    }
+
+    /**
+     * @return the number of active subscriptions mapped to a payment method which isn't an active payment method of the account
+     */
+    public long getNbDangling() {
+        return nbDangling;
+    }
+
+    /**
+     * @return the number of accounts which couldn't be checked
+     */
+    public long getNbErrors() {
+        return nbErrors;
+    }
+
+    /**
+     * @return null if no pass was started yet
+     */
+    public LocalDateTime getPassStartedDate() {
+        return passStartedDate;
+    }
+
+    /**
+     * @return null while the pass is in progress
+     */
+    public LocalDateTime getPassCompletedDate() {
+        return passCompletedDate;
+    }
+
+    @Override
+    public String toString() {
+        return "InvgrpReconcilerCheckpoint{tenantId=" + tenantId + ", accountOffset=" + accountOffset + ", nbAccounts=" + nbAccounts +
+               ", nbMissing=" + nbMissing + ", nbDangling=" + nbDangling + ", nbErrors=" + nbErrors + "}";
+    }
+}
@@ -20,13 +20,24 @@ import java.util.Optional;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.jooby.Parser;
+import org.jooby.Result;
+import org.jooby.Results;
+import org.jooby.Status;
+import org.jooby.mvc.Body;
 import org.jooby.mvc.GET;
 import org.jooby.mvc.Local;
+import org.jooby.mvc.POST;
 import org.jooby.mvc.Path;
+import org.killbill.billing.plugin.invgrp.InvgrpMappingTransfer.ImportResult;
+import org.killbill.billing.plugin.invgrp.InvgrpMappingTransfer.NdjsonSource;
 import org.killbill.billing.tenant.api.Tenant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Inject;
+
 
 @Singleton
 @Path("/")
@@ -34,7 +45,26 @@ public class InvgrpServlet {
 
     private static final Logger logger = LoggerFactory.getLogger(InvgrpServlet.class);
 
-    public InvgrpServlet() {
+    private static final String NDJSON = "application/x-ndjson";
+
+    /**
+     * Hands the request body to {@link NdjsonSource} parameters as is (spooled by Jooby, not read into a String),
+     * to be registered on the {@link org.killbill.billing.plugin.core.resources.jooby.PluginApp}
+     */
+    static final Parser NDJSON_PARSER = (type, ctx) -> {
+        if (type.getRawType() == NdjsonSource.class) {
+            return ctx.body(body -> (NdjsonSource) body::writeTo);
+        }
+        return ctx.next();
+    };
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final InvgrpMappingTransfer mappingTransfer;
+
+    @Inject
+    public InvgrpServlet(final InvgrpMappingTransfer mappingTransfer) {
+        this.mappingTransfer = mappingTransfer;
     }
 
     /**
@@ -54,4 +84,34 @@ public class InvgrpServlet {
         	logger.info("tenant is not available");
         }
     }
+
+    /**
+     * Bulk import of subscription -> payment method mappings, one JSON object per line:
+     * {"accountId":"...","subscriptionId":"...","paymentMethodId":"..."}
+     * Insert only: the rows of subscriptions which already have a mapping are counted as existing, and left as is.
+     */
+    @POST
+    @Path("/mappings")
+    public Result importMappings(@Body final NdjsonSource body,
+                                 @Local @Named("killbill_tenant") final Optional<Tenant> tenant) throws Exception {
+        if (tenant == null || !tenant.isPresent()) {
+            return Results.with(Status.UNAUTHORIZED);
+        }
+        final ImportResult result = mappingTransfer.importMappings(body, tenant.get().getId());
+        logger.info("Imported payment method mappings for tenant {}: rows={}, created={}, existing={}, rejected={}",
+                    tenant.get().getId(), result.getNbRows(), result.getNbCreated(), result.getNbExisting(), result.getNbRejected());
+        return Results.ok(objectMapper.writeValueAsString(result)).type("application/json");
+    }
+
+    /**
+     * Bulk export of the subscription -> payment method mappings, in the import format
+     */
+    @GET
+    @Path("/mappings")
+    public Result exportMappings(@Local @Named("killbill_tenant") final Optional<Tenant> tenant) {
+        if (tenant == null || !tenant.isPresent()) {
+            return Results.with(Status.UNAUTHORIZED);
+        }
+        return Results.ok(mappingTransfer.exportMappings(tenant.get().getId())).type(NDJSON);
+    }
 }
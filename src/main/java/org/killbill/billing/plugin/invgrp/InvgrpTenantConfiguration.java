@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.Properties;
+
+/**
+ * Per-tenant configuration, compiled and validated once when the configuration changes. Immutable: plugin calls only
+ * read the typed settings, they never parse properties.
+ */
+public final class InvgrpTenantConfiguration {
+
+    public static final String GROUPING_ENABLED_PROPERTY = "org.killbill.billing.plugin.invgrp.grouping.enabled";
+
+    private final boolean groupingEnabled;
+    private final InvgrpGroupingStrategy groupingStrategy;
+
+    /**
+     * @throws IllegalArgumentException if a property is invalid
+     */
+    public InvgrpTenantConfiguration(final Properties properties) {
+        this.groupingEnabled = InvgrpGlobalConfiguration.getBoolean(properties, GROUPING_ENABLED_PROPERTY, true);
+        this.groupingStrategy = InvgrpGroupingStrategy.compile(properties);
+    }
+
+    /**
+     * @return false to leave the invoices of the tenant as generated by Kill Bill
+     */
+    public boolean isGroupingEnabled() {
+        return groupingEnabled;
+    }
+
+    public InvgrpGroupingStrategy getGroupingStrategy() {
+        return groupingStrategy;
+    }
+
+    @Override
+    public String toString() {
+        return "InvgrpTenantConfiguration{groupingEnabled=" + groupingEnabled + ", groupingStrategy=" + groupingStrategy + "}";
+    }
+}
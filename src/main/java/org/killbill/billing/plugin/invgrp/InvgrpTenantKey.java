@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Cache key for objects scoped to a tenant (e.g. a subscription or a payment method)
+ */
+public final class InvgrpTenantKey {
+
+    private final UUID tenantId;
+    private final UUID objectId;
+
+    public InvgrpTenantKey(final UUID tenantId, final UUID objectId) {
+        this.tenantId = tenantId;
+        this.objectId = objectId;
+    }
+
+    public UUID getTenantId() {
+        return tenantId;
+    }
+
+    public UUID getObjectId() {
+        return objectId;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        final InvgrpTenantKey that = (InvgrpTenantKey) o;
+        return Objects.equals(tenantId, that.tenantId) && objectId.equals(that.objectId);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Objects.hashCode(tenantId) + objectId.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "InvgrpTenantKey{tenantId=" + tenantId + ", objectId=" + objectId + "}";
+    }
+}
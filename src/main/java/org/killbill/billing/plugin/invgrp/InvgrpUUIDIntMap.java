@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Open-addressing hash map from UUIDs to non-negative ints, for the indexes built while grouping an invoice.
+ * <p>
+ * Keys are stored as their two longs, in flat arrays filled in insertion order, and the hash table (linear probing) only
+ * holds int positions in those arrays: no entry object nor boxed value is allocated per key, and growing the map mostly
+ * rehashes ints. Not thread-safe, and keys cannot be removed.
+ */
+public final class InvgrpUUIDIntMap {
+
+    public static final int NO_VALUE = -1;
+
+    // Position + 1 of the entry in the dense arrays, 0 for an empty slot
+    private int[] table;
+    private int mask;
+    private long[] msbs;
+    private long[] lsbs;
+    private int[] values;
+    private int size;
+
+    public InvgrpUUIDIntMap(final int expectedSize) {
+        final int capacity = Math.max(4, expectedSize);
+        this.msbs = new long[capacity];
+        this.lsbs = new long[capacity];
+        this.values = new int[capacity];
+        allocateTable(tableSizeFor(capacity));
+    }
+
+    /**
+     * @return the value of the key, or {@link #NO_VALUE}
+     */
+    public int get(final UUID key) {
+        final int entry = find(key.getMostSignificantBits(), key.getLeastSignificantBits());
+        return entry >= 0 ? values[entry] : NO_VALUE;
+    }
+
+    /**
+     * @return the previous value of the key, or {@link #NO_VALUE}
+     */
+    public int put(final UUID key, final int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        final long msb = key.getMostSignificantBits();
+        final long lsb = key.getLeastSignificantBits();
+        int slot = hash(msb, lsb) & mask;
+        while (table[slot] != 0) {
+            final int entry = table[slot] - 1;
+            if (msbs[entry] == msb && lsbs[entry] == lsb) {
+                final int previous = values[entry];
+                values[entry] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == values.length) {
+            final int capacity = size << 1;
+            msbs = Arrays.copyOf(msbs, capacity);
+            lsbs = Arrays.copyOf(lsbs, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        msbs[size] = msb;
+        lsbs[size] = lsb;
+        values[size] = value;
+        table[slot] = ++size;
+        if (size > (table.length >> 1)) {
+            // Keep the load factor under 0.5, probe sequences stay short
+            rehash(table.length << 1);
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * @return the value of the key, or the given value after it was associated to the key
+     */
+    public int putIfAbsent(final UUID key, final int value) {
+        final int existing = get(key);
+        if (existing != NO_VALUE) {
+            return existing;
+        }
+        put(key, value);
+        return value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int find(final long msb, final long lsb) {
+        int slot = hash(msb, lsb) & mask;
+        while (table[slot] != 0) {
+            final int entry = table[slot] - 1;
+            if (msbs[entry] == msb && lsbs[entry] == lsb) {
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void rehash(final int tableSize) {
+        allocateTable(tableSize);
+        for (int entry = 0; entry < size; entry++) {
+            int slot = hash(msbs[entry], lsbs[entry]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = entry + 1;
+        }
+    }
+
+    private void allocateTable(final int tableSize) {
+        table = new int[tableSize];
+        mask = tableSize - 1;
+    }
+
+    // Random (version 4) UUIDs are already well distributed, the mix only protects against structured ids
+    private static int hash(final long msb, final long lsb) {
+        final long h = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int tableSizeFor(final int expectedSize) {
+        return Integer.highestOneBit(expectedSize * 2 - 1) << 1;
+    }
+}
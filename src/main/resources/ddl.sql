@@ -0,0 +1,84 @@
+/*! SET default_storage_engine=INNODB */;
+
+create table invgrp_subscription_payment_methods (
+  record_id serial
+, kb_account_id char(36) not null
+, kb_subscription_id char(36) not null
+, kb_payment_method_id char(36) not null
+, created_date datetime not null
+, updated_date datetime not null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index invgrp_subscription_payment_methods_kb_subscription_id on invgrp_subscription_payment_methods(kb_subscription_id, kb_tenant_id);
+create index invgrp_subscription_payment_methods_kb_account_id on invgrp_subscription_payment_methods(kb_account_id, kb_tenant_id);
+create index invgrp_subscription_payment_methods_kb_tenant_id_record_id on invgrp_subscription_payment_methods(kb_tenant_id, record_id);
+
+create table invgrp_invoice_payment_methods (
+  record_id serial
+, kb_invoice_id char(36) not null
+, kb_account_id char(36) not null
+, kb_subscription_id char(36) default null
+, kb_payment_method_id char(36) default null
+, created_date datetime not null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index invgrp_invoice_payment_methods_kb_invoice_id on invgrp_invoice_payment_methods(kb_invoice_id, kb_tenant_id);
+create index invgrp_invoice_payment_methods_kb_subscription_id on invgrp_invoice_payment_methods(kb_subscription_id, kb_tenant_id);
+
+create table invgrp_pending_payment_methods (
+  record_id serial
+, kb_account_id char(36) not null
+, subscription_external_key varchar(255) not null
+, kb_payment_method_id char(36) not null
+, fallback_payment_method_ids varchar(512) default null
+, attempts int not null default 0
+, next_attempt_date datetime not null
+, created_date datetime not null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create index invgrp_pending_payment_methods_next_attempt_date on invgrp_pending_payment_methods(next_attempt_date);
+create index invgrp_pending_payment_methods_kb_account_id on invgrp_pending_payment_methods(kb_account_id, kb_tenant_id);
+
+create table invgrp_reconciler_checkpoints (
+  record_id serial
+, kb_tenant_id char(36) not null
+, account_offset bigint not null default 0
+, nb_accounts bigint not null default 0
+, nb_missing bigint not null default 0
+, nb_dangling bigint not null default 0
+, nb_errors bigint not null default 0
+, pass_started_date datetime default null
+, pass_completed_date datetime default null
+, lease_date datetime default null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index invgrp_reconciler_checkpoints_kb_tenant_id on invgrp_reconciler_checkpoints(kb_tenant_id);
+
+create table invgrp_subscription_fallback_payment_methods (
+  record_id serial
+, kb_account_id char(36) not null
+, kb_subscription_id char(36) not null
+, kb_payment_method_id char(36) not null
+, priority int not null
+, created_date datetime not null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index invgrp_subscription_fallback_payment_methods_kb_subscription_id on invgrp_subscription_fallback_payment_methods(kb_subscription_id, priority, kb_tenant_id);
+
+create table invgrp_payment_method_failures (
+  record_id serial
+, kb_payment_method_id char(36) not null
+, failure_score double precision not null
+, nb_failures bigint not null
+, last_failure_date datetime not null
+, bad_until_date datetime default null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index invgrp_payment_method_failures_kb_payment_method_id on invgrp_payment_method_failures(kb_payment_method_id, kb_tenant_id);
+create index invgrp_payment_method_failures_bad_until_date on invgrp_payment_method_failures(bad_until_date);
@@ -0,0 +1,11 @@
+create table invgrp_invoice_payment_methods (
+  record_id serial
+, kb_invoice_id char(36) not null
+, kb_account_id char(36) not null
+, kb_subscription_id char(36) default null
+, kb_payment_method_id char(36) default null
+, created_date datetime not null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index invgrp_invoice_payment_methods_kb_invoice_id on invgrp_invoice_payment_methods(kb_invoice_id, kb_tenant_id);
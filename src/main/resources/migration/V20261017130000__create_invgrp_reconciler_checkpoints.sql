@@ -0,0 +1,15 @@
+create table invgrp_reconciler_checkpoints (
+  record_id serial
+, kb_tenant_id char(36) not null
+, account_offset bigint not null default 0
+, nb_accounts bigint not null default 0
+, nb_missing bigint not null default 0
+, nb_dangling bigint not null default 0
+, nb_errors bigint not null default 0
+, pass_started_date datetime default null
+, pass_completed_date datetime default null
+, lease_date datetime default null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index invgrp_reconciler_checkpoints_kb_tenant_id on invgrp_reconciler_checkpoints(kb_tenant_id);
@@ -0,0 +1 @@
+alter table invgrp_pending_payment_methods add column fallback_payment_method_ids varchar(512) default null;
@@ -0,0 +1,12 @@
+create table invgrp_subscription_payment_methods (
+  record_id serial
+, kb_account_id char(36) not null
+, kb_subscription_id char(36) not null
+, kb_payment_method_id char(36) not null
+, created_date timestamp not null
+, updated_date timestamp not null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+);
+create unique index invgrp_subscription_payment_methods_kb_subscription_id on invgrp_subscription_payment_methods(kb_subscription_id, kb_tenant_id);
+create index invgrp_subscription_payment_methods_kb_account_id on invgrp_subscription_payment_methods(kb_account_id, kb_tenant_id);
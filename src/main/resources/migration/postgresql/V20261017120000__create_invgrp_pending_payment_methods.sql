@@ -0,0 +1,13 @@
+create table invgrp_pending_payment_methods (
+  record_id serial
+, kb_account_id char(36) not null
+, subscription_external_key varchar(255) not null
+, kb_payment_method_id char(36) not null
+, attempts int not null default 0
+, next_attempt_date timestamp not null
+, created_date timestamp not null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+);
+create index invgrp_pending_payment_methods_next_attempt_date on invgrp_pending_payment_methods(next_attempt_date);
+create index invgrp_pending_payment_methods_kb_account_id on invgrp_pending_payment_methods(kb_account_id, kb_tenant_id);
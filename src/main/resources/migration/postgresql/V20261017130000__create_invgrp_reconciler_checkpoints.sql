@@ -0,0 +1,15 @@
+create table invgrp_reconciler_checkpoints (
+  record_id serial
+, kb_tenant_id char(36) not null
+, account_offset bigint not null default 0
+, nb_accounts bigint not null default 0
+, nb_missing bigint not null default 0
+, nb_dangling bigint not null default 0
+, nb_errors bigint not null default 0
+, pass_started_date timestamp default null
+, pass_completed_date timestamp default null
+, lease_date timestamp default null
+, updated_date timestamp not null
+, primary key(record_id)
+);
+create unique index invgrp_reconciler_checkpoints_kb_tenant_id on invgrp_reconciler_checkpoints(kb_tenant_id);
@@ -0,0 +1,24 @@
+create table invgrp_subscription_fallback_payment_methods (
+  record_id serial
+, kb_account_id char(36) not null
+, kb_subscription_id char(36) not null
+, kb_payment_method_id char(36) not null
+, priority int not null
+, created_date timestamp not null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+);
+create unique index invgrp_subscription_fallback_payment_methods_kb_subscription_id on invgrp_subscription_fallback_payment_methods(kb_subscription_id, priority, kb_tenant_id);
+
+create table invgrp_payment_method_failures (
+  record_id serial
+, kb_payment_method_id char(36) not null
+, failure_score double precision not null
+, nb_failures bigint not null
+, last_failure_date timestamp not null
+, bad_until_date timestamp default null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+);
+create unique index invgrp_payment_method_failures_kb_payment_method_id on invgrp_payment_method_failures(kb_payment_method_id, kb_tenant_id);
+create index invgrp_payment_method_failures_bad_until_date on invgrp_payment_method_failures(bad_until_date);
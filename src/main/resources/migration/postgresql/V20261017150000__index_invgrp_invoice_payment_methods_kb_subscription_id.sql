@@ -0,0 +1 @@
+create index invgrp_invoice_payment_methods_kb_subscription_id on invgrp_invoice_payment_methods(kb_subscription_id, kb_tenant_id);
@@ -0,0 +1 @@
+create index invgrp_subscription_payment_methods_kb_tenant_id_record_id on invgrp_subscription_payment_methods(kb_tenant_id, record_id);
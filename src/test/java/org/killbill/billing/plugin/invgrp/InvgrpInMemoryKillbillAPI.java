@@ -0,0 +1,501 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.killbill.billing.ErrorCode;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountApiException;
+import org.killbill.billing.account.api.AccountUserApi;
+import org.killbill.billing.account.api.boilerplate.AccountImp;
+import org.killbill.billing.catalog.api.BillingPeriod;
+import org.killbill.billing.catalog.api.CatalogApiException;
+import org.killbill.billing.catalog.api.CatalogUserApi;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.catalog.api.Plan;
+import org.killbill.billing.catalog.api.StaticCatalog;
+import org.killbill.billing.catalog.api.VersionedCatalog;
+import org.killbill.billing.entitlement.api.Subscription;
+import org.killbill.billing.entitlement.api.SubscriptionApi;
+import org.killbill.billing.entitlement.api.SubscriptionApiException;
+import org.killbill.billing.entitlement.api.boilerplate.SubscriptionBundleImp;
+import org.killbill.billing.entitlement.api.boilerplate.SubscriptionImp;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceApiException;
+import org.killbill.billing.invoice.api.InvoiceUserApi;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
+import org.killbill.billing.payment.api.PaymentApi;
+import org.killbill.billing.payment.api.PaymentApiException;
+import org.killbill.billing.payment.api.PaymentMethod;
+import org.killbill.billing.payment.api.boilerplate.PaymentMethodImp;
+import org.killbill.billing.security.api.SecurityApi;
+import org.killbill.billing.tenant.api.TenantUserApi;
+import org.killbill.billing.util.api.CustomFieldUserApi;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.billing.util.entity.Pagination;
+import org.killbill.clock.Clock;
+import org.killbill.clock.DefaultClock;
+import org.osgi.framework.BundleContext;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * In-memory stand-in for the Kill Bill APIs used by the plugin (accounts, subscriptions, custom fields, invoices, payment
+ * methods, catalog plans, tenant configuration and security), to run the plugin APIs without a Kill Bill server (tests, benchmarks and load tests).
+ * <p>
+ * Only the calls made by the plugin are implemented (the other ones throw UnsupportedOperationException), and data
+ * isn't isolated per tenant. Each call waits for the configured latency, to simulate the cost of the platform.
+ */
+public class InvgrpInMemoryKillbillAPI extends OSGIKillbillAPI {
+
+    private static final String USERNAME = "admin";
+    private static final String PASSWORD = "password";
+
+    private final Map<UUID, Account> accounts = new ConcurrentHashMap<UUID, Account>();
+    // In creation order, for the paginated listing
+    private final List<Account> accountList = new CopyOnWriteArrayList<Account>();
+    private final Map<UUID, Subscription> subscriptions = new ConcurrentHashMap<UUID, Subscription>();
+    private final Map<String, Subscription> subscriptionsByExternalKey = new ConcurrentHashMap<String, Subscription>();
+    private final Map<UUID, Invoice> invoices = new ConcurrentHashMap<UUID, Invoice>();
+    private final Map<UUID, PaymentMethod> paymentMethods = new ConcurrentHashMap<UUID, PaymentMethod>();
+    private final Map<UUID, List<CustomField>> customFields = new ConcurrentHashMap<UUID, List<CustomField>>();
+    private final Map<String, List<String>> tenantValues = new ConcurrentHashMap<String, List<String>>();
+    // Catalog version effective date -> plan name -> billing period
+    private final NavigableMap<Date, Map<String, BillingPeriod>> catalogVersions = new ConcurrentSkipListMap<Date, Map<String, BillingPeriod>>();
+
+    // Security subject, per thread (like Shiro)
+    private final ThreadLocal<String> subject = new ThreadLocal<String>();
+
+    private final LongAdder nbCalls = new LongAdder();
+    private volatile long latencyNanos;
+
+    private final AccountUserApi accountUserApi = newAccountUserApi();
+    private final SecurityApi securityApi = newSecurityApi();
+    private final TenantUserApi tenantUserApi = newTenantUserApi();
+    private final SubscriptionApi subscriptionApi = newSubscriptionApi();
+    private final InvoiceUserApi invoiceUserApi = newInvoiceUserApi();
+    private final PaymentApi paymentApi = newPaymentApi();
+    private final CustomFieldUserApi customFieldUserApi = newCustomFieldUserApi();
+    private final CatalogUserApi catalogUserApi = newCatalogUserApi();
+
+    public InvgrpInMemoryKillbillAPI() {
+        super(noopBundleContext());
+    }
+
+    public static OSGIKillbillClock clock() {
+        return clock(new DefaultClock());
+    }
+
+    public static OSGIKillbillClock clock(final Clock clock) {
+        return new OSGIKillbillClock(noopBundleContext()) {
+            @Override
+            public Clock getClock() {
+                return clock;
+            }
+        };
+    }
+
+    /**
+     * Clock which only moves when told to (truncated to the second, like the Kill Bill clock).
+     */
+    public static class MockClock extends DefaultClock {
+
+        private volatile DateTime utcNow = DefaultClock.truncateMs(new DateTime(DateTimeZone.UTC));
+
+        @Override
+        public DateTime getUTCNow() {
+            return utcNow;
+        }
+
+        @Override
+        public DateTime getNow(final DateTimeZone tz) {
+            return utcNow.toDateTime(tz);
+        }
+
+        @Override
+        public LocalDate getUTCToday() {
+            return utcNow.toLocalDate();
+        }
+
+        @Override
+        public LocalDate getToday(final DateTimeZone tz) {
+            return getNow(tz).toLocalDate();
+        }
+
+        public void addMillis(final long millis) {
+            utcNow = DefaultClock.truncateMs(utcNow.plus(millis));
+        }
+    }
+
+    public void setLatency(final long latency, final TimeUnit unit) {
+        this.latencyNanos = unit.toNanos(latency);
+    }
+
+    public long getNbCalls() {
+        return nbCalls.sum();
+    }
+
+    public Account addAccount() {
+        final UUID accountId = UUID.randomUUID();
+        final Account account = new AccountImp.Builder<>().withId(accountId)
+                                                          .withExternalKey(accountId.toString())
+                                                          .withCurrency(Currency.USD)
+                                                          .build();
+        accounts.put(accountId, account);
+        accountList.add(account);
+        return account;
+    }
+
+    public Subscription addSubscription(final UUID accountId) {
+        final UUID subscriptionId = UUID.randomUUID();
+        return addSubscription(accountId, subscriptionId, subscriptionId.toString());
+    }
+
+    public Subscription addSubscription(final UUID accountId, final String externalKey) {
+        return addSubscription(accountId, UUID.randomUUID(), externalKey);
+    }
+
+    private Subscription addSubscription(final UUID accountId, final UUID subscriptionId, final String externalKey) {
+        final Subscription subscription = new SubscriptionImp.Builder<>().withId(subscriptionId)
+                                                                         .withAccountId(accountId)
+                                                                         .withBundleId(UUID.randomUUID())
+                                                                         .withExternalKey(externalKey)
+                                                                         .build();
+        subscriptions.put(subscriptionId, subscription);
+        subscriptionsByExternalKey.put(subscription.getExternalKey(), subscription);
+        return subscription;
+    }
+
+    public UUID addPaymentMethod(final UUID accountId) {
+        final PaymentMethod paymentMethod = new PaymentMethodImp.Builder<>().withId(UUID.randomUUID())
+                                                                            .withAccountId(accountId)
+                                                                            .withIsActive(true)
+                                                                            .withPluginName(InvgrpActivator.PLUGIN_NAME)
+                                                                            .build();
+        paymentMethods.put(paymentMethod.getId(), paymentMethod);
+        return paymentMethod.getId();
+    }
+
+    public void deletePaymentMethod(final UUID paymentMethodId) {
+        paymentMethods.remove(paymentMethodId);
+    }
+
+    // Null to delete it
+    public void setTenantValue(final String key, final String value) {
+        if (value == null) {
+            tenantValues.remove(key);
+        } else {
+            tenantValues.put(key, List.of(value));
+        }
+    }
+
+    public void addInvoice(final Invoice invoice) {
+        invoices.put(invoice.getId(), invoice);
+    }
+
+    // Adds the plan to the catalog version effective at the given date (created if needed)
+    public void addPlan(final DateTime effectiveDate, final String planName, final BillingPeriod billingPeriod) {
+        catalogVersions.computeIfAbsent(effectiveDate.toDate(), date -> new ConcurrentHashMap<String, BillingPeriod>()).put(planName, billingPeriod);
+    }
+
+    @Override
+    public AccountUserApi getAccountUserApi() {
+        return accountUserApi;
+    }
+
+    @Override
+    public SecurityApi getSecurityApi() {
+        return securityApi;
+    }
+
+    @Override
+    public TenantUserApi getTenantUserApi() {
+        return tenantUserApi;
+    }
+
+    @Override
+    public SubscriptionApi getSubscriptionApi() {
+        return subscriptionApi;
+    }
+
+    @Override
+    public InvoiceUserApi getInvoiceUserApi() {
+        return invoiceUserApi;
+    }
+
+    @Override
+    public PaymentApi getPaymentApi() {
+        return paymentApi;
+    }
+
+    @Override
+    public CustomFieldUserApi getCustomFieldUserApi() {
+        return customFieldUserApi;
+    }
+
+    @Override
+    public CatalogUserApi getCatalogUserApi() {
+        return catalogUserApi;
+    }
+
+    private void call() {
+        nbCalls.increment();
+        final long latency = latencyNanos;
+        if (latency > 0) {
+            LockSupport.parkNanos(latency);
+        }
+    }
+
+    // The tracker opened by OSGIKillbillAPI never finds any service
+    static BundleContext noopBundleContext() {
+        return (BundleContext) Proxy.newProxyInstance(InvgrpInMemoryKillbillAPI.class.getClassLoader(),
+                                                      new Class<?>[]{BundleContext.class},
+                                                      (proxy, method, args) -> null);
+    }
+
+    private AccountUserApi newAccountUserApi() {
+        return service(AccountUserApi.class,
+                       ImmutableMap.<String, Call>of("getAccountById/2", args -> {
+                                                         final Account account = accounts.get((UUID) args[0]);
+                                                         if (account == null) {
+                                                             throw new AccountApiException(ErrorCode.ACCOUNT_DOES_NOT_EXIST_FOR_ID, args[0]);
+                                                         }
+                                                         return account;
+                                                     },
+                                                     "getAccounts/3", args -> pagination(accountList, (Long) args[0], (Long) args[1])));
+    }
+
+    private SecurityApi newSecurityApi() {
+        return service(SecurityApi.class,
+                       ImmutableMap.<String, Call>of("login/2", args -> {
+                                                         if (!USERNAME.equals(args[0]) || !PASSWORD.equals(args[1])) {
+                                                             throw new IllegalArgumentException("Invalid credentials for " + args[0]);
+                                                         }
+                                                         subject.set((String) args[0]);
+                                                         return null;
+                                                     },
+                                                     "logout/0", args -> {
+                                                         subject.remove();
+                                                         return null;
+                                                     },
+                                                     "isSubjectAuthenticated/0", args -> subject.get() != null));
+    }
+
+    private TenantUserApi newTenantUserApi() {
+        return service(TenantUserApi.class,
+                       ImmutableMap.<String, Call>of("getTenantValuesForKey/2", args -> new ArrayList<String>(tenantValues.getOrDefault((String) args[0], Collections.emptyList()))));
+    }
+
+    private SubscriptionApi newSubscriptionApi() {
+        return service(SubscriptionApi.class,
+                       ImmutableMap.<String, Call>of("getSubscriptionForEntitlementId/3", args -> {
+                                                         final Subscription subscription = subscriptions.get((UUID) args[0]);
+                                                         if (subscription == null) {
+                                                             throw new SubscriptionApiException(ErrorCode.SUB_INVALID_SUBSCRIPTION_ID, args[0]);
+                                                         }
+                                                         return subscription;
+                                                     },
+                                                     "getSubscriptionForExternalKey/3", args -> {
+                                                         final Subscription subscription = subscriptionsByExternalKey.get((String) args[0]);
+                                                         if (subscription == null) {
+                                                             throw new SubscriptionApiException(ErrorCode.SUB_INVALID_SUBSCRIPTION_EXTERNAL_KEY, args[0]);
+                                                         }
+                                                         return subscription;
+                                                     },
+                                                     "getSubscriptionBundlesForAccountId/2", args -> subscriptions.values()
+                                                                                                     .stream()
+                                                                                                     .filter(subscription -> subscription.getAccountId().equals(args[0]))
+                                                                                                     .collect(Collectors.groupingBy(Subscription::getBundleId))
+                                                                                                     .entrySet()
+                                                                                                     .stream()
+                                                                                                     .map(entry -> new SubscriptionBundleImp.Builder<>().withId(entry.getKey())
+                                                                                                                                                         .withAccountId((UUID) args[0])
+                                                                                                                                                         .withSubscriptions(entry.getValue())
+                                                                                                                                                         .build())
+                                                                                                     .collect(Collectors.toList())));
+    }
+
+    private InvoiceUserApi newInvoiceUserApi() {
+        return service(InvoiceUserApi.class,
+                       ImmutableMap.<String, Call>of("getInvoice/2", args -> {
+                           final Invoice invoice = invoices.get((UUID) args[0]);
+                           if (invoice == null) {
+                               throw new InvoiceApiException(ErrorCode.INVOICE_NOT_FOUND, args[0]);
+                           }
+                           return invoice;
+                       }));
+    }
+
+    private PaymentApi newPaymentApi() {
+        return service(PaymentApi.class,
+                       ImmutableMap.<String, Call>of("getPaymentMethodById/5", args -> {
+                                                         final PaymentMethod paymentMethod = paymentMethods.get((UUID) args[0]);
+                                                         if (paymentMethod == null) {
+                                                             throw new PaymentApiException(ErrorCode.PAYMENT_NO_SUCH_PAYMENT_METHOD, args[0]);
+                                                         }
+                                                         return paymentMethod;
+                                                     },
+                                                     "getAccountPaymentMethods/5", args -> paymentMethods.values()
+                                                                                                        .stream()
+                                                                                                        .filter(paymentMethod -> paymentMethod.getAccountId().equals(args[0]))
+                                                                                                        .collect(Collectors.toList())));
+    }
+
+    @SuppressWarnings("unchecked")
+    private CustomFieldUserApi newCustomFieldUserApi() {
+        return service(CustomFieldUserApi.class,
+                       ImmutableMap.<String, Call>of("addCustomFields/2", args -> {
+                                                         for (final CustomField field : (List<CustomField>) args[0]) {
+                                                             customFields.computeIfAbsent(field.getObjectId(), id -> new CopyOnWriteArrayList<CustomField>()).add(field);
+                                                         }
+                                                         return null;
+                                                     },
+                                                     "getCustomFieldsForObject/3", args -> new ArrayList<CustomField>(customFields.getOrDefault((UUID) args[0], Collections.emptyList())),
+                                                     "getCustomFieldsForAccountType/3", args -> {
+                                                         final List<CustomField> result = new ArrayList<CustomField>();
+                                                         for (final List<CustomField> fields : customFields.values()) {
+                                                             for (final CustomField field : fields) {
+                                                                 if (field.getObjectType() == args[1] && args[0].equals(getAccountId(field))) {
+                                                                     result.add(field);
+                                                                 }
+                                                             }
+                                                         }
+                                                         return result;
+                                                     }));
+    }
+
+    private CatalogUserApi newCatalogUserApi() {
+        final VersionedCatalog catalog = stub(VersionedCatalog.class,
+                                              ImmutableMap.<String, Call>of("getVersion/1", args -> catalogVersion((Date) args[0]),
+                                                                            "getCurrentVersion/0", args -> catalogVersion(new Date())));
+        return service(CatalogUserApi.class,
+                       ImmutableMap.<String, Call>of("getCatalog/2", args -> catalog));
+    }
+
+    // The version effective at the given date (the first one before any version is effective, like Kill Bill)
+    private StaticCatalog catalogVersion(final Date date) {
+        final Map.Entry<Date, Map<String, BillingPeriod>> effective = catalogVersions.floorEntry(date);
+        final Map.Entry<Date, Map<String, BillingPeriod>> version = effective != null ? effective : catalogVersions.firstEntry();
+        return stub(StaticCatalog.class,
+                    ImmutableMap.<String, Call>of("getEffectiveDate/0", args -> version.getKey(),
+                                                  "findPlan/1", args -> {
+                                                      final BillingPeriod billingPeriod = version.getValue().get((String) args[0]);
+                                                      if (billingPeriod == null) {
+                                                          throw new CatalogApiException(ErrorCode.CAT_NO_SUCH_PLAN, args[0]);
+                                                      }
+                                                      return stub(Plan.class,
+                                                                  ImmutableMap.<String, Call>of("getName/0", planArgs -> args[0],
+                                                                                                "getRecurringBillingPeriod/0", planArgs -> billingPeriod));
+                                                  }));
+    }
+
+    private static <T> Pagination<T> pagination(final List<T> all, final long offset, final long limit) {
+        final List<T> page = all.subList((int) Math.min(offset, all.size()), (int) Math.min(offset + limit, all.size()));
+        return new Pagination<T>() {
+            @Override
+            public Long getCurrentOffset() {
+                return offset;
+            }
+
+            @Override
+            public Long getNextOffset() {
+                return offset + page.size() < all.size() ? offset + page.size() : null;
+            }
+
+            @Override
+            public Long getMaxNbRecords() {
+                return (long) all.size();
+            }
+
+            @Override
+            public Long getTotalNbRecords() {
+                return (long) all.size();
+            }
+
+            @Override
+            public Iterator<T> iterator() {
+                return page.iterator();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private UUID getAccountId(final CustomField field) {
+        final Subscription subscription = field.getObjectType() == ObjectType.SUBSCRIPTION ? subscriptions.get(field.getObjectId()) : null;
+        return subscription != null ? subscription.getAccountId() : null;
+    }
+
+    //
+    // Implements the given API with the calls keyed by method name and number of arguments (e.g. getInvoice/2): this
+    // keeps the checked exceptions of the API, which the boilerplate implementations don't declare.
+    //
+    private <T> T service(final Class<T> apiClass, final Map<String, Call> calls) {
+        return proxy(apiClass, calls, true);
+    }
+
+    // Same, for the objects returned by the APIs (their calls are free)
+    private <T> T stub(final Class<T> apiClass, final Map<String, Call> calls) {
+        return proxy(apiClass, calls, false);
+    }
+
+    private <T> T proxy(final Class<T> apiClass, final Map<String, Call> calls, final boolean isApiCall) {
+        return apiClass.cast(Proxy.newProxyInstance(InvgrpInMemoryKillbillAPI.class.getClassLoader(),
+                                                    new Class<?>[]{apiClass},
+                                                    (proxy, method, args) -> {
+                                                        if (method.getDeclaringClass() == Object.class) {
+                                                            return method.invoke(this, args);
+                                                        }
+                                                        final Call call = calls.get(method.getName() + "/" + method.getParameterCount());
+                                                        if (call == null) {
+                                                            throw new UnsupportedOperationException(apiClass.getSimpleName() + "#" + method.getName() + " isn't implemented");
+                                                        }
+                                                        if (isApiCall) {
+                                                            call();
+                                                        }
+                                                        return call.call(args);
+                                                    }));
+    }
+
+    private interface Call {
+
+        Object call(Object[] args) throws Exception;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+
+/**
+ * In-memory H2 database with the plugin tables, one per call.
+ * <p>
+ * Not in MySQL mode: H2 2.2 hands out duplicate auto_increment values to concurrent inserts in that mode.
+ */
+public final class InvgrpTestDataSource {
+
+    private InvgrpTestDataSource() {}
+
+    public static DataSource create() throws IOException, SQLException {
+        // Pooled, like the Kill Bill data source
+        final JdbcConnectionPool dataSource = JdbcConnectionPool.create("jdbc:h2:mem:invgrp-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        dataSource.setMaxConnections(64);
+
+        final String ddl;
+        try (final InputStream in = InvgrpTestDataSource.class.getResourceAsStream("/ddl.sql")) {
+            ddl = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        try (final Connection connection = dataSource.getConnection();
+             final Statement statement = connection.createStatement()) {
+            for (final String sql : ddl.split(";")) {
+                // Skip the MySQL specific statements, and H2 2.x doesn't know about serial
+                if (!sql.isBlank() && !sql.trim().startsWith("/*!")) {
+                    statement.execute(sql.replaceAll("\\bserial\\b", "bigint not null auto_increment"));
+                }
+            }
+        }
+        return dataSource;
+    }
+}
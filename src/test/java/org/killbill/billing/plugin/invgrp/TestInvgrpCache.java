@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestInvgrpCache {
+
+    @Test(groups = "fast")
+    public void testHitMissAndTtl() {
+        final AtomicLong now = new AtomicLong();
+        final InvgrpCache<InvgrpTenantKey, String> cache = new InvgrpCache<>("test", 100, 10, TimeUnit.SECONDS, now::get);
+
+        final InvgrpTenantKey key = new InvgrpTenantKey(UUID.randomUUID(), UUID.randomUUID());
+        Assert.assertNull(cache.get(key));
+        cache.put(key, "pm");
+        Assert.assertEquals(cache.get(key), "pm");
+        Assert.assertEquals(cache.getHitCount(), 1);
+        Assert.assertEquals(cache.getMissCount(), 1);
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        Assert.assertNull(cache.get(key));
+        Assert.assertEquals(cache.getEvictionCount(), 1);
+        Assert.assertEquals(cache.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testSizeBound() {
+        final InvgrpCache<InvgrpTenantKey, String> cache = new InvgrpCache<>("test", 64, 1, TimeUnit.HOURS);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(new InvgrpTenantKey(null, UUID.randomUUID()), "pm");
+        }
+        Assert.assertTrue(cache.size() <= 64);
+        Assert.assertEquals(cache.getEvictionCount(), 1000 - cache.size());
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidation() {
+        final InvgrpCache<InvgrpTenantKey, String> cache = new InvgrpCache<>("test", 100, 1, TimeUnit.HOURS);
+        final UUID tenantId = UUID.randomUUID();
+        final InvgrpTenantKey key1 = new InvgrpTenantKey(tenantId, UUID.randomUUID());
+        final InvgrpTenantKey key2 = new InvgrpTenantKey(tenantId, UUID.randomUUID());
+        final InvgrpTenantKey key3 = new InvgrpTenantKey(tenantId, UUID.randomUUID());
+        cache.put(key1, "pm1");
+        cache.put(key2, "pm2");
+        cache.put(key3, "pm2");
+
+        cache.invalidate(key1);
+        Assert.assertNull(cache.get(key1));
+
+        cache.invalidateIf("pm2"::equals);
+        Assert.assertEquals(cache.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testGroupInvalidation() {
+        // Grouped by the first letter of the value
+        final InvgrpCache<InvgrpTenantKey, String> cache = new InvgrpCache<>("test", 100, 1, TimeUnit.HOURS, value -> value.charAt(0));
+        final UUID tenantId = UUID.randomUUID();
+        final InvgrpTenantKey key1 = new InvgrpTenantKey(tenantId, UUID.randomUUID());
+        final InvgrpTenantKey key2 = new InvgrpTenantKey(tenantId, UUID.randomUUID());
+        final InvgrpTenantKey key3 = new InvgrpTenantKey(tenantId, UUID.randomUUID());
+        cache.put(key1, "a1");
+        cache.put(key2, "a2");
+        cache.put(key3, "b1");
+
+        cache.invalidateGroup('a');
+        Assert.assertNull(cache.get(key1));
+        Assert.assertNull(cache.get(key2));
+        Assert.assertEquals(cache.get(key3), "b1");
+
+        // Moved to another group
+        cache.put(key3, "a3");
+        cache.invalidateGroup('b');
+        Assert.assertEquals(cache.get(key3), "a3");
+        cache.invalidateGroup('a');
+        Assert.assertEquals(cache.size(), 0);
+
+        try {
+            new InvgrpCache<InvgrpTenantKey, String>("test", 100, 1, TimeUnit.HOURS).invalidateGroup('a');
+            Assert.fail();
+        } catch (final IllegalStateException expected) {
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestInvgrpCoalescer {
+
+    @Test(groups = "fast")
+    public void testCoalescing() throws Exception {
+        final InvgrpCoalescer<String, Integer> coalescer = new InvgrpCoalescer<>("test", 60000);
+        final Map<String, List<Integer>> handled = new ConcurrentHashMap<String, List<Integer>>();
+
+        for (int i = 0; i < 100; i++) {
+            for (final String key : List.of("a", "b")) {
+                coalescer.submit(key, i, handler(value -> handled.computeIfAbsent(key, k -> new CopyOnWriteArrayList<Integer>()).add(value)));
+            }
+        }
+        Assert.assertEquals(coalescer.getPendingCount(), 2);
+
+        // Pending values are handled on stop, once per key with the latest value
+        coalescer.stop();
+        Assert.assertEquals(handled.get("a"), List.of(99));
+        Assert.assertEquals(handled.get("b"), List.of(99));
+        Assert.assertEquals(coalescer.getSubmittedCount(), 200);
+        Assert.assertEquals(coalescer.getCoalescedCount(), 198);
+
+        try {
+            coalescer.submit("a", 100, handler(value -> Assert.fail()));
+            Assert.fail();
+        } catch (final RejectedExecutionException expected) {
+        }
+        Assert.assertEquals(coalescer.getPendingCount(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testWindow() throws Exception {
+        final InvgrpCoalescer<String, Integer> coalescer = new InvgrpCoalescer<>("test", 50);
+        final List<Integer> handled = new CopyOnWriteArrayList<Integer>();
+
+        coalescer.submit("a", 1, handler(handled::add));
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (handled.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // A new window starts after the previous one is flushed
+        coalescer.submit("a", 2, handler(handled::add));
+        coalescer.stop();
+        Assert.assertEquals(handled, List.of(1, 2));
+        Assert.assertEquals(coalescer.getCoalescedCount(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testNoWindow() throws Exception {
+        final InvgrpCoalescer<String, Integer> coalescer = new InvgrpCoalescer<>("test", 0);
+        final List<Integer> handled = new CopyOnWriteArrayList<Integer>();
+        coalescer.submit("a", 1, handler(handled::add));
+        coalescer.submit("a", 2, handler(handled::add));
+        Assert.assertEquals(handled, List.of(1, 2));
+        coalescer.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testDeferred() throws Exception {
+        final InvgrpCoalescer<String, Integer> coalescer = new InvgrpCoalescer<>("test", 10);
+        final List<Integer> handled = new CopyOnWriteArrayList<Integer>();
+        final AtomicBoolean full = new AtomicBoolean(true);
+        final InvgrpCoalescer.Handler<Integer> handler = new InvgrpCoalescer.Handler<Integer>() {
+
+            @Override
+            public boolean offer(final Integer value) {
+                return !full.get() && handled.add(value);
+            }
+
+            @Override
+            public void handle(final Integer value) {
+                Assert.fail();
+            }
+        };
+
+        // Refused at the end of the window: offered again until it is taken
+        coalescer.submit("a", 1, handler);
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (coalescer.getDeferredCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(coalescer.getDeferredCount() >= 2);
+        Assert.assertEquals(coalescer.getPendingCount(), 1);
+        Assert.assertTrue(handled.isEmpty());
+
+        full.set(false);
+        while (handled.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(handled, List.of(1));
+        Assert.assertEquals(coalescer.getPendingCount(), 0);
+        coalescer.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testFlush() throws Exception {
+        final InvgrpCoalescer<String, Integer> coalescer = new InvgrpCoalescer<>("test", 60000);
+        final List<Integer> handled = new CopyOnWriteArrayList<Integer>();
+
+        coalescer.submit("b", 1, handler(handled::add));
+        coalescer.submit("a", 2, handler(handled::add));
+        coalescer.submit("c", 3, handler(handled::add));
+        coalescer.submit("b", 4, handler(handled::add));
+
+        // On the calling thread, in submission order, without waiting for the end of the window
+        coalescer.flush(List.of("a", "b", "d"));
+        Assert.assertEquals(handled, List.of(2, 4));
+        Assert.assertEquals(coalescer.getPendingCount(), 1);
+
+        coalescer.stop();
+        Assert.assertEquals(handled, List.of(2, 4, 3));
+    }
+
+    private static <V> InvgrpCoalescer.Handler<V> handler(final Consumer<V> consumer) {
+        return new InvgrpCoalescer.Handler<V>() {
+
+            @Override
+            public boolean offer(final V value) {
+                consumer.accept(value);
+                return true;
+            }
+
+            @Override
+            public void handle(final V value) {
+                consumer.accept(value);
+            }
+        };
+    }
+}
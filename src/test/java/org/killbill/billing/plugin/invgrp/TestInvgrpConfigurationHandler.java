@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.Properties;
+import java.util.UUID;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestInvgrpConfigurationHandler {
+
+    private static final String CONFIG_KEY = "PLUGIN_CONFIG_" + InvgrpActivator.PLUGIN_NAME;
+
+    private InvgrpInMemoryKillbillAPI killbillAPI;
+    private InvgrpConfigurationHandler handler;
+    private InvgrpTenantConfiguration defaultConfiguration;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        killbillAPI = new InvgrpInMemoryKillbillAPI();
+        handler = new InvgrpConfigurationHandler(null, InvgrpActivator.PLUGIN_NAME, killbillAPI);
+        defaultConfiguration = new InvgrpTenantConfiguration(new Properties());
+        handler.setDefaultConfigurable(defaultConfiguration);
+    }
+
+    @Test(groups = "fast")
+    public void testSnapshots() {
+        final UUID tenantId = UUID.randomUUID();
+        Assert.assertSame(handler.getConfigurable(null), defaultConfiguration);
+
+        // No configuration for the tenant: looked up once
+        final long nbCalls = killbillAPI.getNbCalls();
+        Assert.assertSame(handler.getConfigurable(tenantId), defaultConfiguration);
+        Assert.assertSame(handler.getConfigurable(tenantId), defaultConfiguration);
+        Assert.assertEquals(killbillAPI.getNbCalls() - nbCalls, 1);
+
+        // Tenant configuration change
+        killbillAPI.setTenantValue(CONFIG_KEY, InvgrpTenantConfiguration.GROUPING_ENABLED_PROPERTY + "=false\n" +
+                                               InvgrpGroupingStrategy.GROUPING_RULES_PROPERTY + "=BUNDLE");
+        handler.configure(tenantId);
+        final InvgrpTenantConfiguration configuration = handler.getConfigurable(tenantId);
+        Assert.assertFalse(configuration.isGroupingEnabled());
+        Assert.assertTrue(configuration.getGroupingStrategy().toString().contains("BUNDLE"));
+        Assert.assertSame(handler.getConfigurable(tenantId), configuration);
+        Assert.assertTrue(defaultConfiguration.isGroupingEnabled());
+
+        // Invalid configurations are rejected as a whole, the previous one is kept
+        killbillAPI.setTenantValue(CONFIG_KEY, InvgrpTenantConfiguration.GROUPING_ENABLED_PROPERTY + "=yes");
+        handler.configure(tenantId);
+        Assert.assertSame(handler.getConfigurable(tenantId), configuration);
+
+        // Tenant configuration deletion
+        killbillAPI.setTenantValue(CONFIG_KEY, null);
+        handler.configure(tenantId);
+        Assert.assertSame(handler.getConfigurable(tenantId), defaultConfiguration);
+    }
+
+    @Test(groups = "fast")
+    public void testGlobalConfigurationValidation() {
+        final Properties properties = new Properties();
+        Assert.assertEquals(new InvgrpGlobalConfiguration(properties).getMappingQueueWorkers(), 2);
+
+        properties.setProperty(InvgrpPaymentMethodQueue.WORKERS_PROPERTY, " 0 ");
+        Assert.assertEquals(new InvgrpGlobalConfiguration(properties).getMappingQueueWorkers(), 0);
+
+        for (final String invalid : new String[]{"-1", "two"}) {
+            properties.setProperty(InvgrpPaymentMethodQueue.WORKERS_PROPERTY, invalid);
+            try {
+                new InvgrpGlobalConfiguration(properties);
+                Assert.fail();
+            } catch (final IllegalArgumentException expected) {
+                Assert.assertTrue(expected.getMessage().contains(InvgrpPaymentMethodQueue.WORKERS_PROPERTY));
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class TestInvgrpDiagnostics {
+
+    @Test(groups = "fast")
+    public void testDiagnostics() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final InvgrpInMemoryKillbillAPI killbillAPI = new InvgrpInMemoryKillbillAPI();
+        final InvgrpConfigurationHandler configurationHandler = new InvgrpConfigurationHandler(null, InvgrpActivator.PLUGIN_NAME, killbillAPI);
+        configurationHandler.setDefaultConfigurable(new InvgrpTenantConfiguration(new Properties()));
+        final InvgrpMetrics metrics = new InvgrpMetrics(null, 10);
+        final InvgrpCache<String, String> cache = new InvgrpCache<>("test", 10, 1, TimeUnit.HOURS);
+        cache.put("key", "value");
+        cache.get("key");
+        cache.get("other");
+        final InvgrpPartitionedExecutor executor = new InvgrpPartitionedExecutor("test", 1, 10);
+        final InvgrpCoalescer<UUID, String> coalescer = new InvgrpCoalescer<>("test", 0);
+        final InvgrpPaymentMethodQueue queue = new InvgrpPaymentMethodQueue(null, killbillAPI, null, null, null, 0, 10, 1);
+        final InvgrpDiagnostics diagnostics = new InvgrpDiagnostics(new InvgrpGlobalConfiguration(new Properties()),
+                                                                    configurationHandler,
+                                                                    metrics,
+                                                                    List.of(cache),
+                                                                    executor,
+                                                                    coalescer,
+                                                                    queue,
+                                                                    null);
+        try {
+            metrics.record("invoice", "getInvoiceGrouping", tenantId, null, () -> null);
+
+            // As served by the servlet
+            final ObjectMapper objectMapper = new ObjectMapper();
+            final JsonNode json = objectMapper.readTree(objectMapper.writeValueAsString(diagnostics.getDiagnostics(tenantId)));
+            Assert.assertEquals(json.get("tenantId").asText(), tenantId.toString());
+            Assert.assertEquals(json.get("configuration").get("global").get("paymentMethodCacheMaxSize").asInt(), 10000);
+            Assert.assertEquals(json.get("configuration").get("tenant").get("groupingRules").get(0).asText(), "SUBSCRIPTION");
+            Assert.assertEquals(json.get("caches").get(0).get("size").asInt(), 1);
+            Assert.assertEquals(json.get("caches").get(0).get("hitRate").asDouble(), 0.5);
+            Assert.assertEquals(json.get("queues").get("listener").get("queueDepth").asInt(), 0);
+            Assert.assertEquals(json.get("queues").get("mappingQueue").get("queueDepth").asInt(), 0);
+            Assert.assertEquals(json.get("calls").get("invoice.getInvoiceGrouping").get("calls").asLong(), 1);
+            Assert.assertTrue(json.get("reconciler").isNull());
+        } finally {
+            executor.stop(1, TimeUnit.SECONDS);
+            coalescer.stop();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.invoice.api.boilerplate.InvoiceImp;
+import org.killbill.billing.invoice.api.boilerplate.InvoiceItemImp;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+public class TestInvgrpGroupingEngine {
+
+    private final InvgrpGroupingEngine engine = new InvgrpGroupingEngine();
+
+    @Test(groups = "fast")
+    public void testGroupBySubscription() {
+        final UUID sub1 = UUID.randomUUID();
+        final UUID sub2 = UUID.randomUUID();
+        final InvoiceItem item1 = recurringItem(sub1);
+        final InvoiceItem item2 = recurringItem(sub2);
+        final InvoiceItem item3 = recurringItem(sub1);
+
+        final List<List<UUID>> groups = engine.group(invoice(item1, item2, item3));
+        Assert.assertEquals(groups.size(), 2);
+        Assert.assertEquals(groups.get(0), ImmutableList.of(item1.getId(), item3.getId()));
+        Assert.assertEquals(groups.get(1), ImmutableList.of(item2.getId()));
+    }
+
+    @Test(groups = "fast")
+    public void testLinkedItemChain() {
+        final UUID sub1 = UUID.randomUUID();
+        final UUID sub2 = UUID.randomUUID();
+        final InvoiceItem item1 = recurringItem(sub1);
+        final InvoiceItem item2 = recurringItem(sub2);
+        // Adjustment of a repair, listed before the items it points to
+        final InvoiceItem repair = linkedItem(InvoiceItemType.REPAIR_ADJ, item2.getId());
+        final InvoiceItem chained = linkedItem(InvoiceItemType.ITEM_ADJ, repair.getId());
+
+        final List<List<UUID>> groups = engine.group(invoice(chained, item1, repair, item2));
+        Assert.assertEquals(groups.size(), 2);
+        Assert.assertEquals(groups.get(0), ImmutableList.of(chained.getId(), repair.getId(), item2.getId()));
+        Assert.assertEquals(groups.get(1), ImmutableList.of(item1.getId()));
+    }
+
+    @Test(groups = "fast")
+    public void testChunkByItemCount() {
+        final InvoiceItem item1 = recurringItem(UUID.randomUUID());
+        final InvoiceItem item2 = recurringItem(UUID.randomUUID());
+        final InvoiceItem item3 = recurringItem(UUID.randomUUID());
+        final InvoiceItem adjustment = linkedItem(InvoiceItemType.ITEM_ADJ, item2.getId());
+
+        // Single group of 4 items, at most 2 items per chunk: item2 and its adjustment are never separated
+        final List<List<UUID>> groups = engine.group(invoice(item1, item2, adjustment, item3), item -> "ALL", 2, null);
+        Assert.assertTrue(groups.size() > 1);
+        Assert.assertEquals(groups.stream().mapToInt(List::size).sum(), 4);
+        for (final List<UUID> group : groups) {
+            Assert.assertTrue(group.size() <= 2);
+            Assert.assertEquals(group.contains(item2.getId()), group.contains(adjustment.getId()));
+        }
+
+        // Same split whatever the order of the items
+        final List<List<UUID>> reordered = engine.group(invoice(item3, adjustment, item1, item2), item -> "ALL", 2, null);
+        Assert.assertEquals(toSets(reordered), toSets(groups));
+
+        // Groups within the limits are left untouched
+        Assert.assertEquals(engine.group(invoice(item1, item2, adjustment, item3), item -> "ALL", 4, null),
+                            ImmutableList.of(ImmutableList.of(item1.getId(), item2.getId(), adjustment.getId(), item3.getId())));
+    }
+
+    @Test(groups = "fast")
+    public void testChunkByAmount() {
+        final InvoiceItem item1 = recurringItem(UUID.randomUUID());
+        final InvoiceItem item2 = recurringItem(UUID.randomUUID());
+        final InvoiceItem item3 = recurringItem(UUID.randomUUID());
+        final InvoiceItem adjustment = linkedItem(InvoiceItemType.ITEM_ADJ, item3.getId());
+
+        // 10 + 10 + (10 - 1), at most 20 per chunk
+        final List<List<UUID>> groups = engine.group(invoice(item1, item2, item3, adjustment), item -> "ALL", 0, new BigDecimal("20"));
+        Assert.assertEquals(groups.size(), 2);
+        Assert.assertEquals(groups.stream().mapToInt(List::size).sum(), 4);
+        for (final List<UUID> group : groups) {
+            Assert.assertTrue(group.size() <= 3);
+            Assert.assertEquals(group.contains(item3.getId()), group.contains(adjustment.getId()));
+        }
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalStateException.class)
+    public void testLinkedItemCycle() {
+        final UUID firstId = UUID.randomUUID();
+        final UUID secondId = UUID.randomUUID();
+        final InvoiceItem first = linkedItem(firstId, secondId);
+        final InvoiceItem second = linkedItem(secondId, firstId);
+
+        engine.group(invoice(recurringItem(UUID.randomUUID()), first, second));
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalStateException.class)
+    public void testMissingLinkedItem() {
+        engine.group(invoice(recurringItem(UUID.randomUUID()), linkedItem(InvoiceItemType.ITEM_ADJ, UUID.randomUUID())));
+    }
+
+    private static Set<Set<UUID>> toSets(final List<List<UUID>> groups) {
+        return groups.stream().map(ImmutableSet::copyOf).collect(Collectors.toSet());
+    }
+
+    private static Invoice invoice(final InvoiceItem... items) {
+        return new InvoiceImp.Builder<>().withId(UUID.randomUUID())
+                                         .withInvoiceItems(ImmutableList.copyOf(items))
+                                         .build();
+    }
+
+    private static InvoiceItem recurringItem(final UUID subscriptionId) {
+        return new InvoiceItemImp.Builder<>().withId(UUID.randomUUID())
+                                             .withInvoiceItemType(InvoiceItemType.RECURRING)
+                                             .withSubscriptionId(subscriptionId)
+                                             .withAmount(BigDecimal.TEN)
+                                             .withCurrency(Currency.USD)
+                                             .build();
+    }
+
+    private static InvoiceItem linkedItem(final InvoiceItemType type, final UUID linkedItemId) {
+        return linkedItem(type, UUID.randomUUID(), linkedItemId);
+    }
+
+    private static InvoiceItem linkedItem(final UUID id, final UUID linkedItemId) {
+        return linkedItem(InvoiceItemType.ITEM_ADJ, id, linkedItemId);
+    }
+
+    private static InvoiceItem linkedItem(final InvoiceItemType type, final UUID id, final UUID linkedItemId) {
+        return new InvoiceItemImp.Builder<>().withId(id)
+                                             .withInvoiceItemType(type)
+                                             .withLinkedItemId(linkedItemId)
+                                             .withAmount(BigDecimal.ONE.negate())
+                                             .withCurrency(Currency.USD)
+                                             .build();
+    }
+}
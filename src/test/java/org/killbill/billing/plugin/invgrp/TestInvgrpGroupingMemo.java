@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.invoice.api.boilerplate.InvoiceImp;
+import org.killbill.billing.invoice.api.boilerplate.InvoiceItemImp;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestInvgrpGroupingMemo {
+
+    private final InvgrpGroupingEngine engine = new InvgrpGroupingEngine();
+    private final UUID tenantId = UUID.randomUUID();
+
+    @Test(groups = "fast")
+    public void testDryRunReusedByRealRun() {
+        final InvgrpCache<InvgrpTenantKey, int[][]> cache = new InvgrpCache<>("test", 10, 1, TimeUnit.MINUTES);
+        final InvgrpGroupingMemo memo = new InvgrpGroupingMemo(cache, 100);
+        final AtomicInteger nbGroupings = new AtomicInteger();
+        final UUID subscriptionId1 = UUID.randomUUID();
+        final UUID subscriptionId2 = UUID.randomUUID();
+        final InvoiceItem recurring1 = item(subscriptionId1, BigDecimal.TEN, null);
+        final List<InvoiceItem> items = List.of(recurring1,
+                                                item(subscriptionId2, BigDecimal.TEN, null),
+                                                // Same content
+                                                item(subscriptionId2, BigDecimal.TEN, null),
+                                                item(subscriptionId1, BigDecimal.ONE.negate(), recurring1.getId()),
+                                                // Linked to an item of a previous invoice
+                                                item(subscriptionId2, BigDecimal.ONE.negate(), UUID.randomUUID()));
+
+        // Dry run, then real run of the same content, with new item ids and in another order
+        final Invoice dryRunInvoice = invoice(items);
+        final List<List<UUID>> dryRun = group(memo, dryRunInvoice, InvgrpGroupingStrategy.DEFAULT, nbGroupings);
+        Assert.assertEquals(toSets(dryRun), toSets(engine.group(dryRunInvoice)));
+        final List<InvoiceItem> regenerated = regenerate(items);
+        Collections.reverse(regenerated);
+        final Invoice realRunInvoice = invoice(regenerated);
+        final List<List<UUID>> realRun = group(memo, realRunInvoice, InvgrpGroupingStrategy.DEFAULT, nbGroupings);
+        Assert.assertEquals(nbGroupings.get(), 1);
+        Assert.assertEquals(cache.getHitRate(), 0.5);
+        Assert.assertEquals(toSets(realRun), toSets(engine.group(realRunInvoice)));
+        Assert.assertTrue(Collections.disjoint(realRun.get(0), dryRun.get(0)));
+
+        // Retried generation
+        group(memo, invoice(regenerate(items)), InvgrpGroupingStrategy.DEFAULT, nbGroupings);
+        Assert.assertEquals(nbGroupings.get(), 1);
+
+        // Any change in the content or the strategy is a different fingerprint
+        final List<InvoiceItem> changed = regenerate(items);
+        changed.set(1, item(subscriptionId2, BigDecimal.ONE, null));
+        group(memo, invoice(changed), InvgrpGroupingStrategy.DEFAULT, nbGroupings);
+        final Properties properties = new Properties();
+        properties.put(InvgrpGroupingStrategy.GROUPING_MAX_ITEMS_PROPERTY, "10");
+        group(memo, invoice(regenerate(items)), InvgrpGroupingStrategy.compile(properties), nbGroupings);
+        Assert.assertEquals(nbGroupings.get(), 3);
+
+        // Other tenant
+        Assert.assertEquals(memo.group(invoice(items), InvgrpGroupingStrategy.DEFAULT, UUID.randomUUID(), () -> ImmutableList.of()), ImmutableList.of());
+    }
+
+    @Test(groups = "fast")
+    public void testLinkedItemChains() {
+        final InvgrpCache<InvgrpTenantKey, int[][]> cache = new InvgrpCache<>("test", 10, 1, TimeUnit.MINUTES);
+        final InvgrpGroupingMemo memo = new InvgrpGroupingMemo(cache, 100);
+        final AtomicInteger nbGroupings = new AtomicInteger();
+        // Two chains (root <- adjustment <- adjustment of the adjustment), only differing by their root
+        final InvoiceItem root1 = item(UUID.randomUUID(), BigDecimal.TEN, null);
+        final InvoiceItem root2 = item(UUID.randomUUID(), BigDecimal.TEN, null);
+        final InvoiceItem adjustment1 = item(null, BigDecimal.ONE.negate(), root1.getId());
+        final InvoiceItem adjustment2 = item(null, BigDecimal.ONE.negate(), root2.getId());
+        final List<InvoiceItem> items = List.of(root1,
+                                                root2,
+                                                adjustment1,
+                                                adjustment2,
+                                                item(null, BigDecimal.ONE, adjustment1.getId()),
+                                                item(null, BigDecimal.ONE, adjustment2.getId()));
+
+        group(memo, invoice(items), InvgrpGroupingStrategy.DEFAULT, nbGroupings);
+        final List<InvoiceItem> regenerated = regenerate(items);
+        Collections.reverse(regenerated);
+        final Invoice realRunInvoice = invoice(regenerated);
+        final List<List<UUID>> realRun = group(memo, realRunInvoice, InvgrpGroupingStrategy.DEFAULT, nbGroupings);
+        Assert.assertEquals(nbGroupings.get(), 1);
+        Assert.assertEquals(toSets(realRun), toSets(engine.group(realRunInvoice)));
+    }
+
+    @Test(groups = "fast")
+    public void testMutableInputsNotMemoized() {
+        final InvgrpCache<InvgrpTenantKey, int[][]> cache = new InvgrpCache<>("test", 10, 1, TimeUnit.MINUTES);
+        final InvgrpGroupingMemo memo = new InvgrpGroupingMemo(cache, 100);
+        final AtomicInteger nbGroupings = new AtomicInteger();
+        final Properties properties = new Properties();
+        properties.put(InvgrpGroupingStrategy.GROUPING_RULES_PROPERTY, "PAYMENT_METHOD");
+        final Invoice invoice = invoice(List.of(item(UUID.randomUUID(), BigDecimal.TEN, null)));
+
+        group(memo, invoice, InvgrpGroupingStrategy.compile(properties), nbGroupings);
+        group(memo, invoice, InvgrpGroupingStrategy.compile(properties), nbGroupings);
+        Assert.assertEquals(nbGroupings.get(), 2);
+        Assert.assertEquals(cache.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testLargeInvoicesNotMemoized() {
+        final InvgrpCache<InvgrpTenantKey, int[][]> cache = new InvgrpCache<>("test", 10, 1, TimeUnit.MINUTES);
+        final InvgrpGroupingMemo memo = new InvgrpGroupingMemo(cache, 1);
+        final AtomicInteger nbGroupings = new AtomicInteger();
+        final Invoice invoice = invoice(List.of(item(UUID.randomUUID(), BigDecimal.TEN, null), item(UUID.randomUUID(), BigDecimal.TEN, null)));
+
+        group(memo, invoice, InvgrpGroupingStrategy.DEFAULT, nbGroupings);
+        group(memo, invoice, InvgrpGroupingStrategy.DEFAULT, nbGroupings);
+        Assert.assertEquals(nbGroupings.get(), 2);
+        Assert.assertEquals(cache.size(), 0);
+    }
+
+    private List<List<UUID>> group(final InvgrpGroupingMemo memo, final Invoice invoice, final InvgrpGroupingStrategy strategy, final AtomicInteger nbGroupings) {
+        return memo.group(invoice, strategy, tenantId, () -> {
+            nbGroupings.incrementAndGet();
+            return engine.group(invoice);
+        });
+    }
+
+    private static Invoice invoice(final List<InvoiceItem> items) {
+        return new InvoiceImp.Builder<>().withId(UUID.randomUUID())
+                                         .withInvoiceItems(ImmutableList.copyOf(items))
+                                         .build();
+    }
+
+    private static InvoiceItem item(final UUID subscriptionId, final BigDecimal amount, final UUID linkedItemId) {
+        return item(UUID.randomUUID(), subscriptionId, amount, linkedItemId);
+    }
+
+    private static InvoiceItem item(final UUID id, final UUID subscriptionId, final BigDecimal amount, final UUID linkedItemId) {
+        return new InvoiceItemImp.Builder<>().withId(id)
+                                             .withInvoiceItemType(linkedItemId == null ? InvoiceItemType.RECURRING : InvoiceItemType.ITEM_ADJ)
+                                             .withSubscriptionId(subscriptionId)
+                                             .withLinkedItemId(linkedItemId)
+                                             .withAmount(amount)
+                                             .withCurrency(Currency.USD)
+                                             .build();
+    }
+
+    // Same content, new ids (as Kill Bill does for each run)
+    private static List<InvoiceItem> regenerate(final List<InvoiceItem> items) {
+        final Map<UUID, UUID> newIds = new HashMap<UUID, UUID>();
+        items.forEach(item -> newIds.put(item.getId(), UUID.randomUUID()));
+        final List<InvoiceItem> regenerated = new ArrayList<InvoiceItem>();
+        for (final InvoiceItem item : items) {
+            final UUID linkedItemId = item.getLinkedItemId() == null ? null : newIds.getOrDefault(item.getLinkedItemId(), item.getLinkedItemId());
+            regenerated.add(item(newIds.get(item.getId()), item.getSubscriptionId(), item.getAmount(), linkedItemId));
+        }
+        return regenerated;
+    }
+
+    // The order of the groups doesn't matter
+    private static Set<Set<UUID>> toSets(final List<List<UUID>> groups) {
+        return groups.stream().map(HashSet::new).collect(Collectors.toSet());
+    }
+}
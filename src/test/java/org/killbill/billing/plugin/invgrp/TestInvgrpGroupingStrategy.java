@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.BillingPeriod;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.invoice.api.boilerplate.InvoiceImp;
+import org.killbill.billing.invoice.api.boilerplate.InvoiceItemImp;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestInvgrpGroupingStrategy {
+
+    private final InvgrpGroupingEngine engine = new InvgrpGroupingEngine();
+
+    @Test(groups = "fast")
+    public void testDefaultStrategy() {
+        Assert.assertSame(InvgrpGroupingStrategy.compile(new Properties()), InvgrpGroupingStrategy.DEFAULT);
+        Assert.assertEquals(InvgrpGroupingStrategy.DEFAULT.getRules(), ImmutableList.of(InvgrpGroupingRule.SUBSCRIPTION));
+    }
+
+    @Test(groups = "fast")
+    public void testGroupByBundleAndPlan() {
+        final InvgrpGroupingStrategy strategy = compile(" bundle , Plan");
+        Assert.assertEquals(strategy.getRules(), ImmutableList.of(InvgrpGroupingRule.BUNDLE, InvgrpGroupingRule.PLAN));
+
+        final UUID bundle1 = UUID.randomUUID();
+        final UUID bundle2 = UUID.randomUUID();
+        final InvoiceItem item1 = item(bundle1, "gold-monthly");
+        final InvoiceItem item2 = item(bundle1, "gold-monthly");
+        final InvoiceItem item3 = item(bundle1, "silver-monthly");
+        final InvoiceItem item4 = item(bundle2, "gold-monthly");
+        final Invoice invoice = new InvoiceImp.Builder<>().withId(UUID.randomUUID())
+                                                          .withInvoiceItems(ImmutableList.of(item1, item2, item3, item4))
+                                                          .build();
+
+        // Only the BUNDLE and PLAN rules are used, so no Kill Bill API is required
+        final List<List<UUID>> groups = engine.group(invoice, strategy.newSession(invoice, null, null, null));
+        Assert.assertEquals(groups, ImmutableList.of(ImmutableList.of(item1.getId(), item2.getId()),
+                                                     ImmutableList.of(item3.getId()),
+                                                     ImmutableList.of(item4.getId())));
+    }
+
+    @Test(groups = "fast")
+    public void testBillingPeriodPerCatalogVersion() {
+        final InvgrpGroupingStrategy strategy = compile("BILLING_PERIOD");
+        final InvgrpInMemoryKillbillAPI killbillAPI = new InvgrpInMemoryKillbillAPI();
+        final DateTime version1 = new DateTime(2025, 1, 1, 0, 0, DateTimeZone.UTC);
+        final DateTime version2 = new DateTime(2026, 1, 1, 0, 0, DateTimeZone.UTC);
+        killbillAPI.addPlan(version1, "gold-monthly", BillingPeriod.MONTHLY);
+        killbillAPI.addPlan(version1, "silver-monthly", BillingPeriod.MONTHLY);
+        // Same plan name, another billing period in the later version
+        killbillAPI.addPlan(version2, "gold-monthly", BillingPeriod.ANNUAL);
+        killbillAPI.addPlan(version2, "silver-monthly", BillingPeriod.MONTHLY);
+
+        final InvoiceItem item1 = item(UUID.randomUUID(), "gold-monthly", version1);
+        final InvoiceItem item2 = item(UUID.randomUUID(), "silver-monthly", version2);
+        final InvoiceItem item3 = item(UUID.randomUUID(), "gold-monthly", version2);
+        final Invoice invoice = new InvoiceImp.Builder<>().withId(UUID.randomUUID())
+                                                          .withInvoiceItems(ImmutableList.of(item1, item2, item3))
+                                                          .build();
+
+        final List<List<UUID>> groups = engine.group(invoice, strategy.newSession(invoice, killbillAPI, null, null));
+        Assert.assertEquals(groups, ImmutableList.of(ImmutableList.of(item1.getId(), item2.getId()),
+                                                     ImmutableList.of(item3.getId())));
+        // The catalog is fetched once per invoice
+        Assert.assertEquals(killbillAPI.getNbCalls(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testLimits() {
+        final Properties properties = new Properties();
+        properties.put(InvgrpGroupingStrategy.GROUPING_MAX_ITEMS_PROPERTY, "100");
+        properties.put(InvgrpGroupingStrategy.GROUPING_MAX_AMOUNT_PROPERTY, "5000.50");
+        final InvgrpGroupingStrategy strategy = InvgrpGroupingStrategy.compile(properties);
+        // Limits apply to the default rule too
+        Assert.assertEquals(strategy.getRules(), ImmutableList.of(InvgrpGroupingRule.SUBSCRIPTION));
+        Assert.assertEquals(strategy.getMaxItems(), 100);
+        Assert.assertEquals(strategy.getMaxAmount(), new BigDecimal("5000.50"));
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidMaxAmount() {
+        final Properties properties = new Properties();
+        properties.put(InvgrpGroupingStrategy.GROUPING_MAX_AMOUNT_PROPERTY, "-1");
+        InvgrpGroupingStrategy.compile(properties);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownRule() {
+        compile("SUBSCRIPTION,COLOR");
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testCustomFieldRuleRequiresFieldName() {
+        compile("CUSTOM_FIELD");
+    }
+
+    private static InvgrpGroupingStrategy compile(final String rules) {
+        final Properties properties = new Properties();
+        properties.put(InvgrpGroupingStrategy.GROUPING_RULES_PROPERTY, rules);
+        return InvgrpGroupingStrategy.compile(properties);
+    }
+
+    private static InvoiceItem item(final UUID bundleId, final String planName) {
+        return item(bundleId, planName, null);
+    }
+
+    private static InvoiceItem item(final UUID bundleId, final String planName, final DateTime catalogEffectiveDate) {
+        return new InvoiceItemImp.Builder<>().withId(UUID.randomUUID())
+                                             .withInvoiceItemType(InvoiceItemType.RECURRING)
+                                             .withBundleId(bundleId)
+                                             .withSubscriptionId(UUID.randomUUID())
+                                             .withPlanName(planName)
+                                             .withCatalogEffectiveDate(catalogEffectiveDate)
+                                             .withAmount(BigDecimal.TEN)
+                                             .withCurrency(Currency.USD)
+                                             .build();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.osgi.api.Healthcheck.HealthStatus;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestInvgrpHealthcheck {
+
+    private InvgrpDao dao;
+    private InvgrpCache<InvgrpTenantKey, InvgrpPaymentMethodMapping> cache;
+    private InvgrpPartitionedExecutor listenerExecutor;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        dao = new InvgrpDao(InvgrpTestDataSource.create());
+        cache = new InvgrpCache<>("test", 100, 1, TimeUnit.HOURS);
+        listenerExecutor = new InvgrpPartitionedExecutor("test", 1, 10);
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception {
+        listenerExecutor.stop(1, TimeUnit.SECONDS);
+    }
+
+    @Test(groups = "fast")
+    public void testHealthy() {
+        final InvgrpHealthcheck healthcheck = healthcheck(new Properties());
+        Assert.assertFalse(healthcheck.getHealthStatus(null, null).isHealthy());
+
+        healthcheck.sample();
+        final HealthStatus status = healthcheck.getHealthStatus(null, null);
+        Assert.assertTrue(status.isHealthy(), status.getDetails().toString());
+        Assert.assertEquals(status.getDetails().get("message"), "Invgrp OK");
+        Assert.assertNotNull(status.getDetails().get("storeLatencyMillis"));
+        Assert.assertEquals(status.getDetails().get("overdueMappings"), 0);
+        // Served from the sample
+        Assert.assertSame(healthcheck.getHealthStatus(null, null), status);
+    }
+
+    @Test(groups = "fast")
+    public void testOverdueMappings() throws Exception {
+        final Properties properties = new Properties();
+        properties.put(InvgrpHealthcheck.MAX_OVERDUE_MAPPINGS_PROPERTY, "1");
+        final InvgrpHealthcheck healthcheck = healthcheck(properties);
+        final DateTime now = new DateTime();
+        dao.addPendingPaymentMethods(UUID.randomUUID(), List.of("a", "b"), UUID.randomUUID(), List.of(), now.minusHours(1), now.minusHours(1), UUID.randomUUID());
+
+        healthcheck.sample();
+        final HealthStatus status = healthcheck.getHealthStatus(null, null);
+        Assert.assertFalse(status.isHealthy());
+        Assert.assertEquals(status.getDetails().get("message"), "2 overdue mappings");
+    }
+
+    @Test(groups = "fast")
+    public void testKillbillFailures() {
+        final InvgrpHealthcheck healthcheck = healthcheck(new Properties());
+        for (int i = 0; i < 20; i++) {
+            try {
+                InvgrpMetrics.killbill(() -> {
+                    throw new IllegalStateException("Kill Bill unavailable");
+                });
+            } catch (final IllegalStateException expected) {
+            }
+        }
+
+        healthcheck.sample();
+        Assert.assertFalse(healthcheck.getHealthStatus(null, null).isHealthy());
+        Assert.assertEquals(healthcheck.getHealthStatus(null, null).getDetails().get("killbillFailures"), 20L);
+
+        // Only the calls since the previous sample count
+        healthcheck.sample();
+        Assert.assertTrue(healthcheck.getHealthStatus(null, null).isHealthy());
+    }
+
+    @Test(groups = "fast")
+    public void testColdCache() {
+        final Properties properties = new Properties();
+        properties.put(InvgrpHealthcheck.MIN_CACHE_HIT_PERCENT_PROPERTY, "50");
+        final InvgrpHealthcheck healthcheck = healthcheck(properties);
+        // Ignore the Kill Bill API calls of the previous tests
+        healthcheck.sample();
+        // Not significant
+        for (int i = 0; i < 10; i++) {
+            cache.get(new InvgrpTenantKey(UUID.randomUUID(), UUID.randomUUID()));
+        }
+        healthcheck.sample();
+        Assert.assertTrue(healthcheck.getHealthStatus(null, null).isHealthy());
+        Assert.assertEquals(healthcheck.getHealthStatus(null, null).getDetails().get("cacheHitPercent"), 0L);
+
+        for (int i = 0; i < 200; i++) {
+            cache.get(new InvgrpTenantKey(UUID.randomUUID(), UUID.randomUUID()));
+        }
+        healthcheck.sample();
+        Assert.assertFalse(healthcheck.getHealthStatus(null, null).isHealthy());
+        Assert.assertEquals(healthcheck.getHealthStatus(null, null).getDetails().get("cacheHitPercent"), 0L);
+
+        // Only reported by default
+        final InvgrpHealthcheck unchecked = healthcheck(new Properties());
+        unchecked.sample();
+        for (int i = 0; i < 200; i++) {
+            cache.get(new InvgrpTenantKey(UUID.randomUUID(), UUID.randomUUID()));
+        }
+        unchecked.sample();
+        Assert.assertTrue(unchecked.getHealthStatus(null, null).isHealthy());
+        Assert.assertEquals(unchecked.getHealthStatus(null, null).getDetails().get("cacheHitPercent"), 0L);
+    }
+
+    private InvgrpHealthcheck healthcheck(final Properties properties) {
+        final InvgrpPaymentMethodQueue queue = new InvgrpPaymentMethodQueue(dao, null, null, null, null, 0, 10, 1);
+        return new InvgrpHealthcheck(dao, InvgrpInMemoryKillbillAPI.clock(), cache, listenerExecutor, queue, new InvgrpGlobalConfiguration(properties));
+    }
+}
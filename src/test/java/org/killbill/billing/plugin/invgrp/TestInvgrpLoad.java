@@ -0,0 +1,319 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.control.plugin.api.PaymentControlContext;
+import org.killbill.billing.control.plugin.api.PriorPaymentControlResult;
+import org.killbill.billing.control.plugin.api.boilerplate.plugin.PaymentControlContextImp;
+import org.killbill.billing.entitlement.api.boilerplate.BaseEntitlementWithAddOnsSpecifierImp;
+import org.killbill.billing.entitlement.api.boilerplate.EntitlementSpecifierImp;
+import org.killbill.billing.entitlement.plugin.api.EntitlementContext;
+import org.killbill.billing.entitlement.plugin.api.OperationType;
+import org.killbill.billing.entitlement.plugin.api.boilerplate.plugin.EntitlementContextImp;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.invoice.api.boilerplate.InvoiceImp;
+import org.killbill.billing.invoice.api.boilerplate.InvoiceItemImp;
+import org.killbill.billing.invoice.plugin.api.InvoiceContext;
+import org.killbill.billing.invoice.plugin.api.InvoiceGroup;
+import org.killbill.billing.invoice.plugin.api.boilerplate.plugin.InvoiceContextImp;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Load harness: simulates many accounts with many subscriptions going through subscription creation (entitlement
+ * plugin), invoice grouping and indexing (invoice plugin) and payments (payment control plugin) concurrently, against
+ * the in-memory Kill Bill APIs. Reports throughput, latency percentiles and allocation per stage.
+ * <p>
+ * Run with {@code mvn test -Ptest-stress}. The load can be tuned with the system properties below, e.g.
+ * {@code -Dorg.killbill.billing.plugin.invgrp.load.accounts=5000 -Dorg.killbill.billing.plugin.invgrp.load.threads=16}.
+ */
+public class TestInvgrpLoad {
+
+    private static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.invgrp.load.";
+
+    private static final int NB_ACCOUNTS = Integer.getInteger(PROPERTY_PREFIX + "accounts", 1000);
+    private static final int NB_SUBSCRIPTIONS_PER_ACCOUNT = Integer.getInteger(PROPERTY_PREFIX + "subscriptionsPerAccount", 100);
+    private static final int NB_PAYMENT_METHODS_PER_ACCOUNT = Integer.getInteger(PROPERTY_PREFIX + "paymentMethodsPerAccount", 3);
+    private static final int NB_THREADS = Integer.getInteger(PROPERTY_PREFIX + "threads", 8);
+    // Workers writing the mappings in the background (0 to write them at subscription creation)
+    private static final int NB_MAPPING_WORKERS = Integer.getInteger(PROPERTY_PREFIX + "mappingWorkers", 2);
+    // Simulated latency of each Kill Bill API call
+    private static final long LATENCY_MICROS = Long.getLong(PROPERTY_PREFIX + "latencyMicros", 0L);
+
+    private final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private InvgrpInMemoryKillbillAPI killbillAPI;
+    private InvgrpEntitlementPluginApi entitlementPluginApi;
+    private InvgrpInvoicePluginApi invoicePluginApi;
+    private InvgrpPaymentControlPluginApi paymentControlPluginApi;
+
+    private Stage entitlementStage;
+    private Stage groupingStage;
+    private Stage invoiceStage;
+    private Stage paymentControlStage;
+
+    @Test(groups = "stress")
+    public void testLoad() throws Exception {
+        killbillAPI = new InvgrpInMemoryKillbillAPI();
+        final InvgrpDao dao = new InvgrpDao(InvgrpTestDataSource.create());
+        final InvgrpCache<InvgrpTenantKey, InvgrpPaymentMethodMapping> cache = new InvgrpCache<>("load", NB_ACCOUNTS * NB_SUBSCRIPTIONS_PER_ACCOUNT, 1, TimeUnit.HOURS);
+        final InvgrpPaymentMethodQueue pendingPaymentMethods = new InvgrpPaymentMethodQueue(dao,
+                                                                                            killbillAPI,
+                                                                                            InvgrpInMemoryKillbillAPI.clock(),
+                                                                                            cache,
+                                                                                            new InvgrpPaymentMethodValidator(killbillAPI,
+                                                                                                                             new InvgrpCache<>("validPaymentMethods", NB_ACCOUNTS * NB_PAYMENT_METHODS_PER_ACCOUNT, 1, TimeUnit.HOURS),
+                                                                                                                             new InvgrpCache<>("unknownPaymentMethods", NB_ACCOUNTS, 30, TimeUnit.SECONDS)),
+                                                                                            NB_MAPPING_WORKERS,
+                                                                                            10000,
+                                                                                            10);
+        pendingPaymentMethods.start();
+        final InvgrpPaymentMethodStore store = new InvgrpPaymentMethodStore(dao, killbillAPI, InvgrpInMemoryKillbillAPI.clock(), cache, false, pendingPaymentMethods);
+        final InvgrpMetrics metrics = new InvgrpMetrics(null, 0);
+        entitlementPluginApi = new InvgrpEntitlementPluginApi(pendingPaymentMethods, metrics);
+        final InvgrpConfigurationHandler configurationHandler = new InvgrpConfigurationHandler(null, InvgrpActivator.PLUGIN_NAME, killbillAPI);
+        configurationHandler.setDefaultConfigurable(new InvgrpTenantConfiguration(new Properties()));
+        invoicePluginApi = new InvgrpInvoicePluginApi(configurationHandler, killbillAPI, store, null, metrics);
+        final InvgrpPaymentMethodRouter router = new InvgrpPaymentMethodRouter(dao, InvgrpInMemoryKillbillAPI.clock(), store, 60, 3, 10);
+        paymentControlPluginApi = new InvgrpPaymentControlPluginApi(killbillAPI, store, router, metrics);
+        killbillAPI.setLatency(LATENCY_MICROS, TimeUnit.MICROSECONDS);
+
+        // One grouping call per account, and (with the default strategy) one invoice per subscription
+        final int nbSubscriptions = NB_ACCOUNTS * NB_SUBSCRIPTIONS_PER_ACCOUNT;
+        entitlementStage = new Stage("entitlement", nbSubscriptions);
+        groupingStage = new Stage("grouping", NB_ACCOUNTS);
+        invoiceStage = new Stage("invoice", nbSubscriptions);
+        paymentControlStage = new Stage("paymentControl", nbSubscriptions);
+
+        final AtomicInteger nextAccount = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(NB_THREADS);
+        final long start = System.nanoTime();
+        try {
+            final List<Future<?>> workers = new ArrayList<Future<?>>(NB_THREADS);
+            for (int i = 0; i < NB_THREADS; i++) {
+                workers.add(executor.submit(() -> {
+                    while (nextAccount.getAndIncrement() < NB_ACCOUNTS) {
+                        runAccount();
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            executor.shutdownNow();
+            pendingPaymentMethods.stop();
+        }
+        final long elapsedNanos = System.nanoTime() - start;
+
+        System.out.format("Load: %d accounts x %d subscriptions, %d threads, %d mapping workers, %d us Kill Bill latency: %.1f s, %d Kill Bill calls%n",
+                          NB_ACCOUNTS, NB_SUBSCRIPTIONS_PER_ACCOUNT, NB_THREADS, NB_MAPPING_WORKERS, LATENCY_MICROS, elapsedNanos / 1e9, killbillAPI.getNbCalls());
+        for (final Stage stage : ImmutableList.of(entitlementStage, groupingStage, invoiceStage, paymentControlStage)) {
+            System.out.println(stage.report(elapsedNanos));
+        }
+
+        Assert.assertEquals(paymentControlStage.getCount(), nbSubscriptions);
+    }
+
+    private void runAccount() throws Exception {
+        killbillAPI.getSecurityApi().login("admin", "password");
+        try {
+            final UUID tenantId = UUID.randomUUID();
+            final UUID accountId = killbillAPI.addAccount().getId();
+            final UUID[] paymentMethodIds = new UUID[NB_PAYMENT_METHODS_PER_ACCOUNT];
+            for (int i = 0; i < paymentMethodIds.length; i++) {
+                paymentMethodIds[i] = killbillAPI.addPaymentMethod(accountId);
+            }
+
+            // Subscription creation, each with one of the account payment methods
+            final Map<UUID, UUID> expectedPaymentMethodIds = new HashMap<UUID, UUID>();
+            final List<InvoiceItem> items = new ArrayList<InvoiceItem>(NB_SUBSCRIPTIONS_PER_ACCOUNT);
+            for (int i = 0; i < NB_SUBSCRIPTIONS_PER_ACCOUNT; i++) {
+                final UUID paymentMethodId = paymentMethodIds[i % paymentMethodIds.length];
+                final String externalKey = killbillAPI.addSubscription(accountId).getExternalKey();
+                final EntitlementContext context = new EntitlementContextImp.Builder<>()
+                        .withTenantId(tenantId)
+                        .withAccountId(accountId)
+                        .withOperationType(OperationType.CREATE_SUBSCRIPTION)
+                        .withBaseEntitlementWithAddOnsSpecifiers(ImmutableList.of(new BaseEntitlementWithAddOnsSpecifierImp.Builder<>()
+                                                                                          .withEntitlementSpecifier(ImmutableList.of(new EntitlementSpecifierImp.Builder<>().withExternalKey(externalKey).build()))
+                                                                                          .build()))
+                        .build();
+                final List<PluginProperty> properties = ImmutableList.of(new PluginProperty(InvgrpEntitlementPluginApi.PM_ID, paymentMethodId.toString(), false));
+
+                final long startNanos = entitlementStage.start();
+                entitlementPluginApi.onSuccessCall(context, properties);
+                entitlementStage.stop(startNanos);
+
+                final UUID subscriptionId = killbillAPI.getSubscriptionApi().getSubscriptionForExternalKey(externalKey, false, context).getId();
+                expectedPaymentMethodIds.put(subscriptionId, paymentMethodId);
+                items.add(item(accountId, subscriptionId));
+            }
+
+            // Invoice generation: grouping of the account invoice, then creation of each resulting invoice
+            final Invoice invoice = invoice(accountId, items);
+            final InvoiceContext invoiceContext = new InvoiceContextImp.Builder<>().withTenantId(tenantId)
+                                                                                   .withAccountId(accountId)
+                                                                                   .withInvoice(invoice)
+                                                                                   .build();
+            long startNanos = groupingStage.start();
+            final List<InvoiceGroup> groups = invoicePluginApi.getInvoiceGrouping(invoice, false, ImmutableList.of(), invoiceContext).getInvoiceGroups();
+            groupingStage.stop(startNanos);
+
+            final Map<UUID, InvoiceItem> itemsById = new HashMap<UUID, InvoiceItem>();
+            for (final InvoiceItem item : items) {
+                itemsById.put(item.getId(), item);
+            }
+            final List<Invoice> invoices = new ArrayList<Invoice>(groups.size());
+            for (final InvoiceGroup group : groups) {
+                final List<InvoiceItem> groupItems = new ArrayList<InvoiceItem>(group.getInvoiceItemIds().size());
+                for (final UUID itemId : group.getInvoiceItemIds()) {
+                    groupItems.add(itemsById.get(itemId));
+                }
+                final Invoice groupInvoice = invoice(accountId, groupItems);
+                killbillAPI.addInvoice(groupInvoice);
+                invoices.add(groupInvoice);
+
+                startNanos = invoiceStage.start();
+                invoicePluginApi.onSuccessCall(new InvoiceContextImp.Builder<>().withTenantId(tenantId)
+                                                                                .withAccountId(accountId)
+                                                                                .withInvoice(groupInvoice)
+                                                                                .build(),
+                                               ImmutableList.of());
+                invoiceStage.stop(startNanos);
+            }
+
+            // Payment of each invoice, with the payment method of its subscription
+            final PaymentControlContext paymentContext = new PaymentControlContextImp.Builder<>().withTenantId(tenantId)
+                                                                                               .withAccountId(accountId)
+                                                                                               .withPaymentExternalKey(accountId.toString())
+                                                                                               .withTransactionType(TransactionType.PURCHASE)
+                                                                                               .withAmount(BigDecimal.TEN)
+                                                                                               .withCurrency(Currency.USD)
+                                                                                               .build();
+            for (final Invoice groupInvoice : invoices) {
+                final List<PluginProperty> properties = ImmutableList.of(new PluginProperty("IPCD_INVOICE_ID", groupInvoice.getId().toString(), false));
+
+                startNanos = paymentControlStage.start();
+                final PriorPaymentControlResult result = paymentControlPluginApi.priorCall(paymentContext, properties);
+                paymentControlStage.stop(startNanos);
+
+                final UUID subscriptionId = InvgrpPaymentMethodStore.getSubscriptionId(groupInvoice);
+                Assert.assertEquals(result.getAdjustedPaymentMethodId(), expectedPaymentMethodIds.get(subscriptionId));
+            }
+        } finally {
+            killbillAPI.getSecurityApi().logout();
+        }
+    }
+
+    private static InvoiceItem item(final UUID accountId, final UUID subscriptionId) {
+        return new InvoiceItemImp.Builder<>().withId(UUID.randomUUID())
+                                             .withAccountId(accountId)
+                                             .withInvoiceItemType(InvoiceItemType.RECURRING)
+                                             .withSubscriptionId(subscriptionId)
+                                             .withAmount(BigDecimal.TEN)
+                                             .withCurrency(Currency.USD)
+                                             .build();
+    }
+
+    private static Invoice invoice(final UUID accountId, final List<InvoiceItem> items) {
+        return new InvoiceImp.Builder<>().withId(UUID.randomUUID())
+                                         .withAccountId(accountId)
+                                         .withCurrency(Currency.USD)
+                                         .withInvoiceItems(items)
+                                         .build();
+    }
+
+    //
+    // Latencies and allocated bytes of one stage, recorded in arrays sized upfront (to not disturb the measurements)
+    //
+    private final class Stage {
+
+        private final String name;
+        private final long[] latencies;
+        private final AtomicInteger count = new AtomicInteger();
+        private final LongAdder allocatedBytes = new LongAdder();
+        // Allocation counter of the current thread at the start of the current call
+        private final ThreadLocal<long[]> allocationStart = ThreadLocal.withInitial(() -> new long[1]);
+
+        private Stage(final String name, final int maxCount) {
+            this.name = name;
+            this.latencies = new long[maxCount];
+        }
+
+        long start() {
+            allocationStart.get()[0] = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            return System.nanoTime();
+        }
+
+        void stop(final long startNanos) {
+            final long latency = System.nanoTime() - startNanos;
+            allocatedBytes.add(threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocationStart.get()[0]);
+            final int i = count.getAndIncrement();
+            if (i < latencies.length) {
+                latencies[i] = latency;
+            }
+        }
+
+        int getCount() {
+            return count.get();
+        }
+
+        String report(final long elapsedNanos) {
+            final int n = Math.min(count.get(), latencies.length);
+            final long[] sorted = Arrays.copyOf(latencies, n);
+            Arrays.sort(sorted);
+            return String.format("  %-15s %9d calls %10.0f ops/s  p50=%8.1f us  p90=%8.1f us  p99=%8.1f us  max=%9.1f us  %8d B/op",
+                                 name,
+                                 n,
+                                 n / (elapsedNanos / 1e9),
+                                 percentile(sorted, 0.50) / 1e3,
+                                 percentile(sorted, 0.90) / 1e3,
+                                 percentile(sorted, 0.99) / 1e3,
+                                 (n == 0 ? 0 : sorted[n - 1]) / 1e3,
+                                 n == 0 ? 0 : allocatedBytes.sum() / n);
+        }
+
+        private long percentile(final long[] sorted, final double p) {
+            return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.invgrp.InvgrpMappingTransfer.ImportResult;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestInvgrpMappingTransfer {
+
+    private final UUID accountId = UUID.randomUUID();
+    private final UUID tenantId = UUID.randomUUID();
+
+    private InvgrpInMemoryKillbillAPI killbillAPI;
+    private InvgrpDao dao;
+    private InvgrpCache<InvgrpTenantKey, InvgrpPaymentMethodMapping> cache;
+    private InvgrpMappingTransfer transfer;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        killbillAPI = new InvgrpInMemoryKillbillAPI();
+        dao = new InvgrpDao(InvgrpTestDataSource.create());
+        cache = new InvgrpCache<>("test", 100, 1, TimeUnit.HOURS);
+        final InvgrpPaymentMethodValidator validator = new InvgrpPaymentMethodValidator(killbillAPI,
+                                                                                        new InvgrpCache<>("validPaymentMethods", 100, 1, TimeUnit.HOURS),
+                                                                                        new InvgrpCache<>("unknownPaymentMethods", 100, 1, TimeUnit.HOURS));
+        transfer = new InvgrpMappingTransfer(dao, killbillAPI, InvgrpInMemoryKillbillAPI.clock(), cache, validator);
+    }
+
+    @Test(groups = "fast")
+    public void testImport() throws Exception {
+        final UUID pmId = killbillAPI.addPaymentMethod(accountId);
+        final UUID otherPmId = killbillAPI.addPaymentMethod(UUID.randomUUID());
+        final UUID existingSubscriptionId = subscription();
+        dao.addPaymentMethodMapping(accountId, existingSubscriptionId, pmId, new DateTime(), tenantId);
+        // Cached without mapping
+        final UUID subscriptionId = subscription();
+        cache.put(new InvgrpTenantKey(tenantId, subscriptionId), null);
+
+        final StringBuilder ndjson = new StringBuilder();
+        ndjson.append(line(accountId, subscriptionId, pmId));
+        ndjson.append(line(accountId, existingSubscriptionId, pmId));
+        ndjson.append("\n");
+        ndjson.append("{\"accountId\":\"").append(accountId).append("\"}\n");
+        ndjson.append("not json\n");
+        ndjson.append(line(accountId, subscription(), otherPmId));
+        ndjson.append(line(accountId, subscription(), UUID.randomUUID()));
+        // Duplicate, and no trailing new line
+        ndjson.append(line(accountId, subscriptionId, pmId).trim());
+
+        final ImportResult result = transfer.importMappings(in(ndjson.toString())::transferTo, tenantId);
+        Assert.assertEquals(result.getNbRows(), 7);
+        Assert.assertEquals(result.getNbCreated(), 1);
+        Assert.assertEquals(result.getNbExisting(), 2);
+        Assert.assertEquals(result.getNbRejected(), 4);
+        Assert.assertEquals(result.getErrors().size(), 4);
+        Assert.assertTrue(result.getErrors().get(0).startsWith("line 4: "), result.getErrors().get(0));
+        Assert.assertTrue(result.getErrors().get(2).startsWith("line 6: "), result.getErrors().get(2));
+
+        Assert.assertEquals(dao.getPaymentMethodMapping(subscriptionId, tenantId).getPaymentMethodId(), pmId);
+        Assert.assertEquals(dao.getPaymentMethodMappingsForAccount(accountId, tenantId).size(), 2);
+        Assert.assertNull(cache.get(new InvgrpTenantKey(tenantId, subscriptionId)));
+        Assert.assertEquals(cache.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testLineTooLong() throws Exception {
+        final UUID pmId = killbillAPI.addPaymentMethod(accountId);
+        final String ndjson = "x".repeat(InvgrpMappingTransfer.MAX_LINE_LENGTH + 1) + "\n" + line(accountId, subscription(), pmId);
+
+        final ImportResult result = transfer.importMappings(in(ndjson)::transferTo, tenantId);
+        Assert.assertEquals(result.getNbRows(), 2);
+        Assert.assertEquals(result.getNbCreated(), 1);
+        Assert.assertEquals(result.getNbRejected(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testExportImport() throws Exception {
+        final UUID pmId = killbillAPI.addPaymentMethod(accountId);
+        final Set<UUID> subscriptionIds = new HashSet<UUID>();
+        for (int i = 0; i < InvgrpMappingTransfer.EXPORT_PAGE_SIZE * 2 + 10; i++) {
+            subscriptionIds.add(subscription());
+        }
+        dao.addPaymentMethodMappings(accountId, subscriptionIds, pmId, new DateTime(), tenantId);
+        // Other tenant
+        dao.addPaymentMethodMapping(accountId, UUID.randomUUID(), pmId, new DateTime(), UUID.randomUUID());
+
+        final byte[] export;
+        try (final InputStream in = transfer.exportMappings(tenantId)) {
+            export = in.readAllBytes();
+        }
+        final List<String> lines = new ArrayList<String>(List.of(new String(export, StandardCharsets.UTF_8).split("\n")));
+        Assert.assertEquals(lines.size(), subscriptionIds.size());
+        Assert.assertEquals(new HashSet<String>(lines).size(), subscriptionIds.size());
+
+        // Round trip, to another tenant
+        final UUID otherTenantId = UUID.randomUUID();
+        final ImportResult result = transfer.importMappings(new ByteArrayInputStream(export)::transferTo, otherTenantId);
+        Assert.assertEquals(result.getNbRows(), subscriptionIds.size());
+        Assert.assertEquals(result.getNbCreated(), subscriptionIds.size());
+        Assert.assertEquals(result.getNbRejected(), 0);
+        Assert.assertEquals(dao.getPaymentMethodMappingsForAccount(accountId, otherTenantId).size(), subscriptionIds.size());
+
+        // Empty
+        try (final InputStream in = transfer.exportMappings(UUID.randomUUID())) {
+            Assert.assertEquals(in.read(), -1);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testFallbacks() throws Exception {
+        final UUID pmId = killbillAPI.addPaymentMethod(accountId);
+        final UUID fallbackPmId1 = killbillAPI.addPaymentMethod(accountId);
+        final UUID fallbackPmId2 = killbillAPI.addPaymentMethod(accountId);
+        final UUID otherPmId = killbillAPI.addPaymentMethod(UUID.randomUUID());
+        final UUID subscriptionId = subscription();
+        final UUID mappedSubscriptionId = subscription();
+        dao.addPaymentMethodMapping(accountId, mappedSubscriptionId, fallbackPmId1, new DateTime(), tenantId);
+        final String ndjson = line(accountId, subscriptionId, pmId, fallbackPmId1, fallbackPmId2) +
+                              line(accountId, subscription(), pmId, otherPmId) +
+                              // Already has fallbacks
+                              line(accountId, subscriptionId, pmId, fallbackPmId2) +
+                              // Mapped to another payment method
+                              line(accountId, mappedSubscriptionId, pmId, fallbackPmId2);
+
+        final ImportResult result = transfer.importMappings(in(ndjson)::transferTo, tenantId);
+        Assert.assertEquals(result.getNbCreated(), 1);
+        Assert.assertEquals(result.getNbExisting(), 2);
+        Assert.assertEquals(result.getNbFallbacksCreated(), 1);
+        Assert.assertEquals(result.getNbRejected(), 1);
+        Assert.assertEquals(dao.getFallbackPaymentMethodIds(subscriptionId, tenantId), List.of(fallbackPmId1, fallbackPmId2));
+        Assert.assertEquals(dao.getFallbackPaymentMethodIds(mappedSubscriptionId, tenantId), List.of());
+
+        // Round trip, to another tenant
+        final byte[] export;
+        try (final InputStream in = transfer.exportMappings(tenantId)) {
+            export = in.readAllBytes();
+        }
+        final UUID otherTenantId = UUID.randomUUID();
+        Assert.assertEquals(transfer.importMappings(new ByteArrayInputStream(export)::transferTo, otherTenantId).getNbFallbacksCreated(), 1);
+        Assert.assertEquals(dao.getFallbackPaymentMethodIds(subscriptionId, otherTenantId), List.of(fallbackPmId1, fallbackPmId2));
+    }
+
+    @Test(groups = "fast")
+    public void testSubscriptionNotOfAccount() throws Exception {
+        final UUID pmId = killbillAPI.addPaymentMethod(accountId);
+        final UUID otherAccountId = UUID.randomUUID();
+        final UUID otherSubscriptionId = killbillAPI.addSubscription(otherAccountId).getId();
+        final String ndjson = line(accountId, subscription(), pmId) +
+                              // Subscription of another account
+                              line(accountId, otherSubscriptionId, pmId) +
+                              // Unknown subscription
+                              line(accountId, UUID.randomUUID(), pmId) +
+                              // Unknown account
+                              line(UUID.randomUUID(), otherSubscriptionId, pmId);
+
+        final ImportResult result = transfer.importMappings(in(ndjson)::transferTo, tenantId);
+        Assert.assertEquals(result.getNbCreated(), 1);
+        Assert.assertEquals(result.getNbRejected(), 3);
+        Assert.assertTrue(result.getErrors().get(0).startsWith("line 2: subscription " + otherSubscriptionId), result.getErrors().get(0));
+        Assert.assertNull(dao.getPaymentMethodMapping(otherSubscriptionId, tenantId));
+    }
+
+    private UUID subscription() {
+        return killbillAPI.addSubscription(accountId).getId();
+    }
+
+    private static String line(final UUID accountId, final UUID subscriptionId, final UUID paymentMethodId, final UUID... fallbackPaymentMethodIds) {
+        if (fallbackPaymentMethodIds.length > 0) {
+            final String fallbacks = Arrays.stream(fallbackPaymentMethodIds).map(id -> "\"" + id + "\"").collect(Collectors.joining(","));
+            return "{\"accountId\":\"" + accountId + "\",\"subscriptionId\":\"" + subscriptionId + "\",\"paymentMethodId\":\"" + paymentMethodId +
+                   "\",\"fallbackPaymentMethodIds\":[" + fallbacks + "]}\n";
+        }
+        return "{\"accountId\":\"" + accountId + "\",\"subscriptionId\":\"" + subscriptionId + "\",\"paymentMethodId\":\"" + paymentMethodId + "\"}\n";
+    }
+
+    private static InputStream in(final String ndjson) {
+        return new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestInvgrpMetrics {
+
+    // Values recorded per metric name (in nanoseconds for the timers)
+    private final Map<String, List<Long>> values = new ConcurrentHashMap<String, List<Long>>();
+
+    private InvgrpMetrics metrics;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        values.clear();
+        final MetricRegistry registry = recorder(MetricRegistry.class, null);
+        metrics = new InvgrpMetrics(new OSGIMetricRegistry(InvgrpInMemoryKillbillAPI.noopBundleContext()) {
+            @Override
+            public MetricRegistry getMetricRegistry() {
+                return registry;
+            }
+        }, 2);
+    }
+
+    @Test(groups = "fast")
+    public void testRecord() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final String result = metrics.record("paymentControl", "priorCall", tenantId, TransactionType.PURCHASE, () -> {
+            InvgrpMetrics.killbill(() -> {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+                return null;
+            });
+            return "ok";
+        });
+        Assert.assertEquals(result, "ok");
+
+        final String prefix = "invgrp.paymentControl.priorCall.PURCHASE." + tenantId;
+        Assert.assertEquals(values.get(prefix + ".calls").size(), 1);
+        Assert.assertNull(values.get(prefix + ".errors"));
+        Assert.assertTrue(values.get(prefix + ".killbillTime").get(0) >= 5000);
+        Assert.assertTrue(values.get(prefix + ".pluginTime").get(0) < values.get(prefix + ".killbillTime").get(0));
+    }
+
+    @Test(groups = "fast")
+    public void testErrors() {
+        try {
+            metrics.record("listener", "handleKillbillEvent", null, ExtBusEventType.ACCOUNT_CHANGE, () -> {
+                throw new IllegalStateException("boom");
+            });
+            Assert.fail();
+        } catch (final IllegalStateException e) {
+            Assert.assertEquals(e.getMessage(), "boom");
+        }
+
+        final String prefix = "invgrp.listener.handleKillbillEvent.ACCOUNT_CHANGE." + InvgrpMetrics.NO_TENANT;
+        Assert.assertEquals(values.get(prefix + ".calls").size(), 1);
+        Assert.assertEquals(values.get(prefix + ".errors"), List.of(1L));
+    }
+
+    @Test(groups = "fast")
+    public void testTenantCardinality() {
+        final UUID tenant1 = UUID.randomUUID();
+        final UUID tenant2 = UUID.randomUUID();
+        Assert.assertEquals(metrics.getTenantTag(tenant1), tenant1.toString());
+        Assert.assertEquals(metrics.getTenantTag(tenant2), tenant2.toString());
+        Assert.assertEquals(metrics.getTenantTag(UUID.randomUUID()), InvgrpMetrics.OTHER_TENANTS);
+        Assert.assertEquals(metrics.getTenantTag(tenant1), tenant1.toString());
+
+        metrics.recordGrouping(UUID.randomUUID(), 10, 3);
+        Assert.assertEquals(values.get("invgrp.invoice.items." + InvgrpMetrics.OTHER_TENANTS), List.of(10L));
+        Assert.assertEquals(values.get("invgrp.invoice.groups." + InvgrpMetrics.OTHER_TENANTS), List.of(3L));
+    }
+
+    @Test(groups = "fast")
+    public void testCallStats() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        for (int i = 1; i <= InvgrpMetrics.RECENT_CALLS + 100; i++) {
+            final long latencyMicros = i;
+            metrics.record("invoice", "getInvoiceGrouping", tenantId, null, () -> {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(latencyMicros > InvgrpMetrics.RECENT_CALLS ? 5000 : 0));
+                return null;
+            });
+        }
+        // In progress
+        final Map<String, InvgrpMetrics.CallStats> inCall = metrics.record("invoice", "getInvoiceGrouping", tenantId, null, () -> metrics.getCallStats(tenantId));
+        Assert.assertEquals(inCall.get("invoice.getInvoiceGrouping").getInFlight(), 1);
+
+        final InvgrpMetrics.CallStats stats = metrics.getCallStats(tenantId).get("invoice.getInvoiceGrouping");
+        Assert.assertEquals(stats.getInFlight(), 0);
+        Assert.assertEquals(stats.getCalls(), InvgrpMetrics.RECENT_CALLS + 101);
+        Assert.assertEquals(stats.getErrors(), 0);
+        Assert.assertEquals(stats.getNbSamples(), InvgrpMetrics.RECENT_CALLS);
+        // Only the last calls count: the 101 slow ones are more than 1% of them
+        Assert.assertTrue(stats.getP99() >= 5000, stats.getP99() + "");
+        Assert.assertTrue(stats.getP50() < 5000, stats.getP50() + "");
+        Assert.assertTrue(stats.getMax() >= stats.getP99());
+
+        Assert.assertTrue(metrics.getCallStats(UUID.randomUUID()).isEmpty());
+    }
+
+    // Registry (and metrics) recording all updates in the values map
+    private <T> T recorder(final Class<T> clazz, final String name) {
+        return clazz.cast(Proxy.newProxyInstance(TestInvgrpMetrics.class.getClassLoader(),
+                                                 new Class<?>[]{clazz},
+                                                 (proxy, method, args) -> {
+                                                     if (name == null) {
+                                                         // Registry: timer(name), counter(name), histogram(name)
+                                                         return recorder(method.getReturnType(), (String) args[0]);
+                                                     }
+                                                     // Metric: update(value[, unit]), inc(value)
+                                                     final long value = args.length == 1 ? (Long) args[0] : ((TimeUnit) args[1]).toNanos((Long) args[0]);
+                                                     values.computeIfAbsent(name, n -> new CopyOnWriteArrayList<Long>()).add(value);
+                                                     return null;
+                                                 }));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestInvgrpPartitionedExecutor {
+
+    @Test(groups = "fast")
+    public void testOrderingPerKey() throws Exception {
+        final InvgrpPartitionedExecutor executor = new InvgrpPartitionedExecutor("test", 4, 1000);
+        final List<UUID> keys = new ArrayList<UUID>();
+        for (int i = 0; i < 10; i++) {
+            keys.add(UUID.randomUUID());
+        }
+
+        final Map<UUID, List<Integer>> processed = new ConcurrentHashMap<UUID, List<Integer>>();
+        for (int i = 0; i < 100; i++) {
+            for (final UUID key : keys) {
+                final int seq = i;
+                executor.execute(key, () -> processed.computeIfAbsent(key, k -> new CopyOnWriteArrayList<Integer>()).add(seq));
+            }
+        }
+        Assert.assertTrue(executor.stop(10, TimeUnit.SECONDS));
+
+        for (final UUID key : keys) {
+            final List<Integer> seqs = processed.get(key);
+            Assert.assertEquals(seqs.size(), 100);
+            for (int i = 0; i < 100; i++) {
+                Assert.assertEquals((int) seqs.get(i), i);
+            }
+        }
+        Assert.assertEquals(executor.getSubmittedCount(), 1000);
+    }
+
+    @Test(groups = "fast")
+    public void testBackpressure() throws Exception {
+        final InvgrpPartitionedExecutor executor = new InvgrpPartitionedExecutor("test", 1, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger processed = new AtomicInteger();
+
+        // One running, two queued: the next submission waits for room
+        for (int i = 0; i < 3; i++) {
+            executor.execute(null, () -> {
+                awaitQuietly(release);
+                processed.incrementAndGet();
+            });
+        }
+        final Thread submitter = new Thread(() -> executor.execute(null, processed::incrementAndGet));
+        submitter.start();
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (executor.getBlockedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(executor.getBlockedCount(), 1);
+        Assert.assertTrue(submitter.isAlive());
+        Assert.assertEquals(executor.getQueueDepth(), 2);
+
+        release.countDown();
+        submitter.join(10000);
+        Assert.assertTrue(executor.stop(10, TimeUnit.SECONDS));
+        Assert.assertEquals(processed.get(), 4);
+    }
+
+    @Test(groups = "fast")
+    public void testTryExecute() throws Exception {
+        final InvgrpPartitionedExecutor executor = new InvgrpPartitionedExecutor("test", 1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger processed = new AtomicInteger();
+
+        // One running, one queued: the next one is refused, without waiting
+        final CountDownLatch running = new CountDownLatch(1);
+        Assert.assertTrue(executor.tryExecute(null, () -> {
+            running.countDown();
+            awaitQuietly(release);
+            processed.incrementAndGet();
+        }));
+        Assert.assertTrue(running.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(executor.tryExecute(null, processed::incrementAndGet));
+        Assert.assertFalse(executor.tryExecute(null, processed::incrementAndGet));
+        Assert.assertEquals(executor.getBlockedCount(), 0);
+        Assert.assertEquals(executor.getSubmittedCount(), 2);
+
+        release.countDown();
+        Assert.assertTrue(executor.stop(10, TimeUnit.SECONDS));
+        Assert.assertEquals(processed.get(), 2);
+        try {
+            executor.tryExecute(null, processed::incrementAndGet);
+            Assert.fail();
+        } catch (final RejectedExecutionException expected) {
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testStop() throws Exception {
+        final InvgrpPartitionedExecutor executor = new InvgrpPartitionedExecutor("test", 2, 100);
+        final AtomicInteger processed = new AtomicInteger();
+        for (int i = 0; i < 50; i++) {
+            executor.execute(UUID.randomUUID(), () -> {
+                sleepQuietly(1);
+                processed.incrementAndGet();
+            });
+        }
+
+        // Queued tasks are drained
+        Assert.assertTrue(executor.stop(10, TimeUnit.SECONDS));
+        Assert.assertEquals(processed.get(), 50);
+        try {
+            executor.execute(UUID.randomUUID(), processed::incrementAndGet);
+            Assert.fail();
+        } catch (final RejectedExecutionException expected) {
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSynchronous() throws Exception {
+        final InvgrpPartitionedExecutor executor = new InvgrpPartitionedExecutor("test", 0, 0);
+        final Thread[] thread = new Thread[1];
+        executor.execute(UUID.randomUUID(), () -> thread[0] = Thread.currentThread());
+        Assert.assertSame(thread[0], Thread.currentThread());
+        Assert.assertTrue(executor.stop(1, TimeUnit.SECONDS));
+    }
+
+    private static void awaitQuietly(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleepQuietly(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
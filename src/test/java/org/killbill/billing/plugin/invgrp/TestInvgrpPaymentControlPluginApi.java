@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.control.plugin.api.PaymentControlContext;
+import org.killbill.billing.control.plugin.api.boilerplate.plugin.PaymentControlContextImp;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.invoice.api.boilerplate.InvoiceImp;
+import org.killbill.billing.invoice.api.boilerplate.InvoiceItemImp;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestInvgrpPaymentControlPluginApi {
+
+    private final UUID tenantId = UUID.randomUUID();
+    private final PaymentControlContext context = context(null);
+
+    private InvgrpInMemoryKillbillAPI killbillAPI;
+    private InvgrpDao dao;
+    private InvgrpCache<InvgrpTenantKey, InvgrpPaymentMethodMapping> cache;
+    private InvgrpPaymentMethodStore store;
+    private InvgrpPaymentControlPluginApi paymentControlPluginApi;
+    private UUID accountId;
+    private UUID subscriptionId;
+    private UUID pmId;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        killbillAPI = new InvgrpInMemoryKillbillAPI();
+        dao = new InvgrpDao(InvgrpTestDataSource.create());
+        cache = new InvgrpCache<>("test", 100, 1, TimeUnit.HOURS);
+        store = new InvgrpPaymentMethodStore(dao, killbillAPI, InvgrpInMemoryKillbillAPI.clock(), cache, false, null);
+        final InvgrpPaymentMethodRouter router = new InvgrpPaymentMethodRouter(dao, InvgrpInMemoryKillbillAPI.clock(), store, 60, 3, 10);
+        paymentControlPluginApi = new InvgrpPaymentControlPluginApi(killbillAPI, store, router, new InvgrpMetrics(null, 0));
+
+        accountId = killbillAPI.addAccount().getId();
+        subscriptionId = killbillAPI.addSubscription(accountId).getId();
+        pmId = killbillAPI.addPaymentMethod(accountId);
+    }
+
+    @Test(groups = "fast")
+    public void testIndexedInvoice() throws Exception {
+        store.addPaymentMethod(accountId, subscriptionId, pmId, context);
+        final Invoice invoice = invoice();
+        store.addInvoicePaymentMethod(invoice, context);
+
+        // The invoice isn't loaded
+        final long nbCalls = killbillAPI.getNbCalls();
+        Assert.assertEquals(priorCall(invoice), pmId);
+        Assert.assertEquals(killbillAPI.getNbCalls(), nbCalls);
+    }
+
+    @Test(groups = "fast")
+    public void testInvoiceIndexedBeforeMapping() throws Exception {
+        final Invoice invoice = invoice();
+        store.addInvoicePaymentMethod(invoice, context);
+        Assert.assertNull(dao.getInvoicePaymentMethod(invoice.getId(), tenantId).getPaymentMethodId());
+        Assert.assertNull(priorCall(invoice));
+
+        // Written later (e.g. by the mapping queue, which invalidates the cache)
+        dao.addPaymentMethodMapping(accountId, subscriptionId, pmId, new DateTime(), tenantId);
+        cache.invalidate(new InvgrpTenantKey(tenantId, subscriptionId));
+        Assert.assertEquals(priorCall(invoice), pmId);
+        Assert.assertEquals(dao.getInvoicePaymentMethod(invoice.getId(), tenantId).getPaymentMethodId(), pmId);
+    }
+
+    @Test(groups = "fast")
+    public void testInvoiceIndexedBeforeMappingFailover() throws Exception {
+        final UUID fallbackPmId = killbillAPI.addPaymentMethod(accountId);
+        store.addPaymentMethod(accountId, subscriptionId, pmId, context);
+        dao.addFallbackPaymentMethods(accountId, subscriptionId, List.of(fallbackPmId), new DateTime(), tenantId);
+        // Indexed while the mapping wasn't visible yet (e.g. written concurrently)
+        final Invoice invoice = invoice();
+        dao.addInvoicePaymentMethod(invoice.getId(), accountId, subscriptionId, null, new DateTime(), tenantId);
+
+        // The payment method is written to the index, so that the invoice can be switched
+        paymentControlPluginApi.onFailureCall(context(pmId), properties(invoice));
+        Assert.assertEquals(dao.getInvoicePaymentMethod(invoice.getId(), tenantId).getPaymentMethodId(), fallbackPmId);
+        Assert.assertEquals(priorCall(invoice), fallbackPmId);
+    }
+
+    @Test(groups = "fast")
+    public void testInvoiceNotIndexed() throws Exception {
+        store.addPaymentMethod(accountId, subscriptionId, pmId, context);
+        final Invoice invoice = invoice();
+
+        // Resolved from the invoice subscription
+        Assert.assertEquals(priorCall(invoice), pmId);
+        Assert.assertNull(dao.getInvoicePaymentMethod(invoice.getId(), tenantId));
+
+        // Indexed on failure, and switched to the fallback
+        final UUID fallbackPmId = killbillAPI.addPaymentMethod(accountId);
+        dao.addFallbackPaymentMethods(accountId, subscriptionId, List.of(fallbackPmId), new DateTime(), tenantId);
+        // Cached with the mapping (e.g. by the import, which invalidates the cache)
+        cache.invalidate(new InvgrpTenantKey(tenantId, subscriptionId));
+        paymentControlPluginApi.onFailureCall(context(pmId), properties(invoice));
+        Assert.assertEquals(dao.getInvoicePaymentMethod(invoice.getId(), tenantId).getPaymentMethodId(), fallbackPmId);
+        Assert.assertEquals(priorCall(invoice), fallbackPmId);
+    }
+
+    @Test(groups = "fast")
+    public void testNoInvoice() throws Exception {
+        Assert.assertNull(paymentControlPluginApi.priorCall(context, ImmutableList.of()).getAdjustedPaymentMethodId());
+    }
+
+    private UUID priorCall(final Invoice invoice) throws Exception {
+        return paymentControlPluginApi.priorCall(context, properties(invoice)).getAdjustedPaymentMethodId();
+    }
+
+    private Invoice invoice() {
+        final Invoice invoice = new InvoiceImp.Builder<>().withId(UUID.randomUUID())
+                                                          .withAccountId(accountId)
+                                                          .withInvoiceItems(ImmutableList.of(new InvoiceItemImp.Builder<>().withId(UUID.randomUUID())
+                                                                                                                           .withInvoiceItemType(InvoiceItemType.RECURRING)
+                                                                                                                           .withSubscriptionId(subscriptionId)
+                                                                                                                           .withAmount(BigDecimal.TEN)
+                                                                                                                           .withCurrency(Currency.USD)
+                                                                                                                           .build()))
+                                                          .build();
+        killbillAPI.addInvoice(invoice);
+        return invoice;
+    }
+
+    private static List<PluginProperty> properties(final Invoice invoice) {
+        return ImmutableList.of(new PluginProperty("IPCD_INVOICE_ID", invoice.getId().toString(), false));
+    }
+
+    private PaymentControlContext context(final UUID paymentMethodId) {
+        return new PaymentControlContextImp.Builder<>().withTenantId(tenantId)
+                                                       .withPaymentMethodId(paymentMethodId)
+                                                       .withTransactionType(TransactionType.PURCHASE)
+                                                       .withAmount(BigDecimal.TEN)
+                                                       .withCurrency(Currency.USD)
+                                                       .build();
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.entitlement.api.Subscription;
+import org.killbill.billing.entitlement.api.SubscriptionApiException;
+import org.killbill.billing.payment.api.PaymentApiException;
+import org.killbill.billing.plugin.api.PluginCallContext;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestInvgrpPaymentMethodQueue {
+
+    private final UUID accountId = UUID.randomUUID();
+    private final CallContext context = new PluginCallContext(InvgrpActivator.PLUGIN_NAME, new DateTime(), accountId, UUID.randomUUID());
+
+    private InvgrpInMemoryKillbillAPI killbillAPI;
+    private InvgrpDao dao;
+    private InvgrpCache<InvgrpTenantKey, InvgrpPaymentMethodMapping> cache;
+    private InvgrpPaymentMethodQueue queue;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        killbillAPI = new InvgrpInMemoryKillbillAPI();
+        dao = new InvgrpDao(InvgrpTestDataSource.create());
+        cache = new InvgrpCache<>("test", 100, 1, TimeUnit.HOURS);
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception {
+        if (queue != null) {
+            queue.stop();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSynchronous() throws Exception {
+        queue = queue(0);
+        final Subscription subscription = killbillAPI.addSubscription(accountId);
+        final UUID pmId = killbillAPI.addPaymentMethod(accountId);
+
+        queue.add(accountId, subscription.getExternalKey(), pmId, context);
+        Assert.assertEquals(dao.getPaymentMethodMapping(subscription.getId(), context.getTenantId()).getPaymentMethodId(), pmId);
+        Assert.assertTrue(dao.getPendingPaymentMethodsForAccount(accountId, context.getTenantId()).isEmpty());
+
+        // Invalid payment methods are reported to the caller
+        try {
+            queue.add(accountId, killbillAPI.addSubscription(accountId).getExternalKey(), UUID.randomUUID(), context);
+            Assert.fail();
+        } catch (final PaymentApiException expected) {
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testShoppingCart() throws Exception {
+        queue = queue(0);
+        final List<Subscription> subscriptions = new ArrayList<Subscription>();
+        for (int i = 0; i < 50; i++) {
+            subscriptions.add(killbillAPI.addSubscription(accountId));
+        }
+        final UUID pmId = killbillAPI.addPaymentMethod(accountId);
+        final List<String> externalKeys = subscriptions.stream().map(Subscription::getExternalKey).collect(Collectors.toList());
+        // Already mapped (e.g. retry), and a duplicate key
+        dao.addPaymentMethodMapping(accountId, subscriptions.get(0).getId(), pmId, new DateTime(), context.getTenantId());
+        externalKeys.add(externalKeys.get(1));
+
+        // One payment method validation, one lookup per subscription
+        final long nbCalls = killbillAPI.getNbCalls();
+        queue.add(accountId, externalKeys, pmId, context);
+        Assert.assertEquals(killbillAPI.getNbCalls() - nbCalls, 1 + subscriptions.size());
+        Assert.assertEquals(dao.getPaymentMethodMappingsForAccount(accountId, context.getTenantId()).size(), subscriptions.size());
+
+        // Subscriptions which can't be found don't prevent the other ones from being mapped
+        final Subscription other = killbillAPI.addSubscription(accountId);
+        try {
+            queue.add(accountId, List.of(UUID.randomUUID().toString(), other.getExternalKey()), pmId, context);
+            Assert.fail();
+        } catch (final SubscriptionApiException expected) {
+        }
+        Assert.assertEquals(dao.getPaymentMethodMapping(other.getId(), context.getTenantId()).getPaymentMethodId(), pmId);
+    }
+
+    @Test(groups = "fast")
+    public void testShoppingCartQueued() throws Exception {
+        queue = queue(1);
+        final Subscription subscription1 = killbillAPI.addSubscription(accountId);
+        final UUID pmId = killbillAPI.addPaymentMethod(accountId);
+
+        // Only the missing subscription is retried
+        final String externalKey2 = UUID.randomUUID().toString();
+        queue.add(accountId, List.of(subscription1.getExternalKey(), externalKey2), pmId, context);
+        final List<InvgrpPendingPaymentMethod> pending = awaitAttempts(1);
+        Assert.assertEquals(pending.size(), 1);
+        Assert.assertEquals(pending.get(0).getSubscriptionExternalKey(), externalKey2);
+        Assert.assertEquals(dao.getPaymentMethodMapping(subscription1.getId(), context.getTenantId()).getPaymentMethodId(), pmId);
+
+        final Subscription subscription2 = killbillAPI.addSubscription(accountId, externalKey2);
+        queue.flush(accountId, context);
+        Assert.assertEquals(dao.getPaymentMethodMapping(subscription2.getId(), context.getTenantId()).getPaymentMethodId(), pmId);
+        Assert.assertTrue(dao.getPendingPaymentMethodsForAccount(accountId, context.getTenantId()).isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testQueuedInvalidPaymentMethod() throws Exception {
+        queue = queue(1);
+        final Subscription subscription = killbillAPI.addSubscription(accountId);
+
+        // Still reported to the caller, nothing is queued
+        try {
+            queue.add(accountId, subscription.getExternalKey(), UUID.randomUUID(), context);
+            Assert.fail();
+        } catch (final PaymentApiException expected) {
+        }
+        Assert.assertTrue(dao.getPendingPaymentMethodsForAccount(accountId, context.getTenantId()).isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testFallbacksQueued() throws Exception {
+        queue = queue(1);
+        final Subscription subscription = killbillAPI.addSubscription(accountId);
+        final UUID pmId = killbillAPI.addPaymentMethod(accountId);
+        final UUID fallbackPmId = killbillAPI.addPaymentMethod(accountId);
+
+        // Unknown fallbacks are reported to the caller too
+        try {
+            queue.add(accountId, List.of(subscription.getExternalKey()), pmId, List.of(UUID.randomUUID()), context);
+            Assert.fail();
+        } catch (final PaymentApiException expected) {
+        }
+
+        queue.add(accountId, List.of(subscription.getExternalKey()), pmId, List.of(fallbackPmId), context);
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!dao.getPendingPaymentMethodsForAccount(accountId, context.getTenantId()).isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(dao.getPaymentMethodMapping(subscription.getId(), context.getTenantId()).getPaymentMethodId(), pmId);
+        Assert.assertEquals(dao.getFallbackPaymentMethodIds(subscription.getId(), context.getTenantId()), List.of(fallbackPmId));
+
+        // Not for the subscriptions already mapped to another payment method
+        final Subscription mappedSubscription = killbillAPI.addSubscription(accountId);
+        final Subscription newSubscription = killbillAPI.addSubscription(accountId);
+        final UUID otherPmId = killbillAPI.addPaymentMethod(accountId);
+        dao.addPaymentMethodMapping(accountId, mappedSubscription.getId(), otherPmId, new DateTime(), context.getTenantId());
+        queue.add(accountId, List.of(mappedSubscription.getExternalKey(), newSubscription.getExternalKey()), pmId, List.of(fallbackPmId), context);
+        while (!dao.getPendingPaymentMethodsForAccount(accountId, context.getTenantId()).isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(dao.getPaymentMethodMapping(mappedSubscription.getId(), context.getTenantId()).getPaymentMethodId(), otherPmId);
+        Assert.assertEquals(dao.getFallbackPaymentMethodIds(mappedSubscription.getId(), context.getTenantId()), List.of());
+        Assert.assertEquals(dao.getFallbackPaymentMethodIds(newSubscription.getId(), context.getTenantId()), List.of(fallbackPmId));
+    }
+
+    @Test(groups = "fast")
+    public void testReadThrough() throws Exception {
+        queue = queue(1);
+        final InvgrpPaymentMethodStore store = new InvgrpPaymentMethodStore(dao, killbillAPI, InvgrpInMemoryKillbillAPI.clock(), cache, false, queue);
+        final UUID pmId = killbillAPI.addPaymentMethod(accountId);
+
+        // The subscription isn't visible yet: the mapping stays queued, to be retried
+        final String externalKey = UUID.randomUUID().toString();
+        queue.add(accountId, externalKey, pmId, context);
+        final List<InvgrpPendingPaymentMethod> pending = awaitAttempts(1);
+        Assert.assertEquals(pending.get(0).getSubscriptionExternalKey(), externalKey);
+        Assert.assertEquals(pending.get(0).getPaymentMethodId(), pmId);
+
+        // Readers don't wait for the retry
+        final Subscription subscription = killbillAPI.addSubscription(accountId, externalKey);
+        Assert.assertEquals(store.getPaymentMethodId(accountId, subscription.getId(), context), pmId);
+        Assert.assertTrue(dao.getPendingPaymentMethodsForAccount(accountId, context.getTenantId()).isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testPoller() throws Exception {
+        queue = queue(1);
+        final Subscription subscription = killbillAPI.addSubscription(accountId);
+        final UUID pmId = killbillAPI.addPaymentMethod(accountId);
+
+        // Left over by a previous run
+        dao.addPendingPaymentMethod(accountId, subscription.getExternalKey(), pmId, new DateTime().minusMinutes(1), new DateTime(), context.getTenantId());
+        queue.poll();
+
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (dao.getPaymentMethodMapping(subscription.getId(), context.getTenantId()) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(dao.getPaymentMethodMapping(subscription.getId(), context.getTenantId()).getPaymentMethodId(), pmId);
+    }
+
+    @Test(groups = "fast")
+    public void testMaxAttempts() throws Exception {
+        queue = queue(1, 1);
+        queue.add(accountId, UUID.randomUUID().toString(), killbillAPI.addPaymentMethod(accountId), context);
+
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!dao.getPendingPaymentMethodsForAccount(accountId, context.getTenantId()).isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(dao.getPendingPaymentMethodsForAccount(accountId, context.getTenantId()).isEmpty());
+    }
+
+    private List<InvgrpPendingPaymentMethod> awaitAttempts(final int attempts) throws Exception {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            final List<InvgrpPendingPaymentMethod> pending = dao.getPendingPaymentMethodsForAccount(accountId, context.getTenantId());
+            if (!pending.isEmpty() && pending.get(0).getAttempts() >= attempts) {
+                return pending;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Mapping wasn't attempted " + attempts + " time(s)");
+    }
+
+    private InvgrpPaymentMethodQueue queue(final int nbWorkers) {
+        return queue(nbWorkers, 10);
+    }
+
+    private InvgrpPaymentMethodQueue queue(final int nbWorkers, final int maxAttempts) {
+        final InvgrpPaymentMethodQueue result = new InvgrpPaymentMethodQueue(dao,
+                                                                             killbillAPI,
+                                                                             InvgrpInMemoryKillbillAPI.clock(),
+                                                                             cache,
+                                                                             new InvgrpPaymentMethodValidator(killbillAPI,
+                                                                                                              new InvgrpCache<>("validPaymentMethods", 100, 1, TimeUnit.HOURS),
+                                                                                                              new InvgrpCache<>("unknownPaymentMethods", 100, 1, TimeUnit.MILLISECONDS)),
+                                                                             nbWorkers,
+                                                                             100,
+                                                                             maxAttempts);
+        result.start();
+        return result;
+    }
+}
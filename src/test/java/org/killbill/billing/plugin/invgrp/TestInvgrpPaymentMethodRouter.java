@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
+import org.killbill.billing.plugin.api.PluginTenantContext;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestInvgrpPaymentMethodRouter {
+
+    private final UUID tenantId = UUID.randomUUID();
+    private final TenantContext context = new PluginTenantContext(null, tenantId);
+    private final UUID accountId = UUID.randomUUID();
+    private final UUID subscriptionId = UUID.randomUUID();
+    private final UUID pmId = UUID.randomUUID();
+    private final UUID fallbackPmId1 = UUID.randomUUID();
+    private final UUID fallbackPmId2 = UUID.randomUUID();
+
+    private InvgrpInMemoryKillbillAPI.MockClock clock;
+    private OSGIKillbillClock killbillClock;
+    private InvgrpDao dao;
+    private InvgrpCache<InvgrpTenantKey, InvgrpPaymentMethodMapping> cache;
+    private InvgrpPaymentMethodStore store;
+    private InvgrpPaymentMethodRouter router;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        clock = new InvgrpInMemoryKillbillAPI.MockClock();
+        killbillClock = InvgrpInMemoryKillbillAPI.clock(clock);
+        dao = new InvgrpDao(InvgrpTestDataSource.create());
+        cache = new InvgrpCache<>("test", 100, 1, TimeUnit.HOURS);
+        store = new InvgrpPaymentMethodStore(dao,
+                                             new InvgrpInMemoryKillbillAPI(),
+                                             killbillClock,
+                                             cache,
+                                             false,
+                                             null);
+        router = new InvgrpPaymentMethodRouter(dao, killbillClock, store, 60, 3, 1);
+
+        dao.addPaymentMethodMapping(accountId, subscriptionId, pmId, new DateTime(), tenantId);
+        Assert.assertTrue(dao.addFallbackPaymentMethods(accountId, subscriptionId, List.of(fallbackPmId1, fallbackPmId2), new DateTime(), tenantId));
+        Assert.assertFalse(dao.addFallbackPaymentMethods(accountId, subscriptionId, List.of(fallbackPmId2), new DateTime(), tenantId));
+    }
+
+    @Test(groups = "fast")
+    public void testFailover() throws Exception {
+        final UUID invoiceId = addInvoice();
+
+        // Next in the chain, on each failure
+        Assert.assertEquals(router.onFailure(invoiceId, store.getInvoicePaymentMethod(invoiceId, context), pmId, context), fallbackPmId1);
+        Assert.assertEquals(store.getInvoicePaymentMethod(invoiceId, context).getPaymentMethodId(), fallbackPmId1);
+        Assert.assertEquals(router.onFailure(invoiceId, store.getInvoicePaymentMethod(invoiceId, context), fallbackPmId1, context), fallbackPmId2);
+        // Wrapping around
+        Assert.assertEquals(router.onFailure(invoiceId, store.getInvoicePaymentMethod(invoiceId, context), fallbackPmId2, context), pmId);
+
+        // Switched concurrently by another node
+        final InvgrpPaymentMethodMapping stale = store.getInvoicePaymentMethod(invoiceId, context);
+        Assert.assertEquals(router.onFailure(invoiceId, stale, pmId, context), fallbackPmId1);
+        Assert.assertNull(router.onFailure(invoiceId, stale, pmId, context));
+
+        // Not bad yet: the payment method of the invoice is used
+        Assert.assertEquals(router.route(invoiceId, store.getInvoicePaymentMethod(invoiceId, context), context), fallbackPmId1);
+    }
+
+    @Test(groups = "fast")
+    public void testBadPaymentMethod() throws Exception {
+        final UUID invoiceId = addInvoice();
+        final InvgrpPaymentMethodMapping mapping = store.getInvoicePaymentMethod(invoiceId, context);
+
+        // Failing on other invoices, a few seconds apart: the score is slightly decayed, but rounds to the bad score
+        for (int i = 0; i < 3; i++) {
+            Assert.assertFalse(router.isBad(tenantId, pmId));
+            router.recordFailure(tenantId, pmId);
+            clock.addMillis(TimeUnit.SECONDS.toMillis(10));
+        }
+        Assert.assertTrue(router.isBad(tenantId, pmId));
+        Assert.assertFalse(router.isBad(UUID.randomUUID(), pmId));
+        final InvgrpPaymentMethodFailure failure = dao.getPaymentMethodFailure(pmId, tenantId);
+        Assert.assertEquals(failure.getNbFailures(), 3);
+        Assert.assertTrue(failure.getScore() < 3);
+        Assert.assertEquals(failure.getScore(), 3, 0.01);
+        // Until the score decays to half of the bad score
+        Assert.assertTrue(failure.getBadUntilDate().isAfter(now().plusMinutes(59)));
+
+        Assert.assertEquals(router.route(invoiceId, mapping, context), fallbackPmId1);
+        // Bad payment methods are skipped on failure too
+        for (int i = 0; i < 3; i++) {
+            router.recordFailure(tenantId, fallbackPmId2);
+            clock.addMillis(TimeUnit.SECONDS.toMillis(1));
+        }
+        Assert.assertEquals(router.onFailure(invoiceId, mapping, pmId, context), fallbackPmId1);
+        Assert.assertNull(router.onFailure(invoiceId, store.getInvoicePaymentMethod(invoiceId, context), fallbackPmId1, context));
+
+        // All bad
+        for (int i = 0; i < 3; i++) {
+            router.recordFailure(tenantId, fallbackPmId1);
+            clock.addMillis(TimeUnit.SECONDS.toMillis(1));
+        }
+        Assert.assertEquals(router.route(invoiceId, mapping, context), pmId);
+
+        // Decayed back to half of the bad score (4 failures: log2(8 / 3) half-lives)
+        clock.addMillis(TimeUnit.MINUTES.toMillis(84));
+        Assert.assertTrue(router.isBad(tenantId, pmId));
+        clock.addMillis(TimeUnit.MINUTES.toMillis(2));
+        Assert.assertFalse(router.isBad(tenantId, pmId));
+    }
+
+    @Test(groups = "fast")
+    public void testSpreadFailures() throws Exception {
+        // 1 + 0.5 + 0.25
+        for (int i = 0; i < 3; i++) {
+            router.recordFailure(tenantId, pmId);
+            clock.addMillis(TimeUnit.HOURS.toMillis(1));
+        }
+        Assert.assertFalse(router.isBad(tenantId, pmId));
+        Assert.assertEquals(dao.getPaymentMethodFailure(pmId, tenantId).getScore(), 1.75, 0.01);
+        Assert.assertNull(dao.getPaymentMethodFailure(pmId, tenantId).getBadUntilDate());
+    }
+
+    @Test(groups = "fast")
+    public void testSharedFailures() throws Exception {
+        // Marked bad by another node, decayed since
+        final LocalDateTime now = now();
+        dao.savePaymentMethodFailure(new InvgrpPaymentMethodFailure(tenantId, pmId, 4, 4, now.minusHours(2), now.plusMinutes(1)), 0);
+        final InvgrpPaymentMethodFailure failure = dao.getPaymentMethodFailure(pmId, tenantId);
+        Assert.assertEquals(failure.getScore(clock.getUTCNow().getMillis(), TimeUnit.HOURS.toMillis(1)), 1, 0.01);
+
+        final InvgrpPaymentMethodRouter otherRouter = new InvgrpPaymentMethodRouter(dao, killbillClock, store, 60, 3, 1);
+        Assert.assertTrue(otherRouter.isBad(tenantId, pmId));
+        Assert.assertEquals(otherRouter.route(UUID.randomUUID(), new InvgrpPaymentMethodMapping(tenantId, accountId, subscriptionId, pmId), context), fallbackPmId1);
+
+        // The decayed score (1 + 1) doesn't make it bad again
+        otherRouter.recordFailure(tenantId, pmId);
+        Assert.assertEquals(dao.getPaymentMethodFailure(pmId, tenantId).getScore(), 2, 0.01);
+        Assert.assertEquals(dao.getPaymentMethodFailure(pmId, tenantId).getNbFailures(), 5);
+    }
+
+    @Test(groups = "fast")
+    public void testCachedChain() throws Exception {
+        final UUID invoiceId = addInvoice();
+        Assert.assertEquals(router.onFailure(invoiceId, store.getInvoicePaymentMethod(invoiceId, context), pmId, context), fallbackPmId1);
+        final InvgrpPaymentMethodMapping cached = cache.get(new InvgrpTenantKey(tenantId, subscriptionId));
+        Assert.assertEquals(cached.getPaymentMethodId(), pmId);
+        Assert.assertEquals(cached.getFallbackPaymentMethodIds(), List.of(fallbackPmId1, fallbackPmId2));
+
+        // The following failures don't load the chain again
+        final long nbMisses = cache.getMissCount();
+        Assert.assertEquals(router.onFailure(invoiceId, store.getInvoicePaymentMethod(invoiceId, context), fallbackPmId1, context), fallbackPmId2);
+        Assert.assertEquals(store.getPaymentMethodChain(accountId, subscriptionId, context), List.of(pmId, fallbackPmId1, fallbackPmId2));
+        Assert.assertEquals(cache.getMissCount(), nbMisses);
+
+        // Not mapped
+        Assert.assertEquals(store.getPaymentMethodChain(accountId, UUID.randomUUID(), context), List.of());
+    }
+
+    private LocalDateTime now() {
+        return LocalDateTime.ofEpochSecond(clock.getUTCNow().getMillis() / 1000, 0, ZoneOffset.UTC);
+    }
+
+    private UUID addInvoice() throws Exception {
+        final UUID invoiceId = UUID.randomUUID();
+        dao.addInvoicePaymentMethod(invoiceId, accountId, subscriptionId, pmId, new DateTime(), tenantId);
+        return invoiceId;
+    }
+}
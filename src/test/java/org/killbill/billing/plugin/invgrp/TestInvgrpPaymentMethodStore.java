@@ -0,0 +1,298 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.entitlement.api.Subscription;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.invoice.api.boilerplate.InvoiceImp;
+import org.killbill.billing.invoice.api.boilerplate.InvoiceItemImp;
+import org.killbill.billing.plugin.api.PluginCallContext;
+import org.killbill.billing.plugin.api.core.PluginCustomField;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestInvgrpPaymentMethodStore {
+
+    private final UUID accountId = UUID.randomUUID();
+    private final CallContext context = new PluginCallContext(InvgrpActivator.PLUGIN_NAME, new DateTime(), accountId, UUID.randomUUID());
+
+    private InvgrpInMemoryKillbillAPI killbillAPI;
+    private InvgrpDao dao;
+    private InvgrpCache<InvgrpTenantKey, InvgrpPaymentMethodMapping> cache;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        killbillAPI = new InvgrpInMemoryKillbillAPI();
+        dao = new InvgrpDao(InvgrpTestDataSource.create());
+        cache = new InvgrpCache<>("test", 100, 1, TimeUnit.HOURS);
+    }
+
+    @Test(groups = "fast")
+    public void testAccountPrefetch() throws Exception {
+        final InvgrpPaymentMethodStore store = store(false);
+        final UUID sub1 = killbillAPI.addSubscription(accountId).getId();
+        final UUID sub2 = killbillAPI.addSubscription(accountId).getId();
+        final UUID pm1 = killbillAPI.addPaymentMethod(accountId);
+        final UUID pm2 = killbillAPI.addPaymentMethod(accountId);
+
+        Assert.assertTrue(store.addPaymentMethod(accountId, sub1, pm1, context));
+        Assert.assertTrue(store.addPaymentMethod(accountId, sub2, pm2, context));
+        // Mappings are never overwritten
+        Assert.assertFalse(store.addPaymentMethod(accountId, sub1, pm2, context));
+
+        Assert.assertEquals(store.getPaymentMethodId(accountId, sub1, context), pm1);
+        // The first lookup loaded the whole account
+        Assert.assertEquals(cache.size(), 2);
+        Assert.assertEquals(store.getPaymentMethodId(accountId, sub2, context), pm2);
+        Assert.assertEquals(cache.getHitCount(), 1);
+
+        // Subscriptions without mapping are cached too
+        final UUID sub3 = killbillAPI.addSubscription(accountId).getId();
+        Assert.assertNull(store.getPaymentMethodId(accountId, sub3, context));
+        Assert.assertNull(store.getPaymentMethodId(accountId, sub3, context));
+        Assert.assertEquals(cache.getHitCount(), 2);
+        Assert.assertEquals(killbillAPI.getNbCalls(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testCustomFieldFallback() throws Exception {
+        final InvgrpPaymentMethodStore store = store(true);
+        final Subscription subscription = killbillAPI.addSubscription(accountId);
+        final UUID pmId = killbillAPI.addPaymentMethod(accountId);
+        killbillAPI.getCustomFieldUserApi().addCustomFields(ImmutableList.of(new PluginCustomField(subscription.getId(),
+                                                                                                   ObjectType.SUBSCRIPTION,
+                                                                                                   InvgrpEntitlementPluginApi.PM_ID,
+                                                                                                   pmId.toString(),
+                                                                                                   context.getCreatedDate())),
+                                                            context);
+
+        final Map<UUID, UUID> paymentMethodIds = store.getPaymentMethodIdsForAccount(accountId, context);
+        Assert.assertEquals(paymentMethodIds.get(subscription.getId()), pmId);
+        // The legacy mapping was copied to the plugin table
+        Assert.assertEquals(dao.getPaymentMethodMapping(subscription.getId(), context.getTenantId()).getPaymentMethodId(), pmId);
+    }
+
+    @Test(groups = "fast")
+    public void testMalformedCustomField() throws Exception {
+        final InvgrpPaymentMethodStore store = store(true);
+        final Subscription subscription = killbillAPI.addSubscription(accountId);
+        final Subscription malformed = killbillAPI.addSubscription(accountId);
+        final UUID pmId = killbillAPI.addPaymentMethod(accountId);
+        killbillAPI.getCustomFieldUserApi().addCustomFields(ImmutableList.of(new PluginCustomField(subscription.getId(),
+                                                                                                   ObjectType.SUBSCRIPTION,
+                                                                                                   InvgrpEntitlementPluginApi.PM_ID,
+                                                                                                   pmId.toString(),
+                                                                                                   context.getCreatedDate()),
+                                                                             new PluginCustomField(malformed.getId(),
+                                                                                                   ObjectType.SUBSCRIPTION,
+                                                                                                   InvgrpEntitlementPluginApi.PM_ID,
+                                                                                                   "not-a-uuid",
+                                                                                                   context.getCreatedDate())),
+                                                            context);
+
+        // The other mappings of the account are still loaded
+        Assert.assertEquals(store.getPaymentMethodId(accountId, subscription.getId(), context), pmId);
+        Assert.assertNull(store.getPaymentMethodId(accountId, malformed.getId(), context));
+        Assert.assertNull(dao.getPaymentMethodMapping(malformed.getId(), context.getTenantId()));
+    }
+
+    @Test(groups = "fast")
+    public void testMappingQueries() throws Exception {
+        final UUID pmId = killbillAPI.addPaymentMethod(accountId);
+        final UUID otherTenantId = UUID.randomUUID();
+        final List<UUID> subscriptionIds = new ArrayList<UUID>();
+        for (int i = 0; i < 5; i++) {
+            subscriptionIds.add(killbillAPI.addSubscription(accountId).getId());
+        }
+        Assert.assertTrue(dao.addPaymentMethodMapping(accountId, subscriptionIds.get(0), pmId, new DateTime(), context.getTenantId()));
+        // Only the missing mappings are created
+        Assert.assertEquals(dao.addPaymentMethodMappings(accountId, subscriptionIds, pmId, new DateTime(), context.getTenantId()), subscriptionIds.subList(1, 5));
+        Assert.assertEquals(dao.addPaymentMethodMappings(accountId, subscriptionIds, pmId, new DateTime(), context.getTenantId()), List.of());
+        // Same subscription, other tenant
+        Assert.assertTrue(dao.addPaymentMethodMapping(accountId, subscriptionIds.get(0), pmId, new DateTime(), otherTenantId));
+
+        final InvgrpPaymentMethodMapping mapping = dao.getPaymentMethodMapping(subscriptionIds.get(0), context.getTenantId());
+        Assert.assertEquals(mapping.getAccountId(), accountId);
+        Assert.assertEquals(mapping.getPaymentMethodId(), pmId);
+        Assert.assertEquals(mapping.getTenantId(), context.getTenantId());
+        Assert.assertNull(dao.getPaymentMethodMapping(UUID.randomUUID(), context.getTenantId()));
+        Assert.assertEquals(dao.getPaymentMethodMappingsForAccount(accountId, context.getTenantId()).size(), 5);
+        Assert.assertEquals(dao.getPaymentMethodMappingsForAccount(accountId, otherTenantId).size(), 1);
+        Assert.assertEquals(dao.getPaymentMethodMappingsForAccount(UUID.randomUUID(), context.getTenantId()).size(), 0);
+
+        // Keyset pagination, 2 by 2, in insertion order
+        final List<UUID> paged = new ArrayList<UUID>();
+        long afterRecordId = 0;
+        Long lastRecordId;
+        int nbPages = 0;
+        while ((lastRecordId = dao.getPaymentMethodMappings(context.getTenantId(), afterRecordId, 2, m -> paged.add(m.getSubscriptionId()))) != null) {
+            afterRecordId = lastRecordId;
+            nbPages++;
+        }
+        Assert.assertEquals(nbPages, 3);
+        Assert.assertEquals(paged, subscriptionIds);
+    }
+
+    @Test(groups = "fast")
+    public void testSharedCache() throws Exception {
+        // Custom field fallback enabled, so that each account load is visible as one Kill Bill API call
+        final InvgrpPaymentMethodStore store = store(true);
+        final InvgrpPaymentMethodStore otherStore = store(true);
+        final UUID mapped = killbillAPI.addSubscription(accountId).getId();
+        final UUID notMapped = killbillAPI.addSubscription(accountId).getId();
+        final UUID pmId = killbillAPI.addPaymentMethod(accountId);
+        store.addPaymentMethod(accountId, mapped, pmId, context);
+
+        // Positive and negative entries, loaded by one store, served to the other one
+        Assert.assertEquals(store.getPaymentMethodIds(accountId, List.of(mapped, notMapped), context), Map.of(mapped, pmId));
+        Assert.assertEquals(killbillAPI.getNbCalls(), 1);
+        Assert.assertEquals(otherStore.getPaymentMethodId(accountId, mapped, context), pmId);
+        Assert.assertNull(otherStore.getPaymentMethodId(accountId, notMapped, context));
+        Assert.assertEquals(killbillAPI.getNbCalls(), 1);
+        Assert.assertEquals(cache.get(new InvgrpTenantKey(context.getTenantId(), mapped)).getPaymentMethodId(), pmId);
+        Assert.assertNull(cache.get(new InvgrpTenantKey(context.getTenantId(), notMapped)).getPaymentMethodId());
+
+        // The negative entry sticks until it is invalidated (e.g. by the listener or the mapping queue)
+        dao.addPaymentMethodMapping(accountId, notMapped, pmId, new DateTime(), context.getTenantId());
+        Assert.assertNull(store.getPaymentMethodId(accountId, notMapped, context));
+        cache.invalidate(new InvgrpTenantKey(context.getTenantId(), notMapped));
+        Assert.assertEquals(otherStore.getPaymentMethodId(accountId, notMapped, context), pmId);
+        Assert.assertEquals(killbillAPI.getNbCalls(), 2);
+
+        // Entries are per tenant
+        final CallContext otherTenantContext = new PluginCallContext(InvgrpActivator.PLUGIN_NAME, new DateTime(), accountId, UUID.randomUUID());
+        Assert.assertNull(store.getPaymentMethodId(accountId, mapped, otherTenantContext));
+        Assert.assertEquals(killbillAPI.getNbCalls(), 3);
+    }
+
+    @Test(groups = "fast")
+    public void testBulkPrefetch() throws Exception {
+        final InvgrpPaymentMethodStore store = store(true);
+        final UUID sub1 = killbillAPI.addSubscription(accountId).getId();
+        final UUID sub2 = killbillAPI.addSubscription(accountId).getId();
+        final UUID sub3 = killbillAPI.addSubscription(accountId).getId();
+        final UUID pmId = killbillAPI.addPaymentMethod(accountId);
+        store.addPaymentMethod(accountId, sub1, pmId, context);
+        store.addPaymentMethod(accountId, sub2, pmId, context);
+        // Another account
+        final UUID otherAccountId = UUID.randomUUID();
+        final UUID otherSub = killbillAPI.addSubscription(otherAccountId).getId();
+        store.addPaymentMethod(otherAccountId, otherSub, killbillAPI.addPaymentMethod(otherAccountId), context);
+
+        // One of them cached: still one account load for the others
+        Assert.assertEquals(store.getPaymentMethodId(accountId, sub1, context), pmId);
+        cache.invalidate(new InvgrpTenantKey(context.getTenantId(), sub2));
+        Assert.assertEquals(store.getPaymentMethodIds(accountId, List.of(sub1, sub2, sub3), context), Map.of(sub1, pmId, sub2, pmId));
+        Assert.assertEquals(killbillAPI.getNbCalls(), 2);
+        // All cached now
+        Assert.assertEquals(store.getPaymentMethodIds(accountId, List.of(sub1, sub2, sub3), context), Map.of(sub1, pmId, sub2, pmId));
+        Assert.assertEquals(killbillAPI.getNbCalls(), 2);
+        // Only the account loaded is cached
+        Assert.assertEquals(cache.size(), 3);
+        Assert.assertNull(cache.get(new InvgrpTenantKey(context.getTenantId(), otherSub)));
+    }
+
+    @Test(groups = "fast")
+    public void testInvoiceIndex() throws Exception {
+        final InvgrpPaymentMethodStore store = store(false);
+        final UUID subscriptionId = killbillAPI.addSubscription(accountId).getId();
+        final UUID pmId = killbillAPI.addPaymentMethod(accountId);
+        store.addPaymentMethod(accountId, subscriptionId, pmId, context);
+
+        final Invoice invoice = invoice(subscriptionId);
+        store.addInvoicePaymentMethod(invoice, context);
+        final InvgrpPaymentMethodMapping indexed = store.getInvoicePaymentMethod(invoice.getId(), context);
+        Assert.assertEquals(indexed.getSubscriptionId(), subscriptionId);
+        Assert.assertEquals(indexed.getPaymentMethodId(), pmId);
+
+        // Invoices without payment method are indexed too
+        final Invoice otherInvoice = invoice(killbillAPI.addSubscription(accountId).getId());
+        store.addInvoicePaymentMethod(otherInvoice, context);
+        Assert.assertNull(store.getInvoicePaymentMethod(otherInvoice.getId(), context).getPaymentMethodId());
+
+        Assert.assertNull(store.getInvoicePaymentMethod(UUID.randomUUID(), context));
+    }
+
+    @Test(groups = "fast")
+    public void testGroupByPaymentMethod() throws Exception {
+        // Custom field fallback enabled, so that each account load is visible as one Kill Bill API call
+        final InvgrpPaymentMethodStore store = store(true);
+        final UUID sub1 = killbillAPI.addSubscription(accountId).getId();
+        final UUID sub2 = killbillAPI.addSubscription(accountId).getId();
+        final UUID sub3 = killbillAPI.addSubscription(accountId).getId();
+        final UUID sub4 = killbillAPI.addSubscription(accountId).getId();
+        final UUID pm1 = killbillAPI.addPaymentMethod(accountId);
+        final UUID pm2 = killbillAPI.addPaymentMethod(accountId);
+        store.addPaymentMethod(accountId, sub1, pm1, context);
+        store.addPaymentMethod(accountId, sub2, pm2, context);
+        store.addPaymentMethod(accountId, sub3, pm1, context);
+
+        final Properties properties = new Properties();
+        properties.put(InvgrpGroupingStrategy.GROUPING_RULES_PROPERTY, "PAYMENT_METHOD");
+        final InvgrpGroupingStrategy strategy = InvgrpGroupingStrategy.compile(properties);
+        final Invoice invoice = invoice(sub1, sub2, sub3, sub4);
+        final List<List<UUID>> groups = new InvgrpGroupingEngine().group(invoice, strategy.newSession(invoice, killbillAPI, store, context));
+        Assert.assertEquals(groups, ImmutableList.of(ImmutableList.of(invoice.getInvoiceItems().get(0).getId(), invoice.getInvoiceItems().get(2).getId()),
+                                                     ImmutableList.of(invoice.getInvoiceItems().get(1).getId()),
+                                                     ImmutableList.of(invoice.getInvoiceItems().get(3).getId())));
+        // One bulk lookup for the whole invoice
+        Assert.assertEquals(killbillAPI.getNbCalls(), 1);
+
+        // The merged invoice is paid with the shared payment method, without loading the account again
+        final Invoice merged = invoice(sub1, sub3);
+        store.addInvoicePaymentMethod(merged, context);
+        Assert.assertEquals(store.getInvoicePaymentMethod(merged.getId(), context).getPaymentMethodId(), pm1);
+        Assert.assertEquals(killbillAPI.getNbCalls(), 1);
+    }
+
+    private InvgrpPaymentMethodStore store(final boolean customFieldFallback) {
+        return new InvgrpPaymentMethodStore(dao, killbillAPI, InvgrpInMemoryKillbillAPI.clock(), cache, customFieldFallback, null);
+    }
+
+    private Invoice invoice(final UUID... subscriptionIds) {
+        final List<InvoiceItem> items = new ArrayList<InvoiceItem>();
+        for (final UUID subscriptionId : subscriptionIds) {
+            items.add(new InvoiceItemImp.Builder<>().withId(UUID.randomUUID())
+                                                    .withInvoiceItemType(InvoiceItemType.RECURRING)
+                                                    .withSubscriptionId(subscriptionId)
+                                                    .withAmount(BigDecimal.TEN)
+                                                    .withCurrency(Currency.USD)
+                                                    .build());
+        }
+        return new InvoiceImp.Builder<>().withId(UUID.randomUUID())
+                                         .withAccountId(accountId)
+                                         .withInvoiceItems(items)
+                                         .build();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.payment.api.PaymentApiException;
+import org.killbill.billing.plugin.api.PluginTenantContext;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestInvgrpPaymentMethodValidator {
+
+    private final UUID accountId = UUID.randomUUID();
+    private final TenantContext context = new PluginTenantContext(accountId, UUID.randomUUID());
+    private final AtomicLong now = new AtomicLong();
+
+    private InvgrpInMemoryKillbillAPI killbillAPI;
+    private InvgrpPaymentMethodValidator validator;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        killbillAPI = new InvgrpInMemoryKillbillAPI();
+        validator = new InvgrpPaymentMethodValidator(killbillAPI,
+                                                     new InvgrpCache<>("validPaymentMethods", 100, 1, TimeUnit.HOURS, now::get),
+                                                     new InvgrpCache<>("unknownPaymentMethods", 100, 30, TimeUnit.SECONDS, now::get));
+    }
+
+    @Test(groups = "fast")
+    public void testValidPaymentMethod() throws Exception {
+        final UUID pmId = killbillAPI.addPaymentMethod(accountId);
+
+        final long nbCalls = killbillAPI.getNbCalls();
+        for (int i = 0; i < 10; i++) {
+            validator.validate(pmId, context);
+        }
+        Assert.assertEquals(killbillAPI.getNbCalls() - nbCalls, 1);
+
+        // Cached per tenant
+        validator.validate(pmId, new PluginTenantContext(accountId, UUID.randomUUID()));
+        Assert.assertEquals(killbillAPI.getNbCalls() - nbCalls, 2);
+
+        // E.g. ACCOUNT_CHANGE event
+        validator.invalidateAccount(UUID.randomUUID());
+        validator.validate(pmId, context);
+        Assert.assertEquals(killbillAPI.getNbCalls() - nbCalls, 2);
+        validator.invalidateAccount(accountId);
+        validator.validate(pmId, context);
+        Assert.assertEquals(killbillAPI.getNbCalls() - nbCalls, 3);
+    }
+
+    @Test(groups = "fast")
+    public void testUnknownPaymentMethod() {
+        final UUID pmId = UUID.randomUUID();
+
+        final long nbCalls = killbillAPI.getNbCalls();
+        for (int i = 0; i < 10; i++) {
+            try {
+                validator.validate(pmId, context);
+                Assert.fail();
+            } catch (final PaymentApiException expected) {
+            }
+        }
+        Assert.assertEquals(killbillAPI.getNbCalls() - nbCalls, 1);
+
+        // Looked up again once the negative entry expires
+        now.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        try {
+            validator.validate(pmId, context);
+            Assert.fail();
+        } catch (final PaymentApiException expected) {
+        }
+        Assert.assertEquals(killbillAPI.getNbCalls() - nbCalls, 2);
+    }
+}
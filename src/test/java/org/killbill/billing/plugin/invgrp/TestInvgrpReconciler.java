@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.account.api.Account;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestInvgrpReconciler {
+
+    private final UUID tenantId = UUID.randomUUID();
+
+    private InvgrpInMemoryKillbillAPI killbillAPI;
+    private InvgrpDao dao;
+    private InvgrpReconciler reconciler;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        killbillAPI = new InvgrpInMemoryKillbillAPI();
+        dao = new InvgrpDao(InvgrpTestDataSource.create());
+        final InvgrpPaymentMethodStore store = new InvgrpPaymentMethodStore(dao,
+                                                                           killbillAPI,
+                                                                           InvgrpInMemoryKillbillAPI.clock(),
+                                                                           new InvgrpCache<>("test", 100, 1, TimeUnit.HOURS),
+                                                                           false,
+                                                                           null);
+        reconciler = new InvgrpReconciler(dao, killbillAPI, InvgrpInMemoryKillbillAPI.clock(), store, 60, 4, 2, 0);
+        reconciler.start();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() throws Exception {
+        reconciler.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testReconcile() throws Exception {
+        // Mapped, and not mapped
+        final Account account1 = killbillAPI.addAccount();
+        map(account1, killbillAPI.addPaymentMethod(account1.getId()));
+        killbillAPI.addSubscription(account1.getId());
+        // Mapped to a deleted payment method
+        final Account account2 = killbillAPI.addAccount();
+        final UUID deletedPmId = killbillAPI.addPaymentMethod(account2.getId());
+        map(account2, deletedPmId);
+        killbillAPI.deletePaymentMethod(deletedPmId);
+        // Without subscriptions
+        killbillAPI.addAccount();
+
+        reconciler.reconcile();
+        final InvgrpReconcilerCheckpoint checkpoint = dao.getReconcilerCheckpoint(tenantId);
+        Assert.assertEquals(checkpoint.getNbAccounts(), 3);
+        Assert.assertEquals(checkpoint.getNbMissing(), 1);
+        Assert.assertEquals(checkpoint.getNbDangling(), 1);
+        Assert.assertEquals(checkpoint.getNbErrors(), 0);
+        Assert.assertEquals(checkpoint.getAccountOffset(), 0);
+        Assert.assertNotNull(checkpoint.getPassCompletedDate());
+
+        final InvgrpReconciler.Report report = reconciler.getReport(tenantId);
+        Assert.assertEquals(report.getFindings().size(), 2);
+        Assert.assertTrue(report.getFindings().stream().anyMatch(finding -> finding.contains(deletedPmId.toString())));
+
+        // Not due yet
+        final long nbCalls = killbillAPI.getNbCalls();
+        reconciler.reconcile();
+        Assert.assertEquals(killbillAPI.getNbCalls(), nbCalls);
+    }
+
+    @Test(groups = "fast")
+    public void testResume() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            final Account account = killbillAPI.addAccount();
+            map(account, killbillAPI.addPaymentMethod(account.getId()));
+        }
+        // Interrupted after the first 2 pages
+        final DateTime now = new DateTime();
+        Assert.assertTrue(dao.addReconcilerCheckpoint(tenantId, now));
+        Assert.assertNotNull(dao.claimReconcilerCheckpoint(tenantId, now, now, now.plusMinutes(1)));
+        dao.saveReconcilerCheckpoint(new InvgrpReconcilerCheckpoint(tenantId, 4, 4, 0, 0, 0, LocalDateTime.now(), null), now, null);
+
+        reconciler.reconcile();
+        final InvgrpReconcilerCheckpoint checkpoint = dao.getReconcilerCheckpoint(tenantId);
+        Assert.assertEquals(checkpoint.getNbAccounts(), 5);
+        Assert.assertNotNull(checkpoint.getPassCompletedDate());
+    }
+
+    @Test(groups = "fast")
+    public void testLease() throws Exception {
+        final Account account = killbillAPI.addAccount();
+        map(account, killbillAPI.addPaymentMethod(account.getId()));
+        // Another node is on it
+        final DateTime now = new DateTime();
+        Assert.assertTrue(dao.addReconcilerCheckpoint(tenantId, now));
+        Assert.assertNotNull(dao.claimReconcilerCheckpoint(tenantId, now, now, now.plusHours(1)));
+
+        reconciler.reconcile();
+        Assert.assertNull(dao.getReconcilerCheckpoint(tenantId).getPassStartedDate());
+        Assert.assertNull(reconciler.getReport(tenantId));
+    }
+
+    @Test(groups = "fast")
+    public void testTenantWithoutMappings() throws Exception {
+        // Only subscriptions created without PM_ID
+        final Account account = killbillAPI.addAccount();
+        killbillAPI.addPaymentMethod(account.getId());
+        killbillAPI.addSubscription(account.getId());
+
+        reconciler.reconcile();
+        Assert.assertNull(dao.getReconcilerCheckpoint(tenantId));
+
+        // E.g. seen by the listener
+        reconciler.addTenant(tenantId);
+        reconciler.addTenant(tenantId);
+        reconciler.reconcile();
+        final InvgrpReconcilerCheckpoint checkpoint = dao.getReconcilerCheckpoint(tenantId);
+        Assert.assertEquals(checkpoint.getNbAccounts(), 1);
+        Assert.assertEquals(checkpoint.getNbMissing(), 1);
+        Assert.assertNotNull(checkpoint.getPassCompletedDate());
+    }
+
+    private void map(final Account account, final UUID paymentMethodId) throws Exception {
+        dao.addPaymentMethodMapping(account.getId(), killbillAPI.addSubscription(account.getId()).getId(), paymentMethodId, new DateTime(), tenantId);
+    }
+}
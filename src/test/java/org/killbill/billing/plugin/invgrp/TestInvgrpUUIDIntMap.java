@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014-2024 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.invgrp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestInvgrpUUIDIntMap {
+
+    @Test(groups = "fast")
+    public void testPutAndGet() {
+        final InvgrpUUIDIntMap map = new InvgrpUUIDIntMap(0);
+        final UUID key = UUID.randomUUID();
+        Assert.assertEquals(map.get(key), InvgrpUUIDIntMap.NO_VALUE);
+        Assert.assertEquals(map.put(key, 1), InvgrpUUIDIntMap.NO_VALUE);
+        Assert.assertEquals(map.put(key, 2), 1);
+        Assert.assertEquals(map.putIfAbsent(key, 3), 2);
+        Assert.assertEquals(map.get(key), 2);
+        Assert.assertEquals(map.size(), 1);
+        // Same bits, different instance
+        Assert.assertEquals(map.get(new UUID(key.getMostSignificantBits(), key.getLeastSignificantBits())), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testResize() {
+        final InvgrpUUIDIntMap map = new InvgrpUUIDIntMap(4);
+        final Map<UUID, Integer> expected = new HashMap<UUID, Integer>();
+        for (int i = 0; i < 10000; i++) {
+            // Structured ids (sequential, zero least significant bits) must not degrade the map
+            final UUID key = i % 2 == 0 ? UUID.randomUUID() : new UUID(i, 0L);
+            expected.put(key, i);
+            map.put(key, i);
+        }
+        Assert.assertEquals(map.size(), expected.size());
+        for (final Map.Entry<UUID, Integer> entry : expected.entrySet()) {
+            Assert.assertEquals(map.get(entry.getKey()), (int) entry.getValue());
+        }
+        Assert.assertEquals(map.get(new UUID(1L, 1L)), InvgrpUUIDIntMap.NO_VALUE);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testNegativeValue() {
+        new InvgrpUUIDIntMap(1).put(UUID.randomUUID(), InvgrpUUIDIntMap.NO_VALUE);
+    }
+}